@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares decoding a small GET and encoding its response with {@link FastHttpServerCodec} and with
+ * Netty's {@link HttpServerCodec}, each followed by the aggregator the server uses.
+ */
+@State(Scope.Thread)
+public class JmhHttp1CodecBenchmark {
+  private static final byte[] REQUEST =
+      ("GET /people/42?fields=name HTTP/1.1\r\n"
+              + "Host: api.example.com\r\n"
+              + "User-Agent: benchmark/1.0\r\n"
+              + "Accept: application/json\r\n"
+              + "Accept-Encoding: gzip, deflate\r\n"
+              + "X-Request-Id: 5f0c3a1e-4d2b-4c6e-9a8f-1b2c3d4e5f60\r\n"
+              + "\r\n")
+          .getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] BODY = "{\"name\":\"Ada\"}".getBytes(StandardCharsets.US_ASCII);
+
+  EmbeddedChannel netty;
+  EmbeddedChannel fast;
+
+  @Setup
+  public void setupChannels() {
+    netty = new EmbeddedChannel(new HttpServerCodec(), new HttpObjectAggregator(1024 * 1024));
+    fast = new EmbeddedChannel(new FastHttpServerCodec(), new HttpObjectAggregator(1024 * 1024));
+  }
+
+  @TearDown
+  public void closeChannels() {
+    netty.finishAndReleaseAll();
+    fast.finishAndReleaseAll();
+  }
+
+  private static void exchange(EmbeddedChannel channel) {
+    channel.writeInbound(Unpooled.wrappedBuffer(REQUEST));
+    ReferenceCountUtil.release(channel.readInbound());
+
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(BODY));
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, BODY.length);
+    channel.writeOutbound(response);
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      buf.release();
+    }
+  }
+
+  @BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Benchmark
+  public void nettyCodec() {
+    exchange(netty);
+  }
+
+  @BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Benchmark
+  public void fastCodec() {
+    exchange(fast);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Compares building the HTTP/2 headers of a typical response directly and through conversion. */
+@State(Scope.Thread)
+public class JmhHttp2ResponseHeadersBenchmark {
+  FullHttpResponse response;
+
+  @Setup
+  public void setupResponse() {
+    response =
+        Recipes.newResponse(
+            HttpResponseStatus.OK,
+            Unpooled.wrappedBuffer(new byte[128]),
+            Recipes.ContentType.Application_Json);
+    response.headers().set("Cache-Control", "no-cache");
+  }
+
+  @BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Benchmark
+  public Http2Headers direct() {
+    return Http2ResponseHeaders.of(response);
+  }
+
+  @BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Benchmark
+  public Http2Headers converted() {
+    return HttpConversionUtil.toHttp2Headers(response, true);
+  }
+}
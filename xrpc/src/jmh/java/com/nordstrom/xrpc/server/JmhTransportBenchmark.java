@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.ConfigFactory;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Compares the server's throughput on each transport, with many clients sending cleartext HTTP/1.1
+ * requests over keep-alive connections. A transport which is unavailable on the benchmarking host
+ * falls back to the auto one; the server logs which it is using.
+ */
+@State(Scope.Benchmark)
+public class JmhTransportBenchmark {
+  @Param({"epoll", "kqueue", "nio"})
+  String transport;
+
+  Server server;
+  OkHttpClient client;
+  Request request;
+
+  @Setup
+  public void startServer() throws IOException {
+    // Lift the rate limits, which would otherwise be what's measured.
+    server =
+        new Server(
+            ConfigFactory.parseString(
+                "transport = "
+                    + transport
+                    + "\nsoft_req_per_sec = 1e9, hard_req_per_sec = 1e9"
+                    + "\nglobal_soft_req_per_sec = 1e9, global_hard_req_per_sec = 1e9"
+                    + "\ntls { useSsl = false, logInsecureConfig = false }"),
+            0);
+    server.get("/people", request -> Recipes.newResponseOk("people"));
+    server.listenAndServe();
+
+    client = new OkHttpClient();
+    request =
+        new Request.Builder()
+            .url(server.localEndpoint().replace("https:", "http:") + "/people")
+            .build();
+  }
+
+  @TearDown
+  public void stopServer() {
+    server.shutdown();
+  }
+
+  @Benchmark
+  @Threads(16)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+  public String get() throws IOException {
+    try (Response response = client.newCall(request).execute()) {
+      return response.body().string();
+    }
+  }
+}
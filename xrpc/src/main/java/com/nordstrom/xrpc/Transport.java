@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueDomainSocketChannel;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueServerDomainSocketChannel;
+import io.netty.channel.kqueue.KQueueServerSocketChannel;
+import io.netty.channel.kqueue.KQueueSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The Netty transports servers and clients can run their event loops on, in order of preference.
+ * The native transports are only available on their platforms; NIO is available everywhere.
+ */
+@Slf4j
+public enum Transport {
+  /** The Linux transport. */
+  EPOLL {
+    @Override
+    public boolean isAvailable() {
+      return Epoll.isAvailable();
+    }
+
+    @Override
+    public EventLoopGroup newEventLoopGroup(int threadCount, ThreadFactory threadFactory) {
+      return new EpollEventLoopGroup(threadCount, threadFactory);
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelClass() {
+      return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+      return EpollSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+      return EpollServerDomainSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends Channel> domainSocketChannelClass() {
+      return EpollDomainSocketChannel.class;
+    }
+  },
+  /** The BSD and macOS transport. */
+  KQUEUE {
+    @Override
+    public boolean isAvailable() {
+      return KQueue.isAvailable();
+    }
+
+    @Override
+    public EventLoopGroup newEventLoopGroup(int threadCount, ThreadFactory threadFactory) {
+      return new KQueueEventLoopGroup(threadCount, threadFactory);
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelClass() {
+      return KQueueServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+      return KQueueSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+      return KQueueServerDomainSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends Channel> domainSocketChannelClass() {
+      return KQueueDomainSocketChannel.class;
+    }
+  },
+  /** The JDK transport, which doesn't support Unix domain sockets. */
+  NIO {
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public EventLoopGroup newEventLoopGroup(int threadCount, ThreadFactory threadFactory) {
+      return new NioEventLoopGroup(threadCount, threadFactory);
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelClass() {
+      return NioServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+      return NioSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+      throw new IllegalStateException(
+          "Unix domain sockets require the epoll or kqueue transport, which is unavailable");
+    }
+
+    @Override
+    public Class<? extends Channel> domainSocketChannelClass() {
+      throw new IllegalStateException(
+          "Unix domain sockets require the epoll or kqueue transport, which is unavailable");
+    }
+  };
+
+  /** The name that selects this transport in config. */
+  public String configName() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+
+  /** Whether this transport's native library loaded on this platform. */
+  public abstract boolean isAvailable();
+
+  public abstract EventLoopGroup newEventLoopGroup(int threadCount, ThreadFactory threadFactory);
+
+  public abstract Class<? extends ServerChannel> serverChannelClass();
+
+  public abstract Class<? extends SocketChannel> channelClass();
+
+  /** @throws IllegalStateException if this transport doesn't support Unix domain sockets */
+  public abstract Class<? extends ServerChannel> serverDomainSocketChannelClass();
+
+  /** @throws IllegalStateException if this transport doesn't support Unix domain sockets */
+  public abstract Class<? extends Channel> domainSocketChannelClass();
+
+  /** Returns the most preferred available transport. */
+  public static Transport preferred() {
+    for (Transport transport : values()) {
+      if (transport.isAvailable()) {
+        return transport;
+      }
+    }
+    // NIO is always available.
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the transport with the given config name, or "auto" for the {@link #preferred} one. A
+   * named transport which is unavailable falls back to the preferred one, with a warning.
+   *
+   * @throws IllegalArgumentException if the name is neither "auto" nor a transport's name
+   */
+  public static Transport select(String name) {
+    if ("auto".equals(name)) {
+      return preferred();
+    }
+    Transport selected = null;
+    for (Transport transport : values()) {
+      if (transport.configName().equals(name)) {
+        selected = transport;
+      }
+    }
+    if (selected == null) {
+      throw new IllegalArgumentException(
+          "transport must be auto, epoll, kqueue or nio; got " + name);
+    }
+    if (!selected.isAvailable()) {
+      Transport fallback = preferred();
+      log.warn("The {} transport is unavailable; falling back to {}", name, fallback.configName());
+      return fallback;
+    }
+    return selected;
+  }
+
+  /** Returns the transport the given event loop group runs on. */
+  public static Transport of(EventLoopGroup group) {
+    if (group instanceof EpollEventLoopGroup) {
+      return EPOLL;
+    } else if (group instanceof KQueueEventLoopGroup) {
+      return KQUEUE;
+    } else if (group instanceof NioEventLoopGroup) {
+      return NIO;
+    }
+    throw new IllegalArgumentException("Unsupported event loop group " + group);
+  }
+}
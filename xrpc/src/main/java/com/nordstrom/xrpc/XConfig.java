@@ -18,23 +18,38 @@ package com.nordstrom.xrpc;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import com.nordstrom.xrpc.server.ClientAddresses;
+import com.nordstrom.xrpc.server.HandlerExecutorConfig;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigUtil;
 import com.xjeffrose.xio.tls.SslContextFactory;
 import com.xjeffrose.xio.tls.TlsConfig;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.cors.CorsConfig;
 import io.netty.handler.codec.http.cors.CorsConfigBuilder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.util.internal.PlatformDependent;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
@@ -55,6 +70,9 @@ public class XConfig {
   private final int writerIdleTimeout;
   private final int allIdleTimeout;
   private final String workerNameFormat;
+  /** The transport the event loops run on, after falling back from an unavailable one. */
+  private final Transport transport;
+
   private final int bossThreadCount;
   private final int workerThreadCount;
   private final int asyncHealthCheckThreadCount;
@@ -63,10 +81,24 @@ public class XConfig {
   private final double softReqPerSec;
   private final double hardReqPerSec;
   private final int port;
+  /** The path of a Unix domain socket to also listen on, or null for none. */
+  private final String unixSocketPath;
+  /** True if epoll servers bind a SO_REUSEPORT listener per boss thread. */
+  private final boolean reusePort;
+  /** The TCP_DEFER_ACCEPT timeout in seconds, or 0 to accept connections without waiting. */
+  private final int tcpDeferAcceptSeconds;
+  /** The TCP_FASTOPEN queue length, or 0 to disable TCP Fast Open. */
+  private final int tcpFastopen;
+
   private final double globalSoftReqPerSec;
   private final double globalHardReqPerSec;
   private final ImmutableSet<String> ipBlackList;
   private final ImmutableSet<String> ipWhiteList;
+  /** True if each connection starts with a PROXY protocol header giving its client's address. */
+  private final boolean proxyProtocol;
+  /** Resolves request clients from the forwarding headers set by the trusted proxies. */
+  private final ClientAddresses clientAddresses;
+
   private final boolean slf4jReporter;
   private final boolean jmxReporter;
   private final boolean consoleReporter;
@@ -74,7 +106,15 @@ public class XConfig {
   private final int consoleReporterPollingRate;
   private final boolean adminRoutesEnableInfo;
   private final boolean adminRoutesEnableUnsafe;
+  /** The port of the separate admin listener, or -1 to serve admin routes on the server port. */
+  private final int adminPort;
+
+  private final int adminThreadCount;
+  /** Whether admin connections use the server's TLS context, rather than being cleartext. */
+  private final boolean adminUseTls;
+
   private final String defaultContentType;
+  /** The server's TLS context, or null if TLS is disabled and connections are cleartext. */
   private final SslContext sslContext;
 
   private final Map<String, List<Double>> clientRateLimitOverride =
@@ -85,6 +125,29 @@ public class XConfig {
 
   private final CorsConfig corsConfig;
 
+  private final ImmutableMap<String, HandlerExecutorConfig> handlerExecutors;
+  private final ImmutableMap<String, String> routeExecutors;
+  private final boolean responseCompression;
+  private final int responseCompressionMinBytes;
+  private final int responseCompressionLevel;
+  private final boolean requestDecompression;
+  private final ImmutableMap<String, CompressionDictionary> compressionDictionaries;
+  private final int sseMaxBufferedBytes;
+  private final Duration sseHeartbeatInterval;
+  private final int webSocketMaxOutboundQueueBytes;
+  private final boolean webSocketPermessageDeflate;
+  private final Http2Settings http2Settings;
+  private final int http2ConnectionWindowSize;
+  private final boolean http2BdpAutotuning;
+  private final int http2MaxWindowSize;
+  private final boolean http1FastCodec;
+  private final long uploadMaxBytes;
+  private final int uploadMemoryThresholdBytes;
+  /** The directory to spool uploads to, or null for the JVM's temporary directory. */
+  private final Path uploadTempDir;
+  /** The Alt-Svc header value to add to every response, or null for none. */
+  private final String altSvc;
+
   /**
    * Construct a config object using the default configuration values <a
    * href="https://github.com/Nordstrom/xrpc/blob/master/src/main/resources/com/nordstrom/xrpc/xrpc.conf">here</a>.
@@ -98,7 +161,8 @@ public class XConfig {
    * configuration values <a
    * href="https://github.com/Nordstrom/xrpc/blob/master/src/main/resources/com/nordstrom/xrpc/xrpc.conf">here</a>.
    *
-   * @throws RuntimeException if there is an error reading one of path_to_cert or path_to_key
+   * @throws RuntimeException if there is an error reading one of path_to_cert or path_to_key, or
+   *     one of the compression_dictionaries
    */
   public XConfig(Config configOverrides) {
     Config defaultConfig = ConfigFactory.parseResources(this.getClass(), "xrpc.conf");
@@ -108,6 +172,7 @@ public class XConfig {
     writerIdleTimeout = config.getInt("writer_idle_timeout_seconds");
     allIdleTimeout = config.getInt("all_idle_timeout_seconds");
     workerNameFormat = config.getString("worker_name_format");
+    transport = Transport.select(config.getString("transport"));
     bossThreadCount = config.getInt("boss_thread_count");
     workerThreadCount = config.getInt("worker_thread_count");
     asyncHealthCheckThreadCount = config.getInt("async_health_check_thread_count");
@@ -118,16 +183,60 @@ public class XConfig {
             "value %d for max_payload_bytes must be less than or equal to %d",
             maxPayloadBytesLong, Integer.MAX_VALUE));
     maxPayloadBytes = (int) maxPayloadBytesLong;
+    responseCompression = config.getBoolean("response_compression");
+    long responseCompressionMinBytesLong = config.getBytes("response_compression_min_bytes");
+    Preconditions.checkArgument(
+        responseCompressionMinBytesLong <= Integer.MAX_VALUE,
+        String.format(
+            "value %d for response_compression_min_bytes must be less than or equal to %d",
+            responseCompressionMinBytesLong, Integer.MAX_VALUE));
+    responseCompressionMinBytes = (int) responseCompressionMinBytesLong;
+    responseCompressionLevel = config.getInt("response_compression_level");
+    Preconditions.checkArgument(
+        responseCompressionLevel >= 1 && responseCompressionLevel <= 9,
+        String.format(
+            "value %d for response_compression_level must be between 1 and 9",
+            responseCompressionLevel));
+    requestDecompression = config.getBoolean("request_decompression");
+    ImmutableMap.Builder<String, CompressionDictionary> compressionDictionariesBuilder =
+        ImmutableMap.builder();
+    config
+        .getObject("compression_dictionaries")
+        .unwrapped()
+        .forEach(
+            (id, path) -> {
+              try {
+                compressionDictionariesBuilder.put(
+                    id, CompressionDictionary.load(id, Paths.get(path.toString())));
+              } catch (IOException e) {
+                throw new UncheckedIOException(
+                    String.format("error reading compression dictionary %s from %s", id, path), e);
+              }
+            });
+    compressionDictionaries = compressionDictionariesBuilder.build();
     maxConnections = config.getInt("max_connections");
     rateLimiterPoolSize = config.getInt("rate_limiter_pool_size");
     softReqPerSec = config.getDouble("soft_req_per_sec");
     hardReqPerSec = config.getDouble("hard_req_per_sec");
     adminRoutesEnableInfo = config.getBoolean("admin_routes.enable_info");
     adminRoutesEnableUnsafe = config.getBoolean("admin_routes.enable_unsafe");
+    adminPort = config.getInt("admin_routes.port");
+    adminThreadCount = config.getInt("admin_routes.thread_count");
+    adminUseTls = config.getBoolean("admin_routes.use_tls");
+    Preconditions.checkArgument(adminPort >= -1, "admin_routes.port must be at least -1");
+    Preconditions.checkArgument(adminThreadCount > 0, "admin_routes.thread_count must be positive");
     defaultContentType = config.getString("default_content_type");
     globalSoftReqPerSec = config.getDouble("global_soft_req_per_sec");
     globalHardReqPerSec = config.getDouble("global_hard_req_per_sec");
     port = config.getInt("server.port");
+    unixSocketPath = Strings.emptyToNull(config.getString("server.unix_socket_path"));
+    reusePort = config.getBoolean("server.reuse_port");
+    tcpDeferAcceptSeconds =
+        Math.toIntExact(config.getDuration("server.tcp_defer_accept", TimeUnit.SECONDS));
+    tcpFastopen = config.getInt("server.tcp_fastopen");
+    Preconditions.checkArgument(
+        tcpDeferAcceptSeconds >= 0 && tcpFastopen >= 0,
+        "server.tcp_defer_accept and server.tcp_fastopen must not be negative");
     slf4jReporter = config.getBoolean("slf4j_reporter");
     jmxReporter = config.getBoolean("jmx_reporter");
     consoleReporter = config.getBoolean("console_reporter");
@@ -140,10 +249,67 @@ public class XConfig {
         ImmutableSet.<String>builder().addAll(config.getStringList("ip_black_list")).build();
     ipWhiteList =
         ImmutableSet.<String>builder().addAll(config.getStringList("ip_white_list")).build();
+    proxyProtocol = config.getBoolean("proxy_protocol");
+    clientAddresses = new ClientAddresses(config.getStringList("trusted_proxies"));
 
     corsConfig = buildCorsConfig(config.getConfig("cors"));
 
-    sslContext = SslContextFactory.buildServerContext(buildTlsConfig(config.getConfig("tls")));
+    handlerExecutors = buildHandlerExecutorConfigs(config.getConfig("handler_executors"));
+    ImmutableMap.Builder<String, String> routeExecutorsBuilder = ImmutableMap.builder();
+    config
+        .getObject("route_executors")
+        .unwrapped()
+        .forEach((route, executor) -> routeExecutorsBuilder.put(route, executor.toString()));
+    routeExecutors = routeExecutorsBuilder.build();
+
+    long sseMaxBufferedBytesLong = config.getBytes("sse_max_buffered_bytes");
+    Preconditions.checkArgument(
+        sseMaxBufferedBytesLong <= Integer.MAX_VALUE,
+        String.format(
+            "value %d for sse_max_buffered_bytes must be less than or equal to %d",
+            sseMaxBufferedBytesLong, Integer.MAX_VALUE));
+    sseMaxBufferedBytes = (int) sseMaxBufferedBytesLong;
+    sseHeartbeatInterval = config.getDuration("sse_heartbeat_interval");
+    long webSocketMaxOutboundQueueBytesLong = config.getBytes("websocket_max_outbound_queue_bytes");
+    Preconditions.checkArgument(
+        webSocketMaxOutboundQueueBytesLong <= Integer.MAX_VALUE,
+        String.format(
+            "value %d for websocket_max_outbound_queue_bytes must be less than or equal to %d",
+            webSocketMaxOutboundQueueBytesLong, Integer.MAX_VALUE));
+    webSocketMaxOutboundQueueBytes = (int) webSocketMaxOutboundQueueBytesLong;
+    webSocketPermessageDeflate = config.getBoolean("websocket_permessage_deflate");
+
+    // Http2Settings rejects values outside of the ranges the HTTP/2 spec allows.
+    http2Settings =
+        new Http2Settings()
+            .maxConcurrentStreams(config.getLong("http2.max_concurrent_streams"))
+            .initialWindowSize(intBytes(config, "http2.initial_window_size"))
+            .maxFrameSize(intBytes(config, "http2.max_frame_size"))
+            .headerTableSize(config.getBytes("http2.header_table_size"));
+    http2ConnectionWindowSize = intBytes(config, "http2.connection_window_size");
+    Preconditions.checkArgument(
+        http2ConnectionWindowSize >= Http2CodecUtil.DEFAULT_WINDOW_SIZE,
+        String.format(
+            "value %d for http2.connection_window_size must be at least %d",
+            http2ConnectionWindowSize, Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+    http2BdpAutotuning = config.getBoolean("http2.bdp_autotuning");
+    http2MaxWindowSize = intBytes(config, "http2.max_window_size");
+    altSvc = Strings.emptyToNull(config.getString("alt_svc"));
+    http1FastCodec = config.getBoolean("http1_fast_codec");
+    uploadMaxBytes = config.getBytes("uploads.max_bytes");
+    uploadMemoryThresholdBytes = intBytes(config, "uploads.memory_threshold_bytes");
+    String uploadTempDirName = config.getString("uploads.temp_dir");
+    uploadTempDir = uploadTempDirName.isEmpty() ? null : Paths.get(uploadTempDirName);
+
+    Config tlsConfig = config.getConfig("tls");
+    if (tlsConfig.getBoolean("useSsl")) {
+      sslContext = SslContextFactory.buildServerContext(buildTlsConfig(tlsConfig));
+    } else {
+      if (tlsConfig.getBoolean("logInsecureConfig")) {
+        log.warn("TLS is disabled; all connections will be cleartext");
+      }
+      sslContext = null;
+    }
 
     populateClientOverrideList(config.getObjectList("req_per_second_override"));
   }
@@ -194,6 +360,26 @@ public class XConfig {
     return builder.build();
   }
 
+  private ImmutableMap<String, HandlerExecutorConfig> buildHandlerExecutorConfigs(Config config) {
+    ImmutableMap.Builder<String, HandlerExecutorConfig> builder = ImmutableMap.builder();
+    for (String name : config.root().keySet()) {
+      Config executorConfig = config.getConfig(ConfigUtil.joinPath(name));
+      HandlerExecutorConfig.Type type =
+          HandlerExecutorConfig.Type.valueOf(
+              executorConfig.getString("type").toUpperCase(Locale.ROOT));
+      HandlerExecutorConfig.Builder executorBuilder = HandlerExecutorConfig.builder().type(type);
+      if (type == HandlerExecutorConfig.Type.BOUNDED) {
+        executorBuilder
+            .threadCount(executorConfig.getInt("thread_count"))
+            .queueSize(executorConfig.getInt("queue_size"))
+            .targetQueueDelay(executorConfig.getDuration("target_queue_delay"))
+            .queueDelayInterval(executorConfig.getDuration("queue_delay_interval"));
+      }
+      builder.put(name, executorBuilder.build());
+    }
+    return builder.build();
+  }
+
   private String[] getStrings(Config config, String key) {
     if (!config.hasPath(key)) {
       return new String[0];
@@ -208,6 +394,16 @@ public class XConfig {
     return config.getStringList(key).stream().map(HttpMethod::valueOf).toArray(HttpMethod[]::new);
   }
 
+  /** Returns the size in bytes at the given path, which must be no more than Integer.MAX_VALUE. */
+  private static int intBytes(Config config, String path) {
+    long bytes = config.getBytes(path);
+    Preconditions.checkArgument(
+        bytes <= Integer.MAX_VALUE,
+        String.format(
+            "value %d for %s must be less than or equal to %d", bytes, path, Integer.MAX_VALUE));
+    return (int) bytes;
+  }
+
   private void populateClientOverrideList(List<? extends ConfigObject> reqPerSecondOverride) {
     reqPerSecondOverride.forEach(
         xs ->
@@ -30,10 +30,22 @@ public class XrpcConstants {
       "Request payload too large".getBytes(DEFAULT_CHARSET);
   public static final byte[] RATE_LIMIT_RESPONSE =
       "Too many requests being sent to the server".getBytes(DEFAULT_CHARSET);
+  public static final byte[] OVERLOADED_RESPONSE =
+      "Server is overloaded; try again later".getBytes(DEFAULT_CHARSET);
 
   public static final byte[] INTERNAL_SERVER_ERROR_RESPONSE =
       "Internal Server Error".getBytes(DEFAULT_CHARSET);
   public static final AttributeKey<Boolean> IP_WHITE_LIST = AttributeKey.valueOf("IpWhiteList");
   public static final AttributeKey<Boolean> IP_BLACK_LIST = AttributeKey.valueOf("IpBlackList");
+  /**
+   * The address of the client a connection was opened for, as given by its PROXY protocol header.
+   * Unset for connections without one, whose client is their remote address.
+   */
+  public static final AttributeKey<String> CLIENT_ADDRESS =
+      AttributeKey.valueOf("XrpcClientAddress");
+
   public static final String PROTO_CONTENT_TYPE = "application/protobuf";
+  public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+  /** The Alt-Svc header (RFC 7838), which advertises other endpoints for a service. */
+  public static final String ALT_SVC_HEADER = "alt-svc";
 }
@@ -48,6 +48,7 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URISyntaxException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -83,7 +84,9 @@ public class Call {
     final SettableFuture<FullHttpResponse> error = SettableFuture.create();
     final SettableFuture<FullHttpResponse> response = SettableFuture.create();
     final ListenableFuture<ChannelFuture> connectFuture =
-        connect(XUrl.inetSocket(uri), client.bootstrap(), buildRetryLoop());
+        XUrl.isUnixSocket(uri)
+            ? connect(XUrl.unixSocket(uri), client.domainSocketBootstrap(), buildRetryLoop())
+            : connect(XUrl.inetSocket(uri), client.bootstrap(), buildRetryLoop());
 
     Futures.addCallback(
         connectFuture,
@@ -146,7 +149,7 @@ public class Call {
   }
 
   private SettableFuture<ChannelFuture> connect(
-      InetSocketAddress server, Bootstrap bootstrap, RetryLoop retryLoop) {
+      SocketAddress server, Bootstrap bootstrap, RetryLoop retryLoop) {
     final SettableFuture<ChannelFuture> f = SettableFuture.create();
     ChannelFutureListener listener =
         new ChannelFutureListener() {
@@ -165,14 +168,16 @@ public class Call {
               }
             } else {
               log.debug("Xrpc connected to: {}", server);
-              String hostname = server.getAddress().getHostAddress();
-              if (hostname.equals("localhost")) {
-                hostname = "127.0.0.1";
+              if (server instanceof InetSocketAddress) {
+                String hostname = ((InetSocketAddress) server).getAddress().getHostAddress();
+                if (hostname.equals("localhost")) {
+                  hostname = "127.0.0.1";
+                }
+                log.debug(
+                    "Adding hostname: {}:{}",
+                    hostname,
+                    ((InetSocketAddress) future.channel().remoteAddress()).getPort());
               }
-              log.debug(
-                  "Adding hostname: {}:{}",
-                  hostname,
-                  ((InetSocketAddress) future.channel().remoteAddress()).getPort());
               f.set(future);
             }
           }
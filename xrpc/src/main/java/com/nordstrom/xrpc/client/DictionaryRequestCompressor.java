@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.client;
+
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.List;
+
+/**
+ * Compresses request bodies with a {@link CompressionDictionary}, and asks the server to compress
+ * responses with it. A body is sent uncompressed if it already has a content coding, or if
+ * compressing doesn't make it smaller.
+ */
+class DictionaryRequestCompressor extends MessageToMessageEncoder<FullHttpRequest> {
+  private final CompressionDictionary dictionary;
+
+  DictionaryRequestCompressor(CompressionDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, FullHttpRequest request, List<Object> out) {
+    HttpHeaders headers = request.headers();
+    headers.set(CompressionDictionary.HEADER, dictionary.id());
+    String acceptEncoding = headers.get(HttpHeaderNames.ACCEPT_ENCODING);
+    if (acceptEncoding == null) {
+      headers.set(HttpHeaderNames.ACCEPT_ENCODING, CompressionDictionary.CONTENT_CODING);
+    } else if (!acceptEncoding.contains(CompressionDictionary.CONTENT_CODING)) {
+      headers.set(
+          HttpHeaderNames.ACCEPT_ENCODING,
+          acceptEncoding + ", " + CompressionDictionary.CONTENT_CODING);
+    }
+
+    int length = request.content().readableBytes();
+    if (length > 0 && !headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+      ByteBuf compressed =
+          dictionary.compress(ctx.alloc(), request.content(), CompressionDictionary.DEFAULT_LEVEL);
+      if (compressed.readableBytes() < length) {
+        FullHttpRequest compressedRequest = request.replace(compressed);
+        compressedRequest
+            .headers()
+            .set(HttpHeaderNames.CONTENT_ENCODING, CompressionDictionary.CONTENT_CODING)
+            .set(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+        out.add(compressedRequest);
+        return;
+      }
+      compressed.release();
+    }
+    // The encoder releases the request once this returns.
+    out.add(request.retain());
+  }
+}
@@ -46,9 +46,11 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<FullHttpRes
   protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) throws Exception {
     Preconditions.checkArgument(msg != null);
 
-    responseFuture.set(msg);
+    // The superclass releases msg once this returns; the caller owns the retained reference.
+    responseFuture.set(msg.retain());
   }
 
+  /** The response, which the caller must release. */
   public ListenableFuture<FullHttpResponse> response() {
     return responseFuture;
   }
@@ -34,6 +34,7 @@ package com.nordstrom.xrpc.client;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -155,4 +156,26 @@ public class XUrl {
       return new InetSocketAddress(uri.getHost(), uri.getPort());
     }
   }
+
+  private static final String UNIX_SCHEME = "unix:";
+
+  /** Returns true if the given url names a Unix domain socket, as in "unix:///run/xrpc.sock". */
+  public static boolean isUnixSocket(String url) {
+    Preconditions.checkNotNull(url);
+    return url.regionMatches(true, 0, UNIX_SCHEME, 0, UNIX_SCHEME.length());
+  }
+
+  /**
+   * Returns the address of the Unix domain socket a "unix:" url names. The socket's path follows
+   * the scheme, as in "unix:///run/xrpc.sock" or "unix:relative.sock".
+   */
+  public static DomainSocketAddress unixSocket(String url) {
+    Preconditions.checkArgument(isUnixSocket(url), "not a unix: url: %s", url);
+    String path = url.substring(UNIX_SCHEME.length());
+    if (path.startsWith("//")) {
+      path = path.substring(2);
+    }
+    Preconditions.checkArgument(!path.isEmpty(), "no socket path in url: %s", url);
+    return new DomainSocketAddress(path);
+  }
 }
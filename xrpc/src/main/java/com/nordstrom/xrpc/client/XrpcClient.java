@@ -32,22 +32,18 @@ package com.nordstrom.xrpc.client;
  * limitations under the License.
  */
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nordstrom.xrpc.Transport;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import com.nordstrom.xrpc.encoding.DictionaryContentDecompressor;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.epoll.Epoll;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollSocketChannel;
-import io.netty.channel.kqueue.KQueue;
-import io.netty.channel.kqueue.KQueueEventLoopGroup;
-import io.netty.channel.kqueue.KQueueSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http2.Http2SecurityUtil;
@@ -72,16 +68,32 @@ public class XrpcClient {
   private static final String workerNameFormat = "xrpc-client-%d";
   private static final int workerThreadCount = 4;
 
-  private EventLoopGroup workerGroup;
-  private Class<? extends SocketChannel> channelClass;
+  private final Transport transport;
+  private final EventLoopGroup workerGroup;
+
+  /** The bootstrap for Unix domain socket connections. Lazily initialized. */
+  private Bootstrap domainSocketBootstrap;
+
+  /** The dictionary request and response bodies are compressed with, or null for none. */
+  private CompressionDictionary compressionDictionary;
 
   public XrpcClient() {
-    this.sslCtx = buildSslCtx();
-    this.bootstrap = buildBootstrap();
+    this(Transport.preferred());
+  }
+
+  /** Creates a client whose event loops run on the given transport, such as a config's. */
+  public XrpcClient(Transport transport) {
+    this(
+        transport, transport.newEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat)));
   }
 
   public XrpcClient(EventLoopGroup elg) {
-    this.workerGroup = elg;
+    this(Transport.of(elg), elg);
+  }
+
+  private XrpcClient(Transport transport, EventLoopGroup workerGroup) {
+    this.transport = transport;
+    this.workerGroup = workerGroup;
     this.sslCtx = buildSslCtx();
     this.bootstrap = buildBootstrap();
   }
@@ -90,6 +102,16 @@ public class XrpcClient {
     return new ThreadFactoryBuilder().setNameFormat(nameFormat).build();
   }
 
+  /**
+   * Compresses request bodies with the given dictionary, and asks servers to compress response
+   * bodies with it. Responses compressed with it, or with gzip or deflate, are decompressed. Only
+   * applies to connections opened after this is called.
+   */
+  public XrpcClient compressionDictionary(CompressionDictionary compressionDictionary) {
+    this.compressionDictionary = compressionDictionary;
+    return this;
+  }
+
   public Call newCall(String uri) {
     return new Call(this, uri);
   }
@@ -122,40 +144,61 @@ public class XrpcClient {
 
   private Bootstrap buildBootstrap() {
     Bootstrap b = new Bootstrap();
-    if (workerGroup == null) {
-      if (Epoll.isAvailable()) {
-        workerGroup = new EpollEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-        channelClass = EpollSocketChannel.class;
-      } else if (KQueue.isAvailable()) {
-        workerGroup = new KQueueEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-        channelClass = KQueueSocketChannel.class;
-      } else {
-        workerGroup = new NioEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-        channelClass = NioSocketChannel.class;
-      }
-    }
-
     b.group(workerGroup)
-        .channel(channelClass)
+        .channel(transport.channelClass())
         .option(
             ChannelOption.CONNECT_TIMEOUT_MILLIS,
             500) // TODO(JR): This timeout value should be configurable
         .option(ChannelOption.SO_REUSEADDR, true)
         .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
         .option(ChannelOption.TCP_NODELAY, true)
-        .handler(
-            new ChannelInitializer<SocketChannel>() {
-              @Override
-              protected void initChannel(SocketChannel ch) throws Exception {
-                ChannelPipeline cp = ch.pipeline();
-                cp.addLast("tls", sslCtx.newHandler(ch.alloc()));
-                // cp.addLast("protocolNeg", new Http2OrHttpHandler());
-                cp.addLast("codec", new HttpClientCodec());
-                cp.addLast("aggregator", new HttpObjectAggregator(MAX_PAYLOAD_SIZE));
-                cp.addLast("responseHandler", new HttpResponseHandler());
-              }
-            });
+        .handler(initializer(true));
 
     return b;
   }
+
+  /**
+   * Returns the bootstrap for connections to "unix:" endpoints, which are cleartext.
+   *
+   * @throws IllegalStateException if the client's event loops use neither the epoll nor the kqueue
+   *     transport, which are the only ones supporting Unix domain sockets
+   */
+  synchronized Bootstrap domainSocketBootstrap() {
+    if (domainSocketBootstrap == null) {
+      domainSocketBootstrap =
+          new Bootstrap()
+              .group(workerGroup)
+              .channel(transport.domainSocketChannelClass())
+              .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 500)
+              .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+              .handler(initializer(false));
+    }
+    return domainSocketBootstrap;
+  }
+
+  /** Returns the initializer for client connections, which are encrypted if tls is set. */
+  private ChannelInitializer<Channel> initializer(boolean tls) {
+    return new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel ch) throws Exception {
+        ChannelPipeline cp = ch.pipeline();
+        if (tls) {
+          cp.addLast("tls", sslCtx.newHandler(ch.alloc()));
+        }
+        // cp.addLast("protocolNeg", new Http2OrHttpHandler());
+        cp.addLast("codec", new HttpClientCodec());
+        if (compressionDictionary != null) {
+          cp.addLast(
+              "decompressor",
+              new DictionaryContentDecompressor(
+                  ImmutableMap.of(compressionDictionary.id(), compressionDictionary)));
+        }
+        cp.addLast("aggregator", new HttpObjectAggregator(MAX_PAYLOAD_SIZE));
+        if (compressionDictionary != null) {
+          cp.addLast("compressor", new DictionaryRequestCompressor(compressionDictionary));
+        }
+        cp.addLast("responseHandler", new HttpResponseHandler());
+      }
+    };
+  }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.encoding;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * A zstd dictionary shared by a client and a server, with which they compress message bodies. Most
+ * service-to-service messages are too small for plain gzip to find much repetition in; with a
+ * dictionary of the strings those messages have in common (field names, enum values, URL prefixes),
+ * even a message of a few hundred bytes compresses well.
+ *
+ * <p>A body compressed with a dictionary has the {@link #CONTENT_CODING zstd} content coding, and
+ * the {@link #HEADER} header names the dictionary. A client advertises the dictionary it has by
+ * sending that header along with an Accept-Encoding which lists zstd. Each body is a zstd frame
+ * with a checksum, and a trained dictionary's id is written into the frame, so a mismatched
+ * dictionary is detected rather than producing garbage.
+ *
+ * <p>Dictionaries are trained offline from captured payloads with {@link #train(String, List,
+ * int)}, and loaded by both sides with {@link #load(String, Path)}. Any file of sample content may
+ * also be used as a dictionary as it is.
+ */
+@Accessors(fluent = true)
+public final class CompressionDictionary {
+  /** The content coding of bodies compressed with a dictionary. */
+  public static final String CONTENT_CODING = "zstd";
+
+  /** The header naming the dictionary a body was compressed with, or which the client has. */
+  public static final String HEADER = "xrpc-dictionary";
+
+  /** The maximum dictionary size. Both sides keep the dictionary in memory, per level. */
+  public static final int MAX_SIZE = 1024 * 1024;
+
+  /** The compression level used when none is configured; zstd's default. */
+  public static final int DEFAULT_LEVEL = 3;
+
+  /** The name peers identify this dictionary by. */
+  @Getter private final String id;
+
+  private final byte[] bytes;
+
+  /** The dictionary, digested for decompression. */
+  private final ZstdDictDecompress decompressDictionary;
+
+  /** The dictionary, digested for compression at each level used so far. */
+  private final ConcurrentMap<Integer, ZstdDictCompress> compressDictionaries =
+      new ConcurrentHashMap<>();
+
+  public CompressionDictionary(String id, byte[] bytes) {
+    Preconditions.checkArgument(id != null && !id.isEmpty(), "dictionary id must not be empty");
+    Preconditions.checkArgument(
+        bytes.length > 0 && bytes.length <= MAX_SIZE,
+        String.format(
+            "dictionary %s is %d bytes; it must be between 1 and %d", id, bytes.length, MAX_SIZE));
+    this.id = id;
+    this.bytes = bytes.clone();
+    this.decompressDictionary = new ZstdDictDecompress(bytes);
+  }
+
+  /** Returns the dictionary stored in the given file. */
+  public static CompressionDictionary load(String id, Path path) throws IOException {
+    return new CompressionDictionary(id, Files.readAllBytes(path));
+  }
+
+  /** Returns a copy of the dictionary's content. */
+  public byte[] bytes() {
+    return bytes.clone();
+  }
+
+  /**
+   * Returns the readable bytes of data compressed with this dictionary. The data buffer is not
+   * consumed or released.
+   *
+   * @param level the zstd compression level, from 1 (fastest) to 22 (smallest)
+   */
+  public ByteBuf compress(ByteBufAllocator alloc, ByteBuf data, int level) {
+    byte[] input = ByteBufUtil.getBytes(data);
+    ZstdDictCompress dictionary =
+        compressDictionaries.computeIfAbsent(level, l -> new ZstdDictCompress(bytes, l));
+    ZstdCompressCtx compressor = new ZstdCompressCtx();
+    ByteBuf compressed = alloc.heapBuffer((int) Zstd.compressBound(input.length));
+    try {
+      compressor.loadDict(dictionary).setChecksum(true);
+      int length =
+          compressor.compressByteArray(
+              compressed.array(),
+              compressed.arrayOffset(),
+              compressed.writableBytes(),
+              input,
+              0,
+              input.length);
+      return compressed.writerIndex(length);
+    } catch (RuntimeException e) {
+      compressed.release();
+      throw e;
+    } finally {
+      compressor.close();
+    }
+  }
+
+  /** Returns a new handler which decompresses a body compressed with this dictionary. */
+  public ChannelHandler newDecoder() {
+    return new ZstdDecoder(decompressDictionary);
+  }
+
+  /**
+   * Returns a dictionary trained by zstd from the given sample payloads, which should be
+   * representative of the messages it will compress. Samples should be whole messages, and there
+   * should be at least a few hundred of them; zstd suggests about 100 times the dictionary size in
+   * total.
+   *
+   * @param size the maximum dictionary size
+   * @throws IllegalArgumentException if zstd can't train a dictionary from the samples, such as
+   *     when there are too few of them
+   */
+  public static CompressionDictionary train(String id, List<byte[]> samples, int size) {
+    Preconditions.checkArgument(
+        size > 0 && size <= MAX_SIZE,
+        String.format("dictionary size %d must be between 1 and %d", size, MAX_SIZE));
+    int samplesSize = 0;
+    for (byte[] sample : samples) {
+      samplesSize += sample.length;
+    }
+    ZstdDictTrainer trainer = new ZstdDictTrainer(samplesSize, size);
+    for (byte[] sample : samples) {
+      trainer.addSample(sample);
+    }
+    try {
+      return new CompressionDictionary(id, trainer.trainSamples());
+    } catch (ZstdException e) {
+      throw new IllegalArgumentException("can't train a dictionary: " + e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.encoding;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObject;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link HttpContentDecompressor} which also decompresses zstd message bodies, with the {@link
+ * CompressionDictionary} they name if any. Bodies compressed with a dictionary it doesn't have are
+ * passed on still encoded.
+ */
+public class DictionaryContentDecompressor extends HttpContentDecompressor {
+  /** The dictionaries to decompress with, by id. */
+  private final Map<String, CompressionDictionary> dictionaries;
+
+  /** The dictionary named by the message being decoded, or null if it names none. */
+  private String dictionaryId;
+
+  public DictionaryContentDecompressor(Map<String, CompressionDictionary> dictionaries) {
+    this.dictionaries = dictionaries;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out)
+      throws Exception {
+    if (msg instanceof HttpMessage) {
+      dictionaryId = ((HttpMessage) msg).headers().get(CompressionDictionary.HEADER);
+    }
+    super.decode(ctx, msg, out);
+  }
+
+  @Override
+  protected EmbeddedChannel newContentDecoder(String contentEncoding) throws Exception {
+    if (CompressionDictionary.CONTENT_CODING.equalsIgnoreCase(contentEncoding)) {
+      CompressionDictionary dictionary =
+          dictionaryId == null ? null : dictionaries.get(dictionaryId);
+      if (dictionaryId != null && dictionary == null) {
+        return null;
+      }
+      return new EmbeddedChannel(
+          ctx.channel().id(),
+          ctx.channel().metadata().hasDisconnect(),
+          ctx.channel().config(),
+          dictionary == null ? new ZstdDecoder() : dictionary.newDecoder());
+    }
+    return super.newContentDecoder(contentEncoding);
+  }
+}
@@ -36,6 +36,37 @@ public interface Encoder extends MediaTypeCodec {
    */
   ByteBuf encode(ByteBuf buf, CharSequence acceptCharset, Object object) throws IOException;
 
+  /**
+   * Encode whatever precedes the first element of a streamed response. By default, nothing does.
+   *
+   * @param buf target byte buffer for encoding
+   * @param acceptCharset Accept-Charset header
+   */
+  default void encodeStreamStart(ByteBuf buf, CharSequence acceptCharset) throws IOException {}
+
+  /**
+   * Encode one element of a streamed response. By default, elements are encoded one after another
+   * with {@link #encode(ByteBuf, CharSequence, Object)}.
+   *
+   * @param buf target byte buffer for encoding
+   * @param acceptCharset Accept-Charset header
+   * @param object element to encode
+   * @param index position of the element in the stream, starting at zero
+   * @return ByteBuf representing encoded element
+   */
+  default ByteBuf encodeStreamElement(
+      ByteBuf buf, CharSequence acceptCharset, Object object, long index) throws IOException {
+    return encode(buf, acceptCharset, object);
+  }
+
+  /**
+   * Encode whatever follows the last element of a streamed response. By default, nothing does.
+   *
+   * @param buf target byte buffer for encoding
+   * @param acceptCharset Accept-Charset header
+   */
+  default void encodeStreamEnd(ByteBuf buf, CharSequence acceptCharset) throws IOException {}
+
   default Charset charset(CharSequence acceptCharset) {
     String[] charsets = CHARSET_DELIMITER.split(acceptCharset);
     for (String charset : charsets) {
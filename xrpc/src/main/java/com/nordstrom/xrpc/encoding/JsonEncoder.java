@@ -72,6 +72,26 @@ public class JsonEncoder implements Encoder {
     }
   }
 
+  /** Streamed responses are encoded as a JSON array, with elements written as they're produced. */
+  @Override
+  public void encodeStreamStart(ByteBuf buf, CharSequence acceptCharset) {
+    buf.writeCharSequence("[", charset(acceptCharset));
+  }
+
+  @Override
+  public ByteBuf encodeStreamElement(
+      ByteBuf buf, CharSequence acceptCharset, Object object, long index) throws IOException {
+    if (index > 0) {
+      buf.writeCharSequence(",", charset(acceptCharset));
+    }
+    return encode(buf, acceptCharset, object);
+  }
+
+  @Override
+  public void encodeStreamEnd(ByteBuf buf, CharSequence acceptCharset) {
+    buf.writeCharSequence("]", charset(acceptCharset));
+  }
+
   @Override
   public Charset charset(CharSequence acceptCharset) {
     if (acceptCharset == null) {
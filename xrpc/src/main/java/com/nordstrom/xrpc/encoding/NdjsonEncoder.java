@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.encoding;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AsciiString;
+import java.io.IOException;
+
+/**
+ * Encoder that encodes objects to ByteBuf as newline-delimited JSON (see http://ndjson.org/). A
+ * single object is encoded as one line; a streamed response is encoded as one line per element,
+ * which lets clients handle each element as soon as it arrives.
+ */
+public class NdjsonEncoder extends JsonEncoder {
+  private static final AsciiString MEDIA_TYPE =
+      AsciiString.cached(XrpcConstants.NDJSON_CONTENT_TYPE);
+
+  public NdjsonEncoder(ObjectMapper mapper, JsonFormat.Printer printer) {
+    super(mapper, printer);
+  }
+
+  /** Media type this encoder supports. */
+  @Override
+  public CharSequence mediaType() {
+    return MEDIA_TYPE;
+  }
+
+  /**
+   * Encode a response object to a line of JSON.
+   *
+   * @param buf target byte buffer for encoding
+   * @param acceptCharset Accept-Charset header
+   * @param object object to encode
+   * @return ByteBuf representing the JSON formatted line
+   */
+  @Override
+  public ByteBuf encode(ByteBuf buf, CharSequence acceptCharset, Object object) throws IOException {
+    super.encode(buf, acceptCharset, object);
+    buf.writeCharSequence("\n", charset(acceptCharset));
+    return buf;
+  }
+
+  @Override
+  public void encodeStreamStart(ByteBuf buf, CharSequence acceptCharset) {}
+
+  @Override
+  public ByteBuf encodeStreamElement(
+      ByteBuf buf, CharSequence acceptCharset, Object object, long index) throws IOException {
+    return encode(buf, acceptCharset, object);
+  }
+
+  @Override
+  public void encodeStreamEnd(ByteBuf buf, CharSequence acceptCharset) {}
+}
@@ -20,6 +20,7 @@ import com.google.protobuf.MessageLite;
 import com.nordstrom.xrpc.XrpcConstants;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.AsciiString;
 import java.io.IOException;
 
 /**
@@ -28,12 +29,15 @@ import java.io.IOException;
  * <p>Currently this encoder uses Proto 3 generated classes to encode
  */
 public class ProtoEncoder implements Encoder {
+  private static final AsciiString MEDIA_TYPE =
+      AsciiString.cached(XrpcConstants.PROTO_CONTENT_TYPE);
+
   /** Media type this decoder supports. */
   @Override
   public CharSequence mediaType() {
     // TODO (AD): since this is not the official content type of protobuf,
     // consider supporting other types used in the wild.
-    return XrpcConstants.PROTO_CONTENT_TYPE;
+    return MEDIA_TYPE;
   }
 
   /**
@@ -56,4 +60,21 @@ public class ProtoEncoder implements Encoder {
       return buf;
     }
   }
+
+  /**
+   * Encode an element of a streamed response. Each message is preceded by its varint-encoded
+   * length, as written by {@link MessageLite#writeDelimitedTo(java.io.OutputStream)}.
+   */
+  @Override
+  public ByteBuf encodeStreamElement(
+      ByteBuf buf, CharSequence acceptCharset, Object object, long index) throws IOException {
+    if (!(object instanceof MessageLite)) {
+      throw new IllegalArgumentException(
+          String.format("%s does not extend from MessageLite", object.getClass().getName()));
+    }
+    try (ByteBufOutputStream stream = new ByteBufOutputStream(buf)) {
+      ((MessageLite) object).writeDelimitedTo(stream);
+      return buf;
+    }
+  }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.encoding;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdException;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decompresses a zstd stream, optionally with a dictionary. The stream is decompressed as it is
+ * read, into buffers of at most {@link #CHUNK_SIZE} bytes.
+ */
+public class ZstdDecoder extends ByteToMessageDecoder {
+  /** The maximum size of a decompressed buffer. */
+  private static final int CHUNK_SIZE = 8192;
+
+  private final ZstdDecompressCtx decompressor = new ZstdDecompressCtx();
+
+  /** True once some of the stream has been read. */
+  private boolean started;
+
+  /** True if the stream read so far ends at the end of a frame. */
+  private boolean frameComplete;
+
+  /** Returns a decoder for streams compressed without a dictionary. */
+  public ZstdDecoder() {}
+
+  ZstdDecoder(ZstdDictDecompress dictionary) {
+    decompressor.loadDict(dictionary);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    int length = in.readableBytes();
+    ByteBuf direct = in.isDirect() ? in : ctx.alloc().directBuffer(length).writeBytes(in, length);
+    try {
+      ByteBuffer src = direct.nioBuffer(direct.readerIndex(), length);
+      started = true;
+      ByteBuffer dst;
+      do {
+        ByteBuf chunk = ctx.alloc().directBuffer(CHUNK_SIZE, CHUNK_SIZE);
+        dst = chunk.nioBuffer(0, CHUNK_SIZE);
+        try {
+          frameComplete = decompressor.decompressDirectByteBufferStream(dst, src);
+        } catch (ZstdException e) {
+          chunk.release();
+          throw new DecompressionException(e);
+        }
+        if (dst.position() > 0) {
+          out.add(chunk.writerIndex(dst.position()));
+        } else {
+          chunk.release();
+        }
+        // A full chunk may leave decompressed bytes behind, even once all the input is read.
+      } while (src.hasRemaining() || !dst.hasRemaining());
+      if (direct == in) {
+        in.skipBytes(length);
+      }
+    } finally {
+      if (direct != in) {
+        direct.release();
+      }
+    }
+  }
+
+  @Override
+  protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+      throws Exception {
+    super.decodeLast(ctx, in, out);
+    if (started && !frameComplete) {
+      throw new DecompressionException("zstd stream ended within a frame");
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) {
+    decompressor.close();
+  }
+}
@@ -244,8 +244,9 @@ public class AdminHandlers extends RouteBuilder {
   }
 
   /**
-   * Registers informational admin routes. These may contain sensitive information, and should have
-   * sensible access controls imposed on them. Routes are:
+   * Registers informational admin routes for the given server with the given routes, which are the
+   * server's own or those of its admin listener. These may contain sensitive information, and
+   * should have sensible access controls imposed on them. Routes are:
    *
    * <ul>
    *   <li>'/info': exposes version number, git commit number, etc
@@ -255,19 +256,20 @@ public class AdminHandlers extends RouteBuilder {
    *   <li>'/ready': expose a Kubernetes or ELB specific healthcheck for liveliness
    * </ul>
    */
-  static void registerInfoAdminRoutes(Server server) {
-    server.get("/metrics", createMetricsHandler(server.metricRegistry()));
+  static void registerInfoAdminRoutes(Routes routes, Server server) {
+    routes.get("/metrics", createMetricsHandler(server.metricRegistry()));
     // TODO(jkinkead): This should optionally use a custom mapper.
-    server.get(
+    routes.get(
         "/health", createHealthCheckHandler(server.healthCheckRegistry(), new ObjectMapper()));
-    server.get("/info", infoHandler);
-    server.get("/ping", pingHandler);
-    server.get("/ready", readyHandler);
+    routes.get("/info", infoHandler);
+    routes.get("/ping", pingHandler);
+    routes.get("/ready", readyHandler);
   }
 
   /**
-   * Registers admin routes to which access should be tightly restricted. These mutate server state,
-   * and may not be needed in all deployment environments. Routes are:
+   * Registers admin routes for the given server, to which access should be tightly restricted, with
+   * the given routes. These mutate server state, and may not be needed in all deployment
+   * environments. Routes are:
    *
    * <ul>
    *   <li>'/restart': restart service
@@ -275,9 +277,9 @@ public class AdminHandlers extends RouteBuilder {
    *   <li>'/gc': request a garbage collection from the JVM
    * </ul>
    */
-  static void registerUnsafeAdminRoutes(Server server) {
-    server.get("/restart", restartHandler);
-    server.get("/killkillkill", createKillHandler(server));
-    server.get("/gc", gcHandler);
+  static void registerUnsafeAdminRoutes(Routes routes, Server server) {
+    routes.get("/restart", restartHandler);
+    routes.get("/killkillkill", createKillHandler(server));
+    routes.get("/gc", gcHandler);
   }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A handler for an HTTP route which produces its response asynchronously, for example after a call
+ * to a backend service.
+ *
+ * <p>Handlers are invoked on the connection's event loop, and must not block. The returned stage
+ * may be completed on any thread; the response is written on the event loop once it completes. For
+ * HTTP/1.x connections, responses are still written in request order.
+ */
+@FunctionalInterface
+public interface AsyncHandler extends Handler {
+  @Override
+  CompletionStage<HttpResponse> handleAsync(XrpcRequest xrpcRequest) throws IOException;
+
+  /**
+   * Blocks until the response is available. The server never calls this; it is provided for callers
+   * which need a synchronous response, such as tests.
+   */
+  @Override
+  default HttpResponse handle(XrpcRequest xrpcRequest) throws IOException {
+    return handleAsync(xrpcRequest).toCompletableFuture().join();
+  }
+}
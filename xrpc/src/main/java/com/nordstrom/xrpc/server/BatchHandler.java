@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Meter;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.client.XUrl;
+import com.nordstrom.xrpc.encoding.Decoder;
+import com.nordstrom.xrpc.exceptions.BadRequestException;
+import com.nordstrom.xrpc.server.proto.BatchCall;
+import com.nordstrom.xrpc.server.proto.BatchRequest;
+import com.nordstrom.xrpc.server.proto.BatchResponse;
+import com.nordstrom.xrpc.server.proto.BatchResult;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Handler for a batch route, which answers a batch of requests in one. Each call in the batch is
+ * routed and handled in-process, as if it had arrived on the batch request's connection from the
+ * batch request's client, passing the same per-client filters; calls to asynchronous handlers, or
+ * handlers run on a route executor, run concurrently. Once every call has been answered, the
+ * results are encoded together for the batch response.
+ */
+@Slf4j
+class BatchHandler implements AsyncHandler {
+  /** The default limit on the number of calls in a batch. */
+  static final int DEFAULT_MAX_CALLS = 100;
+
+  private static final ByteBuf JSON_ARRAY_PREFIX =
+      Unpooled.unreleasableBuffer(
+          Unpooled.copiedBuffer("{\"calls\":", XrpcConstants.DEFAULT_CHARSET));
+  private static final ByteBuf JSON_ARRAY_SUFFIX =
+      Unpooled.unreleasableBuffer(Unpooled.copiedBuffer("}", XrpcConstants.DEFAULT_CHARSET));
+
+  private final int maxCalls;
+
+  BatchHandler(int maxCalls) {
+    Preconditions.checkArgument(maxCalls > 0, "maxCalls must be positive");
+    this.maxCalls = maxCalls;
+  }
+
+  @Override
+  public CompletionStage<HttpResponse> handleAsync(XrpcRequest request) throws IOException {
+    if (request.batchedCall()) {
+      throw new BadRequestException("batches can't be nested");
+    }
+    BatchRequest batch = decode(request);
+    if (batch.getCallsCount() > maxCalls) {
+      throw new BadRequestException(
+          String.format(
+              "batch of %d calls exceeds the limit of %d", batch.getCallsCount(), maxCalls));
+    }
+
+    List<CompletableFuture<BatchResult>> results = new ArrayList<>(batch.getCallsCount());
+    for (BatchCall call : batch.getCallsList()) {
+      results.add(dispatch(request, call).toCompletableFuture());
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            done -> {
+              BatchResponse.Builder response = BatchResponse.newBuilder();
+              for (CompletableFuture<BatchResult> result : results) {
+                response.addResults(result.join());
+              }
+              try {
+                return request.response().ok(response.build());
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Decodes the batch from the request body. A JSON body may be the array of calls alone, rather
+   * than a BatchRequest object.
+   */
+  private static BatchRequest decode(XrpcRequest request) throws IOException {
+    CharSequence contentType = request.contentTypeHeader();
+    Decoder decoder = request.connectionContext().decoders().decoder(contentType);
+    ByteBuf body = request.body();
+    if (!AsciiString.contentEquals(decoder.mediaType(), HttpHeaderValues.APPLICATION_JSON)
+        || !isJsonArray(body)) {
+      return decoder.decode(body.duplicate(), contentType, BatchRequest.class);
+    }
+    ByteBuf object =
+        Unpooled.wrappedBuffer(
+            JSON_ARRAY_PREFIX.duplicate(), body.retainedDuplicate(), JSON_ARRAY_SUFFIX.duplicate());
+    try {
+      return decoder.decode(object, contentType, BatchRequest.class);
+    } finally {
+      object.release();
+    }
+  }
+
+  private static boolean isJsonArray(ByteBuf body) {
+    int start = body.forEachByte(b -> b == ' ' || b == '\t' || b == '\r' || b == '\n');
+    return start >= 0 && body.getByte(start) == '[';
+  }
+
+  /** Routes and handles a call, completing with its result. Failures are reported as results. */
+  private static CompletionStage<BatchResult> dispatch(XrpcRequest batchRequest, BatchCall call) {
+    String path = call.getPath();
+    if (!path.startsWith("/")) {
+      return CompletableFuture.completedFuture(
+          error(batchRequest, HttpResponseStatus.BAD_REQUEST, "path must start with /"));
+    }
+    HttpMethod method;
+    try {
+      method = call.getMethod().isEmpty() ? HttpMethod.GET : HttpMethod.valueOf(call.getMethod());
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.completedFuture(
+          error(batchRequest, HttpResponseStatus.BAD_REQUEST, "invalid method"));
+    }
+
+    ByteBuf content =
+        call.getBody().isEmpty()
+            ? Unpooled.EMPTY_BUFFER
+            : Unpooled.wrappedBuffer(call.getBody().asReadOnlyByteBuffer());
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path, content);
+    for (Map.Entry<String, String> header : call.getHeadersMap().entrySet()) {
+      request.headers().set(header.getKey(), header.getValue());
+    }
+    request.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+    // The call is made by the batch request's client, whatever forwarding headers it carries.
+    forwardClient(batchRequest, request, ClientAddresses.FORWARDED);
+    forwardClient(batchRequest, request, ClientAddresses.X_FORWARDED_FOR);
+
+    ServerContext xctx = batchRequest.connectionContext();
+    CompiledRoutes.Match match = xctx.routes().match(XUrl.path(path), method);
+    XrpcRequest xrpcRequest;
+    if (match.isStreamingBody()) {
+      // The whole body is at hand, so is passed on as a single chunk.
+      StreamingBody body =
+          new StreamingBody(
+              batchRequest.eventLoop(),
+              new StreamingBody.FlowControl() {
+                @Override
+                public void consumed(int bytes) {}
+
+                @Override
+                public void paused(boolean paused) {}
+              });
+      if (content.isReadable()) {
+        body.onData(content.retain());
+      }
+      body.onComplete();
+      xrpcRequest =
+          new XrpcRequest(request, xctx, match.getGroups(), batchRequest.upstreamChannel(), body);
+    } else {
+      xrpcRequest =
+          new XrpcRequest(request, xctx, match.getGroups(), batchRequest.upstreamChannel());
+    }
+    xrpcRequest.batchedCall(true);
+
+    CompletionStage<HttpResponse> response;
+    try {
+      response = ClientFilter.handleAsync(match.getHandler(), xrpcRequest);
+    } catch (Exception e) {
+      response = CompletableFuture.completedFuture(xctx.exceptionHandler().handle(xrpcRequest, e));
+    }
+    return response.handle(
+        (result, cause) -> {
+          try {
+            if (cause != null) {
+              log.error("Error handling batched call to {} {}", method, path, cause);
+              return error(
+                  batchRequest, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Internal Server Error");
+            }
+            return toResult(batchRequest, result);
+          } finally {
+            UrlRouter.release(result);
+            request.release();
+          }
+        });
+  }
+
+  /** Replaces the given forwarding header of a call with that of the batch request. */
+  private static void forwardClient(
+      XrpcRequest batchRequest, FullHttpRequest call, CharSequence header) {
+    CharSequence value = batchRequest.header(header);
+    if (value == null) {
+      call.headers().remove(header);
+    } else {
+      call.headers().set(header, value);
+    }
+  }
+
+  /** Converts the response to a call to its result, marking its status code's meter. */
+  private static BatchResult toResult(XrpcRequest batchRequest, HttpResponse response) {
+    if (!(response instanceof FullHttpResponse)) {
+      // Streamed and file responses have no body to hand; they are for clients to call directly.
+      return error(
+          batchRequest, HttpResponseStatus.NOT_IMPLEMENTED, "streamed responses can't be batched");
+    }
+    markStatus(batchRequest, response.status());
+
+    BatchResult.Builder result = BatchResult.newBuilder().setStatus(response.status().code());
+    for (String name : response.headers().names()) {
+      if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+        result.putHeaders(name, String.join(", ", response.headers().getAll(name)));
+      }
+    }
+    ByteBuf body = ((FullHttpResponse) response).content();
+    if (body.isReadable()) {
+      result.setBody(ByteString.copyFrom(ByteBufUtil.getBytes(body)));
+    }
+    return result.build();
+  }
+
+  /** Returns a plain-text error result. */
+  private static BatchResult error(
+      XrpcRequest batchRequest, HttpResponseStatus status, String message) {
+    markStatus(batchRequest, status);
+    return BatchResult.newBuilder()
+        .setStatus(status.code())
+        .putHeaders(HttpHeaderNames.CONTENT_TYPE.toString(), HttpHeaderValues.TEXT_PLAIN.toString())
+        .setBody(ByteString.copyFrom(message, XrpcConstants.DEFAULT_CHARSET))
+        .build();
+  }
+
+  private static void markStatus(XrpcRequest batchRequest, HttpResponseStatus status) {
+    Meter meter = batchRequest.connectionContext().metersByStatusCode().get(status);
+    if (meter != null) {
+      meter.mark();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Histogram;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2FrameListenerDecorator;
+import io.netty.handler.codec.http2.Http2LocalFlowController;
+import io.netty.handler.codec.http2.Http2Settings;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Grows an HTTP/2 connection's flow control windows to fit its bandwidth-delay product (BDP), as
+ * gRPC does. A client can send no more than a window of data per round trip, so on a high-latency
+ * link a small window, rather than the bandwidth, limits how fast requests upload.
+ *
+ * <p>When data arrives and no estimate is in progress, a PING is sent, and the data read until its
+ * ACK arrives is counted; that is what the client sent in one round trip. If it comes within a
+ * third of the window, the client is likely limited by the window, so the connection window and the
+ * stream window (SETTINGS_INITIAL_WINDOW_SIZE) are raised to twice the amount read, up to a
+ * maximum. Each window size chosen is recorded in a histogram.
+ */
+@Slf4j
+class BdpFrameListener extends Http2FrameListenerDecorator {
+  /** The payload of PINGs sent to estimate the BDP, to tell their ACKs from those of others. */
+  static final long BDP_PING = 0x6264705f70696e67L;
+
+  private final Http2Connection connection;
+  private final Http2ConnectionEncoder encoder;
+  private final Http2LocalFlowController flowController;
+  private final int maxWindowSize;
+  private final Histogram windowSizes;
+
+  /** The size of the connection flow control window. */
+  private int connectionWindowSize;
+
+  /** The size of each stream's flow control window. */
+  private int streamWindowSize;
+
+  /** True while waiting for the ACK of a BDP PING. */
+  private boolean pinging;
+
+  /** The bytes read since the outstanding BDP PING was sent. */
+  private long sampleBytes;
+
+  BdpFrameListener(
+      Http2FrameListener listener,
+      Http2Connection connection,
+      Http2ConnectionEncoder encoder,
+      Http2LocalFlowController flowController,
+      int connectionWindowSize,
+      int streamWindowSize,
+      int maxWindowSize,
+      Histogram windowSizes) {
+    super(listener);
+    this.connection = connection;
+    this.encoder = encoder;
+    this.flowController = flowController;
+    this.connectionWindowSize = connectionWindowSize;
+    this.streamWindowSize = streamWindowSize;
+    this.maxWindowSize = maxWindowSize;
+    this.windowSizes = windowSizes;
+  }
+
+  @Override
+  public int onDataRead(
+      ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream)
+      throws Http2Exception {
+    if (pinging) {
+      sampleBytes += data.readableBytes() + padding;
+    } else if (Math.min(connectionWindowSize, streamWindowSize) < maxWindowSize) {
+      // The PING is flushed with the rest of the read's writes.
+      pinging = true;
+      sampleBytes = 0;
+      encoder.writePing(ctx, false, ctx.alloc().buffer(8).writeLong(BDP_PING), ctx.newPromise());
+    }
+    return super.onDataRead(ctx, streamId, data, padding, endOfStream);
+  }
+
+  @Override
+  public void onPingAckRead(ChannelHandlerContext ctx, ByteBuf data) throws Http2Exception {
+    if (data.readableBytes() != 8 || data.getLong(data.readerIndex()) != BDP_PING) {
+      super.onPingAckRead(ctx, data);
+      return;
+    }
+    pinging = false;
+
+    int windowSize = Math.min(connectionWindowSize, streamWindowSize);
+    int newWindowSize = (int) Math.min(maxWindowSize, sampleBytes * 2);
+    if (sampleBytes * 3 < windowSize * 2L || newWindowSize <= windowSize) {
+      return;
+    }
+    if (newWindowSize > connectionWindowSize) {
+      flowController.incrementWindowSize(
+          connection.connectionStream(), newWindowSize - connectionWindowSize);
+      connectionWindowSize = newWindowSize;
+    }
+    if (newWindowSize > streamWindowSize) {
+      // Netty applies the new stream window locally once the client acknowledges the settings.
+      encoder.writeSettings(
+          ctx, new Http2Settings().initialWindowSize(newWindowSize), ctx.newPromise());
+      streamWindowSize = newWindowSize;
+    }
+    windowSizes.update(newWindowSize);
+    log.debug("{} flow control window raised to {} bytes", ctx.channel(), newWindowSize);
+  }
+}
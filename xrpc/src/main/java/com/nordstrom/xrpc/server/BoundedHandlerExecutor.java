@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handler executor with a fixed number of threads and a bounded queue. Rather than letting the
+ * queue (and so latency) grow without limit under overload, requests are shed with a 503 (service
+ * unavailable) response, using the CoDel (controlled delay) algorithm: once the minimum time
+ * requests spent queued over an interval is above the target delay, requests which have queued for
+ * longer than the target are shed until the queue drains. While not overloaded, only requests which
+ * have queued for longer than a whole interval are shed. Requests are also shed if the queue is
+ * full.
+ */
+class BoundedHandlerExecutor implements HandlerExecutor {
+  private final ThreadPoolExecutor executor;
+  private final long targetNanos;
+  private final long intervalNanos;
+  private final Meter shedMeter;
+  private final Timer queueDelayTimer;
+
+  /** The end of the current CoDel interval, in System.nanoTime() terms. Guarded by this. */
+  private long intervalEnd;
+
+  /** The minimum queueing delay seen in the current interval. Guarded by this. */
+  private long minDelayNanos;
+
+  /** Whether the previous interval's minimum delay was above target. Guarded by this. */
+  private boolean overloaded;
+
+  BoundedHandlerExecutor(String name, HandlerExecutorConfig config, MetricRegistry metricRegistry) {
+    Preconditions.checkArgument(config.threadCount() > 0, "thread_count must be positive");
+    Preconditions.checkArgument(config.queueSize() > 0, "queue_size must be positive");
+
+    this.targetNanos = config.targetQueueDelay().toNanos();
+    this.intervalNanos = config.queueDelayInterval().toNanos();
+    this.intervalEnd = System.nanoTime() + intervalNanos;
+
+    // Threads are started on demand and time out when idle, so an unused executor costs nothing.
+    this.executor =
+        new ThreadPoolExecutor(
+            config.threadCount(),
+            config.threadCount(),
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(config.queueSize()),
+            new ThreadFactoryBuilder()
+                .setNameFormat("xrpc-" + name + "-%d")
+                .setDaemon(true)
+                .build());
+    this.executor.allowCoreThreadTimeOut(true);
+
+    this.shedMeter = metricRegistry.meter(MetricRegistry.name("handlerExecutors", name, "shed"));
+    this.queueDelayTimer =
+        metricRegistry.timer(MetricRegistry.name("handlerExecutors", name, "queueDelay"));
+    metricRegistry.register(
+        MetricRegistry.name("handlerExecutors", name, "queueSize"),
+        (Gauge<Integer>) () -> executor.getQueue().size());
+  }
+
+  @Override
+  public CompletionStage<HttpResponse> execute(XrpcRequest request, Handler handler) {
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    long enqueued = System.nanoTime();
+    try {
+      executor.execute(
+          () -> {
+            long now = System.nanoTime();
+            long delay = now - enqueued;
+            queueDelayTimer.update(delay, TimeUnit.NANOSECONDS);
+            if (shouldShed(delay, now)) {
+              shed(response);
+            } else {
+              ExecutorServiceHandlerExecutor.invoke(request, handler, response);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      shed(response);
+    }
+    return response;
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Returns true if a request which was queued for delayNanos, and is being dequeued at nowNanos,
+   * should be shed.
+   */
+  @VisibleForTesting
+  synchronized boolean shouldShed(long delayNanos, long nowNanos) {
+    if (nowNanos - intervalEnd >= 0) {
+      // If nothing was dequeued for a whole interval, the queue has drained since the last
+      // dequeue, regardless of how long that request waited.
+      overloaded = nowNanos - intervalEnd < intervalNanos && minDelayNanos > targetNanos;
+      minDelayNanos = delayNanos;
+      intervalEnd = nowNanos + intervalNanos;
+    } else if (delayNanos < minDelayNanos) {
+      minDelayNanos = delayNanos;
+    }
+
+    return delayNanos > (overloaded ? targetNanos : intervalNanos);
+  }
+
+  private void shed(CompletableFuture<HttpResponse> response) {
+    shedMeter.mark();
+    response.complete(
+        Recipes.newResponse(
+            HttpResponseStatus.SERVICE_UNAVAILABLE,
+            Unpooled.wrappedBuffer(XrpcConstants.OVERLOADED_RESPONSE),
+            Recipes.ContentType.Text_Plain));
+  }
+}
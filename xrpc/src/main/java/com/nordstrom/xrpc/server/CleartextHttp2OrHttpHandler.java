@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+
+/**
+ * Chooses the protocol of a cleartext connection from the first bytes the client sends: HTTP/2 if
+ * they are the HTTP/2 connection preface, and HTTP/1.1 (which may then upgrade to HTTP/2)
+ * otherwise. Used in place of the TLS handler and {@link Http2OrHttpHandler}'s protocol negotiation
+ * when TLS is disabled, and configures the same pipelines. Replaces itself once the protocol is
+ * known.
+ */
+class CleartextHttp2OrHttpHandler extends ChannelInboundHandlerAdapter {
+  private static final byte[] CONNECTION_PREFACE;
+
+  static {
+    ByteBuf preface = Http2CodecUtil.connectionPrefaceBuf();
+    CONNECTION_PREFACE = ByteBufUtil.getBytes(preface);
+    preface.release();
+  }
+
+  private final Http2OrHttpHandler h1h2;
+
+  /** The bytes read so far, or null if none have been. */
+  private ByteBuf buffered;
+
+  CleartextHttp2OrHttpHandler(Http2OrHttpHandler h1h2) {
+    this.h1h2 = h1h2;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof ByteBuf)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+    ByteBuf data = (ByteBuf) msg;
+    if (buffered == null) {
+      buffered = data;
+    } else {
+      ByteBuf cumulation = ctx.alloc().buffer(buffered.readableBytes() + data.readableBytes());
+      cumulation.writeBytes(buffered).writeBytes(data);
+      buffered.release();
+      data.release();
+      buffered = cumulation;
+    }
+
+    int length = Math.min(buffered.readableBytes(), CONNECTION_PREFACE.length);
+    for (int i = 0; i < length; i++) {
+      if (buffered.getByte(buffered.readerIndex() + i) != CONNECTION_PREFACE[i]) {
+        configure(ctx, false);
+        return;
+      }
+    }
+    if (length == CONNECTION_PREFACE.length) {
+      configure(ctx, true);
+    }
+    // Otherwise, wait for the rest of the preface.
+  }
+
+  /** Replaces this handler with the pipeline for the protocol, and passes on the bytes read. */
+  private void configure(ChannelHandlerContext ctx, boolean priorKnowledge) throws Exception {
+    ByteBuf data = buffered;
+    buffered = null;
+    try {
+      h1h2.configureCleartextPipeline(ctx, priorKnowledge);
+    } catch (Exception e) {
+      data.release();
+      throw e;
+    }
+    // The protocol's handlers were added after this one, so they read the data passed on here.
+    ctx.pipeline().remove(this);
+    ctx.fireChannelRead(data);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    if (buffered != null) {
+      buffered.release();
+      buffered = null;
+    }
+  }
+}
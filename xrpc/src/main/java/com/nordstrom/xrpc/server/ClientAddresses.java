@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.channel.Channel;
+import io.netty.util.AsciiString;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves the address of the client a request was sent by, for servers behind load balancers or
+ * proxies.
+ *
+ * <p>The client of a connection is the source address from its PROXY protocol header, if the server
+ * reads one, or else the connection's remote address. If that address is one of the trusted
+ * proxies, the client of a request on the connection is taken from its Forwarded header (RFC 7239),
+ * or failing that its X-Forwarded-For header: the addresses those list are read from the nearest
+ * hop back, and the first which isn't a trusted proxy is the client's. Addresses are formatted as
+ * by {@link InetAddress#getHostAddress()}, as the IP white and black lists are.
+ */
+public final class ClientAddresses {
+  /** The Forwarded header (RFC 7239). */
+  static final AsciiString FORWARDED = AsciiString.cached("forwarded");
+
+  static final AsciiString X_FORWARDED_FOR = AsciiString.cached("x-forwarded-for");
+
+  private final ImmutableList<Subnet> trustedProxies;
+
+  /**
+   * Returns client addresses which trust the proxies in the given list, each an IP address or an
+   * address range in CIDR notation, such as "10.0.0.0/8".
+   */
+  public ClientAddresses(List<String> trustedProxies) {
+    ImmutableList.Builder<Subnet> subnets = ImmutableList.builder();
+    for (String proxy : trustedProxies) {
+      subnets.add(Subnet.parse(proxy));
+    }
+    this.trustedProxies = subnets.build();
+  }
+
+  /**
+   * Returns the client address of the given connection: the source address of its PROXY protocol
+   * header, or its remote address. Returns null if the connection has no IP address.
+   */
+  public static String of(Channel channel) {
+    String address = channel.attr(XrpcConstants.CLIENT_ADDRESS).get();
+    if (address != null) {
+      return address;
+    }
+    SocketAddress remoteAddress = channel.remoteAddress();
+    if (remoteAddress instanceof InetSocketAddress) {
+      InetAddress inetAddress = ((InetSocketAddress) remoteAddress).getAddress();
+      return inetAddress == null ? null : inetAddress.getHostAddress();
+    }
+    return null;
+  }
+
+  /** Returns true if any proxies are trusted to forward requests. */
+  public boolean trustsProxies() {
+    return !trustedProxies.isEmpty();
+  }
+
+  /** Returns true if the given address is one of a trusted proxy. */
+  public boolean isTrusted(String address) {
+    if (address == null || trustedProxies.isEmpty() || !InetAddresses.isInetAddress(address)) {
+      return false;
+    }
+    byte[] bytes = InetAddresses.forString(address).getAddress();
+    for (Subnet subnet : trustedProxies) {
+      if (subnet.contains(bytes)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the client address of a request sent over a connection from the given address, with the
+   * given Forwarded and X-Forwarded-For headers, either of which may be null.
+   */
+  public String resolve(
+      String connectionAddress, CharSequence forwarded, CharSequence forwardedFor) {
+    if (!isTrusted(connectionAddress)) {
+      return connectionAddress;
+    }
+    List<String> hops;
+    if (forwarded != null) {
+      hops = forwardedHops(forwarded);
+    } else if (forwardedFor != null) {
+      hops = forwardedForHops(forwardedFor);
+    } else {
+      return connectionAddress;
+    }
+
+    String client = connectionAddress;
+    for (int i = hops.size() - 1; i >= 0; i--) {
+      String hop = normalize(hops.get(i));
+      if (hop == null) {
+        // An obfuscated or malformed address; nothing beyond it can be trusted.
+        break;
+      }
+      client = hop;
+      if (!isTrusted(hop)) {
+        break;
+      }
+    }
+    return client;
+  }
+
+  /** Returns the "for" parameters of the elements of a Forwarded header, in order. */
+  private static List<String> forwardedHops(CharSequence forwarded) {
+    List<String> hops = new ArrayList<>();
+    for (String element : forwarded.toString().split(",")) {
+      String hop = "";
+      for (String pair : element.split(";")) {
+        int equals = pair.indexOf('=');
+        if (equals > 0 && pair.substring(0, equals).trim().equalsIgnoreCase("for")) {
+          hop = pair.substring(equals + 1).trim();
+        }
+      }
+      hops.add(hop);
+    }
+    return hops;
+  }
+
+  /** Returns the addresses of an X-Forwarded-For header, in order. */
+  private static List<String> forwardedForHops(CharSequence forwardedFor) {
+    List<String> hops = new ArrayList<>();
+    for (String hop : forwardedFor.toString().split(",")) {
+      hops.add(hop.trim());
+    }
+    return hops;
+  }
+
+  /**
+   * Returns the IP address of a forwarded hop, which may be quoted and may carry a port, or null if
+   * it isn't an IP address.
+   */
+  private static String normalize(String hop) {
+    if (hop.length() >= 2 && hop.startsWith("\"") && hop.endsWith("\"")) {
+      hop = hop.substring(1, hop.length() - 1);
+    }
+    if (hop.startsWith("[")) {
+      int end = hop.indexOf(']');
+      hop = end < 0 ? "" : hop.substring(1, end);
+    } else if (hop.indexOf(':') >= 0 && hop.indexOf(':') == hop.lastIndexOf(':')) {
+      // An IPv4 address with a port.
+      hop = hop.substring(0, hop.indexOf(':'));
+    }
+    if (!InetAddresses.isInetAddress(hop)) {
+      return null;
+    }
+    return InetAddresses.forString(hop).getHostAddress();
+  }
+
+  /** A range of IP addresses sharing a prefix. */
+  private static final class Subnet {
+    private final byte[] prefix;
+    private final int prefixBits;
+
+    private Subnet(byte[] prefix, int prefixBits) {
+      this.prefix = prefix;
+      this.prefixBits = prefixBits;
+    }
+
+    /** Parses an IP address, or an address range in CIDR notation. */
+    static Subnet parse(String value) {
+      int slash = value.indexOf('/');
+      String address = slash < 0 ? value : value.substring(0, slash);
+      Preconditions.checkArgument(
+          InetAddresses.isInetAddress(address), "invalid trusted proxy address: %s", value);
+      byte[] prefix = InetAddresses.forString(address).getAddress();
+      int prefixBits = prefix.length * 8;
+      if (slash >= 0) {
+        try {
+          prefixBits = Integer.parseInt(value.substring(slash + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("invalid trusted proxy range: " + value, e);
+        }
+        Preconditions.checkArgument(
+            prefixBits >= 0 && prefixBits <= prefix.length * 8,
+            "invalid trusted proxy range: %s",
+            value);
+      }
+      return new Subnet(prefix, prefixBits);
+    }
+
+    boolean contains(byte[] address) {
+      if (address.length != prefix.length) {
+        return false;
+      }
+      int wholeBytes = prefixBits / 8;
+      for (int i = 0; i < wholeBytes; i++) {
+        if (address[i] != prefix[i]) {
+          return false;
+        }
+      }
+      int remainingBits = prefixBits % 8;
+      if (remainingBits == 0) {
+        return true;
+      }
+      int mask = (0xff << (8 - remainingBits)) & 0xff;
+      return (address[wholeBytes] & mask) == (prefix[wholeBytes] & mask);
+    }
+  }
+}
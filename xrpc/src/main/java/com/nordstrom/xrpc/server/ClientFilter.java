@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AttributeKey;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Applies the rate limiter and the IP white or black list to each request forwarded by a trusted
+ * proxy, by the client the request resolves to (see {@link XrpcRequest#clientAddress()}). Requests
+ * on other connections are admitted, since those are checked once per connection.
+ *
+ * <p>Rejected requests are answered without closing the connection, which is shared by the proxy's
+ * other clients: with 403 by the white or black list, and with 429 by the rate limiter.
+ */
+final class ClientFilter {
+  /** The filter for the requests on a connection, unset if no proxies are trusted. */
+  static final AttributeKey<ClientFilter> ATTRIBUTE_KEY = AttributeKey.valueOf("XrpcClientFilter");
+
+  private final ClientAddresses clientAddresses;
+  /** The rate limiter to apply, or null if requests aren't rate limited. */
+  private final ServiceRateLimiter rateLimiter;
+  /** The white list to apply, or null if it's disabled. */
+  private final WhiteListFilter whiteList;
+  /** The black list to apply, or null if it's disabled. */
+  private final BlackListFilter blackList;
+
+  ClientFilter(
+      ClientAddresses clientAddresses,
+      ServiceRateLimiter rateLimiter,
+      WhiteListFilter whiteList,
+      BlackListFilter blackList) {
+    this.clientAddresses = clientAddresses;
+    this.rateLimiter = rateLimiter;
+    this.whiteList = whiteList;
+    this.blackList = blackList;
+  }
+
+  /**
+   * Returns a filter applying only the white or black list of this one, as for the admin listener,
+   * which isn't rate limited.
+   */
+  ClientFilter withoutRateLimiter() {
+    return new ClientFilter(clientAddresses, null, whiteList, blackList);
+  }
+
+  /**
+   * Invokes the given handler for the given request, unless the connection's filter rejects the
+   * request, in which case the returned stage is already complete with the rejection.
+   */
+  static CompletionStage<HttpResponse> handleAsync(Handler handler, XrpcRequest request)
+      throws IOException {
+    ClientFilter filter = request.upstreamChannel().attr(ATTRIBUTE_KEY).get();
+    if (filter != null) {
+      HttpResponse rejection = filter.reject(request);
+      if (rejection != null) {
+        return CompletableFuture.completedFuture(rejection);
+      }
+    }
+    return handler.handleAsync(request);
+  }
+
+  /** Returns the response rejecting the given request, or null if the request is admitted. */
+  HttpResponse reject(XrpcRequest request) {
+    Channel channel = request.upstreamChannel();
+    if (!clientAddresses.isTrusted(ClientAddresses.of(channel))) {
+      return null;
+    }
+    String client = request.clientAddress();
+    if ((whiteList != null && !whiteList.admits(client))
+        || (blackList != null && !blackList.admits(client))) {
+      return Recipes.newResponse(HttpResponseStatus.FORBIDDEN);
+    }
+    if (rateLimiter != null && !rateLimiter.tryAcquire(client)) {
+      return Recipes.newResponse(
+          HttpResponseStatus.TOO_MANY_REQUESTS,
+          Unpooled.wrappedBuffer(XrpcConstants.RATE_LIMIT_RESPONSE),
+          Recipes.ContentType.Text_Plain);
+    }
+    return null;
+  }
+}
@@ -19,16 +19,25 @@ package com.nordstrom.xrpc.server;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
 import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.PriorityClass;
 import com.nordstrom.xrpc.server.http.Recipes;
+import com.nordstrom.xrpc.server.http.Route;
 import com.nordstrom.xrpc.server.http.RoutePath;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
@@ -43,7 +52,13 @@ public class CompiledRoutes {
    * Map of routes to their handlers-by-method maps. Routes are sorted alphabetically by path for
    * consistent application.
    */
-  private final ImmutableSortedMap<RoutePath, ImmutableMap<HttpMethod, Handler>> routes;
+  private final ImmutableSortedMap<RoutePath, ImmutableMap<HttpMethod, Route>> routes;
+
+  /** True if any route streams its request body. */
+  private final boolean hasStreamingRoutes;
+
+  /** The WebSocket endpoints, by route path. */
+  private final ImmutableMap<RoutePath, WebSocketEndpoint> webSockets;
 
   /**
    * Returns compiled routes built from the given route map.
@@ -52,39 +67,169 @@ public class CompiledRoutes {
    */
   public CompiledRoutes(
       Map<RoutePath, Map<HttpMethod, Handler>> rawRoutes, MetricRegistry metricRegistry) {
+    this(
+        Maps.transformEntries(
+            rawRoutes,
+            (path, handlers) ->
+                Maps.transformEntries(
+                    handlers, (method, handler) -> new Route(method, path, handler))),
+        metricRegistry,
+        Collections.emptyMap());
+  }
+
+  /**
+   * Returns compiled routes built from the given route map.
+   *
+   * @param metricRegistry the registry to generate per-(route,method) rate statistics in
+   * @param handlerExecutors the handler executors routes may run on, by name
+   * @throws IllegalArgumentException if a route names a handler executor which isn't in
+   *     handlerExecutors
+   */
+  CompiledRoutes(
+      Map<RoutePath, Map<HttpMethod, Route>> rawRoutes,
+      MetricRegistry metricRegistry,
+      Map<String, HandlerExecutor> handlerExecutors) {
     // Build a sorted map of the routes.
-    ImmutableSortedMap.Builder<RoutePath, ImmutableMap<HttpMethod, Handler>> routesBuilder =
+    ImmutableSortedMap.Builder<RoutePath, ImmutableMap<HttpMethod, Route>> routesBuilder =
         ImmutableSortedMap.naturalOrder();
-    for (Map.Entry<RoutePath, Map<HttpMethod, Handler>> routeEntry : rawRoutes.entrySet()) {
-      ImmutableMap.Builder<HttpMethod, Handler> handlers = new ImmutableMap.Builder<>();
+    boolean hasStreamingRoutes = false;
+    ImmutableMap.Builder<RoutePath, WebSocketEndpoint> webSocketsBuilder = ImmutableMap.builder();
+    for (Map.Entry<RoutePath, Map<HttpMethod, Route>> routeEntry : rawRoutes.entrySet()) {
+      ImmutableMap.Builder<HttpMethod, Route> handlers = new ImmutableMap.Builder<>();
       RoutePath route = routeEntry.getKey();
-      for (Map.Entry<HttpMethod, Handler> methodHandlerEntry : routeEntry.getValue().entrySet()) {
-        HttpMethod method = methodHandlerEntry.getKey();
+      for (Map.Entry<HttpMethod, Route> methodRouteEntry : routeEntry.getValue().entrySet()) {
+        HttpMethod method = methodRouteEntry.getKey();
 
         // Wrap the user-provided handler in one that tracks request rates.
         String metricName = MetricRegistry.name("routes", method.name(), route.toString());
         String timerName = MetricRegistry.name("routeLatency", method.name(), route.toString());
-        final Handler userHandler = methodHandlerEntry.getValue();
+        final Handler userHandler = methodRouteEntry.getValue().handler();
         final Meter meter = metricRegistry.meter(metricName);
         final Timer timer = metricRegistry.timer(timerName);
 
+        final HandlerExecutor executor;
+        String executorName = methodRouteEntry.getValue().executor();
+        if (executorName == null) {
+          executor = null;
+        } else {
+          executor = handlerExecutors.get(executorName);
+          Preconditions.checkArgument(
+              executor != null,
+              String.format(
+                  "route %s %s uses undefined handler executor %s", method, route, executorName));
+        }
+
         // TODO (AD): Pull this out into an adapted handler in a separate class.
-        Handler adaptedHandler =
+        AsyncHandler adaptedHandler =
             request -> {
               meter.mark();
+              if (executor == null && !(userHandler instanceof AsyncHandler)) {
+                try {
+                  return CompletableFuture.completedFuture(
+                      timer.time(() -> userHandler.handle(request)));
+                } catch (Exception e) {
+                  return CompletableFuture.completedFuture(handleException(request, e));
+                }
+              }
+
+              Timer.Context timerContext = timer.time();
+              CompletionStage<HttpResponse> response;
               try {
-                return timer.time(() -> userHandler.handle(request));
+                if (executor != null) {
+                  response = executor.execute(request, userHandler);
+                } else {
+                  response = userHandler.handleAsync(request);
+                }
               } catch (Exception e) {
-                return request.connectionContext().exceptionHandler().handle(request, e);
+                response = CompletableFuture.completedFuture(handleException(request, e));
               }
+              // Latency is measured until the response is available, not until the handler returns.
+              return response.handle(
+                  (result, cause) -> {
+                    timerContext.stop();
+                    return cause == null ? result : handleException(request, cause);
+                  });
             };
-        handlers.put(method, adaptedHandler);
+        if (methodRouteEntry.getValue().spooledBody()) {
+          // Spool the body before the request is metered, or passed to a handler executor.
+          AsyncHandler spooledHandler = adaptedHandler;
+          adaptedHandler =
+              request ->
+                  UploadSpooler.spool(request)
+                      .thenCompose(
+                          uploads -> {
+                            request.uploads(uploads);
+                            try {
+                              return spooledHandler.handleAsync(request);
+                            } catch (Exception e) {
+                              return CompletableFuture.completedFuture(handleException(request, e));
+                            }
+                          })
+                      // The uploads are released once the response has been written.
+                      .handle(
+                          (result, cause) ->
+                              cause == null ? result : handleException(request, cause));
+        }
+        boolean uncompressed = methodRouteEntry.getValue().uncompressed();
+        DictionaryCompression dictionaryCompression =
+            new DictionaryCompression(metricRegistry, method, route.toString());
+        AsyncHandler routeHandler = adaptedHandler;
+        adaptedHandler =
+            request -> {
+              ServerContext xctx = request.connectionContext();
+              if (xctx == null || xctx.compressionDictionaries().isEmpty()) {
+                return routeHandler.handleAsync(request);
+              }
+              HttpResponse rejection = DictionaryCompression.rejectUndecoded(request);
+              if (rejection != null) {
+                return CompletableFuture.completedFuture(rejection);
+              }
+              CompletionStage<HttpResponse> response = routeHandler.handleAsync(request);
+              return uncompressed
+                  ? response
+                  : response.thenApply(result -> dictionaryCompression.compress(request, result));
+            };
+        handlers.put(
+            method, methodRouteEntry.getValue().toBuilder().handler(adaptedHandler).build());
+        hasStreamingRoutes |=
+            methodRouteEntry.getValue().streamingBody()
+                || methodRouteEntry.getValue().spooledBody();
+        WebSocketHandler webSocketHandler = methodRouteEntry.getValue().webSocketHandler();
+        if (webSocketHandler != null) {
+          webSocketsBuilder.put(
+              route, new WebSocketEndpoint(webSocketHandler, metricRegistry, route.toString()));
+        }
       }
 
       routesBuilder.put(route, handlers.build());
     }
 
     this.routes = routesBuilder.build();
+    this.hasStreamingRoutes = hasStreamingRoutes;
+    this.webSockets = webSocketsBuilder.build();
+  }
+
+  /** Returns true if any route accepts WebSocket connections. */
+  boolean hasWebSocketRoutes() {
+    return !webSockets.isEmpty();
+  }
+
+  /**
+   * Returns true if any route streams its request body. If not, no request needs to be matched
+   * before its body has been read.
+   */
+  boolean hasStreamingRoutes() {
+    return hasStreamingRoutes;
+  }
+
+  /** Converts an exception thrown or completed by a route handler into a response. */
+  private static HttpResponse handleException(XrpcRequest request, Throwable cause) {
+    if (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    Exception exception =
+        cause instanceof Exception ? (Exception) cause : new CompletionException(cause);
+    return request.connectionContext().exceptionHandler().handle(request, exception);
   }
 
   /**
@@ -107,14 +252,21 @@ public class CompiledRoutes {
    */
   public Match match(String path, HttpMethod method) {
     boolean pathMatched = false;
-    for (Map.Entry<RoutePath, ImmutableMap<HttpMethod, Handler>> routeToHandlers :
+    for (Map.Entry<RoutePath, ImmutableMap<HttpMethod, Route>> routeToHandlers :
         routes.entrySet()) {
       Map<String, String> groups = routeToHandlers.getKey().groups(path);
       if (groups != null) {
         pathMatched = true;
-        Handler handler = routeToHandlers.getValue().get(method);
-        if (handler != null) {
-          return new Match(handler, groups);
+        Route route = routeToHandlers.getValue().get(method);
+        if (route != null) {
+          return new Match(
+              route.handler(),
+              groups,
+              route.streamingBody() || route.spooledBody(),
+              route.spooledBody(),
+              route.priority(),
+              route.uncompressed(),
+              route.webSocketHandler() == null ? null : webSockets.get(routeToHandlers.getKey()));
         }
       }
     }
@@ -135,6 +287,24 @@ public class CompiledRoutes {
     /** Groups which were pulled out of the request path. */
     Map<String, String> groups;
 
+    /**
+     * True if the request body is passed on as it arrives, rather than aggregated: either to the
+     * handler, or to be spooled for it.
+     */
+    boolean streamingBody;
+
+    /** True if the request body is spooled, and limited by the upload size rather than payload. */
+    boolean spooledBody;
+
+    /** The priority class of the matched route's responses. */
+    PriorityClass priority;
+
+    /** True if the matched route's responses are sent without a content coding. */
+    boolean uncompressed;
+
+    /** The WebSocket endpoint for upgrade requests, or null if this isn't a WebSocket route. */
+    WebSocketEndpoint webSocket;
+
     /** A match returning 404 responses. */
     static final Match NOT_FOUND;
 
@@ -150,7 +320,12 @@ public class CompiledRoutes {
                 return Recipes.newResponse(
                     HttpResponseStatus.NOT_FOUND, data, Recipes.ContentType.Text_Plain);
               },
-              ImmutableMap.of());
+              ImmutableMap.of(),
+              false,
+              false,
+              PriorityClass.NORMAL,
+              false,
+              null);
 
       byte[] methodNotAllowed = "Method not allowed".getBytes(XrpcConstants.DEFAULT_CHARSET);
       METHOD_NOT_ALLOWED =
@@ -160,7 +335,12 @@ public class CompiledRoutes {
                 return Recipes.newResponse(
                     HttpResponseStatus.METHOD_NOT_ALLOWED, data, Recipes.ContentType.Text_Plain);
               },
-              ImmutableMap.of());
+              ImmutableMap.of(),
+              false,
+              false,
+              PriorityClass.NORMAL,
+              false,
+              null);
     }
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.MetricRegistry;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses a route's responses with the {@link CompressionDictionary} named by the client, and
+ * measures whether that pays off for the route. Two metrics are kept per route, from the first
+ * response compressed:
+ *
+ * <ul>
+ *   <li>routeCompressionRatio.METHOD.route: a histogram of compressed sizes, as a percentage of the
+ *       uncompressed size.
+ *   <li>routeCompressionTime.METHOD.route: a timer of the CPU time spent compressing (wall-clock
+ *       time if the JVM doesn't measure thread CPU time).
+ * </ul>
+ */
+class DictionaryCompression {
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private static final boolean CPU_TIME_SUPPORTED =
+      THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+  private static final byte[] UNKNOWN_DICTIONARY_RESPONSE =
+      "Unknown compression dictionary".getBytes(XrpcConstants.DEFAULT_CHARSET);
+
+  private final MetricRegistry metricRegistry;
+  private final String ratioName;
+  private final String timeName;
+
+  DictionaryCompression(MetricRegistry metricRegistry, HttpMethod method, String route) {
+    this.metricRegistry = metricRegistry;
+    this.ratioName = MetricRegistry.name("routeCompressionRatio", method.name(), route);
+    this.timeName = MetricRegistry.name("routeCompressionTime", method.name(), route);
+  }
+
+  /**
+   * Returns a 415 (unsupported media type) response if the request body is still compressed with a
+   * dictionary, which means the server doesn't have that dictionary; otherwise returns null.
+   */
+  static HttpResponse rejectUndecoded(XrpcRequest request) {
+    CharSequence contentEncoding = request.header(HttpHeaderNames.CONTENT_ENCODING);
+    if (contentEncoding == null
+        || !CompressionDictionary.CONTENT_CODING.contentEquals(contentEncoding)
+        || !request.connectionContext().requestDecompression()) {
+      return null;
+    }
+    return Recipes.newResponse(
+        HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE,
+        Unpooled.wrappedBuffer(UNKNOWN_DICTIONARY_RESPONSE),
+        Recipes.ContentType.Text_Plain);
+  }
+
+  /**
+   * Returns the given response with its body compressed, if the client accepts the dictionary
+   * coding and names a dictionary the server has, and compressing makes the body smaller.
+   * Otherwise, returns the response unchanged.
+   */
+  HttpResponse compress(XrpcRequest request, HttpResponse response) {
+    ServerContext xctx = request.connectionContext();
+    if (!(response instanceof FullHttpResponse)
+        || !ResponseCompression.isCompressible(response, 1)) {
+      return response;
+    }
+    CharSequence dictionaryId = request.header(CompressionDictionary.HEADER);
+    if (dictionaryId == null
+        || ResponseCompression.quality(
+                request.header(HttpHeaderNames.ACCEPT_ENCODING),
+                CompressionDictionary.CONTENT_CODING)
+            <= 0) {
+      return response;
+    }
+    CompressionDictionary dictionary = xctx.compressionDictionaries().get(dictionaryId.toString());
+    if (dictionary == null) {
+      return response;
+    }
+
+    FullHttpResponse uncompressed = (FullHttpResponse) response;
+    int uncompressedBytes = uncompressed.content().readableBytes();
+    long start = time();
+    ByteBuf compressed =
+        dictionary.compress(
+            request.alloc(), uncompressed.content(), xctx.responseCompressionLevel());
+    metricRegistry.timer(timeName).update(time() - start, TimeUnit.NANOSECONDS);
+    metricRegistry
+        .histogram(ratioName)
+        .update(compressed.readableBytes() * 100L / uncompressedBytes);
+
+    if (compressed.readableBytes() >= uncompressedBytes) {
+      compressed.release();
+      return response;
+    }
+    FullHttpResponse result = uncompressed.replace(compressed);
+    uncompressed.release();
+    result
+        .headers()
+        .set(HttpHeaderNames.CONTENT_ENCODING, CompressionDictionary.CONTENT_CODING)
+        .set(CompressionDictionary.HEADER, dictionary.id())
+        .set(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+    if (!result
+        .headers()
+        .containsValue(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING, true)) {
+      result.headers().add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+    return result;
+  }
+
+  /** Returns the current thread's CPU time in nanoseconds, if supported. */
+  private static long time() {
+    return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import com.nordstrom.xrpc.encoding.ZstdDecoder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.DelegatingDecompressorFrameListener;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2Headers;
+import java.util.Map;
+
+/**
+ * A {@link DelegatingDecompressorFrameListener} which also decompresses zstd request bodies, with
+ * the {@link CompressionDictionary} they name if any; the HTTP/2 counterpart of {@link
+ * com.nordstrom.xrpc.encoding.DictionaryContentDecompressor}.
+ */
+class DictionaryDecompressorFrameListener extends DelegatingDecompressorFrameListener {
+  private final Map<String, CompressionDictionary> dictionaries;
+
+  /**
+   * The dictionary named by the headers being read, or null if they name none. The decompressor for
+   * a stream is created while its headers are read, so this never applies to another stream.
+   */
+  private CharSequence dictionaryId;
+
+  DictionaryDecompressorFrameListener(
+      Http2Connection connection,
+      Http2FrameListener listener,
+      Map<String, CompressionDictionary> dictionaries) {
+    super(connection, listener);
+    this.dictionaries = dictionaries;
+  }
+
+  @Override
+  public void onHeadersRead(
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int padding,
+      boolean endOfStream)
+      throws Http2Exception {
+    dictionaryId = headers.get(CompressionDictionary.HEADER);
+    try {
+      super.onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+    } finally {
+      dictionaryId = null;
+    }
+  }
+
+  @Override
+  public void onHeadersRead(
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int streamDependency,
+      short weight,
+      boolean exclusive,
+      int padding,
+      boolean endOfStream)
+      throws Http2Exception {
+    dictionaryId = headers.get(CompressionDictionary.HEADER);
+    try {
+      super.onHeadersRead(
+          ctx, streamId, headers, streamDependency, weight, exclusive, padding, endOfStream);
+    } finally {
+      dictionaryId = null;
+    }
+  }
+
+  @Override
+  protected EmbeddedChannel newContentDecompressor(
+      ChannelHandlerContext ctx, CharSequence contentEncoding) throws Http2Exception {
+    if (CompressionDictionary.CONTENT_CODING.contentEquals(contentEncoding)) {
+      CompressionDictionary dictionary =
+          dictionaryId == null ? null : dictionaries.get(dictionaryId.toString());
+      if (dictionaryId != null && dictionary == null) {
+        return null;
+      }
+      return new EmbeddedChannel(
+          ctx.channel().id(),
+          ctx.channel().metadata().hasDisconnect(),
+          ctx.channel().config(),
+          dictionary == null ? new ZstdDecoder() : dictionary.newDecoder());
+    }
+    return super.newContentDecompressor(ctx, contentEncoding);
+  }
+}
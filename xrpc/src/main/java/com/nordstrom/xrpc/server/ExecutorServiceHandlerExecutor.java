@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+
+/** A handler executor which runs handlers on an executor service, without bounds of its own. */
+@Slf4j
+class ExecutorServiceHandlerExecutor implements HandlerExecutor {
+  private final ExecutorService executorService;
+
+  ExecutorServiceHandlerExecutor(ExecutorService executorService) {
+    this.executorService = executorService;
+  }
+
+  /**
+   * Returns a handler executor running each handler on a new virtual thread. Virtual threads are
+   * looked up reflectively, since they aren't available on every JVM this builds for.
+   */
+  static HandlerExecutor virtualThreads(String name) {
+    try {
+      return new ExecutorServiceHandlerExecutor(
+          (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+    } catch (ReflectiveOperationException e) {
+      log.warn(
+          "Virtual threads are not supported by this JVM; handler executor {} will use an "
+              + "unbounded thread pool",
+          name);
+      return new ExecutorServiceHandlerExecutor(
+          Executors.newCachedThreadPool(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("xrpc-" + name + "-%d")
+                  .setDaemon(true)
+                  .build()));
+    }
+  }
+
+  @Override
+  public CompletionStage<HttpResponse> execute(XrpcRequest request, Handler handler) {
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    try {
+      executorService.execute(() -> invoke(request, handler, response));
+    } catch (RejectedExecutionException e) {
+      response.completeExceptionally(e);
+    }
+    return response;
+  }
+
+  @Override
+  public void shutdown() {
+    executorService.shutdown();
+  }
+
+  /** Invokes the handler on the current thread, completing response with its result. */
+  static void invoke(
+      XrpcRequest request, Handler handler, CompletableFuture<HttpResponse> response) {
+    try {
+      handler
+          .handleAsync(request)
+          .whenComplete(
+              (result, cause) -> {
+                if (cause != null) {
+                  response.completeExceptionally(cause);
+                } else {
+                  response.complete(result);
+                }
+              });
+    } catch (Exception e) {
+      response.completeExceptionally(e);
+    }
+  }
+}
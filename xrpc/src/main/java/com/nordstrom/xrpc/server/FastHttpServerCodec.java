@@ -0,0 +1,515 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteProcessor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * An HTTP/1.1 server codec specialized for small requests without a body, such as most GETs. It can
+ * replace {@link HttpServerCodec}, and produces the same messages.
+ *
+ * <p>The head of such a request is parsed straight from the inbound buffer: it is copied once into
+ * an array, which backs the request's URI, and the names and values of its headers as {@link
+ * AsciiString} views. Common header names are replaced with the {@link HttpHeaderNames} constants.
+ * The request is passed on as a {@link FullHttpRequest}, which the aggregator passes through
+ * untouched, rather than as an {@link HttpRequest} followed by a {@link LastHttpContent}.
+ *
+ * <p>Any other request (one with a body, or an upgrade, or anything this parser doesn't accept) is
+ * decoded by {@link HttpRequestDecoder}, and so behaves exactly as it does with {@link
+ * HttpServerCodec}. The fast path resumes with the next request.
+ *
+ * <p>Responses are encoded by {@link HttpResponseEncoder}, except that the status lines of common
+ * statuses are written from pre-encoded bytes.
+ */
+final class FastHttpServerCodec
+    extends CombinedChannelDuplexHandler<
+        FastHttpServerCodec.RequestDecoder, FastHttpServerCodec.ResponseEncoder>
+    implements HttpServerUpgradeHandler.SourceCodec {
+  // The limits HttpServerCodec uses by default.
+  private static final int MAX_INITIAL_LINE_LENGTH = 4096;
+  private static final int MAX_HEADER_SIZE = 8192;
+  private static final int MAX_CHUNK_SIZE = 8192;
+
+  /** Requests whose heads are longer than this are left to HttpRequestDecoder to reject. */
+  private static final int MAX_HEAD_SIZE = MAX_INITIAL_LINE_LENGTH + MAX_HEADER_SIZE;
+
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+  private static final byte SP = ' ';
+  private static final byte HT = '\t';
+
+  private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+  /** The methods of requests parsed on the fast path. */
+  private static final HttpMethod[] METHODS = {
+    HttpMethod.GET,
+    HttpMethod.HEAD,
+    HttpMethod.POST,
+    HttpMethod.PUT,
+    HttpMethod.DELETE,
+    HttpMethod.OPTIONS,
+    HttpMethod.PATCH
+  };
+
+  /** The names of METHODS, as bytes. */
+  private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+
+  /**
+   * Header names which are replaced with constants, by length. This includes the names of the
+   * headers which send a request to HttpRequestDecoder, so that they're recognized by identity.
+   */
+  private static final AsciiString[][] HEADER_NAMES =
+      byLength(
+          HttpHeaderNames.HOST,
+          HttpHeaderNames.ACCEPT,
+          HttpHeaderNames.ACCEPT_CHARSET,
+          HttpHeaderNames.ACCEPT_ENCODING,
+          HttpHeaderNames.ACCEPT_LANGUAGE,
+          HttpHeaderNames.AUTHORIZATION,
+          HttpHeaderNames.CACHE_CONTROL,
+          HttpHeaderNames.CONNECTION,
+          HttpHeaderNames.CONTENT_ENCODING,
+          HttpHeaderNames.CONTENT_LENGTH,
+          HttpHeaderNames.CONTENT_TYPE,
+          HttpHeaderNames.COOKIE,
+          HttpHeaderNames.EXPECT,
+          HttpHeaderNames.IF_MODIFIED_SINCE,
+          HttpHeaderNames.IF_NONE_MATCH,
+          HttpHeaderNames.ORIGIN,
+          HttpHeaderNames.RANGE,
+          HttpHeaderNames.REFERER,
+          HttpHeaderNames.TRANSFER_ENCODING,
+          HttpHeaderNames.UPGRADE,
+          HttpHeaderNames.USER_AGENT,
+          AsciiString.cached("x-forwarded-for"),
+          AsciiString.cached("x-request-id"));
+
+  /** The statuses whose status lines are pre-encoded. */
+  private static final HttpResponseStatus[] COMMON_STATUSES = {
+    HttpResponseStatus.CONTINUE,
+    HttpResponseStatus.SWITCHING_PROTOCOLS,
+    HttpResponseStatus.OK,
+    HttpResponseStatus.CREATED,
+    HttpResponseStatus.ACCEPTED,
+    HttpResponseStatus.NO_CONTENT,
+    HttpResponseStatus.PARTIAL_CONTENT,
+    HttpResponseStatus.MOVED_PERMANENTLY,
+    HttpResponseStatus.FOUND,
+    HttpResponseStatus.NOT_MODIFIED,
+    HttpResponseStatus.BAD_REQUEST,
+    HttpResponseStatus.UNAUTHORIZED,
+    HttpResponseStatus.FORBIDDEN,
+    HttpResponseStatus.NOT_FOUND,
+    HttpResponseStatus.METHOD_NOT_ALLOWED,
+    HttpResponseStatus.NOT_ACCEPTABLE,
+    HttpResponseStatus.CONFLICT,
+    HttpResponseStatus.PRECONDITION_FAILED,
+    HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+    HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE,
+    HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+    HttpResponseStatus.TOO_MANY_REQUESTS,
+    HttpResponseStatus.INTERNAL_SERVER_ERROR,
+    HttpResponseStatus.SERVICE_UNAVAILABLE,
+    HttpResponseStatus.GATEWAY_TIMEOUT
+  };
+
+  /** The common statuses, by code. */
+  private static final HttpResponseStatus[] STATUSES = new HttpResponseStatus[600];
+
+  /** The pre-encoded HTTP/1.1 status lines of the common statuses, by code. */
+  private static final byte[][] STATUS_LINES = new byte[600][];
+
+  static {
+    for (int i = 0; i < METHODS.length; i++) {
+      METHOD_NAMES[i] = METHODS[i].asciiName().toByteArray();
+    }
+    for (HttpResponseStatus status : COMMON_STATUSES) {
+      STATUSES[status.code()] = status;
+      STATUS_LINES[status.code()] =
+          String.format("%s %s\r\n", HttpVersion.HTTP_1_1, status)
+              .getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  /**
+   * The methods of the requests whose responses haven't been written yet, in order, so that
+   * responses to HEAD requests are sent without a body.
+   */
+  private final Queue<HttpMethod> methods = new ArrayDeque<>();
+
+  FastHttpServerCodec() {
+    init(new RequestDecoder(), new ResponseEncoder());
+  }
+
+  @Override
+  public void upgradeFrom(ChannelHandlerContext ctx) {
+    ctx.pipeline().remove(this);
+  }
+
+  private static AsciiString[][] byLength(AsciiString... names) {
+    int maxLength = 0;
+    for (AsciiString name : names) {
+      maxLength = Math.max(maxLength, name.length());
+    }
+    AsciiString[][] byLength = new AsciiString[maxLength + 1][0];
+    for (AsciiString name : names) {
+      AsciiString[] sameLength = byLength[name.length()];
+      byLength[name.length()] = Arrays.copyOf(sameLength, sameLength.length + 1);
+      byLength[name.length()][sameLength.length] = name;
+    }
+    return byLength;
+  }
+
+  /** Decodes small requests itself, and leaves the rest to HttpRequestDecoder. */
+  final class RequestDecoder extends HttpRequestDecoder {
+    /** True while HttpRequestDecoder is decoding a request. */
+    private boolean delegating;
+
+    /** True once HttpRequestDecoder has failed to decode a request; it then discards the rest. */
+    private boolean failed;
+
+    RequestDecoder() {
+      super(MAX_INITIAL_LINE_LENGTH, MAX_HEADER_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out)
+        throws Exception {
+      if (!delegating) {
+        FullHttpRequest request = decodeSmallRequest(buffer);
+        if (request != null) {
+          methods.add(request.method());
+          out.add(request);
+          return;
+        }
+        if (!delegating) {
+          // The request's head hasn't all been read yet.
+          return;
+        }
+      }
+
+      int start = out.size();
+      super.decode(ctx, buffer, out);
+      for (int i = start; i < out.size(); i++) {
+        Object msg = out.get(i);
+        if (msg instanceof HttpRequest) {
+          methods.add(((HttpRequest) msg).method());
+        }
+        if (msg instanceof HttpObject && ((HttpObject) msg).decoderResult().isFailure()) {
+          failed = true;
+        }
+        if (msg instanceof LastHttpContent && !failed) {
+          // HttpRequestDecoder is ready for a new request, which may be small.
+          delegating = false;
+        }
+      }
+    }
+
+    /**
+     * Returns the request at the start of the buffer if it's small, consuming its bytes. Returns
+     * null if the buffer doesn't hold the request's whole head yet, or if the request must be
+     * decoded by HttpRequestDecoder, in which case delegating is set and no bytes are consumed.
+     */
+    private FullHttpRequest decodeSmallRequest(ByteBuf buffer) {
+      // Skip the line breaks clients may send between requests, as HttpRequestDecoder does.
+      int start = buffer.readerIndex();
+      int end = buffer.writerIndex();
+      while (start < end && (buffer.getByte(start) == CR || buffer.getByte(start) == LF)) {
+        start++;
+      }
+      buffer.readerIndex(start);
+
+      int headEnd = findHeadEnd(buffer, start, Math.min(end, start + MAX_HEAD_SIZE));
+      if (headEnd < 0) {
+        delegating = end - start >= MAX_HEAD_SIZE;
+        return null;
+      }
+
+      byte[] head = new byte[headEnd - start];
+      buffer.getBytes(start, head);
+      FullHttpRequest request = parse(head);
+      if (request == null) {
+        delegating = true;
+        return null;
+      }
+      buffer.readerIndex(headEnd);
+      return request;
+    }
+  }
+
+  /**
+   * Returns the index just past the empty line which ends a request head starting at start, or -1
+   * if there isn't one before limit.
+   */
+  private static int findHeadEnd(ByteBuf buffer, int start, int limit) {
+    int lineStart = start;
+    while (lineStart < limit) {
+      int lf = buffer.forEachByte(lineStart, limit - lineStart, ByteProcessor.FIND_LF);
+      if (lf < 0) {
+        return -1;
+      }
+      int lineLength = lf - lineStart;
+      if (lineStart > start
+          && (lineLength == 0 || (lineLength == 1 && buffer.getByte(lineStart) == CR))) {
+        return lf + 1;
+      }
+      lineStart = lf + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a complete request head, ending with an empty line. Returns null unless it's the head of
+   * a well-formed HTTP/1.1 request without a body, in origin form, with a common method, and within
+   * HttpRequestDecoder's limits.
+   */
+  private static FullHttpRequest parse(byte[] head) {
+    // Request line.
+    int lineEnd = lineEnd(head, 0);
+    if (lineEnd > MAX_INITIAL_LINE_LENGTH
+        || head.length - nextLine(head, lineEnd) > MAX_HEADER_SIZE) {
+      // Let HttpRequestDecoder reject it.
+      return null;
+    }
+    int methodEnd = indexOf(head, SP, 0, lineEnd);
+    if (methodEnd < 0) {
+      return null;
+    }
+    HttpMethod method = method(head, methodEnd);
+    int uriEnd = indexOf(head, SP, methodEnd + 1, lineEnd);
+    if (method == null
+        || uriEnd < 0
+        || uriEnd == methodEnd + 1
+        || head[methodEnd + 1] != '/'
+        || !regionEquals(head, uriEnd + 1, lineEnd, HTTP_1_1)) {
+      return null;
+    }
+    String uri =
+        new String(head, methodEnd + 1, uriEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+
+    // Header lines, up to the empty line.
+    HttpHeaders headers = new DefaultHttpHeaders(false);
+    int lineStart = nextLine(head, lineEnd);
+    while ((lineEnd = lineEnd(head, lineStart)) > lineStart) {
+      if (head[lineStart] == SP || head[lineStart] == HT) {
+        // Obsolete line folding.
+        return null;
+      }
+      int colon = indexOf(head, (byte) ':', lineStart, lineEnd);
+      if (colon <= lineStart || !isToken(head, lineStart, colon)) {
+        return null;
+      }
+      AsciiString name = headerName(head, lineStart, colon);
+      int valueStart = colon + 1;
+      int valueEnd = lineEnd;
+      while (valueStart < valueEnd && (head[valueStart] == SP || head[valueStart] == HT)) {
+        valueStart++;
+      }
+      while (valueEnd > valueStart && (head[valueEnd - 1] == SP || head[valueEnd - 1] == HT)) {
+        valueEnd--;
+      }
+      if (hasBody(name, head, valueStart, valueEnd)) {
+        return null;
+      }
+      headers.add(name, new AsciiString(head, valueStart, valueEnd - valueStart, false));
+      lineStart = nextLine(head, lineEnd);
+    }
+
+    return new DefaultFullHttpRequest(
+        HttpVersion.HTTP_1_1,
+        method,
+        uri,
+        Unpooled.EMPTY_BUFFER,
+        headers,
+        EmptyHttpHeaders.INSTANCE);
+  }
+
+  /**
+   * Returns true if a header means the request may have a body, or needs handling which only
+   * HttpRequestDecoder and the handlers after it provide.
+   */
+  private static boolean hasBody(AsciiString name, byte[] head, int valueStart, int valueEnd) {
+    if (name == HttpHeaderNames.CONTENT_LENGTH) {
+      if (valueStart == valueEnd) {
+        return true;
+      }
+      for (int i = valueStart; i < valueEnd; i++) {
+        if (head[i] != '0') {
+          return true;
+        }
+      }
+      return false;
+    }
+    return name == HttpHeaderNames.TRANSFER_ENCODING
+        || name == HttpHeaderNames.UPGRADE
+        || name == HttpHeaderNames.EXPECT
+        || name == HttpHeaderNames.CONTENT_ENCODING;
+  }
+
+  /** Returns the method whose name is the first methodEnd bytes of head, if it's a common one. */
+  private static HttpMethod method(byte[] head, int methodEnd) {
+    for (int i = 0; i < METHODS.length; i++) {
+      if (regionEquals(head, 0, methodEnd, METHOD_NAMES[i])) {
+        return METHODS[i];
+      }
+    }
+    return null;
+  }
+
+  /** Returns the constant for a common header name, or else a view of the name in head. */
+  private static AsciiString headerName(byte[] head, int start, int end) {
+    int length = end - start;
+    if (length < HEADER_NAMES.length) {
+      for (AsciiString name : HEADER_NAMES[length]) {
+        if (regionEqualsIgnoreCase(head, start, name)) {
+          return name;
+        }
+      }
+    }
+    return new AsciiString(head, start, length, false);
+  }
+
+  /** Returns the index of the line break (CRLF or LF) ending the line which starts at start. */
+  private static int lineEnd(byte[] head, int start) {
+    int lf = indexOf(head, LF, start, head.length);
+    return lf > start && head[lf - 1] == CR ? lf - 1 : lf;
+  }
+
+  /** Returns the start of the line after the line break at lineEnd. */
+  private static int nextLine(byte[] head, int lineEnd) {
+    return head[lineEnd] == CR ? lineEnd + 2 : lineEnd + 1;
+  }
+
+  private static int indexOf(byte[] bytes, byte b, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean regionEquals(byte[] bytes, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (bytes[start + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compares bytes starting at start with a lower-case name of the same length. */
+  private static boolean regionEqualsIgnoreCase(byte[] bytes, int start, AsciiString name) {
+    for (int i = 0; i < name.length(); i++) {
+      byte b = bytes[start + i];
+      if (b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != name.byteAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if the bytes are a token (RFC 7230 section 3.2.6), as header names must be. */
+  private static boolean isToken(byte[] bytes, int start, int end) {
+    for (int i = start; i < end; i++) {
+      byte b = bytes[i];
+      boolean alphanumeric =
+          (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+      if (!alphanumeric && "!#$%&'*+-.^_`|~".indexOf(b) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Encodes responses, writing the status lines of common statuses from pre-encoded bytes. */
+  final class ResponseEncoder extends HttpResponseEncoder {
+    /** The method of the request the response being encoded answers. */
+    private HttpMethod method;
+
+    @Override
+    protected void encodeInitialLine(ByteBuf buf, HttpResponse response) throws Exception {
+      HttpResponseStatus status = response.status();
+      int code = status.code();
+      if (response.protocolVersion() == HttpVersion.HTTP_1_1
+          && code < STATUSES.length
+          && STATUSES[code] != null
+          && (STATUSES[code] == status
+              || STATUSES[code].reasonPhrase().equals(status.reasonPhrase()))) {
+        buf.writeBytes(STATUS_LINES[code]);
+      } else {
+        super.encodeInitialLine(buf, response);
+      }
+    }
+
+    @Override
+    protected boolean isContentAlwaysEmpty(HttpResponse response) {
+      // An interim response doesn't answer the request.
+      if (response.status().codeClass() != HttpStatusClass.INFORMATIONAL
+          || response.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+        method = methods.poll();
+      }
+      return HttpMethod.HEAD.equals(method) || super.isContentAlwaysEmpty(response);
+    }
+
+    @Override
+    protected void sanitizeHeadersBeforeEncode(HttpResponse response, boolean isAlwaysEmpty) {
+      // As HttpServerCodec does, a successful response to CONNECT has no body to frame.
+      if (!isAlwaysEmpty
+          && method == HttpMethod.CONNECT
+          && response.status().codeClass() == HttpStatusClass.SUCCESS) {
+        response.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+        return;
+      }
+      super.sanitizeHeadersBeforeEncode(response, isAlwaysEmpty);
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Splitter;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+
+/**
+ * Serves the files under a root directory, for routes added with {@link Routes#files(String, Path,
+ * String)}. The path of the file is taken from the "path" route variable.
+ */
+class FileHandler implements Handler {
+  private static final String GZIP_SUFFIX = ".gz";
+  private static final String BYTES_UNIT = "bytes=";
+
+  private final Path root;
+
+  FileHandler(Path root) {
+    this.root = root.toAbsolutePath().normalize();
+  }
+
+  @Override
+  public HttpResponse handle(XrpcRequest request) throws IOException {
+    Path file = resolve(request.variable("path"));
+    if (file == null) {
+      return notFound(request);
+    }
+
+    Path served = file;
+    boolean gzipped = false;
+    if (ResponseCompression.quality(request.header(HttpHeaderNames.ACCEPT_ENCODING), "gzip") > 0) {
+      // The sibling may be a link out of the root, even though the file it compresses isn't.
+      Path sibling = contained(file.resolveSibling(file.getFileName() + GZIP_SUFFIX));
+      if (sibling != null) {
+        served = sibling;
+        gzipped = true;
+      }
+    }
+
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(served, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return notFound(request);
+    }
+    long size = attributes.size();
+    // HTTP dates have a precision of seconds, so compare modification times in whole seconds.
+    long lastModified = attributes.lastModifiedTime().toMillis() / 1000 * 1000;
+    String etag =
+        "\""
+            + Long.toHexString(lastModified)
+            + "-"
+            + Long.toHexString(size)
+            + (gzipped ? "-gz" : "")
+            + "\"";
+
+    if (notModified(request, etag, lastModified)) {
+      FullHttpResponse response =
+          new DefaultFullHttpResponse(
+              HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+      setValidators(response.headers(), etag, lastModified);
+      return response;
+    }
+
+    CharSequence contentType = Files.probeContentType(file);
+    if (contentType == null) {
+      contentType = HttpHeaderValues.APPLICATION_OCTET_STREAM;
+    }
+
+    if (request.method().orElse(HttpMethod.GET).equals(HttpMethod.HEAD)) {
+      FullHttpResponse response =
+          new DefaultFullHttpResponse(
+              HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+      setEntityHeaders(response.headers(), etag, lastModified, gzipped);
+      HttpUtil.setContentLength(response, size);
+      return response;
+    }
+
+    HttpResponseStatus status = HttpResponseStatus.OK;
+    long offset = 0;
+    long length = size;
+    CharSequence range = request.header(HttpHeaderNames.RANGE);
+    if (range != null && ifRangeMatches(request, etag, lastModified)) {
+      long[] bounds = parseRange(range.toString(), size);
+      if (bounds == UNSATISFIABLE) {
+        FullHttpResponse response =
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+        HttpUtil.setContentLength(response, 0);
+        return response;
+      } else if (bounds != null) {
+        status = HttpResponseStatus.PARTIAL_CONTENT;
+        offset = bounds[0];
+        length = bounds[1] - bounds[0] + 1;
+      }
+    }
+
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(served, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return notFound(request);
+    }
+    FileResponse response = new FileResponse(status, channel, offset, length, contentType);
+    setEntityHeaders(response.headers(), etag, lastModified, gzipped);
+    if (status == HttpResponseStatus.PARTIAL_CONTENT) {
+      response
+          .headers()
+          .set(
+              HttpHeaderNames.CONTENT_RANGE,
+              "bytes " + offset + "-" + (offset + length - 1) + "/" + size);
+    }
+    return response;
+  }
+
+  private static HttpResponse notFound(XrpcRequest request) throws IOException {
+    return CompiledRoutes.Match.NOT_FOUND.getHandler().handle(request);
+  }
+
+  /**
+   * Returns the regular file under the root for the given URL-encoded relative path, or null if
+   * there is no such file, or if the path escapes the root (directly, or through a symbolic link).
+   */
+  private Path resolve(String encodedPath) throws IOException {
+    if (encodedPath == null) {
+      return null;
+    }
+    // Decode '+' literally, as it is in paths, rather than as a space as it is in query strings.
+    String relative = QueryStringDecoder.decodeComponent(encodedPath.replace("+", "%2B"));
+    try {
+      return contained(root.resolve(relative).normalize());
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the given normalized path if it is a regular file under the root, once any symbolic
+   * links are followed, or null if it isn't.
+   */
+  private Path contained(Path file) throws IOException {
+    if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+      return null;
+    }
+    try {
+      return file.toRealPath().startsWith(root.toRealPath()) ? file : null;
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private static void setValidators(HttpHeaders headers, String etag, long lastModified) {
+    headers
+        .set(HttpHeaderNames.ETAG, etag)
+        .set(HttpHeaderNames.LAST_MODIFIED, DateFormatter.format(new Date(lastModified)))
+        .set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+  }
+
+  private static void setEntityHeaders(
+      HttpHeaders headers, String etag, long lastModified, boolean gzipped) {
+    setValidators(headers, etag, lastModified);
+    headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+    if (gzipped) {
+      headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+    }
+  }
+
+  /**
+   * Returns whether the request's conditional headers show that the client's copy is current.
+   * If-None-Match takes precedence over If-Modified-Since.
+   */
+  private static boolean notModified(XrpcRequest request, String etag, long lastModified) {
+    CharSequence ifNoneMatch = request.header(HttpHeaderNames.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      for (String tag : Splitter.on(',').trimResults().split(ifNoneMatch)) {
+        // If-None-Match uses the weak comparison.
+        if (tag.equals("*") || stripWeak(tag).equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Date ifModifiedSince = parseDate(request.header(HttpHeaderNames.IF_MODIFIED_SINCE));
+    return ifModifiedSince != null && lastModified <= ifModifiedSince.getTime();
+  }
+
+  /**
+   * Returns whether the Range header should be honored: either there is no If-Range header, or it
+   * matches the current representation. An entity tag must match strongly, and a date exactly.
+   */
+  private static boolean ifRangeMatches(XrpcRequest request, String etag, long lastModified) {
+    CharSequence ifRange = request.header(HttpHeaderNames.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    String value = ifRange.toString().trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return value.equals(etag);
+    }
+    Date date = parseDate(value);
+    return date != null && date.getTime() == lastModified;
+  }
+
+  private static String stripWeak(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  private static Date parseDate(CharSequence value) {
+    return value == null ? null : DateFormatter.parseHttpDate(value);
+  }
+
+  /** Returned by {@link #parseRange(String, long)} for a range which the file can't satisfy. */
+  static final long[] UNSATISFIABLE = new long[0];
+
+  /**
+   * Parses a Range header with a single byte range, returning the first and last (inclusive) byte
+   * positions, clamped to the file size. Returns {@link #UNSATISFIABLE} if the range starts beyond
+   * the end of the file, and null if the header is malformed or asks for several ranges, in which
+   * case it should be ignored and the whole file served.
+   */
+  static long[] parseRange(String range, long size) {
+    if (!range.startsWith(BYTES_UNIT) || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = range.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // A suffix range: the last N bytes.
+        long suffix = Long.parseLong(last);
+        if (suffix < 0) {
+          return null;
+        }
+        if (suffix == 0 || size == 0) {
+          return UNSATISFIABLE;
+        }
+        return new long[] {Math.max(0, size - suffix), size - 1};
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+      if (start < 0 || end < start) {
+        return null;
+      }
+      if (start >= size) {
+        return UNSATISFIABLE;
+      }
+      return new long[] {start, Math.min(end, size - 1)};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A response whose body is a region of a file. On cleartext HTTP/1 connections the region is sent
+ * with a {@link io.netty.channel.DefaultFileRegion}, so the kernel copies it straight from the page
+ * cache to the socket (sendfile). Otherwise the region is memory-mapped and streamed in chunks,
+ * like any other {@link StreamingResponse}, as the connection or HTTP/2 stream becomes writable.
+ *
+ * <p>The response owns the file channel, and closes it once the body has been sent or the response
+ * is dropped.
+ */
+@Slf4j
+@Accessors(fluent = true)
+class FileResponse extends StreamingResponse {
+  /** The size of the chunks a mapped region is streamed in. */
+  static final int CHUNK_BYTES = 64 * 1024;
+
+  /** The largest window of the file mapped at once. */
+  private static final long MAP_WINDOW_BYTES = 16 * 1024 * 1024;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final FileChannel file;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final long offset;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final long length;
+
+  FileResponse(
+      HttpResponseStatus status,
+      FileChannel file,
+      long offset,
+      long length,
+      CharSequence contentType) {
+    super(
+        status,
+        new IteratorPublisher<>(new MappedChunks(file, offset, length), () -> close(file)),
+        contentType);
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+    HttpUtil.setContentLength(this, length);
+  }
+
+  private static void close(FileChannel file) {
+    try {
+      file.close();
+    } catch (IOException e) {
+      log.warn("Failed to close file", e);
+    }
+  }
+
+  /** Iterates over a region of a file in chunks, mapping a window of the file at a time. */
+  private static class MappedChunks implements Iterator<ByteBuf> {
+    private final FileChannel file;
+    private final long end;
+    private long position;
+    private MappedByteBuffer window;
+
+    MappedChunks(FileChannel file, long offset, long length) {
+      this.file = file;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < end;
+    }
+
+    @Override
+    public ByteBuf next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        if (window == null || !window.hasRemaining()) {
+          window =
+              file.map(
+                  FileChannel.MapMode.READ_ONLY,
+                  position,
+                  Math.min(MAP_WINDOW_BYTES, end - position));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      int size = Math.min(CHUNK_BYTES, window.remaining());
+      ByteBuf chunk = Unpooled.wrappedBuffer(window.slice().limit(size));
+      window.position(window.position() + size);
+      position += size;
+      return chunk;
+    }
+  }
+}
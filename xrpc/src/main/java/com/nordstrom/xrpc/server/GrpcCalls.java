@@ -0,0 +1,518 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Decoder;
+import com.nordstrom.xrpc.encoding.Encoder;
+import com.nordstrom.xrpc.exceptions.HttpResponseException;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adapts gRPC method handlers to route handlers, speaking the gRPC wire protocol: request and
+ * response bodies are sequences of messages, each prefixed with a compression flag and its length,
+ * and the outcome of a call is sent in grpc-status and grpc-message trailers. Messages are encoded
+ * with the server's protobuf encoder and decoder, or with the codec for another content subtype
+ * such as application/grpc+json.
+ *
+ * <p>Messages are never compressed; clients are told so with grpc-accept-encoding. A call's
+ * grpc-timeout sets its deadline: a unary response completed after it, or a response stream still
+ * running at it, ends with DEADLINE_EXCEEDED.
+ */
+@Slf4j
+final class GrpcCalls {
+  static final AsciiString GRPC_STATUS = AsciiString.cached("grpc-status");
+  static final AsciiString GRPC_MESSAGE = AsciiString.cached("grpc-message");
+  static final AsciiString GRPC_TIMEOUT = AsciiString.cached("grpc-timeout");
+  static final AsciiString GRPC_ACCEPT_ENCODING = AsciiString.cached("grpc-accept-encoding");
+  private static final AsciiString IDENTITY = AsciiString.cached("identity");
+
+  private static final String GRPC_CONTENT_TYPE = "application/grpc";
+
+  /** The length of the prefix of each message: a compression flag, then a 4-byte length. */
+  private static final int PREFIX_LENGTH = 5;
+
+  private static final Pattern TIMEOUT = Pattern.compile("(\\d{1,8})([HMSmun])");
+
+  private GrpcCalls() {}
+
+  /** Returns a route handler for a unary method. */
+  static <Req> Handler unary(Class<Req> requestType, GrpcUnaryHandler<Req, ?> handler) {
+    return (AsyncHandler)
+        request -> {
+          Codec codec = Codec.of(request);
+          if (codec == null) {
+            return CompletableFuture.completedFuture(unsupportedMediaType());
+          }
+          long deadline = deadline(request);
+          Object response;
+          try {
+            response = handler.handle(request, readMessage(request, codec, requestType));
+          } catch (Exception e) {
+            return CompletableFuture.completedFuture(trailersOnly(codec, e));
+          }
+          if (deadline != 0 && deadline - System.nanoTime() < 0) {
+            ReferenceCountUtil.release(response);
+            return CompletableFuture.completedFuture(trailersOnly(codec, deadlineExceeded()));
+          }
+          return CompletableFuture.completedFuture(unaryResponse(request, codec, response));
+        };
+  }
+
+  /** Returns a route handler for a server-streaming method. */
+  static <Req> Handler serverStreaming(
+      Class<Req> requestType, GrpcServerStreamingHandler<Req, ?> handler) {
+    return (AsyncHandler)
+        request -> {
+          Codec codec = Codec.of(request);
+          if (codec == null) {
+            return CompletableFuture.completedFuture(unsupportedMediaType());
+          }
+          long deadline = deadline(request);
+          Flow.Publisher<?> responses;
+          try {
+            responses = handler.handle(request, readMessage(request, codec, requestType));
+          } catch (Exception e) {
+            return CompletableFuture.completedFuture(trailersOnly(codec, e));
+          }
+          if (deadline != 0) {
+            responses = new DeadlinePublisher<>(responses, request.eventLoop(), deadline);
+          }
+          return CompletableFuture.completedFuture(new GrpcStreamingResponse(responses, codec));
+        };
+  }
+
+  /**
+   * Returns the deadline of a call as a {@link System#nanoTime()} value, or 0 if it has none. A
+   * malformed grpc-timeout is ignored.
+   */
+  private static long deadline(XrpcRequest request) {
+    CharSequence timeout = request.header(GRPC_TIMEOUT);
+    if (timeout == null) {
+      return 0;
+    }
+    Matcher matcher = TIMEOUT.matcher(timeout);
+    if (!matcher.matches()) {
+      log.debug("Ignoring malformed grpc-timeout {}", timeout);
+      return 0;
+    }
+    long value = Long.parseLong(matcher.group(1));
+    long nanos;
+    switch (matcher.group(2).charAt(0)) {
+      case 'H':
+        nanos = TimeUnit.HOURS.toNanos(value);
+        break;
+      case 'M':
+        nanos = TimeUnit.MINUTES.toNanos(value);
+        break;
+      case 'S':
+        nanos = TimeUnit.SECONDS.toNanos(value);
+        break;
+      case 'm':
+        nanos = TimeUnit.MILLISECONDS.toNanos(value);
+        break;
+      case 'u':
+        nanos = TimeUnit.MICROSECONDS.toNanos(value);
+        break;
+      default:
+        nanos = value;
+        break;
+    }
+    long deadline = System.nanoTime() + nanos;
+    // 0 means there is no deadline.
+    return deadline == 0 ? 1 : deadline;
+  }
+
+  /** Reads the single request message of a unary or server-streaming call. */
+  private static <Req> Req readMessage(XrpcRequest request, Codec codec, Class<Req> requestType) {
+    ByteBuf body = request.body();
+    int start = body.readerIndex();
+    if (body.readableBytes() < PREFIX_LENGTH) {
+      throw new GrpcException(GrpcStatus.INTERNAL, "expected a request message");
+    }
+    if ((body.getByte(start) & 1) != 0) {
+      throw new GrpcException(GrpcStatus.UNIMPLEMENTED, "compressed messages are not supported");
+    }
+    long length = body.getUnsignedInt(start + 1);
+    if (length != body.readableBytes() - PREFIX_LENGTH) {
+      throw new GrpcException(GrpcStatus.INTERNAL, "expected exactly one request message");
+    }
+    try {
+      return codec.decoder.decode(
+          body.slice(start + PREFIX_LENGTH, (int) length), codec.decoder.mediaType(), requestType);
+    } catch (IOException | RuntimeException e) {
+      throw new GrpcException(GrpcStatus.INTERNAL, "could not parse request message", e);
+    }
+  }
+
+  /** Returns the response to a successful unary call: its message, then an OK status trailer. */
+  private static HttpResponse unaryResponse(XrpcRequest request, Codec codec, Object message) {
+    ByteBuf body = request.alloc().buffer();
+    try {
+      codec.encoder.encode(body, XrpcConstants.DEFAULT_CHARSET.name(), message);
+    } catch (IOException | RuntimeException e) {
+      body.release();
+      return trailersOnly(codec, e);
+    }
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+    setGrpcHeaders(response.headers(), codec);
+    setGrpcStatus(response.trailingHeaders(), GrpcStatus.OK, null);
+    return response;
+  }
+
+  /**
+   * Returns a response which ends a call with the status for the given failure, sent in the headers
+   * since there is no body.
+   */
+  private static HttpResponse trailersOnly(Codec codec, Throwable cause) {
+    GrpcException failure = toGrpcException(cause);
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+    setGrpcHeaders(response.headers(), codec);
+    setGrpcStatus(response.headers(), failure.status(), failure.getMessage());
+    return response;
+  }
+
+  /** Returns the 415 response to a request which isn't a gRPC request xrpc can decode. */
+  private static HttpResponse unsupportedMediaType() {
+    return Recipes.newResponse(
+        HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE,
+        "unsupported gRPC content type",
+        Recipes.ContentType.Text_Plain);
+  }
+
+  private static GrpcException deadlineExceeded() {
+    return new GrpcException(GrpcStatus.DEADLINE_EXCEEDED, "deadline exceeded");
+  }
+
+  private static void setGrpcHeaders(HttpHeaders headers, Codec codec) {
+    headers.set(CONTENT_TYPE, codec.contentType);
+    headers.set(GRPC_ACCEPT_ENCODING, IDENTITY);
+  }
+
+  private static void setGrpcStatus(HttpHeaders headers, GrpcStatus status, String message) {
+    headers.setInt(GRPC_STATUS, status.code());
+    if (message != null) {
+      headers.set(GRPC_MESSAGE, percentEncode(message));
+    }
+  }
+
+  /**
+   * Returns the gRPC status for a failed call. Errors from handlers which aren't {@link
+   * GrpcException}s map from their HTTP status, if they have one, and are otherwise UNKNOWN.
+   */
+  static GrpcException toGrpcException(Throwable cause) {
+    if (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof GrpcException) {
+      return (GrpcException) cause;
+    }
+    if (cause instanceof HttpResponseException) {
+      return new GrpcException(
+          fromHttpStatus(((HttpResponseException) cause).statusCode()), cause.getMessage(), cause);
+    }
+    log.error("Error handling gRPC call", cause);
+    return new GrpcException(GrpcStatus.UNKNOWN, null, cause);
+  }
+
+  /** Maps an HTTP status to a gRPC status, as gRPC clients do for HTTP errors. */
+  private static GrpcStatus fromHttpStatus(int statusCode) {
+    switch (statusCode) {
+      case 400:
+        return GrpcStatus.INVALID_ARGUMENT;
+      case 401:
+        return GrpcStatus.UNAUTHENTICATED;
+      case 403:
+        return GrpcStatus.PERMISSION_DENIED;
+      case 404:
+        return GrpcStatus.NOT_FOUND;
+      case 429:
+        return GrpcStatus.RESOURCE_EXHAUSTED;
+      case 502:
+      case 503:
+      case 504:
+        return GrpcStatus.UNAVAILABLE;
+      default:
+        return GrpcStatus.UNKNOWN;
+    }
+  }
+
+  /**
+   * Percent-encodes a grpc-message: its UTF-8 bytes, except for printable ASCII other than '%', are
+   * sent as %XX.
+   */
+  static String percentEncode(String message) {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    StringBuilder encoded = new StringBuilder(bytes.length);
+    for (byte b : bytes) {
+      if (b >= ' ' && b <= '~' && b != '%') {
+        encoded.append((char) b);
+      } else {
+        encoded.append('%').append(String.format(Locale.ROOT, "%02X", b & 0xff));
+      }
+    }
+    return encoded.toString();
+  }
+
+  /** The content type of a call, and the codec for its messages. */
+  private static final class Codec {
+    /** The content type of the call's responses. */
+    final String contentType;
+
+    /** The decoder for request messages. */
+    final Decoder decoder;
+
+    /** The encoder for response messages, which prefixes each with its length. */
+    final Encoder encoder;
+
+    private Codec(String contentType, Decoder decoder, Encoder encoder) {
+      this.contentType = contentType;
+      this.decoder = decoder;
+      this.encoder = new FramingEncoder(encoder, contentType);
+    }
+
+    /**
+     * Returns the codec for the given request, or null if it isn't a gRPC request, or the server
+     * has no codec for its content subtype. application/grpc is application/grpc+proto.
+     */
+    static Codec of(XrpcRequest request) {
+      CharSequence contentTypeHeader = request.contentTypeHeader();
+      if (contentTypeHeader == null) {
+        return null;
+      }
+      String contentType = contentTypeHeader.toString();
+      int params = contentType.indexOf(';');
+      if (params >= 0) {
+        contentType = contentType.substring(0, params);
+      }
+      contentType = contentType.trim().toLowerCase(Locale.ROOT);
+      String mediaType;
+      if (contentType.equals(GRPC_CONTENT_TYPE)
+          || contentType.equals(GRPC_CONTENT_TYPE + "+proto")) {
+        mediaType = XrpcConstants.PROTO_CONTENT_TYPE;
+      } else if (contentType.startsWith(GRPC_CONTENT_TYPE + "+")) {
+        mediaType = "application/" + contentType.substring(GRPC_CONTENT_TYPE.length() + 1);
+      } else {
+        return null;
+      }
+
+      ServerContext xctx = request.connectionContext();
+      // Both look-ups fall back to a default codec, which may not be the one asked for.
+      Decoder decoder = xctx.decoders().decoder(mediaType);
+      Encoder encoder = xctx.encoders().acceptedEncoder(mediaType);
+      if (!AsciiString.contentEquals(decoder.mediaType(), mediaType)
+          || !AsciiString.contentEquals(encoder.mediaType(), mediaType)) {
+        return null;
+      }
+      return new Codec(contentType, decoder, encoder);
+    }
+  }
+
+  /** Encodes each message with another encoder, preceded by the gRPC message prefix. */
+  private static final class FramingEncoder implements Encoder {
+    private final Encoder messageEncoder;
+    private final String contentType;
+
+    FramingEncoder(Encoder messageEncoder, String contentType) {
+      this.messageEncoder = messageEncoder;
+      this.contentType = contentType;
+    }
+
+    @Override
+    public CharSequence mediaType() {
+      return contentType;
+    }
+
+    @Override
+    public ByteBuf encode(ByteBuf buf, CharSequence acceptCharset, Object object)
+        throws IOException {
+      int start = buf.writerIndex();
+      // Uncompressed, with the length filled in once the message is written.
+      buf.writeByte(0).writeInt(0);
+      try {
+        messageEncoder.encode(buf, acceptCharset, object);
+      } catch (IOException | RuntimeException e) {
+        buf.writerIndex(start);
+        throw e;
+      }
+      buf.setInt(start + 1, buf.writerIndex() - start - PREFIX_LENGTH);
+      return buf;
+    }
+  }
+
+  /** The response to a server-streaming call: its messages, then a status trailer. */
+  private static final class GrpcStreamingResponse extends StreamingResponse {
+    GrpcStreamingResponse(Flow.Publisher<?> responses, Codec codec) {
+      super(HttpResponseStatus.OK, responses, codec.encoder, XrpcConstants.DEFAULT_CHARSET.name());
+      setGrpcHeaders(headers(), codec);
+    }
+
+    @Override
+    HttpHeaders trailers(Throwable cause) {
+      HttpHeaders trailers = new DefaultHttpHeaders();
+      if (cause == null) {
+        setGrpcStatus(trailers, GrpcStatus.OK, null);
+      } else {
+        GrpcException failure = toGrpcException(cause);
+        setGrpcStatus(trailers, failure.status(), failure.getMessage());
+      }
+      return trailers;
+    }
+  }
+
+  /**
+   * Fails a publisher's subscriber with DEADLINE_EXCEEDED, and cancels its subscription, if it
+   * hasn't completed by the deadline. The publisher's signals are delivered on the event loop the
+   * deadline is timed on, in order, so the deadline can't race them; the deadline is only timed
+   * once the subscriber has its subscription.
+   */
+  private static final class DeadlinePublisher<T> implements Flow.Publisher<T> {
+    private final Flow.Publisher<T> publisher;
+    private final EventLoop eventLoop;
+    private final long deadline;
+
+    DeadlinePublisher(Flow.Publisher<T> publisher, EventLoop eventLoop, long deadline) {
+      this.publisher = publisher;
+      this.eventLoop = eventLoop;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+      publisher.subscribe(
+          new Flow.Subscriber<T>() {
+            /** The signals handed to the event loop which haven't run yet. */
+            private final AtomicInteger queued = new AtomicInteger();
+            /** Only accessed on the event loop, as is timer. */
+            private boolean terminated;
+
+            private ScheduledFuture<?> timer;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+              deliver(
+                  () -> {
+                    subscriber.onSubscribe(subscription);
+                    if (!terminated) {
+                      timer =
+                          eventLoop.schedule(
+                              () -> {
+                                if (!terminated) {
+                                  terminated = true;
+                                  subscription.cancel();
+                                  subscriber.onError(deadlineExceeded());
+                                }
+                              },
+                              deadline - System.nanoTime(),
+                              TimeUnit.NANOSECONDS);
+                    }
+                  });
+            }
+
+            @Override
+            public void onNext(T item) {
+              deliver(
+                  () -> {
+                    if (terminated) {
+                      ReferenceCountUtil.release(item);
+                    } else {
+                      subscriber.onNext(item);
+                    }
+                  });
+            }
+
+            @Override
+            public void onError(Throwable cause) {
+              deliver(
+                  () -> {
+                    if (terminate()) {
+                      subscriber.onError(cause);
+                    }
+                  });
+            }
+
+            @Override
+            public void onComplete() {
+              deliver(
+                  () -> {
+                    if (terminate()) {
+                      subscriber.onComplete();
+                    }
+                  });
+            }
+
+            /** Marks the publisher as done, returning false if it already was. */
+            private boolean terminate() {
+              if (terminated) {
+                return false;
+              }
+              terminated = true;
+              if (timer != null) {
+                timer.cancel(false);
+              }
+              return true;
+            }
+
+            /**
+             * Runs the given signal on the event loop: right away if this is the event loop and no
+             * earlier signals are waiting for it, or after them otherwise.
+             */
+            private void deliver(Runnable signal) {
+              if (eventLoop.inEventLoop() && queued.get() == 0) {
+                signal.run();
+                return;
+              }
+              queued.incrementAndGet();
+              eventLoop.execute(
+                  () -> {
+                    queued.decrementAndGet();
+                    signal.run();
+                  });
+            }
+          });
+    }
+  }
+}
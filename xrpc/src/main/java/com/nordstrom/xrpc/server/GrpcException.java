@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * Ends a gRPC call with the given status and message. gRPC handlers throw this (or fail their
+ * response publisher with it) to report an error to the client.
+ */
+@Accessors(fluent = true)
+public class GrpcException extends RuntimeException {
+  /** The status of the call. */
+  @Getter private final GrpcStatus status;
+
+  /**
+   * Construct a GrpcException.
+   *
+   * @param status the status of the call
+   * @param message the message sent to the client in grpc-message, or null to send none
+   */
+  public GrpcException(GrpcStatus status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  /**
+   * Construct a GrpcException with a root cause.
+   *
+   * @param status the status of the call
+   * @param message the message sent to the client in grpc-message, or null to send none
+   * @param cause the cause of this error
+   */
+  public GrpcException(GrpcStatus status, String message, Throwable cause) {
+    super(message, cause);
+    this.status = status;
+  }
+}
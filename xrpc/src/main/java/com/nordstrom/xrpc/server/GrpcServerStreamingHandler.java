@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.io.IOException;
+import java.util.concurrent.Flow;
+
+/**
+ * A handler for a server-streaming gRPC method, which answers a request message with a stream of
+ * response messages. See {@link Routes#grpcServerStreaming(String, Class,
+ * GrpcServerStreamingHandler)}.
+ *
+ * @param <Req> the request message type
+ * @param <Resp> the response message type
+ */
+@FunctionalInterface
+public interface GrpcServerStreamingHandler<Req, Resp> {
+  /**
+   * Returns a publisher of the responses to the given request message. Messages are requested from
+   * the publisher only while the client's flow control window is open. Fail the publisher with a
+   * {@link GrpcException} to end the call with an error status.
+   */
+  Flow.Publisher<Resp> handle(XrpcRequest request, Req message) throws IOException;
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.io.IOException;
+
+/**
+ * A handler for a unary gRPC method, which answers a request message with a response message. See
+ * {@link Routes#grpcUnary(String, Class, GrpcUnaryHandler)}.
+ *
+ * @param <Req> the request message type
+ * @param <Resp> the response message type
+ */
+@FunctionalInterface
+public interface GrpcUnaryHandler<Req, Resp> {
+  /**
+   * Returns the response to the given request message. Throw a {@link GrpcException} to end the
+   * call with an error status.
+   */
+  Resp handle(XrpcRequest request, Req message) throws IOException;
+}
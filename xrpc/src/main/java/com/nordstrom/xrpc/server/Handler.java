@@ -18,9 +18,19 @@ package com.nordstrom.xrpc.server;
 
 import io.netty.handler.codec.http.HttpResponse;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /** A handler for an HTTP route. */
 @FunctionalInterface
 public interface Handler {
   HttpResponse handle(XrpcRequest xrpcRequest) throws IOException;
+
+  /**
+   * Returns a stage which completes with the response to the given request. This is what the server
+   * invokes; for synchronous handlers, the returned stage is already complete.
+   */
+  default CompletionStage<HttpResponse> handleAsync(XrpcRequest xrpcRequest) throws IOException {
+    return CompletableFuture.completedFuture(handle(xrpcRequest));
+  }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs route handlers off of the event loop. Handlers normally run on the event loop thread which
+ * read the request, so a handler which blocks (on JDBC, file IO, etc.) stalls every connection
+ * served by that thread. Routes with blocking handlers should instead be assigned to a handler
+ * executor; the response is written on the channel's event loop once the handler completes.
+ */
+public interface HandlerExecutor {
+  /**
+   * Runs the given handler for the given request, returning a stage which completes with the
+   * handler's response. An overloaded executor may complete the stage with a 503 (service
+   * unavailable) response without running the handler.
+   */
+  CompletionStage<HttpResponse> execute(XrpcRequest request, Handler handler);
+
+  /** Stops accepting requests, and releases this executor's threads once running handlers end. */
+  void shutdown();
+
+  /** Returns a handler executor which runs handlers on the given executor service. */
+  static HandlerExecutor of(ExecutorService executorService) {
+    return new ExecutorServiceHandlerExecutor(executorService);
+  }
+
+  /**
+   * Returns a handler executor which runs each handler on its own virtual thread. On JVMs without
+   * virtual threads, this falls back to an unbounded pool of platform threads.
+   */
+  static HandlerExecutor virtualThreads(String name) {
+    return ExecutorServiceHandlerExecutor.virtualThreads(name);
+  }
+
+  /** Returns a handler executor built from the given configuration. */
+  static HandlerExecutor create(
+      String name, HandlerExecutorConfig config, MetricRegistry metricRegistry) {
+    switch (config.type()) {
+      case VIRTUAL:
+        return virtualThreads(name);
+      case BOUNDED:
+        return new BoundedHandlerExecutor(name, config, metricRegistry);
+      default:
+        throw new IllegalArgumentException("unknown handler executor type " + config.type());
+    }
+  }
+}
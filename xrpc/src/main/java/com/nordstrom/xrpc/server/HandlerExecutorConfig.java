@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.time.Duration;
+import lombok.Builder;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * Configuration for a {@link HandlerExecutor}. See the {@code handler_executors} section of
+ * xrpc.conf for documentation of each value.
+ */
+@Value
+@Accessors(fluent = true)
+@Builder(builderClassName = "Builder")
+public class HandlerExecutorConfig {
+  /** The kinds of handler executor which can be configured. */
+  public enum Type {
+    /** Runs each handler on its own virtual thread. */
+    VIRTUAL,
+    /** Runs handlers on a fixed number of threads, shedding requests which queue too long. */
+    BOUNDED
+  }
+
+  Type type;
+
+  /** The number of threads in a bounded executor. */
+  int threadCount;
+
+  /** The maximum number of requests waiting for a thread in a bounded executor. */
+  int queueSize;
+
+  /** The queueing delay above which a bounded executor is considered overloaded. */
+  Duration targetQueueDelay;
+
+  /** How long queueing delay must stay above the target before a bounded executor sheds load. */
+  Duration queueDelayInterval;
+
+  // This can be generated automatically by lombok, but we declare it here to fix a javadoc warning.
+  // TODO(jkinkead): Remove once we have delombok integrated (issue #160).
+  public static class Builder {}
+}
@@ -16,6 +16,8 @@
 
 package com.nordstrom.xrpc.server;
 
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCEPT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_ENCODING;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
 
@@ -24,23 +26,31 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.nordstrom.xrpc.XrpcConstants;
 import com.nordstrom.xrpc.client.XUrl;
+import com.nordstrom.xrpc.server.http.PriorityClass;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2Error;
 import io.netty.handler.codec.http2.Http2EventAdapter;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.Http2Stream;
 import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.collection.IntObjectHashMap;
 import io.netty.util.collection.IntObjectMap;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -55,18 +65,51 @@ public final class Http2Handler extends Http2EventAdapter {
    * a handler is matched.
    */
   @VisibleForTesting final IntObjectMap<Handler> handlers = new IntObjectHashMap<>();
+  /** Map of stream ID to the streamer writing the stream's response body, while it is written. */
+  private final IntObjectMap<ResponseStreamer> streamers = new IntObjectHashMap<>();
+  /**
+   * Map of stream ID to the request whose spooled uploads are released when the stream closes, once
+   * the response to it has been written.
+   */
+  private final IntObjectMap<XrpcRequest> spooledRequests = new IntObjectHashMap<>();
 
-  /** The encoder to write response data to. */
+  /**
+   * The encoder to write response data to. If responses are compressed, this compresses the DATA
+   * frames of streams whose headers it writes with a gzip or deflate content coding.
+   */
   private final Http2ConnectionEncoder encoder;
 
+  /**
+   * The encoder to write the headers of responses which aren't compressed by this handler, so that
+   * responses which are already encoded aren't compressed again. The same as encoder unless
+   * responses are compressed.
+   */
+  private final Http2ConnectionEncoder uncompressedEncoder;
+
   /** The maximum total data payload to accept. */
   private final int maxPayloadBytes;
 
   /** Helper for a CORS request. */
   private final Http2CorsHandler corsHandler;
 
+  /** True once the flow controller is listening for stream writability changes. */
+  private boolean listeningForWritability;
+
   Http2Handler(Http2ConnectionEncoder encoder, int maxPayloadBytes, Http2CorsHandler corsHandler) {
+    this(encoder, encoder, maxPayloadBytes, corsHandler);
+  }
+
+  /**
+   * Returns a handler which compresses responses with the given encoder, unless it is the same as
+   * uncompressedEncoder.
+   */
+  Http2Handler(
+      Http2ConnectionEncoder encoder,
+      Http2ConnectionEncoder uncompressedEncoder,
+      int maxPayloadBytes,
+      Http2CorsHandler corsHandler) {
     this.encoder = encoder;
+    this.uncompressedEncoder = uncompressedEncoder;
     this.maxPayloadBytes = maxPayloadBytes;
     this.corsHandler = corsHandler;
 
@@ -83,18 +126,54 @@ public final class Http2Handler extends Http2EventAdapter {
     }
   }
 
+  /** Adds the CORS headers and the configured Alt-Svc header, if any, to response headers. */
+  private void outbound(ChannelHandlerContext ctx, Http2Headers headers) {
+    corsHandler.outbound(headers);
+    String altSvc = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get().altSvc();
+    if (altSvc != null) {
+      headers.set(XrpcConstants.ALT_SVC_HEADER, altSvc);
+    }
+  }
+
   /**
    * Writes the given response data to the given stream. Closes the stream after writing the
    * response.
+   *
+   * @param headersEncoder the encoder to write the headers with, which determines whether the body
+   *     is compressed
    */
   private void writeResponse(
       final ChannelHandlerContext ctx,
       final int streamId,
+      Http2ConnectionEncoder headersEncoder,
       Http2Headers headers,
       Optional<ByteBuf> bodyOpt) {
-    corsHandler.outbound(headers);
-    encoder.writeHeaders(ctx, streamId, headers, 0, !bodyOpt.isPresent(), ctx.newPromise());
-    bodyOpt.ifPresent(body -> encoder.writeData(ctx, streamId, body, 0, true, ctx.newPromise()));
+    writeResponse(ctx, streamId, headersEncoder, headers, bodyOpt, null);
+  }
+
+  /**
+   * Writes the given response data to the given stream, followed by the given trailers unless they
+   * are null. Closes the stream after writing the response.
+   *
+   * @param headersEncoder the encoder to write the headers with, which determines whether the body
+   *     is compressed
+   */
+  private void writeResponse(
+      final ChannelHandlerContext ctx,
+      final int streamId,
+      Http2ConnectionEncoder headersEncoder,
+      Http2Headers headers,
+      Optional<ByteBuf> bodyOpt,
+      final Http2Headers trailers) {
+    outbound(ctx, headers);
+    boolean hasTrailers = trailers != null;
+    headersEncoder.writeHeaders(
+        ctx, streamId, headers, 0, !bodyOpt.isPresent() && !hasTrailers, ctx.newPromise());
+    bodyOpt.ifPresent(
+        body -> encoder.writeData(ctx, streamId, body, 0, !hasTrailers, ctx.newPromise()));
+    if (hasTrailers) {
+      encoder.writeHeaders(ctx, streamId, trailers, 0, true, ctx.newPromise());
+    }
   }
 
   /**
@@ -102,20 +181,88 @@ public final class Http2Handler extends Http2EventAdapter {
    * the stream after writing the response.
    */
   private void writeResponse(ChannelHandlerContext ctx, int streamId, HttpResponse h1Response) {
+    writeResponse(ctx, streamId, h1Response, null);
+  }
+
+  /**
+   * Writes the given HTTP/1 response to the given stream, compressing its body if the request's
+   * Accept-Encoding header allows it. Marks the response status metric. Closes the stream after
+   * writing the response.
+   *
+   * @param request the request being answered, or null to send the body as is
+   */
+  private void writeResponse(
+      ChannelHandlerContext ctx, int streamId, HttpResponse h1Response, XrpcRequest request) {
     markResponseStatus(ctx, h1Response.status());
 
-    // Convert and validate headers.
-    Http2Headers headers = HttpConversionUtil.toHttp2Headers(h1Response, true);
+    CharSequence coding = null;
+    if (request != null && !request.uncompressedResponse() && encoder != uncompressedEncoder) {
+      ServerContext xctx = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get();
+      if (ResponseCompression.isCompressible(h1Response, xctx.responseCompressionMinBytes())) {
+        coding = ResponseCompression.negotiate(request.header(ACCEPT_ENCODING));
+      }
+    }
+
+    Http2Headers headers = Http2ResponseHeaders.of(h1Response);
+    // Headers written with a content coding through the compressing encoder have their body
+    // compressed; other responses, including those already encoded, are written as they are.
+    Http2ConnectionEncoder headersEncoder = uncompressedEncoder;
+    if (coding != null) {
+      // The body is compressed as it is written, so its length isn't known up front.
+      headers.set(CONTENT_ENCODING, coding);
+      headers.remove(CONTENT_LENGTH);
+      headersEncoder = encoder;
+    }
+
+    if (h1Response instanceof StreamingResponse) {
+      outbound(ctx, headers);
+      headersEncoder.writeHeaders(ctx, streamId, headers, 0, false, ctx.newPromise());
+      startStreaming(ctx, streamId, (StreamingResponse) h1Response);
+      return;
+    }
 
     Optional<ByteBuf> body = Optional.empty();
+    Http2Headers trailers = null;
     if (h1Response instanceof FullHttpResponse) {
       ByteBuf content = ((FullHttpResponse) h1Response).content();
       if (content.readableBytes() > 0) {
         body = Optional.of(content);
       }
+      HttpHeaders trailingHeaders = ((FullHttpResponse) h1Response).trailingHeaders();
+      if (!trailingHeaders.isEmpty()) {
+        trailers = HttpConversionUtil.toHttp2Headers(trailingHeaders, false);
+      }
     }
 
-    writeResponse(ctx, streamId, headers, body);
+    writeResponse(ctx, streamId, headersEncoder, headers, body, trailers);
+  }
+
+  /**
+   * Starts streaming the body of a response as DATA frames, once its headers have been written. The
+   * body is only produced while the stream is writable: while the client's flow control windows are
+   * open, and the connection is writable.
+   */
+  private void startStreaming(ChannelHandlerContext ctx, int streamId, StreamingResponse response) {
+    if (!listeningForWritability) {
+      listeningForWritability = true;
+      encoder
+          .flowController()
+          .listener(
+              stream -> {
+                ResponseStreamer streamer = streamers.get(stream.id());
+                if (streamer != null && encoder.flowController().isWritable(stream)) {
+                  streamer.pump();
+                }
+              });
+    }
+    ResponseStreamer streamer =
+        new ResponseStreamer(
+            response,
+            ctx.channel(),
+            new DataFrameSink(ctx, streamId),
+            () -> streamers.remove(streamId));
+    streamers.put(streamId, streamer);
+    streamer.start();
   }
 
   /**
@@ -136,7 +283,114 @@ public final class Http2Handler extends Http2EventAdapter {
     headers.setInt(CONTENT_LENGTH, body.readableBytes());
     headers.status(status.codeAsText());
 
-    writeResponse(ctx, streamId, headers, Optional.of(body));
+    writeResponse(ctx, streamId, uncompressedEncoder, headers, Optional.of(body));
+  }
+
+  /**
+   * Invokes the handler for a complete request, and writes its response to the given stream. A
+   * response which is already available is written immediately, and flushed along with the rest of
+   * the current read. A response which completes later is written and flushed on the event loop,
+   * unless the stream has been closed (for example, reset by the client) in the meantime.
+   */
+  private void handleRequest(
+      ChannelHandlerContext ctx, int streamId, Handler handler, XrpcRequest request) {
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    try {
+      ClientFilter.handleAsync(handler, request)
+          .whenComplete(
+              (result, cause) -> {
+                if (cause != null) {
+                  response.completeExceptionally(cause);
+                } else {
+                  response.complete(result);
+                }
+              });
+    } catch (IOException e) {
+      response.completeExceptionally(e);
+    }
+
+    if (response.isDone()) {
+      writeHandlerResponse(ctx, streamId, request, response);
+      releaseUploadsOnClose(streamId, request);
+      discardBody(request);
+      return;
+    }
+
+    response.whenComplete(
+        (result, cause) ->
+            ctx.executor()
+                .execute(
+                    () -> {
+                      if (encoder.connection().stream(streamId) == null) {
+                        // The stream was reset or the connection closed; drop the response.
+                        if (result instanceof StreamingResponse) {
+                          ((StreamingResponse) result).cancel();
+                        } else {
+                          ReferenceCountUtil.release(result);
+                        }
+                      } else {
+                        writeHandlerResponse(ctx, streamId, request, response);
+                        flush(ctx);
+                      }
+                      releaseUploadsOnClose(streamId, request);
+                      discardBody(request);
+                    }));
+  }
+
+  /**
+   * Flushes the frames written outside of a read. The given context is the connection handler's
+   * own, so flushing it skips the connection handler, which would otherwise write the DATA frames
+   * held by the remote flow controller; those are written here first.
+   */
+  private void flush(ChannelHandlerContext ctx) {
+    try {
+      encoder.flowController().writePendingBytes();
+    } catch (Http2Exception e) {
+      ctx.fireExceptionCaught(e);
+    }
+    ctx.flush();
+  }
+
+  /**
+   * Releases the uploads spooled from the given request's body, if any, once its stream is closed:
+   * after the response has been written in full, or the stream has been reset.
+   */
+  private void releaseUploadsOnClose(int streamId, XrpcRequest request) {
+    if (!request.hasUploads()) {
+      return;
+    }
+    if (encoder.connection().stream(streamId) == null) {
+      request.releaseUploads();
+    } else {
+      spooledRequests.put(streamId, request);
+    }
+  }
+
+  /**
+   * Discards any of a streamed request body which is still unread, since it can no longer affect
+   * the response.
+   */
+  private static void discardBody(XrpcRequest request) {
+    if (request.streamingBody() != null) {
+      request.streamingBody().discard();
+    }
+  }
+
+  /** Writes the response from a completed handler future to the given stream. */
+  private void writeHandlerResponse(
+      ChannelHandlerContext ctx,
+      int streamId,
+      XrpcRequest request,
+      CompletableFuture<HttpResponse> response) {
+    try {
+      writeResponse(ctx, streamId, response.join(), request);
+    } catch (CompletionException e) {
+      log.error("Error in handling Route", e.getCause());
+      // Error
+      ByteBuf buf = ctx.channel().alloc().directBuffer();
+      buf.writeBytes("Error executing endpoint".getBytes(XrpcConstants.DEFAULT_CHARSET));
+      writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
+    }
   }
 
   @Override
@@ -145,6 +399,11 @@ public final class Http2Handler extends Http2EventAdapter {
 
     XrpcRequest request = requests.get(streamId);
 
+    StreamingBody streamingBody = request.streamingBody();
+    if (streamingBody != null) {
+      return onStreamingDataRead(ctx, streamId, streamingBody, data, padding, endOfStream);
+    }
+
     int totalRead = request.addData(data);
     int processed = data.readableBytes() + padding;
     if (totalRead > maxPayloadBytes) {
@@ -154,7 +413,7 @@ public final class Http2Handler extends Http2EventAdapter {
           streamId,
           HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
           Unpooled.wrappedBuffer(XrpcConstants.PAYLOAD_EXCEEDED_RESPONSE));
-      ctx.flush();
+      flush(ctx);
       ctx.close();
       return processed;
     }
@@ -167,22 +426,42 @@ public final class Http2Handler extends Http2EventAdapter {
         return processed;
       }
 
-      Handler handler = handlers.get(streamId);
-      try {
-        HttpResponse response = handler.handle(request);
-        writeResponse(ctx, streamId, response);
-        return processed;
-      } catch (IOException e) {
-        log.error("Error in handling Route", e);
-        // Error
-        ByteBuf buf = ctx.channel().alloc().directBuffer();
-        buf.writeBytes("Error executing endpoint".getBytes(XrpcConstants.DEFAULT_CHARSET));
-        writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
-      }
+      handleRequest(ctx, streamId, handlers.get(streamId), request);
     }
     return processed;
   }
 
+  /**
+   * Passes data read for a request with a streaming body to the body's subscriber. Only the padding
+   * is returned to the client's flow control window immediately; the data is returned as the
+   * subscriber consumes it, so a client can send no more than a window ahead of the subscriber.
+   */
+  private int onStreamingDataRead(
+      ChannelHandlerContext ctx,
+      int streamId,
+      StreamingBody body,
+      ByteBuf data,
+      int padding,
+      boolean endOfStream) {
+    long totalRead = body.onData(data.retain());
+    if (totalRead > body.maxBytes()) {
+      // Close request & channel to prevent overflow.
+      writeResponse(
+          ctx,
+          streamId,
+          HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          Unpooled.wrappedBuffer(XrpcConstants.PAYLOAD_EXCEEDED_RESPONSE));
+      flush(ctx);
+      ctx.close();
+      return padding;
+    }
+
+    if (endOfStream) {
+      body.onComplete();
+    }
+    return padding;
+  }
+
   @Override
   public void onHeadersRead(
       ChannelHandlerContext ctx,
@@ -190,6 +469,41 @@ public final class Http2Handler extends Http2EventAdapter {
       Http2Headers headers,
       int padding,
       boolean endOfStream) {
+    onHeadersRead(ctx, streamId, headers, padding, endOfStream, false);
+  }
+
+  @Override
+  public void onHeadersRead(
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int streamDependency,
+      short weight,
+      boolean exclusive,
+      int padding,
+      boolean endOfStream) {
+    // The decoder has already applied the priority to the stream. HEADERS without a priority are
+    // passed here with the default one, which leaves the route to set the stream's weight.
+    boolean clientPriority =
+        streamDependency != Http2CodecUtil.CONNECTION_STREAM_ID
+            || weight != Http2CodecUtil.DEFAULT_PRIORITY_WEIGHT
+            || exclusive;
+    onHeadersRead(ctx, streamId, headers, padding, endOfStream, clientPriority);
+  }
+
+  /**
+   * Handles the headers of a request, or the trailers of a request with a body.
+   *
+   * @param clientPriority true if the client set the stream's priority, which then takes precedence
+   *     over the matched route's priority class
+   */
+  private void onHeadersRead(
+      ChannelHandlerContext ctx,
+      int streamId,
+      Http2Headers headers,
+      int padding,
+      boolean endOfStream,
+      boolean clientPriority) {
 
     Channel channel = ctx.channel();
     ServerContext xctx = channel.attr(ServerContext.ATTRIBUTE_KEY).get();
@@ -201,6 +515,7 @@ public final class Http2Handler extends Http2EventAdapter {
     // Mark the request counter if this is a new stream.
     if (request == null) {
       xctx.requestMeter().mark();
+      xctx.http2RequestMeter().mark();
     }
 
     // Rate limit if requested.
@@ -213,6 +528,17 @@ public final class Http2Handler extends Http2EventAdapter {
       return;
     }
 
+    // Determine the route for a new stream; its request body may be limited to the upload size.
+    CompiledRoutes.Match match = null;
+    long maxBytes = maxPayloadBytes;
+    if (request == null) {
+      String path = getPathFromHeaders(headers);
+      match = xctx.routes().match(path, headers.method().toString());
+      if (match.isSpooledBody()) {
+        maxBytes = xctx.uploadMaxBytes();
+      }
+    }
+
     // Check content-length and short-circuit the channel if it's too big.
     long contentLength = 0;
     try {
@@ -222,14 +548,14 @@ public final class Http2Handler extends Http2EventAdapter {
       // This isn't supposed to happen, but does; see https://github.com/netty/netty/issues/7710 .
     }
 
-    if (contentLength > maxPayloadBytes) {
+    if (contentLength > maxBytes) {
       // Friendly short-circuit if someone intends to send us a huge payload.
       writeResponse(
           ctx,
           streamId,
           HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
           Unpooled.wrappedBuffer(XrpcConstants.PAYLOAD_EXCEEDED_RESPONSE));
-      ctx.flush();
+      flush(ctx);
       ctx.close();
       return;
     }
@@ -238,11 +564,41 @@ public final class Http2Handler extends Http2EventAdapter {
     // in our handler map.
     Handler handler;
     if (request == null) {
-      // Determine the handler for the request's path.
-      String path = getPathFromHeaders(headers);
-      CompiledRoutes.Match match = xctx.routes().match(path, headers.method().toString());
-      request = new XrpcRequest(headers, xctx, match.getGroups(), channel);
       handler = match.getHandler();
+      if (!clientPriority) {
+        prioritize(streamId, match.getPriority());
+      }
+      if (match.isStreamingBody()) {
+        StreamingBody body =
+            new StreamingBody(ctx.executor(), new StreamFlowControl(ctx, streamId), maxBytes);
+        request = new XrpcRequest(headers, xctx, match.getGroups(), channel, body);
+        request.uncompressedResponse(match.isUncompressed());
+        if (endOfStream) {
+          body.onComplete();
+        } else {
+          // Invoke the handler now, and pass it the body as it arrives.
+          requests.put(streamId, request);
+          handlers.put(streamId, handler);
+          Optional<HttpResponse> corsResponse = corsHandler.inbound(headers, streamId);
+          if (corsResponse.isPresent()) {
+            writeResponse(ctx, streamId, corsResponse.get());
+            body.discard();
+          } else {
+            handleRequest(ctx, streamId, handler, request);
+          }
+          return;
+        }
+      } else {
+        request = new XrpcRequest(headers, xctx, match.getGroups(), channel);
+        request.uncompressedResponse(match.isUncompressed());
+      }
+    } else if (request.streamingBody() != null) {
+      // Trailers end a streamed body; the handler has already been invoked.
+      request.h2Headers().add(headers);
+      if (endOfStream) {
+        request.streamingBody().onComplete();
+      }
+      return;
     } else {
       // Add the new headers to the request.
       request.h2Headers().add(headers);
@@ -259,17 +615,7 @@ public final class Http2Handler extends Http2EventAdapter {
         return;
       }
 
-      try {
-        HttpResponse response = handler.handle(request);
-
-        writeResponse(ctx, streamId, response);
-      } catch (IOException e) {
-        log.error("Error in handling Route", e);
-        // Error
-        ByteBuf buf = channel.alloc().directBuffer();
-        buf.writeBytes("Error executing endpoint".getBytes(XrpcConstants.DEFAULT_CHARSET));
-        writeResponse(ctx, streamId, HttpResponseStatus.INTERNAL_SERVER_ERROR, buf);
-      }
+      handleRequest(ctx, streamId, handler, request);
     } else {
       // Save request & handler to use when the stream is ended.
       // Note that per the HTTP/2 protocol, endOfStream MUST have been set if this is a
@@ -279,18 +625,17 @@ public final class Http2Handler extends Http2EventAdapter {
     }
   }
 
-  @Override
-  public void onHeadersRead(
-      ChannelHandlerContext ctx,
-      int streamId,
-      Http2Headers headers,
-      int streamDependency,
-      short weight,
-      boolean exclusive,
-      int padding,
-      boolean endOfStream) {
-    // Ignore stream priority.
-    onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+  /**
+   * Weights a stream's response by the given route priority class, relative to the connection's
+   * other streams. The client may still reprioritize the stream with a PRIORITY frame.
+   */
+  private void prioritize(int streamId, PriorityClass priority) {
+    if (priority.weight() != Http2CodecUtil.DEFAULT_PRIORITY_WEIGHT) {
+      encoder
+          .flowController()
+          .updateDependencyTree(
+              streamId, Http2CodecUtil.CONNECTION_STREAM_ID, priority.weight(), false);
+    }
   }
 
   static String getPathFromHeaders(Http2Headers headers) {
@@ -298,11 +643,107 @@ public final class Http2Handler extends Http2EventAdapter {
     return XUrl.path(uri);
   }
 
-  /** Removes all requests and handlers for a given stream. */
+  /**
+   * Removes all requests, handlers and response streamers for a given stream, and releases the
+   * uploads of its request.
+   */
   @Override
   public void onStreamRemoved(Http2Stream stream) {
     int id = stream.id();
-    requests.remove(id);
+    XrpcRequest request = requests.remove(id);
     handlers.remove(id);
+    ResponseStreamer streamer = streamers.remove(id);
+    if (streamer != null) {
+      streamer.cancel();
+    }
+    XrpcRequest spooledRequest = spooledRequests.remove(id);
+    if (spooledRequest != null) {
+      spooledRequest.releaseUploads();
+    }
+    if (request != null && request.streamingBody() != null) {
+      request
+          .streamingBody()
+          .fail(new IOException("stream closed before the request body was complete"));
+      request.streamingBody().discard();
+    }
+  }
+
+  /**
+   * Flow control for a streamed request body: data is returned to the client's flow control window
+   * only once it has been passed to the body's subscriber.
+   */
+  private class StreamFlowControl implements StreamingBody.FlowControl {
+    private final ChannelHandlerContext ctx;
+    private final int streamId;
+
+    StreamFlowControl(ChannelHandlerContext ctx, int streamId) {
+      this.ctx = ctx;
+      this.streamId = streamId;
+    }
+
+    @Override
+    public void consumed(int bytes) {
+      Http2Stream stream = encoder.connection().stream(streamId);
+      if (stream == null || bytes == 0) {
+        // Closed streams have their unconsumed bytes returned to the connection window already.
+        return;
+      }
+      try {
+        if (encoder.connection().local().flowController().consumeBytes(stream, bytes)) {
+          ctx.flush();
+        }
+      } catch (Http2Exception e) {
+        ctx.fireExceptionCaught(e);
+      }
+    }
+
+    @Override
+    public void paused(boolean paused) {
+      // Withholding WINDOW_UPDATEs in consumed() is what pauses the client.
+    }
+  }
+
+  /** Writes the body of a streaming response as DATA frames on a stream. */
+  private class DataFrameSink implements ResponseStreamer.Sink {
+    private final ChannelHandlerContext ctx;
+    private final int streamId;
+
+    DataFrameSink(ChannelHandlerContext ctx, int streamId) {
+      this.ctx = ctx;
+      this.streamId = streamId;
+    }
+
+    @Override
+    public boolean isWritable() {
+      Http2Stream stream = encoder.connection().stream(streamId);
+      return stream != null && encoder.flowController().isWritable(stream);
+    }
+
+    @Override
+    public void write(ByteBuf chunk, boolean end) {
+      encoder.writeData(ctx, streamId, chunk, 0, end, ctx.newPromise());
+    }
+
+    @Override
+    public void flush() {
+      Http2Handler.this.flush(ctx);
+    }
+
+    @Override
+    public void writeTrailers(HttpHeaders trailers) {
+      encoder.writeHeaders(
+          ctx,
+          streamId,
+          HttpConversionUtil.toHttp2Headers(trailers, false),
+          0,
+          true,
+          ctx.newPromise());
+    }
+
+    @Override
+    public void abort(Throwable cause) {
+      encoder.writeRstStream(ctx, streamId, Http2Error.INTERNAL_ERROR.code(), ctx.newPromise());
+      Http2Handler.this.flush(ctx);
+    }
   }
 }
@@ -16,13 +16,30 @@
 
 package com.nordstrom.xrpc.server;
 
+import com.codahale.metrics.Histogram;
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpScheme;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http2.AbstractHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.CompressorHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
 import io.netty.handler.codec.http2.Http2ConnectionDecoder;
 import io.netty.handler.codec.http2.Http2ConnectionEncoder;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2FrameListener;
 import io.netty.handler.codec.http2.Http2FrameLogger;
+import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.codec.http2.WeightedFairQueueByteDistributor;
 import io.netty.handler.logging.LogLevel;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +54,22 @@ public final class Http2HandlerBuilder
 
   private Http2CorsHandler corsHandler;
 
+  private boolean compressResponses;
+
+  private int compressionLevel = CompressorHttp2ConnectionEncoder.DEFAULT_COMPRESSION_LEVEL;
+
+  private boolean decompressRequests;
+
+  private Map<String, CompressionDictionary> compressionDictionaries = ImmutableMap.of();
+
+  private int connectionWindowSize = Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+
+  private boolean bdpAutotuning;
+
+  private int maxWindowSize;
+
+  private Histogram windowSizes;
+
   public Http2HandlerBuilder() {
     if (FRAME_LOGGER.isDebugEnabled()) {
       frameLogger(new Http2FrameLogger(LogLevel.DEBUG, FRAME_LOGGER_NAME));
@@ -53,9 +86,83 @@ public final class Http2HandlerBuilder
     return this;
   }
 
-  // Override build() to make public.
+  /**
+   * If true, response bodies are compressed with gzip or deflate when the client accepts it. See
+   * {@link ResponseCompression}.
+   */
+  public Http2HandlerBuilder compressResponses(boolean compressResponses) {
+    this.compressResponses = compressResponses;
+    return this;
+  }
+
+  /** Sets the zlib compression level for responses, from 1 (fastest) to 9 (smallest). */
+  public Http2HandlerBuilder compressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+    return this;
+  }
+
+  /**
+   * If true, request bodies with a gzip or deflate content coding are decompressed before they're
+   * passed to handlers; the maximum payload then applies to the decompressed size.
+   */
+  public Http2HandlerBuilder decompressRequests(boolean decompressRequests) {
+    this.decompressRequests = decompressRequests;
+    return this;
+  }
+
+  /**
+   * Sets the dictionaries request bodies may be compressed with, by id. Only used if requests are
+   * decompressed.
+   */
+  public Http2HandlerBuilder compressionDictionaries(
+      Map<String, CompressionDictionary> compressionDictionaries) {
+    this.compressionDictionaries = compressionDictionaries;
+    return this;
+  }
+
+  // Override initialSettings() to make public.
+  @Override
+  public Http2HandlerBuilder initialSettings(Http2Settings settings) {
+    return super.initialSettings(settings);
+  }
+
+  /**
+   * Sets the size of the connection flow control window, which is shared by all of a connection's
+   * streams. The stream window is set with {@link #initialSettings(Http2Settings)}.
+   */
+  public Http2HandlerBuilder connectionWindowSize(int connectionWindowSize) {
+    this.connectionWindowSize = connectionWindowSize;
+    return this;
+  }
+
+  /**
+   * If enabled is true, the connection and stream flow control windows are grown to fit the
+   * connection's bandwidth-delay product, up to maxWindowSize. See {@link BdpFrameListener}.
+   *
+   * @param windowSizes the histogram to record the window sizes chosen in
+   */
+  public Http2HandlerBuilder bdpAutotuning(
+      boolean enabled, int maxWindowSize, Histogram windowSizes) {
+    this.bdpAutotuning = enabled;
+    this.maxWindowSize = maxWindowSize;
+    this.windowSizes = windowSizes;
+    return this;
+  }
+
+  // Override build() to make public, and to share the connection among streams by weight.
   @Override
   public Http2ConnectionHandler build() {
+    if (connection() == null && decoder() == null) {
+      // Route priority classes and client priorities are both applied as stream weights, which
+      // only a weighted fair queue honors when streams compete for the connection.
+      Http2Connection connection = new DefaultHttp2Connection(isServer(), maxReservedStreams());
+      connection
+          .remote()
+          .flowController(
+              new DefaultHttp2RemoteFlowController(
+                  connection, new WeightedFairQueueByteDistributor(connection)));
+      connection(connection);
+    }
     return super.build();
   }
 
@@ -65,19 +172,90 @@ public final class Http2HandlerBuilder
       Http2ConnectionEncoder encoder,
       Http2Settings initialSettings) {
 
-    // TODO(jkinkead): Set MAX_CONCURRENT_STREAMS value to something from config.
-    decoder.frameListener(new Http2Handler(encoder, maxPayloadBytes, corsHandler));
+    Http2ConnectionEncoder connectionEncoder = encoder;
+    if (compressResponses) {
+      // Compresses the DATA frames of streams whose headers are written with a content coding.
+      connectionEncoder =
+          new CompressorHttp2ConnectionEncoder(
+              encoder,
+              compressionLevel,
+              CompressorHttp2ConnectionEncoder.DEFAULT_WINDOW_BITS,
+              CompressorHttp2ConnectionEncoder.DEFAULT_MEM_LEVEL);
+    }
 
-    return new ConnectionHandler(decoder, encoder, initialSettings);
+    Http2FrameListener listener =
+        new Http2Handler(connectionEncoder, encoder, maxPayloadBytes, corsHandler);
+    if (decompressRequests) {
+      // Each DATA frame is decompressed as it is read, and the handler counts the decompressed
+      // bytes against the maximum payload.
+      listener =
+          new DictionaryDecompressorFrameListener(
+              decoder.connection(), listener, compressionDictionaries);
+    }
+    if (bdpAutotuning) {
+      // Outermost, so that it counts the bytes read before they're decompressed.
+      Integer streamWindowSize = initialSettings.initialWindowSize();
+      listener =
+          new BdpFrameListener(
+              listener,
+              decoder.connection(),
+              connectionEncoder,
+              decoder.flowController(),
+              connectionWindowSize,
+              streamWindowSize == null ? Http2CodecUtil.DEFAULT_WINDOW_SIZE : streamWindowSize,
+              maxWindowSize,
+              windowSizes);
+    }
+    decoder.frameListener(listener);
+
+    return new ConnectionHandler(decoder, connectionEncoder, initialSettings, connectionWindowSize);
   }
 
-  /** Trivial extension of Http2ConnectionHandler to expose a public constructor. */
+  /**
+   * Extension of Http2ConnectionHandler to expose a public constructor, to set the connection
+   * window size, and to handle the request which upgraded a cleartext HTTP/1.1 connection.
+   */
   private static class ConnectionHandler extends Http2ConnectionHandler {
+    private final int connectionWindowSize;
+
     ConnectionHandler(
         Http2ConnectionDecoder decoder,
         Http2ConnectionEncoder encoder,
-        Http2Settings initialSettings) {
+        Http2Settings initialSettings,
+        int connectionWindowSize) {
       super(decoder, encoder, initialSettings);
+      this.connectionWindowSize = connectionWindowSize;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+      super.handlerAdded(ctx);
+      // Unlike stream windows, the connection window can't be set with SETTINGS; it starts at the
+      // default size, and is grown with a WINDOW_UPDATE.
+      int increment = connectionWindowSize - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+      if (increment > 0) {
+        decoder().flowController().incrementWindowSize(connection().connectionStream(), increment);
+        ctx.flush();
+      }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+        // The upgrade opened stream 1, half-closed, for the upgrade request; pass its headers to
+        // the listener as though they had been read as a HEADERS frame. Upgrade requests never
+        // have a body (see Http2OrHttpHandler).
+        FullHttpRequest request = ((HttpServerUpgradeHandler.UpgradeEvent) evt).upgradeRequest();
+        // The upgrade only happens on cleartext connections, so the scheme is always http.
+        request
+            .headers()
+            .set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), HttpScheme.HTTP.name());
+        Http2Headers headers = HttpConversionUtil.toHttp2Headers(request, true);
+        decoder()
+            .frameListener()
+            .onHeadersRead(ctx, Http2CodecUtil.HTTP_UPGRADE_STREAM_ID, headers, 0, true);
+      }
+      super.userEventTriggered(ctx, evt);
     }
   }
 }
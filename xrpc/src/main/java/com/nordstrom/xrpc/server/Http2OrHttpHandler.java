@@ -16,16 +16,27 @@
 
 package com.nordstrom.xrpc.server;
 
+import com.nordstrom.xrpc.encoding.DictionaryContentDecompressor;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.cors.CorsConfig;
 import io.netty.handler.codec.http.cors.CorsHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.AttributeKey;
+import java.util.Collection;
 
 @ChannelHandler.Sharable
 public class Http2OrHttpHandler extends ApplicationProtocolNegotiationHandler {
@@ -51,23 +62,41 @@ public class Http2OrHttpHandler extends ApplicationProtocolNegotiationHandler {
 
     if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
       ChannelPipeline cp = ctx.pipeline();
-      cp.addLast(
-          "codec",
-          new Http2HandlerBuilder()
-              .maxPayloadBytes(maxPayloadBytes)
-              .corsHandler(new Http2CorsHandler(corsConfig))
-              .build());
+      cp.addLast("codec", newHttp2Handler());
       return;
     }
 
     if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
       ChannelPipeline cp = ctx.pipeline();
-      cp.addLast("codec", new HttpServerCodec());
-      cp.addLast("aggregator", new HttpObjectAggregator(maxPayloadBytes));
+      cp.addLast(
+          "codec", xctx.http1FastCodec() ? new FastHttpServerCodec() : new HttpServerCodec());
+      if (xctx.responseCompression()) {
+        cp.addLast(
+            "compressor",
+            new ResponseCompressor(
+                xctx.responseCompressionLevel(), xctx.responseCompressionMinBytes()));
+      }
+      boolean webSockets = xctx.routes().hasWebSocketRoutes();
+      if (webSockets && xctx.webSocketCompression()) {
+        // Negotiates permessage-deflate during the WebSocket handshake.
+        cp.addLast("webSocketCompression", new WebSocketServerCompressionHandler());
+      }
+      cp.addLast("keepAlive", new HttpServerKeepAliveHandler());
+      if (xctx.requestDecompression()) {
+        // Decompresses before aggregating, so that the payload limit applies to the decompressed
+        // body. Each chunk is decompressed as it is read, so a small compressed body can't inflate
+        // into more than the codec's maximum chunk size times the compression ratio at once.
+        cp.addLast(
+            "decompressor", new DictionaryContentDecompressor(xctx.compressionDictionaries()));
+      }
+      cp.addLast("aggregator", new RequestAggregator(maxPayloadBytes));
 
       if (corsConfig.isCorsSupportEnabled()) {
         cp.addLast("cors", new CorsHandler(corsConfig));
       }
+      if (webSockets) {
+        cp.addLast("webSocketUpgrade", new WebSocketUpgradeHandler(maxPayloadBytes));
+      }
       // cp.addLast("authHandler", new NoOpHandler()); // TODO(JR): OAuth2.0 Impl needed
       cp.addLast("routingFilter", router);
       return;
@@ -75,4 +104,85 @@ public class Http2OrHttpHandler extends ApplicationProtocolNegotiationHandler {
 
     throw new IllegalStateException("unknown protocol: " + protocol);
   }
+
+  /**
+   * Configures the pipeline of a cleartext connection: HTTP/2 if the client started with the HTTP/2
+   * connection preface (prior knowledge), and otherwise HTTP/1.1, which the client may upgrade to
+   * HTTP/2 with "Upgrade: h2c".
+   */
+  void configureCleartextPipeline(ChannelHandlerContext ctx, boolean priorKnowledge)
+      throws Exception {
+    if (priorKnowledge) {
+      configurePipeline(ctx, ApplicationProtocolNames.HTTP_2);
+      return;
+    }
+
+    configurePipeline(ctx, ApplicationProtocolNames.HTTP_1_1);
+    ChannelPipeline cp = ctx.pipeline();
+    cp.addAfter(
+        "codec",
+        "h2cUpgrade",
+        new HttpServerUpgradeHandler(
+            (HttpServerUpgradeHandler.SourceCodec) cp.get("codec"),
+            protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                    ? new H2cUpgradeCodec(newHttp2Handler())
+                    : null,
+            maxPayloadBytes));
+  }
+
+  private Http2ConnectionHandler newHttp2Handler() {
+    return new Http2HandlerBuilder()
+        .maxPayloadBytes(maxPayloadBytes)
+        .corsHandler(new Http2CorsHandler(corsConfig))
+        .compressResponses(xctx.responseCompression())
+        .compressionLevel(xctx.responseCompressionLevel())
+        .decompressRequests(xctx.requestDecompression())
+        .compressionDictionaries(xctx.compressionDictionaries())
+        .initialSettings(new Http2Settings().copyFrom(xctx.http2Settings()))
+        .connectionWindowSize(xctx.http2ConnectionWindowSize())
+        .bdpAutotuning(
+            xctx.http2BdpAutotuning(), xctx.http2MaxWindowSize(), xctx.http2WindowSizes())
+        .build();
+  }
+
+  /**
+   * Upgrades a cleartext HTTP/1.1 connection to HTTP/2. The HTTP/1.1 handlers after the upgrade
+   * handler are replaced by the HTTP/2 connection handler, which answers the upgrade request as
+   * stream 1.
+   */
+  private static class H2cUpgradeCodec implements HttpServerUpgradeHandler.UpgradeCodec {
+    private final Http2ConnectionHandler http2Handler;
+    private final Http2ServerUpgradeCodec upgradeCodec;
+
+    H2cUpgradeCodec(Http2ConnectionHandler http2Handler) {
+      this.http2Handler = http2Handler;
+      this.upgradeCodec = new Http2ServerUpgradeCodec("codec", http2Handler);
+    }
+
+    @Override
+    public Collection<CharSequence> requiredUpgradeHeaders() {
+      return upgradeCodec.requiredUpgradeHeaders();
+    }
+
+    @Override
+    public boolean prepareUpgradeResponse(
+        ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, HttpHeaders upgradeHeaders) {
+      // Stream 1 is handled from the upgrade request's headers alone, so a request with a body is
+      // served over HTTP/1.1 instead; a later request may upgrade the connection.
+      if (upgradeRequest.content().isReadable()) {
+        return false;
+      }
+      return upgradeCodec.prepareUpgradeResponse(ctx, upgradeRequest, upgradeHeaders);
+    }
+
+    @Override
+    public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest) {
+      upgradeCodec.upgradeTo(ctx, upgradeRequest);
+      ChannelPipeline cp = ctx.pipeline();
+      while (cp.last() != http2Handler) {
+        cp.removeLast();
+      }
+    }
+  }
 }
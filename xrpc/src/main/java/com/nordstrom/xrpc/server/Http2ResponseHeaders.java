@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.AsciiString;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Builds the HTTP/2 headers of a response directly from its HTTP/1 headers, without the general
+ * conversion of {@link HttpConversionUtil#toHttp2Headers(io.netty.handler.codec.http.HttpMessage,
+ * boolean)}.
+ *
+ * <p>The names of {@link HttpHeaders} are validated as they're added, so the only work needed to
+ * make them valid HTTP/2 names is to lower-case them. For the names of {@link HttpHeaderNames},
+ * which xrpc and most handlers use, that needs no allocation. The values are passed through as they
+ * are; the {@link io.netty.util.AsciiString} values of {@link
+ * io.netty.handler.codec.http.HttpHeaderValues} and the encoders' media types are encoded by HPACK
+ * without being copied. The status is taken from the response status's cached code text.
+ */
+final class Http2ResponseHeaders {
+  /**
+   * The headers which are dropped from responses: those which are specific to an HTTP/1 connection,
+   * and the extension headers which carry HTTP/2 frame fields through HTTP/1 messages.
+   */
+  private static final AsciiString[] EXCLUDED_NAMES = {
+    HttpHeaderNames.TRANSFER_ENCODING,
+    AsciiString.cached("keep-alive"),
+    AsciiString.cached("proxy-connection"),
+    HttpHeaderNames.UPGRADE,
+    HttpHeaderNames.HOST,
+    HttpHeaderNames.TE,
+    HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(),
+    HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(),
+    HttpConversionUtil.ExtensionHeaderNames.PATH.text(),
+    HttpConversionUtil.ExtensionHeaderNames.STREAM_PROMISE_ID.text(),
+    HttpConversionUtil.ExtensionHeaderNames.STREAM_DEPENDENCY_ID.text(),
+    HttpConversionUtil.ExtensionHeaderNames.STREAM_WEIGHT.text()
+  };
+
+  private Http2ResponseHeaders() {}
+
+  /**
+   * Returns the HTTP/2 headers for the given response, including its status, without the
+   * connection-specific headers which HTTP/2 forbids.
+   */
+  static Http2Headers of(HttpResponse response) {
+    HttpHeaders in = response.headers();
+    if (in.contains(HttpHeaderNames.CONNECTION)) {
+      // The Connection header can name other headers to drop; leave that to the full conversion.
+      return HttpConversionUtil.toHttp2Headers(response, true);
+    }
+
+    Http2Headers out = new DefaultHttp2Headers(false, in.size() + 1);
+    out.status(response.status().codeAsText());
+    Iterator<Map.Entry<CharSequence, CharSequence>> entries = in.iteratorCharSequence();
+    while (entries.hasNext()) {
+      Map.Entry<CharSequence, CharSequence> entry = entries.next();
+      AsciiString name = AsciiString.of(entry.getKey()).toLowerCase();
+      if (!isConnectionSpecific(name)) {
+        out.add(name, entry.getValue());
+      }
+    }
+    return out;
+  }
+
+  /** Returns true if the given lower-case header name is one HTTP/2 responses must not carry. */
+  private static boolean isConnectionSpecific(AsciiString name) {
+    for (AsciiString excluded : EXCLUDED_NAMES) {
+      if (excluded.contentEquals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
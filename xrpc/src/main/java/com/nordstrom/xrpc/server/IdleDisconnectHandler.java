@@ -19,6 +19,7 @@ package com.nordstrom.xrpc.server;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 
@@ -30,8 +31,19 @@ public class IdleDisconnectHandler extends IdleStateHandler {
     super(readerIdleTimeSeconds, writerIdleTimeSeconds, allIdleTimeSeconds);
   }
 
+  /**
+   * Closes the idle channel. Reader idleness is ignored while responses are being streamed, since
+   * clients of long-lived streams (such as Server-Sent Events) have nothing to send; the writer
+   * idle timeout still applies.
+   */
   @Override
   protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
+    if (evt.state() == IdleState.READER_IDLE) {
+      Integer activeStreams = ctx.channel().attr(ResponseStreamer.ACTIVE_STREAMS).get();
+      if (activeStreams != null && activeStreams > 0) {
+        return;
+      }
+    }
     ctx.close().addListener(ChannelFutureListener.CLOSE);
   }
 }
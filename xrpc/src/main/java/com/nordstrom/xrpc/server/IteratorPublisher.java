@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.math.LongMath;
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+
+/**
+ * A publisher of the elements of an iterator. Elements are pulled from the iterator synchronously,
+ * in the thread which requests them; for a streamed response, this is the channel's event loop, so
+ * the iterator must not block. Supports a single subscriber.
+ */
+class IteratorPublisher<T> implements Flow.Publisher<T> {
+  private final Iterator<? extends T> iterator;
+  /** Called once the iterator is exhausted or fails, or the subscription is cancelled. */
+  private final Runnable onClose;
+
+  private boolean subscribed;
+
+  IteratorPublisher(Iterator<? extends T> iterator, Runnable onClose) {
+    this.iterator = iterator;
+    this.onClose = onClose;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    if (subscribed) {
+      subscriber.onSubscribe(new IteratorSubscription<>(null, subscriber));
+      subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+      return;
+    }
+    subscribed = true;
+    subscriber.onSubscribe(new IteratorSubscription<>(this, subscriber));
+  }
+
+  private static class IteratorSubscription<T> implements Flow.Subscription {
+    /** The publisher; null once the subscription has terminated. */
+    private IteratorPublisher<T> publisher;
+
+    private final Flow.Subscriber<? super T> subscriber;
+    private long demand;
+    private boolean emitting;
+
+    IteratorSubscription(IteratorPublisher<T> publisher, Flow.Subscriber<? super T> subscriber) {
+      this.publisher = publisher;
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (publisher == null) {
+        return;
+      }
+      if (n <= 0) {
+        terminate();
+        subscriber.onError(new IllegalArgumentException("request must be positive, was " + n));
+        return;
+      }
+      demand = LongMath.saturatedAdd(demand, n);
+      if (emitting) {
+        // Called from onNext; the loop below delivers the new demand.
+        return;
+      }
+      emitting = true;
+      try {
+        while (demand > 0 && publisher != null) {
+          T next;
+          try {
+            if (!publisher.iterator.hasNext()) {
+              terminate();
+              subscriber.onComplete();
+              return;
+            }
+            next = publisher.iterator.next();
+          } catch (RuntimeException e) {
+            terminate();
+            subscriber.onError(e);
+            return;
+          }
+          demand--;
+          subscriber.onNext(next);
+        }
+      } finally {
+        emitting = false;
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (publisher != null) {
+        terminate();
+      }
+    }
+
+    private void terminate() {
+      IteratorPublisher<T> closing = publisher;
+      publisher = null;
+      closing.onClose.run();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pools HTTP/1.1 connections to one upstream server, for a proxy route. Connections are made and
+ * pooled per event loop, so a request is always proxied on a connection served by the event loop of
+ * the connection it arrived on, and neither connection's I/O crosses threads. Connections don't
+ * read automatically: the exchange using a connection reads from it as its response is consumed.
+ */
+@Slf4j
+final class ProxyConnectionPool {
+  /**
+   * The user of a connection, which is passed what happens on it while the connection is in use.
+   */
+  interface Exchange {
+    /** Called with each message read from the connection. The exchange owns the message. */
+    void onRead(Object msg);
+
+    /** Called once the messages from a read have been passed on. */
+    void onReadComplete();
+
+    /** Called when the connection's writability changes. */
+    void onWritabilityChanged();
+
+    /** Called if the connection closes, or fails with the given cause. */
+    void onClosed(Throwable cause);
+  }
+
+  private static final AttributeKey<Exchange> EXCHANGE =
+      AttributeKey.newInstance("xrpc-proxy-exchange");
+
+  private final String host;
+  private final int port;
+  private final int connectTimeoutMillis;
+  private final int maxIdlePerEventLoop;
+  private final long idleTimeoutMillis;
+
+  /** The idle connections of each event loop, most recently used first. */
+  private final ConcurrentMap<EventLoop, Deque<Channel>> idle = new ConcurrentHashMap<>();
+
+  ProxyConnectionPool(
+      String host,
+      int port,
+      int connectTimeoutMillis,
+      int maxIdlePerEventLoop,
+      long idleTimeoutMillis) {
+    this.host = host;
+    this.port = port;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.maxIdlePerEventLoop = maxIdlePerEventLoop;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Returns a connection for the given exchange: an idle connection of the given event loop, or a
+   * new connection if there is none. Must be called on the event loop.
+   */
+  Future<Channel> acquire(EventLoop eventLoop, Exchange exchange) {
+    Deque<Channel> connections = idle(eventLoop);
+    Channel channel;
+    while ((channel = connections.pollFirst()) != null) {
+      if (channel.isActive()) {
+        channel.attr(EXCHANGE).set(exchange);
+        return eventLoop.newSucceededFuture(channel);
+      }
+    }
+
+    Promise<Channel> promise = eventLoop.newPromise();
+    new Bootstrap()
+        .group(eventLoop)
+        .channel(Transport.of(eventLoop.parent()).channelClass())
+        .option(ChannelOption.AUTO_READ, false)
+        .option(ChannelOption.TCP_NODELAY, true)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+        .attr(EXCHANGE, exchange)
+        .handler(
+            new ChannelInitializer<Channel>() {
+              @Override
+              protected void initChannel(Channel ch) {
+                ch.pipeline()
+                    .addLast(
+                        "idleDisconnect",
+                        new IdleStateHandler(0, 0, idleTimeoutMillis, TimeUnit.MILLISECONDS))
+                    .addLast("codec", new HttpClientCodec())
+                    .addLast("exchange", ExchangeHandler.INSTANCE);
+              }
+            })
+        .connect(host, port)
+        .addListener(
+            future -> {
+              if (future.isSuccess()) {
+                promise.setSuccess(((ChannelFuture) future).channel());
+              } else {
+                promise.setFailure(future.cause());
+              }
+            });
+    return promise;
+  }
+
+  /**
+   * Returns a connection to the pool once its exchange is complete, or closes it if the pool is
+   * full. Must be called on the connection's event loop.
+   */
+  void release(Channel channel) {
+    channel.attr(EXCHANGE).set(null);
+    Deque<Channel> connections = idle(channel.eventLoop());
+    connections.removeIf(connection -> !connection.isActive());
+    if (!channel.isActive() || connections.size() >= maxIdlePerEventLoop) {
+      channel.close();
+      return;
+    }
+    connections.addFirst(channel);
+    // Read while idle, to notice when the server closes the connection.
+    channel.read();
+  }
+
+  private Deque<Channel> idle(EventLoop eventLoop) {
+    return idle.computeIfAbsent(eventLoop, loop -> new ArrayDeque<>());
+  }
+
+  /** Passes what happens on a connection to its current exchange. */
+  @ChannelHandler.Sharable
+  private static final class ExchangeHandler extends ChannelInboundHandlerAdapter {
+    static final ExchangeHandler INSTANCE = new ExchangeHandler();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+      if (exchange == null) {
+        // Nothing should arrive on an idle connection.
+        ReferenceCountUtil.release(msg);
+        ctx.close();
+        return;
+      }
+      exchange.onRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+      Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+      if (exchange != null) {
+        exchange.onReadComplete();
+      }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+      if (exchange != null) {
+        exchange.onWritabilityChanged();
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      Exchange exchange = ctx.channel().attr(EXCHANGE).getAndSet(null);
+      if (exchange != null) {
+        exchange.onClosed(null);
+      }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+      if (evt instanceof IdleStateEvent && ctx.channel().attr(EXCHANGE).get() == null) {
+        ctx.close();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      log.debug("Proxied connection to {} failed", ctx.channel().remoteAddress(), cause);
+      Exchange exchange = ctx.channel().attr(EXCHANGE).getAndSet(null);
+      ctx.close();
+      if (exchange != null) {
+        exchange.onClosed(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Handler for a proxy route, which forwards requests under a path prefix to an upstream HTTP/1.1
+ * server. Requests arriving over HTTP/1 or HTTP/2 are forwarded on pooled connections served by the
+ * same event loop as the request's connection. Bodies are streamed in both directions as they
+ * arrive, passing each buffer on as it is rather than aggregating or copying it: the request body
+ * is read only as fast as the upstream connection can take it, and the response body only as fast
+ * as the client reads it.
+ *
+ * <p>Hop-by-hop headers are dropped in both directions. Requests are sent with the upstream's Host,
+ * and with X-Forwarded-For, X-Forwarded-Proto and X-Forwarded-Host describing the original request.
+ * Location headers pointing into the upstream are rewritten to point at the proxy route.
+ */
+@Slf4j
+class ProxyHandler implements AsyncHandler {
+  /** The route variable holding the part of the request path after the proxy's prefix. */
+  static final String PATH_VARIABLE = "proxyPath";
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  /** The most idle upstream connections kept for each event loop. */
+  private static final int MAX_IDLE_CONNECTIONS = 16;
+
+  /** Idle upstream connections are closed after this long. */
+  private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+
+  /** The hop-by-hop headers, which apply to a single connection and are never forwarded. */
+  private static final AsciiString[] HOP_BY_HOP = {
+    HttpHeaderNames.CONNECTION,
+    AsciiString.cached("keep-alive"),
+    AsciiString.cached("proxy-connection"),
+    HttpHeaderNames.PROXY_AUTHENTICATE,
+    HttpHeaderNames.PROXY_AUTHORIZATION,
+    HttpHeaderNames.TE,
+    HttpHeaderNames.TRAILER,
+    HttpHeaderNames.TRANSFER_ENCODING,
+    HttpHeaderNames.UPGRADE
+  };
+
+  private static final AsciiString X_FORWARDED_PROTO = AsciiString.cached("x-forwarded-proto");
+  private static final AsciiString X_FORWARDED_HOST = AsciiString.cached("x-forwarded-host");
+
+  /** The path prefix of the proxy route, without a trailing slash. */
+  private final String prefix;
+
+  /** The upstream's scheme and authority, such as "http://legacy:8080". */
+  private final String upstreamOrigin;
+
+  /** The upstream's authority, sent as the Host of forwarded requests. */
+  private final String upstreamAuthority;
+
+  /** The path under which requests are forwarded, without a trailing slash. */
+  private final String upstreamPath;
+
+  private final ProxyConnectionPool pool;
+
+  /**
+   * Returns a handler forwarding requests under the given prefix to the given upstream URL.
+   *
+   * @param prefix the path prefix of the proxy route, without a trailing slash
+   * @param upstream an http URL, whose path (if any) replaces the prefix in forwarded requests
+   */
+  ProxyHandler(String prefix, URI upstream) {
+    Preconditions.checkArgument(
+        "http".equalsIgnoreCase(upstream.getScheme()), "upstream must be an http URL");
+    Preconditions.checkArgument(upstream.getHost() != null, "upstream must have a host");
+    this.prefix = prefix;
+    this.upstreamAuthority = upstream.getRawAuthority();
+    this.upstreamOrigin = "http://" + upstreamAuthority;
+    String path = upstream.getRawPath() == null ? "" : upstream.getRawPath();
+    this.upstreamPath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    this.pool =
+        new ProxyConnectionPool(
+            upstream.getHost(),
+            upstream.getPort() == -1 ? 80 : upstream.getPort(),
+            CONNECT_TIMEOUT_MILLIS,
+            MAX_IDLE_CONNECTIONS,
+            IDLE_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public CompletionStage<HttpResponse> handleAsync(XrpcRequest request) {
+    Exchange exchange = new Exchange(request, upstreamRequest(request));
+    if (request.eventLoop().inEventLoop()) {
+      exchange.start();
+    } else {
+      request.eventLoop().execute(exchange::start);
+    }
+    return exchange.response;
+  }
+
+  /** Returns the head of the request to forward upstream. */
+  private HttpRequest upstreamRequest(XrpcRequest request) {
+    String uri = request.uri();
+    int queryStart = uri.indexOf('?');
+    String path = queryStart < 0 ? uri : uri.substring(0, queryStart);
+    String query = queryStart < 0 ? "" : uri.substring(queryStart);
+    // Forward the path as it was sent, rather than as decoded for matching.
+    String rest =
+        path.startsWith(prefix) ? path.substring(prefix.length()) : request.variable(PATH_VARIABLE);
+    String target = upstreamPath + rest;
+    if (!target.startsWith("/")) {
+      target = "/" + target;
+    }
+
+    HttpRequest upstreamRequest =
+        new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, request.method().orElse(HttpMethod.GET), target + query);
+    HttpHeaders headers = upstreamRequest.headers();
+    StringBuilder cookies = new StringBuilder();
+    request
+        .allHeaders()
+        .forEach(
+            header -> {
+              CharSequence name = header.getKey();
+              if (HttpHeaderNames.COOKIE.contentEqualsIgnoreCase(name)) {
+                // HTTP/2 may split cookies across fields; join them for HTTP/1.1 (RFC 7540).
+                if (cookies.length() > 0) {
+                  cookies.append("; ");
+                }
+                cookies.append(header.getValue());
+              } else if (name.length() > 0 && name.charAt(0) != ':') {
+                // HTTP/2 pseudo-headers are carried by the request line and Host instead.
+                headers.add(name, header.getValue());
+              }
+            });
+    if (cookies.length() > 0) {
+      headers.set(HttpHeaderNames.COOKIE, cookies);
+    }
+    removeHopByHop(headers);
+    // The body is forwarded as it is read; the client has already been told to continue.
+    headers.remove(HttpHeaderNames.EXPECT);
+
+    CharSequence host = request.header(HttpHeaderNames.HOST);
+    if (host == null) {
+      host = request.header(Http2Headers.PseudoHeaderName.AUTHORITY.value());
+    }
+    headers.set(HttpHeaderNames.HOST, upstreamAuthority);
+    String clientAddress = ClientAddresses.of(request.upstreamChannel());
+    if (clientAddress != null) {
+      String forwardedFor = headers.get(ClientAddresses.X_FORWARDED_FOR);
+      headers.set(
+          ClientAddresses.X_FORWARDED_FOR,
+          forwardedFor == null ? clientAddress : forwardedFor + ", " + clientAddress);
+    }
+    if (!headers.contains(X_FORWARDED_PROTO)) {
+      boolean secure = request.upstreamChannel().pipeline().get(SslHandler.class) != null;
+      headers.set(X_FORWARDED_PROTO, secure ? "https" : "http");
+    }
+    if (host != null && !headers.contains(X_FORWARDED_HOST)) {
+      headers.set(X_FORWARDED_HOST, host);
+    }
+    return upstreamRequest;
+  }
+
+  /** Returns the response to send downstream for the given upstream response head. */
+  private StreamingResponse downstreamResponse(HttpResponse upstreamResponse, Exchange exchange) {
+    HttpHeaders upstreamHeaders = upstreamResponse.headers();
+    String contentType = upstreamHeaders.get(HttpHeaderNames.CONTENT_TYPE);
+    StreamingResponse response =
+        new StreamingResponse(
+            upstreamResponse.status(),
+            exchange,
+            contentType == null ? HttpHeaderValues.APPLICATION_OCTET_STREAM : contentType);
+    HttpHeaders headers = response.headers();
+    headers.set(upstreamHeaders);
+    removeHopByHop(headers);
+    String location = headers.get(HttpHeaderNames.LOCATION);
+    if (location != null) {
+      headers.set(HttpHeaderNames.LOCATION, rewriteLocation(location));
+    }
+    return response;
+  }
+
+  /** Rewrites a Location pointing into the upstream to point at the proxy route instead. */
+  private String rewriteLocation(String location) {
+    String path = location;
+    if (location.regionMatches(true, 0, upstreamOrigin, 0, upstreamOrigin.length())) {
+      path = location.substring(upstreamOrigin.length());
+      if (path.isEmpty()) {
+        path = "/";
+      }
+    } else if (!location.startsWith("/") || location.startsWith("//")) {
+      // Another origin, or a relative reference which resolves the same either way.
+      return location;
+    }
+    if (!path.startsWith(upstreamPath)
+        || (path.length() > upstreamPath.length()
+            && "/?#".indexOf(path.charAt(upstreamPath.length())) < 0)) {
+      return location;
+    }
+    String rest = path.substring(upstreamPath.length());
+    return rest.startsWith("/") || prefix.isEmpty() ? prefix + rest : prefix + "/" + rest;
+  }
+
+  /** Removes the hop-by-hop headers, including any named by the Connection header. */
+  private static void removeHopByHop(HttpHeaders headers) {
+    for (String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+      for (String name : connection.split(",")) {
+        headers.remove(name.trim());
+      }
+    }
+    for (AsciiString name : HOP_BY_HOP) {
+      headers.remove(name);
+    }
+  }
+
+  /**
+   * A request being proxied, from acquiring an upstream connection until the response is complete.
+   * The exchange publishes the response body to the downstream response. All of its methods are
+   * called on the request's event loop.
+   */
+  private final class Exchange
+      implements ProxyConnectionPool.Exchange, Flow.Publisher<ByteBuf>, Flow.Subscription {
+    private final XrpcRequest request;
+    private final HttpRequest upstreamRequest;
+    private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+
+    private Channel channel;
+
+    /** True once the request head has been written upstream. */
+    private boolean headSent;
+
+    /** True once the whole request body has been written upstream. */
+    private boolean requestComplete;
+
+    /** True if the request body failed or was cancelled before it was complete. */
+    private boolean requestFailed;
+
+    private Flow.Subscription bodySubscription;
+
+    /** True if the next chunk of the request body awaits the upstream connection's writability. */
+    private boolean awaitingWritability;
+
+    /** True if an informational (1xx) response is being skipped. */
+    private boolean informational;
+
+    /** True once the upstream response head has been read. */
+    private boolean responseStarted;
+
+    /** True once the whole upstream response has been read. */
+    private boolean responseComplete;
+
+    private boolean keepAlive;
+
+    /** Chunks of the response body which have been read, but not yet requested. */
+    private final Queue<ByteBuf> pending = new ArrayDeque<>();
+
+    private Flow.Subscriber<? super ByteBuf> subscriber;
+    private long demand;
+    private boolean delivering;
+
+    /** The failure of the response body, if it failed before it was subscribed to. */
+    private Throwable failure;
+
+    /** True once the exchange is over, and its connection released or closed. */
+    private boolean done;
+
+    Exchange(XrpcRequest request, HttpRequest upstreamRequest) {
+      this.request = request;
+      this.upstreamRequest = upstreamRequest;
+    }
+
+    void start() {
+      pool.acquire(request.eventLoop(), this)
+          .addListener(
+              future -> {
+                if (future.isSuccess()) {
+                  channel = (Channel) future.getNow();
+                  sendRequest();
+                } else {
+                  log.warn(
+                      "Could not connect to proxy upstream {}", upstreamOrigin, future.cause());
+                  badGateway();
+                }
+              });
+    }
+
+    /**
+     * Starts writing the request upstream, and reading the response. If the length of the request
+     * body is unknown, the head waits for the first chunk, or end, of the body.
+     */
+    private void sendRequest() {
+      if (HttpUtil.isContentLengthSet(upstreamRequest)) {
+        writeHead();
+      }
+      request
+          .bodyPublisher()
+          .subscribe(
+              new Flow.Subscriber<ByteBuf>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                  bodySubscription = subscription;
+                  subscription.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuf chunk) {
+                  if (done) {
+                    chunk.release();
+                    return;
+                  }
+                  if (!headSent) {
+                    HttpUtil.setTransferEncodingChunked(upstreamRequest, true);
+                    writeHead();
+                  }
+                  channel
+                      .writeAndFlush(new DefaultHttpContent(chunk))
+                      .addListener(
+                          future -> {
+                            if (!future.isSuccess() || done) {
+                              // The connection's failure is handled as it closes.
+                              return;
+                            }
+                            if (channel.isWritable()) {
+                              bodySubscription.request(1);
+                            } else {
+                              awaitingWritability = true;
+                            }
+                          });
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                  requestFailed = true;
+                  if (!responseStarted) {
+                    // There's no one left to answer.
+                    log.debug("Proxied request body failed", cause);
+                    close();
+                    completeResponse(Recipes.newResponse(HttpResponseStatus.BAD_REQUEST));
+                  }
+                }
+
+                @Override
+                public void onComplete() {
+                  if (done) {
+                    return;
+                  }
+                  if (!headSent) {
+                    writeHead();
+                  }
+                  channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                  requestComplete = true;
+                }
+              });
+      channel.read();
+    }
+
+    private void writeHead() {
+      headSent = true;
+      channel.write(upstreamRequest);
+    }
+
+    @Override
+    public void onRead(Object msg) {
+      if (done) {
+        ReferenceCountUtil.release(msg);
+        return;
+      }
+      if (msg instanceof HttpObject && ((HttpObject) msg).decoderResult().isFailure()) {
+        Throwable cause = ((HttpObject) msg).decoderResult().cause();
+        ReferenceCountUtil.release(msg);
+        onClosed(cause);
+        return;
+      }
+      if (msg instanceof HttpResponse) {
+        HttpResponse head = (HttpResponse) msg;
+        if (head.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+          // 100 Continue and the like were meant for this hop.
+          informational = true;
+        } else {
+          responseStarted = true;
+          keepAlive = HttpUtil.isKeepAlive(head);
+          completeResponse(downstreamResponse(head, this));
+        }
+      }
+      if (msg instanceof HttpContent) {
+        ByteBuf content = ((HttpContent) msg).content();
+        if (content.isReadable() && !informational) {
+          pending.add(content);
+        } else {
+          content.release();
+        }
+        if (msg instanceof LastHttpContent) {
+          if (informational) {
+            informational = false;
+          } else {
+            responseComplete = true;
+          }
+        }
+        deliver();
+      }
+    }
+
+    @Override
+    public void onReadComplete() {
+      if (!done && (!responseStarted || (demand > 0 && !responseComplete))) {
+        channel.read();
+      }
+    }
+
+    @Override
+    public void onWritabilityChanged() {
+      if (awaitingWritability && channel.isWritable() && !done) {
+        awaitingWritability = false;
+        bodySubscription.request(1);
+      }
+    }
+
+    @Override
+    public void onClosed(Throwable cause) {
+      if (done || responseComplete) {
+        // Whatever was read is still delivered.
+        return;
+      }
+      if (!responseStarted) {
+        log.warn("Proxy upstream {} failed before responding", upstreamOrigin, cause);
+        close();
+        badGateway();
+        return;
+      }
+      fail(cause != null ? cause : new IOException("proxy upstream closed the connection"));
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuf> subscriber) {
+      if (this.subscriber != null) {
+        subscriber.onSubscribe(
+            new Flow.Subscription() {
+              @Override
+              public void request(long n) {}
+
+              @Override
+              public void cancel() {}
+            });
+        subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+        return;
+      }
+      this.subscriber = subscriber;
+      subscriber.onSubscribe(this);
+      if (failure != null) {
+        subscriber.onError(failure);
+      } else {
+        deliver();
+      }
+    }
+
+    @Override
+    public void request(long n) {
+      if (done) {
+        return;
+      }
+      demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      deliver();
+      if (!done && demand > 0 && pending.isEmpty() && !responseComplete) {
+        channel.read();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (!done) {
+        // The rest of the response is unwanted, so the connection can't be reused.
+        close();
+      }
+    }
+
+    /** Passes read chunks to the subscriber while it has demand, then completes it. */
+    private void deliver() {
+      if (subscriber == null || delivering || done) {
+        return;
+      }
+      delivering = true;
+      try {
+        while (demand > 0 && !pending.isEmpty() && !done) {
+          demand--;
+          subscriber.onNext(pending.poll());
+        }
+        if (pending.isEmpty() && responseComplete && !done) {
+          finish();
+          subscriber.onComplete();
+        }
+      } finally {
+        delivering = false;
+      }
+    }
+
+    /** Fails the response body. */
+    private void fail(Throwable cause) {
+      close();
+      if (subscriber != null) {
+        subscriber.onError(cause);
+      } else {
+        failure = cause;
+      }
+    }
+
+    private void badGateway() {
+      completeResponse(
+          Recipes.newResponse(
+              HttpResponseStatus.BAD_GATEWAY, "Bad gateway", Recipes.ContentType.Text_Plain));
+    }
+
+    private void completeResponse(HttpResponse downstreamResponse) {
+      if (!response.complete(downstreamResponse)) {
+        ReferenceCountUtil.release(downstreamResponse);
+      }
+    }
+
+    /** Ends the exchange, returning the connection to the pool if it can be reused. */
+    private void finish() {
+      done = true;
+      if (keepAlive && requestComplete && !requestFailed) {
+        pool.release(channel);
+      } else {
+        closeConnection();
+      }
+    }
+
+    /** Ends the exchange, closing the connection and abandoning the rest of the request body. */
+    private void close() {
+      done = true;
+      while (!pending.isEmpty()) {
+        pending.poll().release();
+      }
+      closeConnection();
+    }
+
+    private void closeConnection() {
+      if (!requestComplete && bodySubscription != null) {
+        bodySubscription.cancel();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.net.InetAddresses;
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolException;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads the client address from the PROXY protocol (version 1 or 2) header a load balancer sends at
+ * the start of each connection, decoded by a {@link HAProxyMessageDecoder} before this.
+ *
+ * <p>The channelActive event is held back until the header has been read, so the handlers after
+ * this, such as the rate limiter and the IP white and black lists, see the client address the
+ * header gives (see {@link ClientAddresses#of}). Connections closed before sending a header never
+ * become active for those handlers. Once the header is read, this removes itself from the pipeline.
+ */
+@Slf4j
+class ProxyProtocolHandler extends ChannelInboundHandlerAdapter {
+  private boolean active;
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) {
+    active = true;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    if (!(msg instanceof HAProxyMessage)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+
+    HAProxyMessage header = (HAProxyMessage) msg;
+    try {
+      // LOCAL connections, such as the load balancer's health checks, are its own.
+      if (header.command() == HAProxyCommand.PROXY
+          && (header.proxiedProtocol() == HAProxyProxiedProtocol.TCP4
+              || header.proxiedProtocol() == HAProxyProxiedProtocol.TCP6)) {
+        String sourceAddress = InetAddresses.forString(header.sourceAddress()).getHostAddress();
+        ctx.channel().attr(XrpcConstants.CLIENT_ADDRESS).set(sourceAddress);
+      }
+    } finally {
+      ReferenceCountUtil.release(msg);
+    }
+
+    if (active) {
+      ctx.fireChannelActive();
+    }
+    ctx.pipeline().remove(this);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) {
+    // The connection closed before sending its header, so it never became active downstream.
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    if (cause instanceof HAProxyProtocolException) {
+      log.debug("Closing {}: invalid PROXY protocol header", ctx.channel(), cause);
+      ctx.close();
+    } else {
+      ctx.fireExceptionCaught(cause);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.client.XUrl;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Aggregates HTTP/1.x requests into full requests, except for requests to routes which stream or
+ * spool their request body. Those are passed on as they're read (as an {@link HttpRequest} followed
+ * by {@link HttpContent}s) for the {@link UrlRouter} to stream to the handler, or to the spooler.
+ */
+@Slf4j
+class RequestAggregator extends HttpObjectAggregator {
+  /** True while passing on the parts of a streamed request. */
+  private boolean streaming;
+
+  private long streamedBytes;
+
+  /** The maximum size of the request being streamed. */
+  private long streamLimit;
+
+  RequestAggregator(int maxContentLength) {
+    super(maxContentLength);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest) {
+      streaming = isStreamed(ctx, (HttpRequest) msg);
+      streamedBytes = 0;
+    }
+    if (!streaming) {
+      super.channelRead(ctx, msg);
+      return;
+    }
+
+    if (msg instanceof HttpContent) {
+      streamedBytes += ((HttpContent) msg).content().readableBytes();
+      if (streamedBytes > streamLimit) {
+        // The response may already be under way, so there's no way to reject the request cleanly.
+        log.info("Closing connection after streamed request body exceeded {}", streamLimit);
+        ReferenceCountUtil.release(msg);
+        streaming = false;
+        ctx.close();
+        return;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  /**
+   * Returns true if the given request should be streamed, and sets the limit on its size: the
+   * maximum upload size for upload routes, and the maximum payload size otherwise. Requests which
+   * declare a body larger than the limit are aggregated, so that they're rejected up front.
+   */
+  private boolean isStreamed(ChannelHandlerContext ctx, HttpRequest request) {
+    if (request instanceof FullHttpRequest) {
+      return false;
+    }
+    ServerContext xctx = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get();
+    if (xctx == null || !xctx.routes().hasStreamingRoutes()) {
+      return false;
+    }
+    CompiledRoutes.Match match = xctx.routes().match(XUrl.path(request.uri()), request.method());
+    if (!match.isStreamingBody()) {
+      return false;
+    }
+    streamLimit = match.isSpooledBody() ? xctx.uploadMaxBytes() : maxContentLength();
+    return HttpUtil.getContentLength(request, -1L) <= streamLimit;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Splitter;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+
+/**
+ * Decides whether and how response bodies are compressed, for both HTTP/1 ({@link
+ * ResponseCompressor}) and HTTP/2 ({@link Http2Handler}). The responses of routes which opt out of
+ * compression (see {@link RouteBuilder#uncompressed(String)}) are never compressed; the compressors
+ * learn of the opt-out from the matched route, so the response headers are sent as they are.
+ */
+final class ResponseCompression {
+  private ResponseCompression() {}
+
+  /**
+   * Returns true if the body of the given response may be compressed: it has a body, isn't already
+   * encoded, isn't sent from a file, and isn't known to be smaller than minBytes. Files are
+   * excluded since they're sent without being copied into user space, and compressing them would
+   * lose that; serve precompressed ".gz" files instead.
+   */
+  static boolean isCompressible(HttpResponse response, int minBytes) {
+    int status = response.status().code();
+    if (status < 200 || status == 204 || status == 304) {
+      return false;
+    }
+    if (response instanceof FileResponse
+        || response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+      return false;
+    }
+    if (response instanceof FullHttpResponse) {
+      return ((FullHttpResponse) response).content().readableBytes() >= minBytes;
+    }
+    return HttpUtil.getContentLength(response, Long.MAX_VALUE) >= minBytes;
+  }
+
+  /**
+   * Returns the coding to compress a response with, given the request's Accept-Encoding header:
+   * gzip or deflate, preferring gzip unless the client prefers deflate. Returns null if the client
+   * accepts neither.
+   */
+  static CharSequence negotiate(CharSequence acceptEncoding) {
+    double gzip = quality(acceptEncoding, "gzip");
+    double deflate = quality(acceptEncoding, "deflate");
+    if (gzip > 0 && gzip >= deflate) {
+      return HttpHeaderValues.GZIP;
+    } else if (deflate > 0) {
+      return HttpHeaderValues.DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the quality value which the given Accept-Encoding header gives a content coding, or
+   * zero if the coding isn't acceptable. A "*" entry applies to codings which aren't listed.
+   */
+  static double quality(CharSequence acceptEncoding, String coding) {
+    if (acceptEncoding == null) {
+      return 0;
+    }
+    double wildcard = 0;
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding)) {
+      int semicolon = entry.indexOf(';');
+      String name = (semicolon < 0 ? entry : entry.substring(0, semicolon)).trim();
+      double quality = semicolon < 0 ? 1 : parseQuality(entry.substring(semicolon + 1));
+      if (name.equalsIgnoreCase(coding)) {
+        return quality;
+      } else if (name.equals("*")) {
+        wildcard = quality;
+      }
+    }
+    return wildcard;
+  }
+
+  private static double parseQuality(String parameters) {
+    for (String parameter : Splitter.on(';').trimResults().split(parameters)) {
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.List;
+
+/**
+ * Compresses HTTP/1 response bodies with gzip or deflate, as negotiated with the request's
+ * Accept-Encoding header. Responses which {@link ResponseCompression} excludes, and those of routes
+ * which are sent uncompressed (see {@link #exemptNextResponse()}), are sent as they are.
+ */
+class ResponseCompressor extends HttpContentCompressor {
+  private final int minBytes;
+
+  /** True if the next response written is sent uncompressed. */
+  private boolean exemptNext;
+
+  /** True if the response being written is sent uncompressed. */
+  private boolean exempt;
+
+  ResponseCompressor(int compressionLevel, int minBytes) {
+    super(compressionLevel);
+    this.minBytes = minBytes;
+  }
+
+  /**
+   * Sends the next response written through this uncompressed. Must be called on the event loop,
+   * just before the response is written.
+   */
+  void exemptNextResponse() {
+    exemptNext = true;
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out)
+      throws Exception {
+    if (msg instanceof HttpResponse) {
+      exempt = exemptNext;
+      exemptNext = false;
+    }
+    super.encode(ctx, msg, out);
+  }
+
+  @Override
+  protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+    if (exempt || !ResponseCompression.isCompressible(response, minBytes)) {
+      return null;
+    }
+    return super.beginEncode(response, acceptEncoding);
+  }
+}
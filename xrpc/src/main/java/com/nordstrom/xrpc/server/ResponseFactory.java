@@ -17,7 +17,10 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,6 +78,65 @@ public interface ResponseFactory {
     return createResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR, body);
   }
 
+  /**
+   * Return 200 OK response whose body is the elements of the given stream, each encoded based on
+   * Content Negotiation as it is sent. The stream is consumed on the event loop, so must not block;
+   * it is closed once the response is complete, or the connection is closed.
+   */
+  default <T> HttpResponse okStream(Stream<T> elements) {
+    return createStreamingResponse(
+        HttpResponseStatus.OK, new IteratorPublisher<>(elements.iterator(), elements::close));
+  }
+
+  /**
+   * Return 200 OK response whose body is the elements of the given iterator, each encoded based on
+   * Content Negotiation as it is sent. The iterator is consumed on the event loop, so must not
+   * block.
+   */
+  default <T> HttpResponse okStream(Iterator<T> elements) {
+    return createStreamingResponse(
+        HttpResponseStatus.OK, new IteratorPublisher<>(elements, () -> {}));
+  }
+
+  /**
+   * Return 200 OK response whose body is the elements of the given publisher, each encoded based on
+   * Content Negotiation as it is sent. Elements are requested only while the client is keeping up.
+   */
+  default <T> HttpResponse okStream(Flow.Publisher<T> elements) {
+    return createStreamingResponse(HttpResponseStatus.OK, elements);
+  }
+
+  /**
+   * Return http response with status, whose body is the elements of the given publisher. The
+   * elements are encoded based on Content Negotiation: as a JSON array for application/json, one
+   * line per element for application/x-ndjson, or length-delimited messages for
+   * application/protobuf.
+   *
+   * @param status http status
+   * @param elements publisher of the body elements
+   */
+  default HttpResponse createStreamingResponse(
+      HttpResponseStatus status, Flow.Publisher<?> elements) {
+    Preconditions.checkArgument(elements != null, "null elements passed in to createResponse");
+    final Encoder encoder =
+        request().connectionContext().encoders().acceptedEncoder(request().acceptHeader());
+    return new StreamingResponse(status, elements, encoder, request().acceptCharsetHeader());
+  }
+
+  /**
+   * Return http response with status and content type, whose body is the chunks of the given
+   * publisher, sent as they are.
+   *
+   * @param status http status
+   * @param chunks publisher of the body chunks; the response takes ownership of each chunk
+   * @param contentType content type of response
+   */
+  default HttpResponse createStreamingResponse(
+      HttpResponseStatus status, Flow.Publisher<ByteBuf> chunks, CharSequence contentType) {
+    Preconditions.checkArgument(chunks != null, "null chunks passed in to createResponse");
+    return new StreamingResponse(status, chunks, contentType);
+  }
+
   default HttpResponse exception(Exception exception) {
     try {
       if (exception instanceof HttpResponseException) {
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.nordstrom.xrpc.encoding.Encoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.IOException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes the body of a {@link StreamingResponse} to its connection or stream. Elements are
+ * requested from the response's publisher one at a time, and only while the sink is writable; when
+ * the sink becomes writable again, {@link #pump()} must be called to resume. Encoded elements are
+ * batched into chunks of about {@link #BATCH_BYTES}, and written chunks are flushed once per pump
+ * rather than once per element.
+ *
+ * <p>All state is confined to the channel's event loop. Signals from a publisher on another thread
+ * are handed off to the event loop, in order.
+ */
+@Slf4j
+class ResponseStreamer implements Flow.Subscriber<Object> {
+  /**
+   * The number of responses being streamed on a channel. While it is non-zero, the channel is not
+   * considered idle for reading, since clients of long-lived streams have nothing to send.
+   */
+  static final AttributeKey<Integer> ACTIVE_STREAMS = AttributeKey.valueOf("XrpcActiveStreams");
+
+  /** The size at which a batch of encoded elements is written as a chunk. */
+  @VisibleForTesting static final int BATCH_BYTES = 8192;
+
+  /** The connection or stream the body is written to. Called on the event loop. */
+  interface Sink {
+    /** Returns true if more data can be written without buffering it in memory. */
+    boolean isWritable();
+
+    /** Writes a chunk of the body without flushing it; end is true for the last chunk. */
+    void write(ByteBuf chunk, boolean end);
+
+    /** Flushes the written chunks. */
+    void flush();
+
+    /** Ends the body with the given trailers. */
+    void writeTrailers(HttpHeaders trailers);
+
+    /** Aborts the response after a failure, once some of it may have been sent. */
+    void abort(Throwable cause);
+  }
+
+  private final StreamingResponse response;
+  private final Channel channel;
+  private final EventExecutor executor;
+  private final ByteBufAllocator alloc;
+  private final Sink sink;
+  /** Called on the event loop once the response has been written, aborted or cancelled. */
+  private final Runnable onDone;
+
+  /** The number of signals handed off to the event loop and not yet run. */
+  private final AtomicInteger pendingSignals = new AtomicInteger();
+
+  private Flow.Subscription subscription;
+  /** Encoded elements which have not yet been written; null if there are none. */
+  private ByteBuf batch;
+
+  private long index;
+  /** True while an element has been requested but not received. */
+  private boolean awaitingElement;
+  /** True while pumping, to turn re-entrant pumps into further iterations of the current one. */
+  private boolean pumping;
+
+  private boolean repump;
+  private boolean unflushed;
+  private boolean done;
+  /** True while the sink is aborting, which may close the connection and so call cancel(). */
+  private boolean aborting;
+
+  ResponseStreamer(StreamingResponse response, Channel channel, Sink sink, Runnable onDone) {
+    this.response = response;
+    this.channel = channel;
+    this.executor = channel.eventLoop();
+    this.alloc = channel.alloc();
+    this.sink = sink;
+    this.onDone = onDone;
+  }
+
+  /** Starts streaming the body. Must be called on the event loop, after the headers are written. */
+  void start() {
+    Integer active = channel.attr(ACTIVE_STREAMS).get();
+    channel.attr(ACTIVE_STREAMS).set(active == null ? 1 : active + 1);
+    Encoder encoder = response.encoder();
+    if (encoder != null) {
+      try {
+        encoder.encodeStreamStart(batch(), response.acceptCharset());
+      } catch (IOException | RuntimeException e) {
+        // Nothing has been subscribed to yet.
+        response.cancel();
+        abort(e);
+        return;
+      }
+    }
+    response.elements().subscribe(this);
+  }
+
+  /** Requests elements while the sink is writable. Must be called on the event loop. */
+  void pump() {
+    if (done || subscription == null) {
+      return;
+    }
+    if (pumping) {
+      repump = true;
+      return;
+    }
+    pumping = true;
+    try {
+      do {
+        repump = false;
+        while (!done && !awaitingElement && sink.isWritable()) {
+          awaitingElement = true;
+          subscription.request(1);
+        }
+        if (!done) {
+          // Flushing may change the sink's writability, which calls pump() again.
+          writeBatch();
+          flush();
+        }
+      } while (repump && !done);
+    } finally {
+      pumping = false;
+    }
+  }
+
+  /**
+   * Stops streaming, and cancels the subscription. Called when the connection or stream closes.
+   * Must be called on the event loop.
+   */
+  void cancel() {
+    if (done || aborting) {
+      return;
+    }
+    if (subscription != null) {
+      subscription.cancel();
+    }
+    finish();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    signal(
+        () -> {
+          if (this.subscription != null || done) {
+            subscription.cancel();
+            return;
+          }
+          this.subscription = subscription;
+          pump();
+        });
+  }
+
+  @Override
+  public void onNext(Object item) {
+    signal(
+        () -> {
+          if (done) {
+            ReferenceCountUtil.release(item);
+            return;
+          }
+          awaitingElement = false;
+          try {
+            append(item);
+          } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            abort(e);
+            return;
+          }
+          pump();
+        });
+  }
+
+  @Override
+  public void onError(Throwable cause) {
+    signal(
+        () -> {
+          if (!done) {
+            abort(cause);
+          }
+        });
+  }
+
+  @Override
+  public void onComplete() {
+    signal(
+        () -> {
+          if (done) {
+            return;
+          }
+          try {
+            Encoder encoder = response.encoder();
+            if (encoder != null) {
+              encoder.encodeStreamEnd(batch(), response.acceptCharset());
+            }
+          } catch (IOException | RuntimeException e) {
+            abort(e);
+            return;
+          }
+          ByteBuf last = batch;
+          batch = null;
+          HttpHeaders trailers = response.trailers(null);
+          if (trailers == null) {
+            sink.write(last == null ? alloc.buffer(0) : last, true);
+          } else {
+            if (last != null) {
+              sink.write(last, false);
+            }
+            sink.writeTrailers(trailers);
+          }
+          sink.flush();
+          finish();
+        });
+  }
+
+  /** Runs the given signal on the event loop, in the order signals were received. */
+  private void signal(Runnable task) {
+    if (executor.inEventLoop() && pendingSignals.get() == 0) {
+      task.run();
+    } else {
+      pendingSignals.incrementAndGet();
+      executor.execute(
+          () -> {
+            pendingSignals.decrementAndGet();
+            task.run();
+          });
+    }
+  }
+
+  /** Adds an element to the body, writing the current batch once it is large enough. */
+  private void append(Object item) throws IOException {
+    Encoder encoder = response.encoder();
+    if (encoder == null) {
+      // Raw chunks are written as they are, after any batched data.
+      writeBatch();
+      sink.write((ByteBuf) item, false);
+      unflushed = true;
+      return;
+    }
+    encoder.encodeStreamElement(batch(), response.acceptCharset(), item, index++);
+    if (batch.readableBytes() >= BATCH_BYTES) {
+      writeBatch();
+    }
+  }
+
+  private ByteBuf batch() {
+    if (batch == null) {
+      batch = alloc.buffer();
+    }
+    return batch;
+  }
+
+  private void writeBatch() {
+    if (batch != null && batch.isReadable()) {
+      sink.write(batch, false);
+      batch = null;
+      unflushed = true;
+    }
+  }
+
+  private void flush() {
+    if (unflushed) {
+      unflushed = false;
+      sink.flush();
+    }
+  }
+
+  private void abort(Throwable cause) {
+    HttpHeaders trailers = response.trailers(cause);
+    if (trailers != null) {
+      // The failure is reported in the trailers, after the elements already written.
+      log.debug("Ending streamed response after failure", cause);
+      if (batch != null) {
+        batch.release();
+        batch = null;
+      }
+      sink.writeTrailers(trailers);
+      sink.flush();
+      finish();
+      return;
+    }
+    log.error("Error streaming response", cause);
+    aborting = true;
+    try {
+      sink.abort(cause);
+    } finally {
+      aborting = false;
+    }
+    finish();
+  }
+
+  private void finish() {
+    if (done) {
+      return;
+    }
+    done = true;
+    if (batch != null) {
+      batch.release();
+      batch = null;
+    }
+    channel.attr(ACTIVE_STREAMS).set(channel.attr(ACTIVE_STREAMS).get() - 1);
+    onDone.run();
+  }
+}
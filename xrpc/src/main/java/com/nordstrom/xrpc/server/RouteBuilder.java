@@ -18,9 +18,11 @@ package com.nordstrom.xrpc.server;
 
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Preconditions;
+import com.nordstrom.xrpc.server.http.PriorityClass;
 import com.nordstrom.xrpc.server.http.Route;
 import com.nordstrom.xrpc.server.http.RoutePath;
 import io.netty.handler.codec.http.HttpMethod;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -29,11 +31,11 @@ import lombok.extern.slf4j.Slf4j;
 /** Class to build routes for a server to handle. */
 @Slf4j
 public class RouteBuilder implements Routes {
-  private final Map<RoutePath, Map<HttpMethod, Handler>> routes = new HashMap<>();
+  private final Map<RoutePath, Map<HttpMethod, Route>> routes = new HashMap<>();
 
   @Override
   public Routes addRoute(Route route) {
-    Map<HttpMethod, Handler> methods = routes.computeIfAbsent(route.path(), k -> new HashMap<>());
+    Map<HttpMethod, Route> methods = routes.computeIfAbsent(route.path(), k -> new HashMap<>());
 
     // Verify that this method doesn't already exist.
     Preconditions.checkArgument(
@@ -42,31 +44,88 @@ public class RouteBuilder implements Routes {
             "route %s already has a handler defined for method %s",
             route, route.method().toString()));
 
-    methods.put(route.method(), route.handler());
+    methods.put(route.method(), route);
 
     return this;
   }
 
+  /**
+   * Runs the handlers for every method of the given route on the named handler executor, replacing
+   * any executor the routes were added with. This applies only to routes which have already been
+   * added.
+   *
+   * @param executor the name of the handler executor, or null to run on the event loop
+   * @return this builder
+   * @throws IllegalArgumentException if no routes have been added for the given route pattern
+   */
+  public RouteBuilder executor(String routePattern, String executor) {
+    Map<HttpMethod, Route> methods = routes.get(RoutePath.build(routePattern));
+    Preconditions.checkArgument(
+        methods != null, String.format("no routes defined for %s", routePattern));
+
+    methods.replaceAll((method, route) -> route.toBuilder().executor(executor).build());
+    return this;
+  }
+
+  /**
+   * Sends the responses for every method of the given route uncompressed, even if the client
+   * accepts a compressed response. This applies only to routes which have already been added.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if no routes have been added for the given route pattern
+   */
+  public RouteBuilder uncompressed(String routePattern) {
+    Map<HttpMethod, Route> methods = routes.get(RoutePath.build(routePattern));
+    Preconditions.checkArgument(
+        methods != null, String.format("no routes defined for %s", routePattern));
+
+    methods.replaceAll((method, route) -> route.toBuilder().uncompressed(true).build());
+    return this;
+  }
+
+  /**
+   * Sets the priority class of every method of the given route, which determines the share of an
+   * HTTP/2 connection its responses get alongside responses from other routes. This applies only to
+   * routes which have already been added.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if no routes have been added for the given route pattern
+   */
+  public RouteBuilder priority(String routePattern, PriorityClass priority) {
+    Preconditions.checkArgument(priority != null, "priority must not be null");
+    Map<HttpMethod, Route> methods = routes.get(RoutePath.build(routePattern));
+    Preconditions.checkArgument(
+        methods != null, String.format("no routes defined for %s", routePattern));
+
+    methods.replaceAll((method, route) -> route.toBuilder().priority(priority).build());
+    return this;
+  }
+
   /**
    * Returns the routes compiled from this builder, using the given MetricRegistry to track access
    * statistics.
+   *
+   * @throws IllegalArgumentException if any route runs on a handler executor
    */
   public CompiledRoutes compile(MetricRegistry metricRegistry) {
-    return new CompiledRoutes(this.routes, metricRegistry);
+    return compile(metricRegistry, Collections.emptyMap());
+  }
+
+  /**
+   * Returns the routes compiled from this builder, using the given MetricRegistry to track access
+   * statistics, and running handlers on the given handler executors by name.
+   *
+   * @throws IllegalArgumentException if a route names a handler executor which isn't in the given
+   *     map
+   */
+  public CompiledRoutes compile(
+      MetricRegistry metricRegistry, Map<String, HandlerExecutor> handlerExecutors) {
+    return new CompiledRoutes(this.routes, metricRegistry, handlerExecutors);
   }
 
   /** Returns iterator of routes. */
   @Override
   public Iterator<Route> iterator() {
-    return routes
-        .entrySet()
-        .stream()
-        .flatMap(
-            r ->
-                r.getValue()
-                    .entrySet()
-                    .stream()
-                    .map(m -> new Route(m.getKey(), r.getKey(), m.getValue())))
-        .iterator();
+    return routes.values().stream().flatMap(r -> r.values().stream()).iterator();
   }
 }
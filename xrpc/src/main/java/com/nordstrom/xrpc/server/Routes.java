@@ -20,6 +20,8 @@ import com.google.common.base.Preconditions;
 import com.nordstrom.xrpc.server.http.Route;
 import com.nordstrom.xrpc.server.http.RoutePath;
 import io.netty.handler.codec.http.HttpMethod;
+import java.net.URI;
+import java.nio.file.Path;
 
 /** Interface for constructing routes. */
 public interface Routes extends Iterable<Route> {
@@ -122,6 +124,435 @@ public interface Routes extends Iterable<Route> {
     return addRoute(route, handler, HttpMethod.CONNECT);
   }
 
+  /**
+   * Binds an asynchronous handler for GET requests to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a GET handler for the route.
+   */
+  default Routes getAsync(String route, AsyncHandler handler) {
+    return addAsyncRoute(route, handler, HttpMethod.GET);
+  }
+
+  /**
+   * Binds an asynchronous handler for POST requests to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a POST handler for the route.
+   */
+  default Routes postAsync(String route, AsyncHandler handler) {
+    return addAsyncRoute(route, handler, HttpMethod.POST);
+  }
+
+  /**
+   * Binds an asynchronous handler for PUT requests to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a PUT handler for the route.
+   */
+  default Routes putAsync(String route, AsyncHandler handler) {
+    return addAsyncRoute(route, handler, HttpMethod.PUT);
+  }
+
+  /**
+   * Binds an asynchronous handler for DELETE requests to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a DELETE handler for the route.
+   */
+  default Routes deleteAsync(String route, AsyncHandler handler) {
+    return addAsyncRoute(route, handler, HttpMethod.DELETE);
+  }
+
+  /**
+   * Binds an asynchronous handler for PATCH requests to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a PATCH handler for the route.
+   */
+  default Routes patchAsync(String route, AsyncHandler handler) {
+    return addAsyncRoute(route, handler, HttpMethod.PATCH);
+  }
+
+  /**
+   * Binds an asynchronous handler for the given method to the given route. This is equivalent to
+   * {@link #addRoute(String, Handler, HttpMethod)}, and exists so that lambdas returning a {@link
+   * java.util.concurrent.CompletionStage} are typed as an {@link AsyncHandler}.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a handler for the given method + route pair.
+   */
+  default Routes addAsyncRoute(String routePattern, AsyncHandler handler, HttpMethod method) {
+    return addRoute(routePattern, handler, method);
+  }
+
+  /**
+   * Binds a Server-Sent Events handler for GET requests to the given route. Each request opens a
+   * stream of {@code text/event-stream} events, which stays open until the handler closes its
+   * {@link SseEmitter} or the client goes away. Event data is encoded with the server's {@link
+   * com.nordstrom.xrpc.encoding.Encoders}.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a GET handler for the route.
+   */
+  default Routes sse(String route, SseHandler handler) {
+    return addRoute(route, handler, HttpMethod.GET);
+  }
+
+  /**
+   * Binds a WebSocket handler to the given route. HTTP/1.1 GET requests to upgrade to a WebSocket
+   * are handed to the handler once the connection is upgraded; other GET requests are answered with
+   * 426 (upgrade required). Messages are encoded and decoded with the server's {@link
+   * com.nordstrom.xrpc.encoding.Encoders} and {@link com.nordstrom.xrpc.encoding.Decoders}, using
+   * the media type negotiated from the upgrade request's Accept header.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a GET handler for the route.
+   */
+  default Routes webSocket(String routePattern, WebSocketHandler handler) {
+    Preconditions.checkArgument(routePattern != null, "routePattern must not be null");
+    Preconditions.checkArgument(!routePattern.isEmpty(), "routePattern must not be empty");
+    Preconditions.checkArgument(handler != null, "handler must not be null");
+
+    return addRoute(
+        Route.builder()
+            .method(HttpMethod.GET)
+            .path(RoutePath.build(routePattern))
+            .handler(WebSocketUpgradeHandler.UPGRADE_REQUIRED)
+            .webSocketHandler(handler)
+            .build());
+  }
+
+  /**
+   * Binds GET and HEAD requests under the given route prefix to the files under the given root
+   * directory. See {@link #files(String, Path, String)}; this variant stats and opens files on the
+   * event loop, which is only suitable when the files are on a fast local disk.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the prefix or root is null, or if there is already a
+   *     GET or HEAD handler for the prefix.
+   */
+  default Routes files(String routePrefix, Path root) {
+    return files(routePrefix, root, null);
+  }
+
+  /**
+   * Binds GET and HEAD requests under the given route prefix to the files under the given root
+   * directory; for example, with the prefix "/static", "/static/css/site.css" is answered with
+   * "css/site.css" under the root. Requests for paths outside the root, or which aren't regular
+   * files, are answered with 404.
+   *
+   * <p>Responses carry an ETag and Last-Modified validator, and conditional requests
+   * (If-None-Match, If-Modified-Since) are answered with 304. A single byte range is served with
+   * 206 (partial content), and If-Range is honored. If the client accepts gzip and a precompressed
+   * sibling file with the suffix ".gz" exists, that file is served instead. File bodies are sent
+   * with sendfile on cleartext HTTP/1 connections, and otherwise streamed from a memory mapping as
+   * the connection becomes writable.
+   *
+   * @param executor the name of the handler executor to stat and open files on, or null to run on
+   *     the event loop
+   * @return this builder
+   * @throws IllegalArgumentException if either the prefix or root is null, or if there is already a
+   *     GET or HEAD handler for the prefix.
+   */
+  default Routes files(String routePrefix, Path root, String executor) {
+    Preconditions.checkArgument(routePrefix != null, "routePrefix must not be null");
+    Preconditions.checkArgument(root != null, "root must not be null");
+
+    String prefix =
+        routePrefix.endsWith("/")
+            ? routePrefix.substring(0, routePrefix.length() - 1)
+            : routePrefix;
+    Handler handler = new FileHandler(root);
+    String routePattern = prefix + "/{path:.+}";
+    addRoute(routePattern, handler, HttpMethod.GET, executor);
+    return addRoute(routePattern, handler, HttpMethod.HEAD, executor);
+  }
+
+  /**
+   * Binds a handler for POST requests with a streaming request body to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a POST handler for the route.
+   * @see #addStreamingRoute(String, Handler, HttpMethod)
+   */
+  default Routes postStreaming(String route, Handler handler) {
+    return addStreamingRoute(route, handler, HttpMethod.POST);
+  }
+
+  /**
+   * Binds a handler for PUT requests with a streaming request body to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a PUT handler for the route.
+   * @see #addStreamingRoute(String, Handler, HttpMethod)
+   */
+  default Routes putStreaming(String route, Handler handler) {
+    return addStreamingRoute(route, handler, HttpMethod.PUT);
+  }
+
+  /**
+   * Binds a handler with a streaming request body for the given method to the given route. Rather
+   * than being invoked once the whole body has been read into memory, the handler is invoked as
+   * soon as the request headers are read, and reads the body as it arrives with {@link
+   * XrpcRequest#bodyPublisher()}. Reading from the connection is paused while the subscriber has no
+   * outstanding demand. Since the handler is invoked before the body is available, it should either
+   * be an {@link AsyncHandler} or run on a handler executor.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a handler for the given method + route pair.
+   */
+  default Routes addStreamingRoute(String routePattern, Handler handler, HttpMethod method) {
+    Preconditions.checkArgument(routePattern != null, "routePattern must not be null");
+    Preconditions.checkArgument(!routePattern.isEmpty(), "routePattern must not be empty");
+    Preconditions.checkArgument(handler != null, "handler must not be null");
+    Preconditions.checkArgument(method != null, "method must not be null");
+
+    return addRoute(
+        Route.builder()
+            .method(method)
+            .path(RoutePath.build(routePattern))
+            .handler(handler)
+            .streamingBody(true)
+            .build());
+  }
+
+  /**
+   * Binds a handler for POST requests with a spooled request body to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a POST handler for the route.
+   * @see #addUploadRoute(String, Handler, HttpMethod)
+   */
+  default Routes postUpload(String route, Handler handler) {
+    return addUploadRoute(route, handler, HttpMethod.POST);
+  }
+
+  /**
+   * Binds a handler for PUT requests with a spooled request body to the given route.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a PUT handler for the route.
+   * @see #addUploadRoute(String, Handler, HttpMethod)
+   */
+  default Routes putUpload(String route, Handler handler) {
+    return addUploadRoute(route, handler, HttpMethod.PUT);
+  }
+
+  /**
+   * Binds a handler for large uploads for the given method to the given route. Rather than being
+   * aggregated in memory, the request body is spooled as it is read: each part of a
+   * multipart/form-data body, or the whole of any other body, is held in memory up to the
+   * configured threshold and written to a temporary file beyond it. The handler is invoked once the
+   * whole body has been spooled, and reads it with {@link XrpcRequest#uploads()}. The temporary
+   * files are deleted once the handler's response has been written. Uploads are limited by the
+   * uploads.max_bytes setting rather than max_payload_bytes.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a handler for the given method + route pair.
+   */
+  default Routes addUploadRoute(String routePattern, Handler handler, HttpMethod method) {
+    Preconditions.checkArgument(routePattern != null, "routePattern must not be null");
+    Preconditions.checkArgument(!routePattern.isEmpty(), "routePattern must not be empty");
+    Preconditions.checkArgument(handler != null, "handler must not be null");
+    Preconditions.checkArgument(method != null, "method must not be null");
+
+    return addRoute(
+        Route.builder()
+            .method(method)
+            .path(RoutePath.build(routePattern))
+            .handler(handler)
+            .spooledBody(true)
+            .build());
+  }
+
+  /**
+   * Binds a reverse proxy to the given path prefix, forwarding every request under it to an
+   * upstream HTTP/1.1 server. The prefix is replaced by the path of the upstream URL: with the
+   * prefix "/legacy" and upstream "http://legacy:8080/api", a request for "/legacy/users?id=1" is
+   * forwarded as "/api/users?id=1". Requests arriving over HTTP/1 or HTTP/2 are forwarded on pooled
+   * connections served by the request connection's event loop, and bodies are streamed through as
+   * they arrive, without being aggregated or copied. Hop-by-hop headers are dropped, Host is set to
+   * the upstream's, X-Forwarded-For, -Proto and -Host are added, and Location headers pointing into
+   * the upstream are rewritten to point under the prefix. If the upstream can't be reached, or
+   * fails before responding, the response is 502 (bad gateway).
+   *
+   * @param prefix the path prefix, such as "/legacy"; "/" proxies every path
+   * @param upstream the http URL to forward requests to
+   * @return this builder
+   * @throws IllegalArgumentException if the prefix is null, doesn't start with "/", or holds a path
+   *     variable; if the upstream isn't an http URL; or if there is already a handler for the
+   *     prefix.
+   */
+  default Routes proxy(String prefix, String upstream) {
+    Preconditions.checkArgument(prefix != null, "prefix must not be null");
+    Preconditions.checkArgument(prefix.startsWith("/"), "prefix must start with /");
+    Preconditions.checkArgument(prefix.indexOf('{') < 0, "prefix must not hold path variables");
+    Preconditions.checkArgument(upstream != null, "upstream must not be null");
+
+    String trimmedPrefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+    Handler handler = new ProxyHandler(trimmedPrefix, URI.create(upstream));
+    RoutePath path =
+        RoutePath.build(trimmedPrefix + "{" + ProxyHandler.PATH_VARIABLE + ":(?:/.*)?}");
+    for (HttpMethod method :
+        new HttpMethod[] {
+          HttpMethod.GET,
+          HttpMethod.HEAD,
+          HttpMethod.POST,
+          HttpMethod.PUT,
+          HttpMethod.PATCH,
+          HttpMethod.DELETE,
+          HttpMethod.OPTIONS
+        }) {
+      // Responses pass through as the upstream encoded them.
+      addRoute(
+          Route.builder()
+              .method(method)
+              .path(path)
+              .handler(handler)
+              .streamingBody(true)
+              .uncompressed(true)
+              .build());
+    }
+    return this;
+  }
+
+  /**
+   * Binds a batch handler for POST requests to the given route, accepting up to 100 calls per
+   * batch.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if the route is null or empty, or if there is already a POST
+   *     handler for the route.
+   * @see #batch(String, int)
+   */
+  default Routes batch(String route) {
+    return batch(route, BatchHandler.DEFAULT_MAX_CALLS);
+  }
+
+  /**
+   * Binds a batch handler for POST requests to the given route. A batch request's body is a {@link
+   * com.nordstrom.xrpc.server.proto.BatchRequest}: a list of calls, each with a method, path,
+   * headers and body. (A JSON body may be just the list of calls.) Each call is routed and handled
+   * in-process, sharing the batch request's connection, and is metered, filtered and rate limited
+   * like any other request from the batch request's client; calls to asynchronous handlers run
+   * concurrently. The response is a {@link com.nordstrom.xrpc.server.proto.BatchResponse} holding
+   * each call's status, headers and body, in order, encoded as negotiated by the batch request. In
+   * JSON, bodies are base64-encoded. Calls don't inherit the batch request's headers, other than
+   * the forwarding headers identifying its client, and can't be answered with a streamed response.
+   * Calls to a batch route are answered with 400.
+   *
+   * @param maxCalls the most calls a batch may hold; larger batches are rejected with 400
+   * @return this builder
+   * @throws IllegalArgumentException if the route is null or empty; if maxCalls isn't positive; or
+   *     if there is already a POST handler for the route.
+   */
+  default Routes batch(String route, int maxCalls) {
+    return addRoute(route, new BatchHandler(maxCalls), HttpMethod.POST);
+  }
+
+  /**
+   * Binds a handler for a unary gRPC method, called by gRPC clients over HTTP/2. The method is
+   * named by its full name, such as "helloworld.Greeter/SayHello", and its request and response
+   * messages are encoded with the server's protobuf codec, or the codec for another content subtype
+   * such as application/grpc+json. Handlers which block should be run on a route executor.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if the method, request type or handler is null; if the method
+   *     is empty; or if there is already a handler for the method.
+   */
+  default <Req> Routes grpcUnary(
+      String method, Class<Req> requestType, GrpcUnaryHandler<Req, ?> handler) {
+    return grpcUnary(method, requestType, handler, null);
+  }
+
+  /**
+   * Binds a handler for a unary gRPC method, running the handler on the named handler executor
+   * instead of on the event loop.
+   *
+   * @param executor the name of the handler executor, or null to run on the event loop
+   * @return this builder
+   * @throws IllegalArgumentException if the method, request type or handler is null; if the method
+   *     is empty; or if there is already a handler for the method.
+   * @see #grpcUnary(String, Class, GrpcUnaryHandler)
+   */
+  default <Req> Routes grpcUnary(
+      String method, Class<Req> requestType, GrpcUnaryHandler<Req, ?> handler, String executor) {
+    Preconditions.checkArgument(method != null, "method must not be null");
+    Preconditions.checkArgument(!method.isEmpty(), "method must not be empty");
+    Preconditions.checkArgument(requestType != null, "requestType must not be null");
+    Preconditions.checkArgument(handler != null, "handler must not be null");
+
+    return addGrpcRoute(method, GrpcCalls.unary(requestType, handler), executor);
+  }
+
+  /**
+   * Binds a handler for a server-streaming gRPC method, whose responses are published as a stream
+   * of messages.
+   *
+   * @return this builder
+   * @throws IllegalArgumentException if the method, request type or handler is null; if the method
+   *     is empty; or if there is already a handler for the method.
+   * @see #grpcUnary(String, Class, GrpcUnaryHandler)
+   */
+  default <Req> Routes grpcServerStreaming(
+      String method, Class<Req> requestType, GrpcServerStreamingHandler<Req, ?> handler) {
+    return grpcServerStreaming(method, requestType, handler, null);
+  }
+
+  /**
+   * Binds a handler for a server-streaming gRPC method, running the handler on the named handler
+   * executor instead of on the event loop. Only the call to the handler runs on the executor; its
+   * messages are published on whichever thread the handler's publisher uses.
+   *
+   * @param executor the name of the handler executor, or null to run on the event loop
+   * @return this builder
+   * @throws IllegalArgumentException if the method, request type or handler is null; if the method
+   *     is empty; or if there is already a handler for the method.
+   * @see #grpcServerStreaming(String, Class, GrpcServerStreamingHandler)
+   */
+  default <Req> Routes grpcServerStreaming(
+      String method,
+      Class<Req> requestType,
+      GrpcServerStreamingHandler<Req, ?> handler,
+      String executor) {
+    Preconditions.checkArgument(method != null, "method must not be null");
+    Preconditions.checkArgument(!method.isEmpty(), "method must not be empty");
+    Preconditions.checkArgument(requestType != null, "requestType must not be null");
+    Preconditions.checkArgument(handler != null, "handler must not be null");
+
+    return addGrpcRoute(method, GrpcCalls.serverStreaming(requestType, handler), executor);
+  }
+
+  /**
+   * Binds the handler for a gRPC method. gRPC messages are compressed per message, if at all, so
+   * responses are exempt from HTTP content encoding.
+   */
+  private Routes addGrpcRoute(String method, Handler handler, String executor) {
+    return addRoute(
+        Route.builder()
+            .method(HttpMethod.POST)
+            .path(RoutePath.build("/" + method))
+            .handler(handler)
+            .executor(executor)
+            .uncompressed(true)
+            .build());
+  }
+
   /**
    * Binds a handler for the given method to the given route.
    *
@@ -130,6 +561,23 @@ public interface Routes extends Iterable<Route> {
    *     or if there is already a handler for the given method + route pair.
    */
   default Routes addRoute(String routePattern, Handler handler, HttpMethod method) {
+    return addRoute(routePattern, handler, method, null);
+  }
+
+  /**
+   * Binds a handler for the given method to the given route, running the handler on the named
+   * handler executor instead of on the event loop. Use this for handlers which block, for example
+   * on JDBC or file IO. Executors are declared in the {@code handler_executors} section of the
+   * server configuration, or registered with {@link Server#handlerExecutor(String,
+   * HandlerExecutor)}.
+   *
+   * @param executor the name of the handler executor, or null to run on the event loop
+   * @return this builder
+   * @throws IllegalArgumentException if either the route or handler is null; if the route is empty;
+   *     or if there is already a handler for the given method + route pair.
+   */
+  default Routes addRoute(
+      String routePattern, Handler handler, HttpMethod method, String executor) {
     Preconditions.checkArgument(routePattern != null, "routePattern must not be null");
     Preconditions.checkArgument(!routePattern.isEmpty(), "routePattern must not be empty");
     Preconditions.checkArgument(handler != null, "handler must not be null");
@@ -137,7 +585,7 @@ public interface Routes extends Iterable<Route> {
 
     RoutePath routePath = RoutePath.build(routePattern);
 
-    addRoute(new Route(method, routePath, handler));
+    addRoute(new Route(method, routePath, handler, executor));
     return this;
   }
 
@@ -18,6 +18,7 @@ package com.nordstrom.xrpc.server;
 
 import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Slf4jReporter;
 import com.codahale.metrics.health.HealthCheck;
@@ -32,6 +33,7 @@ import com.nordstrom.xrpc.encoding.Decoders;
 import com.nordstrom.xrpc.encoding.Encoders;
 import com.nordstrom.xrpc.encoding.JsonDecoder;
 import com.nordstrom.xrpc.encoding.JsonEncoder;
+import com.nordstrom.xrpc.encoding.NdjsonEncoder;
 import com.nordstrom.xrpc.encoding.ProtoDecoder;
 import com.nordstrom.xrpc.encoding.ProtoDefaultInstances;
 import com.nordstrom.xrpc.encoding.ProtoEncoder;
@@ -42,13 +44,21 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.ssl.SslContext;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.experimental.Accessors;
@@ -72,8 +82,21 @@ public class Server implements Routes {
   @Getter private final int port;
 
   @Getter private Channel channel;
+
+  /** The channels of the SO_REUSEPORT listeners bound after the first, which is channel. */
+  private final List<Channel> reusePortChannels = new ArrayList<>();
+
+  /** The channel listening on the configured Unix domain socket, or null if there's none. */
+  @Getter private Channel domainSocketChannel;
+
+  /** The channel of the admin listener, or null if admin routes are served with the others. */
+  @Getter private Channel adminChannel;
+
   @Getter private final HealthCheckRegistry healthCheckRegistry;
 
+  /** Handler executors registered in code, by name. These take precedence over configuration. */
+  private final Map<String, HandlerExecutor> handlerExecutors = new HashMap<>();
+
   /** Construct a server with the default configuration. */
   public Server() {
     this(new XConfig(ConfigFactory.empty()), -1);
@@ -125,10 +148,33 @@ public class Server implements Routes {
     this.contextBuilder =
         ServerContext.builder()
             .requestMeter(metricRegistry.meter("requests"))
+            .http1RequestMeter(metricRegistry.meter(MetricRegistry.name("requests", "http1")))
+            .http2RequestMeter(metricRegistry.meter(MetricRegistry.name("requests", "http2")))
+            .responseCompression(config.responseCompression())
+            .responseCompressionMinBytes(config.responseCompressionMinBytes())
+            .responseCompressionLevel(config.responseCompressionLevel())
+            .requestDecompression(config.requestDecompression())
+            .compressionDictionaries(config.compressionDictionaries())
+            .http2Settings(config.http2Settings())
+            .http2ConnectionWindowSize(config.http2ConnectionWindowSize())
+            .http2BdpAutotuning(config.http2BdpAutotuning())
+            .http2MaxWindowSize(config.http2MaxWindowSize())
+            .http2WindowSizes(metricRegistry.histogram("http2WindowSizes"))
+            .altSvc(config.altSvc())
+            .http1FastCodec(config.http1FastCodec())
+            .clientAddresses(config.clientAddresses())
+            .uploadMaxBytes(config.uploadMaxBytes())
+            .uploadMemoryThresholdBytes(config.uploadMemoryThresholdBytes())
+            .uploadTempDir(config.uploadTempDir())
+            .sseMaxBufferedBytes(config.sseMaxBufferedBytes())
+            .sseHeartbeatInterval(config.sseHeartbeatInterval())
+            .webSocketMaxOutboundQueueBytes(config.webSocketMaxOutboundQueueBytes())
+            .webSocketCompression(config.webSocketPermessageDeflate())
             .encoders(
                 Encoders.builder()
                     .defaultContentType(config.defaultContentType())
                     .encoder(new JsonEncoder(mapper, printer))
+                    .encoder(new NdjsonEncoder(mapper, printer))
                     // TODO (AD): For now we won't support text/plain encoding.
                     // Leaving this here as a placeholder.
                     // .encoder(new TextEncoder())
@@ -174,6 +220,7 @@ public class Server implements Routes {
     namesByCode.put(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "payloadTooLarge");
     namesByCode.put(HttpResponseStatus.TOO_MANY_REQUESTS, "tooManyRequests");
     namesByCode.put(HttpResponseStatus.INTERNAL_SERVER_ERROR, "serverError");
+    namesByCode.put(HttpResponseStatus.SERVICE_UNAVAILABLE, "serviceUnavailable");
 
     // Create the proper metrics containers.
     for (Map.Entry<HttpResponseStatus, String> entry : namesByCode.entrySet()) {
@@ -190,6 +237,14 @@ public class Server implements Routes {
     contextBuilder.exceptionHandler(handler);
   }
 
+  /**
+   * Registers a handler executor which routes can run on by name. This replaces any executor of the
+   * same name in the {@code handler_executors} configuration.
+   */
+  public void handlerExecutor(String name, HandlerExecutor executor) {
+    handlerExecutors.put(name, executor);
+  }
+
   public void addHealthCheck(String name, HealthCheck check) {
     healthCheckRegistry.register(name, check);
   }
@@ -212,27 +267,68 @@ public class Server implements Routes {
    * @throws IOException throws in the event the network services, as specified, cannot be accessed
    */
   public void listenAndServe() throws IOException {
-    // Finalize the routes this serves.
+    // Finalize the routes this serves. An admin listener serves the admin routes alone.
+    RouteBuilder adminRoutes = config.adminPort() >= 0 ? new RouteBuilder() : routeBuilder;
     if (config.adminRoutesEnableInfo()) {
-      AdminHandlers.registerInfoAdminRoutes(this);
+      AdminHandlers.registerInfoAdminRoutes(adminRoutes, this);
     }
     if (config.adminRoutesEnableUnsafe()) {
-      AdminHandlers.registerUnsafeAdminRoutes(this);
+      AdminHandlers.registerUnsafeAdminRoutes(adminRoutes, this);
     }
 
-    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+    config.routeExecutors().forEach(routeBuilder::executor);
+    // Only the configured executors which routes run on are created, so that the others start no
+    // threads and register no metrics.
+    Set<String> usedExecutors = new HashSet<>();
+    routeBuilder.forEach(
+        route -> {
+          if (route.executor() != null) {
+            usedExecutors.add(route.executor());
+          }
+        });
+    config
+        .handlerExecutors()
+        .forEach(
+            (name, executorConfig) -> {
+              if (usedExecutors.contains(name)) {
+                handlerExecutors.computeIfAbsent(
+                    name, k -> HandlerExecutor.create(name, executorConfig, metricRegistry));
+              }
+            });
+    contextBuilder.routes(routeBuilder.compile(metricRegistry, handlerExecutors));
 
     ServerContext ctx = contextBuilder.build();
+    ServerContext adminCtx = null;
+    if (adminRoutes != routeBuilder) {
+      // Admin routes run on the admin event loops, rather than on any handler executor.
+      adminCtx = contextBuilder.routes(adminRoutes.compile(metricRegistry)).build();
+    }
 
+    ServiceRateLimiter rateLimiter = new ServiceRateLimiter(metricRegistry, config, ctx);
+    WhiteListFilter whiteListFilter =
+        new WhiteListFilter(metricRegistry, config.ipWhiteList(), config.clientAddresses());
+    BlackListFilter blackListFilter =
+        new BlackListFilter(metricRegistry, config.ipBlackList(), config.clientAddresses());
+    ClientFilter clientFilter = null;
+    if (config.clientAddresses().trustsProxies()) {
+      // As for connections, the white list takes precedence over the black list.
+      clientFilter =
+          new ClientFilter(
+              config.clientAddresses(),
+              rateLimiter,
+              config.enableWhiteList() ? whiteListFilter : null,
+              !config.enableWhiteList() && config.enableBlackList() ? blackListFilter : null);
+    }
     State state =
         State.builder()
             .config(config)
             .globalConnectionLimiter(
                 new ConnectionLimiter(
                     metricRegistry, config.maxConnections())) // All endpoints for a given service
-            .rateLimiter(new ServiceRateLimiter(metricRegistry, config, ctx))
-            .whiteListFilter(new WhiteListFilter(metricRegistry, config.ipWhiteList()))
-            .blackListFilter(new BlackListFilter(metricRegistry, config.ipBlackList()))
+            .rateLimiter(rateLimiter)
+            .whiteListFilter(whiteListFilter)
+            .blackListFilter(blackListFilter)
+            .clientFilter(clientFilter)
             .firewall(new Firewall(metricRegistry))
             .sslContext(sslContext)
             .h1h2(
@@ -240,14 +336,13 @@ public class Server implements Routes {
                     new UrlRouter(), ctx, config.corsConfig(), config.maxPayloadBytes()))
             .build();
 
-    ServerBootstrap b =
-        XrpcBootstrapFactory.buildBootstrap(
-            config.bossThreadCount(), config.workerThreadCount(), config.workerNameFormat());
+    ServerBootstrap b = XrpcBootstrapFactory.buildBootstrap(config);
 
-    b.childHandler(initializer(state));
+    ChannelInitializer<Channel> initializer = initializer(state);
+    b.childHandler(initializer);
 
     InetSocketAddress address = new InetSocketAddress(port);
-    ChannelFuture future = b.bind(address);
+    ChannelFuture future = bind(b, address, "listener0");
 
     try {
       // Build out the loggers that are specified in the config
@@ -290,6 +385,104 @@ public class Server implements Routes {
     channel = future.channel();
     InetSocketAddress actualAddress = (InetSocketAddress) channel.localAddress();
     log.info("Listening at {}", actualAddress.getAddress().getCanonicalHostName());
+
+    try {
+      // Further SO_REUSEPORT listeners share the port the first was bound to.
+      InetSocketAddress reusedAddress = new InetSocketAddress(actualAddress.getPort());
+      int listenerCount = XrpcBootstrapFactory.listenerCount(config, b);
+      for (int i = 1; i < listenerCount; i++) {
+        ChannelFuture listenerFuture =
+            bind(b, reusedAddress, "listener" + i).awaitUninterruptibly();
+        if (!listenerFuture.isSuccess()) {
+          throw new IOException("Failed to bind listener " + i, listenerFuture.cause());
+        }
+        reusePortChannels.add(listenerFuture.channel());
+      }
+      if (listenerCount > 1) {
+        log.info("Accepting on {} SO_REUSEPORT listeners", listenerCount);
+      }
+
+      if (config.unixSocketPath() != null) {
+        listenOnDomainSocket(b, initializer, config.unixSocketPath());
+      }
+      if (adminCtx != null) {
+        listenOnAdminPort(state, adminCtx);
+      }
+    } catch (IOException | RuntimeException e) {
+      reusePortChannels.forEach(Channel::close);
+      if (domainSocketChannel != null) {
+        domainSocketChannel.close();
+      }
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Binds a socket with the given bootstrap, metering the connections it accepts as
+   * "accepts.[listener]".
+   */
+  private ChannelFuture bind(ServerBootstrap b, SocketAddress address, String listener) {
+    Meter accepts = metricRegistry.meter(MetricRegistry.name("accepts", listener));
+    return b.clone().handler(new AcceptMeter(accepts)).bind(address);
+  }
+
+  /**
+   * Listens on the Unix domain socket at the given path, serving the same pipeline as the given TCP
+   * bootstrap.
+   */
+  private void listenOnDomainSocket(
+      ServerBootstrap tcpBootstrap, ChannelInitializer<Channel> initializer, String path)
+      throws IOException {
+    ServerBootstrap b = XrpcBootstrapFactory.buildDomainSocketBootstrap(tcpBootstrap);
+    b.childHandler(initializer);
+
+    // The socket file of a server which didn't shut down cleanly would fail the bind.
+    Files.deleteIfExists(Paths.get(path));
+    ChannelFuture future =
+        bind(b, new DomainSocketAddress(path), "unixSocket").awaitUninterruptibly();
+    if (!future.isSuccess()) {
+      throw new IOException("Failed to bind " + path, future.cause());
+    }
+
+    domainSocketChannel = future.channel();
+    log.info("Listening at unix:{}", path);
+  }
+
+  /**
+   * Listens on the admin port with the admin routes of the given context. Admin connections get the
+   * same IP filters, per forwarded request too, and TLS context, if admin_routes.use_tls is set, as
+   * those of the given state, but skip its connection and rate limiters.
+   */
+  private void listenOnAdminPort(State state, ServerContext adminCtx) throws IOException {
+    State adminState =
+        State.builder()
+            .config(config)
+            .admin(true)
+            .whiteListFilter(state.whiteListFilter())
+            .blackListFilter(state.blackListFilter())
+            .clientFilter(
+                state.clientFilter() == null ? null : state.clientFilter().withoutRateLimiter())
+            .firewall(state.firewall())
+            .sslContext(config.adminUseTls() ? sslContext : null)
+            .h1h2(
+                new Http2OrHttpHandler(
+                    new UrlRouter(), adminCtx, config.corsConfig(), config.maxPayloadBytes()))
+            .build();
+    ServerBootstrap b = XrpcBootstrapFactory.buildAdminBootstrap(config);
+    b.childHandler(initializer(adminState));
+
+    ChannelFuture future =
+        bind(b, new InetSocketAddress(config.adminPort()), "admin").awaitUninterruptibly();
+    if (!future.isSuccess()) {
+      b.config().group().shutdownGracefully();
+      throw new IOException("Failed to bind admin port " + config.adminPort(), future.cause());
+    }
+
+    adminChannel = future.channel();
+    log.info(
+        "Serving admin routes on port {}",
+        ((InetSocketAddress) adminChannel.localAddress()).getPort());
   }
 
   public String localEndpoint() {
@@ -297,7 +490,42 @@ public class Server implements Routes {
     return String.format("https://127.0.0.1:%d", actualAddress.getPort());
   }
 
+  /**
+   * Returns the endpoint of the Unix domain socket this is listening on, such as
+   * "unix:///run/xrpc.sock", or null if there's none.
+   */
+  public String localDomainSocketEndpoint() {
+    if (domainSocketChannel == null) {
+      return null;
+    }
+    return "unix://" + ((DomainSocketAddress) domainSocketChannel.localAddress()).path();
+  }
+
+  /**
+   * Returns the endpoint of the admin listener, such as "http://127.0.0.1:9090", or null if admin
+   * routes are served with the others.
+   */
+  public String localAdminEndpoint() {
+    if (adminChannel == null) {
+      return null;
+    }
+    return String.format(
+        "%s://127.0.0.1:%d",
+        config.adminUseTls() && sslContext != null ? "https" : "http",
+        ((InetSocketAddress) adminChannel.localAddress()).getPort());
+  }
+
   public void shutdown() {
+    if (adminChannel != null && adminChannel.isOpen()) {
+      adminChannel.close();
+      // The admin listener's event loops are its own.
+      adminChannel.eventLoop().parent().shutdownGracefully();
+    }
+    reusePortChannels.forEach(Channel::close);
+    if (domainSocketChannel != null && domainSocketChannel.isOpen()) {
+      // This also removes the socket file.
+      domainSocketChannel.close();
+    }
     if (channel == null || !channel.isOpen()) {
       return;
     }
@@ -309,6 +537,7 @@ public class Server implements Routes {
               if (!future.isSuccess()) {
                 log.warn("Error shutting down server", future.cause());
               }
+              handlerExecutors.values().forEach(HandlerExecutor::shutdown);
               synchronized (Server.this) {
                 // TODO(JR): We should probably be more thoughtful here.
                 shutdown();
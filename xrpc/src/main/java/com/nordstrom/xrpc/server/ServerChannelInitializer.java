@@ -20,6 +20,8 @@ import com.nordstrom.xrpc.logging.ExceptionLogger;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.unix.DomainSocketChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -43,8 +45,18 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
             state.config().readerIdleTimeout(),
             state.config().writerIdleTimeout(),
             state.config().allIdleTimeout()));
-    cp.addLast("serverConnectionLimiter", state.globalConnectionLimiter());
-    cp.addLast("serverRateLimiter", state.rateLimiter());
+    if (state.config().proxyProtocol() && !state.admin()) {
+      // The handlers after these see the connection become active once its header is read.
+      cp.addLast("proxyProtocolDecoder", new HAProxyMessageDecoder());
+      cp.addLast("proxyProtocol", new ProxyProtocolHandler());
+    }
+    if (state.clientFilter() != null) {
+      ch.attr(ClientFilter.ATTRIBUTE_KEY).set(state.clientFilter());
+    }
+    if (!state.admin()) {
+      cp.addLast("serverConnectionLimiter", state.globalConnectionLimiter());
+      cp.addLast("serverRateLimiter", state.rateLimiter());
+    }
 
     if (state.config().enableWhiteList()) {
       cp.addLast("whiteList", state.whiteListFilter());
@@ -53,8 +65,14 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
     }
 
     cp.addLast("firewall", state.firewall());
-    cp.addLast("encryptionHandler", state.sslContext().newHandler(ch.alloc()));
-    cp.addLast("codec", state.h1h2());
+    // Unix domain sockets only reach clients on the same host, so they're always cleartext.
+    if (state.sslContext() != null && !(ch instanceof DomainSocketChannel)) {
+      cp.addLast("encryptionHandler", state.sslContext().newHandler(ch.alloc()));
+      cp.addLast("codec", state.h1h2());
+    } else {
+      // The protocol handlers are named "codec", as with TLS, once this has chosen the protocol.
+      cp.addLast("cleartext", new CleartextHttp2OrHttpHandler(state.h1h2()));
+    }
     cp.addLast("exceptionLogger", new ExceptionLogger());
   }
 }
@@ -16,12 +16,21 @@
 
 package com.nordstrom.xrpc.server;
 
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
 import com.nordstrom.xrpc.encoding.Decoders;
 import com.nordstrom.xrpc.encoding.Encoders;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.util.AttributeKey;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executor;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Singular;
@@ -37,6 +46,12 @@ public class ServerContext {
       AttributeKey.valueOf("ServerContext");
   private final Meter requestMeter;
 
+  /** Meters the requests read over HTTP/1, which are also marked in requestMeter. */
+  @lombok.Builder.Default private final Meter http1RequestMeter = new Meter();
+
+  /** Meters the requests read over HTTP/2, which are also marked in requestMeter. */
+  @lombok.Builder.Default private final Meter http2RequestMeter = new Meter();
+
   @Singular("meterByStatusCode")
   private final ImmutableMap<HttpResponseStatus, Meter> metersByStatusCode;
 
@@ -48,6 +63,84 @@ public class ServerContext {
 
   private final Decoders decoders;
 
+  /** True if response bodies may be compressed, as negotiated with Accept-Encoding. */
+  private final boolean responseCompression;
+
+  /** Responses known to be smaller than this are never compressed. */
+  @lombok.Builder.Default private final int responseCompressionMinBytes = 1024;
+
+  /** The compression level for responses, from 1 (fastest) to 9 (smallest). */
+  @lombok.Builder.Default private final int responseCompressionLevel = 6;
+
+  /** True if request bodies with a gzip or deflate content coding are decompressed. */
+  private final boolean requestDecompression;
+
+  /**
+   * The dictionaries bodies may be compressed with, by id. Responses are compressed with the
+   * dictionary a client names, and request bodies compressed with one of these are decompressed if
+   * requestDecompression is set.
+   */
+  @lombok.Builder.Default
+  private final ImmutableMap<String, CompressionDictionary> compressionDictionaries =
+      ImmutableMap.of();
+
+  /** The HTTP/2 SETTINGS sent to clients. */
+  @lombok.Builder.Default private final Http2Settings http2Settings = new Http2Settings();
+
+  /** The size of each HTTP/2 connection's flow control window. */
+  @lombok.Builder.Default
+  private final int http2ConnectionWindowSize = Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+
+  /** True if HTTP/2 flow control windows are grown to fit each connection's BDP. */
+  private final boolean http2BdpAutotuning;
+
+  /** The largest HTTP/2 flow control window BDP autotuning may choose. */
+  @lombok.Builder.Default private final int http2MaxWindowSize = 16 * 1024 * 1024;
+
+  /** The HTTP/2 flow control window sizes chosen by BDP autotuning. */
+  @lombok.Builder.Default
+  private final Histogram http2WindowSizes = new Histogram(new ExponentiallyDecayingReservoir());
+
+  /**
+   * The Alt-Svc header value added to every response, advertising another endpoint for the service,
+   * or null to add none.
+   */
+  private final String altSvc;
+
+  /** The maximum size of the events buffered for a Server-Sent Events client. */
+  @lombok.Builder.Default private final int sseMaxBufferedBytes = 1024 * 1024;
+
+  /** How often a Server-Sent Events stream sends a heartbeat while no events are sent. */
+  @lombok.Builder.Default private final Duration sseHeartbeatInterval = Duration.ofSeconds(15);
+
+  /** The maximum size of the messages queued for a WebSocket client. */
+  @lombok.Builder.Default private final int webSocketMaxOutboundQueueBytes = 1024 * 1024;
+
+  /** True if WebSocket connections may negotiate permessage-deflate compression. */
+  private final boolean webSocketCompression;
+
+  /** The maximum size of a request body spooled for an upload route. */
+  @lombok.Builder.Default private final long uploadMaxBytes = 1L << 30;
+
+  /** Each part of a spooled upload is held in memory up to this size, and in a file beyond it. */
+  @lombok.Builder.Default private final int uploadMemoryThresholdBytes = 1024 * 1024;
+
+  /** The directory spooled uploads are written to, or null for the default temporary directory. */
+  private final Path uploadTempDir;
+
+  /**
+   * The executor spooled uploads are written on, since file I/O may block, or null for a shared
+   * pool of daemon threads.
+   */
+  private final Executor uploadExecutor;
+
+  /** True if HTTP/1.1 requests are decoded with {@link FastHttpServerCodec}. */
+  private final boolean http1FastCodec;
+
+  /** Resolves the client of each request, trusting no proxies by default. */
+  @lombok.Builder.Default
+  private final ClientAddresses clientAddresses = new ClientAddresses(ImmutableList.of());
+
   // This can be generated automatically by lombok, but we declare it here to fix a javadoc warning.
   // TODO(jkinkead): Remove once we have delombok integrated (issue #160).
   public static class Builder {}
@@ -29,8 +29,8 @@ import com.nordstrom.xrpc.XrpcConstants;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
 import io.netty.util.internal.PlatformDependent;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -79,21 +79,18 @@ class ServiceRateLimiter extends ChannelDuplexHandler {
     return new RendezvousHash<>(Funnels.stringFunnel(XrpcConstants.DEFAULT_CHARSET), tempPool);
   }
 
-  @Override
-  public void channelActive(ChannelHandlerContext ctx) throws Exception {
-    reqs.mark();
-
-    // Rate Limit per server
-    String remoteAddress =
-        ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
-
+  /**
+   * Acquires a permit from the given client's rate limiters, and returns the attribute marking the
+   * client as hard or soft rate limited if it is over either limit, or null if it isn't.
+   */
+  private AttributeKey<Boolean> acquire(String remoteAddress) {
     if (config.getClientRateLimitOverride().containsKey(remoteAddress)) {
       if (hardLimiterMap.containsKey(remoteAddress)) {
         if (!hardLimiterMap.get(remoteAddress).tryAcquire()) {
           log.debug("Hard Rate limit fired for {}", remoteAddress);
-          ctx.channel().attr(XrpcConstants.XRPC_HARD_RATE_LIMITED).set(Boolean.TRUE);
+          return XrpcConstants.XRPC_HARD_RATE_LIMITED;
         } else if (!softLimiterMap.get(remoteAddress).tryAcquire()) {
-          ctx.channel().attr(XrpcConstants.XRPC_SOFT_RATE_LIMITED).set(Boolean.TRUE);
+          return XrpcConstants.XRPC_SOFT_RATE_LIMITED;
         }
       } else {
         hardLimiterMap.put(
@@ -109,11 +106,35 @@ class ServiceRateLimiter extends ChannelDuplexHandler {
           .get(hardRateLimitHasher.getOne(remoteAddress.getBytes(XrpcConstants.DEFAULT_CHARSET)))
           .tryAcquire()) {
         log.debug("Hard Rate limit fired for " + remoteAddress);
-        ctx.channel().attr(XrpcConstants.XRPC_HARD_RATE_LIMITED).set(Boolean.TRUE);
+        return XrpcConstants.XRPC_HARD_RATE_LIMITED;
       } else if (!softLimiterMap
           .get(softRateLimitHasher.getOne(remoteAddress.getBytes(XrpcConstants.DEFAULT_CHARSET)))
           .tryAcquire()) {
-        ctx.channel().attr(XrpcConstants.XRPC_SOFT_RATE_LIMITED).set(Boolean.TRUE);
+        return XrpcConstants.XRPC_SOFT_RATE_LIMITED;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if a request from the given client, forwarded by a trusted proxy, is within the
+   * client's rate limits.
+   */
+  boolean tryAcquire(String clientAddress) {
+    return acquire(clientAddress) == null;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    reqs.mark();
+
+    // Rate Limit per server. Connections from trusted proxies are limited per request instead, by
+    // the clients they're forwarded for.
+    String remoteAddress = ClientAddresses.of(ctx.channel());
+    if (remoteAddress != null && !config.clientAddresses().isTrusted(remoteAddress)) {
+      AttributeKey<Boolean> limited = acquire(remoteAddress);
+      if (limited != null) {
+        ctx.channel().attr(limited).set(Boolean.TRUE);
       }
     }
 
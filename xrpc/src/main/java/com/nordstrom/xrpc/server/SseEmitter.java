@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.LongMath;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Encoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The sending end of a Server-Sent Events stream for one client. Events may be sent from any
+ * thread; they are encoded immediately, and buffered until the client's connection can take them.
+ *
+ * <p>The buffer is bounded by the {@code sse_max_buffered_bytes} setting. A client which falls so
+ * far behind that an event would overflow the buffer is disconnected: its buffered events are
+ * dropped and its stream is ended, and it is expected to reconnect with the ID of the last event it
+ * received (see {@link #lastEventId()}). While no events are sent, a comment is sent every {@code
+ * sse_heartbeat_interval} to keep intermediaries from timing out the stream, and to detect clients
+ * which have gone away.
+ */
+@Slf4j
+@Accessors(fluent = true)
+public class SseEmitter implements Flow.Publisher<ByteBuf> {
+  public static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+  public static final String LAST_EVENT_ID = "Last-Event-ID";
+
+  private static final Pattern LINE_BREAK = Pattern.compile("\r\n|\r|\n");
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(XrpcConstants.DEFAULT_CHARSET);
+  /** The charset events are encoded in; event streams are always UTF-8. */
+  private static final String EVENT_CHARSET = "utf-8";
+
+  private final EventExecutor executor;
+  private final ByteBufAllocator alloc;
+  private final Encoder encoder;
+  private final long maxBufferedBytes;
+  private final Duration heartbeatInterval;
+
+  /**
+   * The ID of the last event received by the client, from the Last-Event-ID header it sent when
+   * reconnecting; null for a new client.
+   */
+  @Getter private final String lastEventId;
+
+  /** Encoded events waiting to be sent. Guarded by this. */
+  private final Queue<ByteBuf> queue = new ArrayDeque<>();
+  /** Guarded by this. */
+  private long bufferedBytes;
+  /** True once no more events are accepted. Guarded by this. */
+  private boolean closed;
+  /** Guarded by this. */
+  private final List<Runnable> closeListeners = new ArrayList<>();
+
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  /** True if an event has been sent since the last heartbeat tick. */
+  private volatile boolean sentSinceHeartbeat;
+
+  // The remaining state is confined to the event loop.
+  private Flow.Subscriber<? super ByteBuf> subscriber;
+  private long demand;
+  private boolean draining;
+  private boolean terminated;
+  private ScheduledFuture<?> heartbeat;
+
+  SseEmitter(XrpcRequest request) {
+    this(
+        request.eventLoop(),
+        request.alloc(),
+        request.connectionContext().encoders().acceptedEncoder(request.acceptHeader()),
+        request.connectionContext().sseMaxBufferedBytes(),
+        request.connectionContext().sseHeartbeatInterval(),
+        headerString(request.header(LAST_EVENT_ID)));
+  }
+
+  SseEmitter(
+      EventExecutor executor,
+      ByteBufAllocator alloc,
+      Encoder encoder,
+      long maxBufferedBytes,
+      Duration heartbeatInterval,
+      String lastEventId) {
+    this.executor = executor;
+    this.alloc = alloc;
+    this.encoder = encoder;
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.heartbeatInterval = heartbeatInterval;
+    this.lastEventId = lastEventId;
+  }
+
+  private static String headerString(CharSequence header) {
+    return header == null ? null : header.toString();
+  }
+
+  /**
+   * Sends an event with the given data.
+   *
+   * @return false if the event was dropped, because the stream is closed or the client is too far
+   *     behind
+   * @throws IOException if the data can't be encoded
+   */
+  public boolean send(Object data) throws IOException {
+    return send(SseEvent.builder().data(data).build());
+  }
+
+  /**
+   * Sends the given event.
+   *
+   * @return false if the event was dropped, because the stream is closed or the client is too far
+   *     behind
+   * @throws IOException if the data can't be encoded
+   * @throws IllegalArgumentException if the event's id or type contain a line break
+   */
+  public boolean send(SseEvent event) throws IOException {
+    ByteBuf buf = alloc.buffer();
+    try {
+      encode(event, buf);
+    } catch (IOException | RuntimeException e) {
+      buf.release();
+      throw e;
+    }
+    return enqueue(buf, false);
+  }
+
+  /** Ends the stream once the events already sent have been written. */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    scheduleDrain();
+  }
+
+  /** Returns true once the stream no longer accepts events. */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Registers a listener to run once the stream has ended, whether it was closed by the server, the
+   * client went away, or the client fell too far behind. Runs the listener immediately if the
+   * stream has already ended. Listeners run on the event loop, and must not block.
+   */
+  public void onClose(Runnable listener) {
+    synchronized (this) {
+      if (!terminated) {
+        closeListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  /** Returns the response which streams this emitter's events. */
+  HttpResponse response() {
+    StreamingResponse response =
+        new StreamingResponse(HttpResponseStatus.OK, this, EVENT_STREAM_CONTENT_TYPE);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+    return response;
+  }
+
+  /** Ends a stream which will never be sent. */
+  void discard() {
+    if (executor.inEventLoop()) {
+      terminate();
+    } else {
+      executor.execute(this::terminate);
+    }
+  }
+
+  private void encode(SseEvent event, ByteBuf buf) throws IOException {
+    if (event.id() != null) {
+      writeField(buf, "id", event.id());
+    }
+    if (event.event() != null) {
+      writeField(buf, "event", event.event());
+    }
+    if (event.retry() != null) {
+      writeField(buf, "retry", Long.toString(event.retry().toMillis()));
+    }
+    if (event.data() != null) {
+      String data;
+      if (event.data() instanceof CharSequence) {
+        data = event.data().toString();
+      } else {
+        ByteBuf encoded = encoder.encode(alloc.buffer(), EVENT_CHARSET, event.data());
+        try {
+          data = encoded.toString(XrpcConstants.DEFAULT_CHARSET);
+        } finally {
+          encoded.release();
+        }
+      }
+      for (String line : LINE_BREAK.split(data, -1)) {
+        buf.writeCharSequence("data: ", XrpcConstants.DEFAULT_CHARSET);
+        buf.writeCharSequence(line, XrpcConstants.DEFAULT_CHARSET);
+        buf.writeByte('\n');
+      }
+    }
+    buf.writeByte('\n');
+  }
+
+  private static void writeField(ByteBuf buf, String name, String value) {
+    Preconditions.checkArgument(
+        !LINE_BREAK.matcher(value).find(), "%s must not contain line breaks", name);
+    buf.writeCharSequence(name, XrpcConstants.DEFAULT_CHARSET);
+    buf.writeCharSequence(": ", XrpcConstants.DEFAULT_CHARSET);
+    buf.writeCharSequence(value, XrpcConstants.DEFAULT_CHARSET);
+    buf.writeByte('\n');
+  }
+
+  /**
+   * Buffers an encoded event, taking ownership of it. If the event would overflow the buffer, the
+   * stream is ended instead; heartbeats are simply dropped.
+   */
+  private boolean enqueue(ByteBuf buf, boolean isHeartbeat) {
+    boolean overflowed = false;
+    synchronized (this) {
+      if (closed) {
+        buf.release();
+        return false;
+      }
+      if (bufferedBytes + buf.readableBytes() > maxBufferedBytes) {
+        buf.release();
+        if (isHeartbeat) {
+          return false;
+        }
+        overflowed = true;
+        closed = true;
+        releaseQueue();
+      } else {
+        queue.add(buf);
+        bufferedBytes += buf.readableBytes();
+      }
+    }
+    if (overflowed) {
+      log.info("Ending event stream for a client more than {} bytes behind", maxBufferedBytes);
+    } else if (!isHeartbeat) {
+      sentSinceHeartbeat = true;
+    }
+    scheduleDrain();
+    return !overflowed;
+  }
+
+  /** Must be called while holding the lock. */
+  private void releaseQueue() {
+    ByteBuf buf;
+    while ((buf = queue.poll()) != null) {
+      buf.release();
+    }
+    bufferedBytes = 0;
+  }
+
+  private void scheduleDrain() {
+    if (executor.inEventLoop()) {
+      drain();
+    } else if (drainScheduled.compareAndSet(false, true)) {
+      executor.execute(
+          () -> {
+            drainScheduled.set(false);
+            drain();
+          });
+    }
+  }
+
+  /** Passes buffered events to the subscriber while it has demand. */
+  private void drain() {
+    if (subscriber == null || terminated || draining) {
+      return;
+    }
+    draining = true;
+    try {
+      while (!terminated) {
+        ByteBuf next = null;
+        boolean complete = false;
+        synchronized (this) {
+          if (demand > 0) {
+            next = queue.poll();
+          }
+          if (next != null) {
+            bufferedBytes -= next.readableBytes();
+          } else {
+            complete = closed && queue.isEmpty();
+          }
+        }
+        if (next != null) {
+          demand--;
+          subscriber.onNext(next);
+        } else {
+          if (complete) {
+            Flow.Subscriber<? super ByteBuf> completed = subscriber;
+            terminate();
+            completed.onComplete();
+          }
+          return;
+        }
+      }
+    } finally {
+      draining = false;
+    }
+  }
+
+  private void heartbeat() {
+    if (!sentSinceHeartbeat) {
+      enqueue(alloc.buffer(HEARTBEAT.length).writeBytes(HEARTBEAT), true);
+    }
+    sentSinceHeartbeat = false;
+  }
+
+  /** Ends the stream without signalling the subscriber, and runs the close listeners. */
+  private void terminate() {
+    if (terminated) {
+      return;
+    }
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+    }
+    List<Runnable> listeners;
+    synchronized (this) {
+      terminated = true;
+      closed = true;
+      releaseQueue();
+      listeners = new ArrayList<>(closeListeners);
+      closeListeners.clear();
+    }
+    for (Runnable listener : listeners) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        log.error("Error in event stream close listener", e);
+      }
+    }
+  }
+
+  /** Subscribes the streamer for the response. Must be called on the event loop. */
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuf> subscriber) {
+    if (this.subscriber != null || terminated) {
+      subscriber.onSubscribe(new EmitterSubscription(null));
+      subscriber.onError(new IllegalStateException("event stream already subscribed"));
+      return;
+    }
+    this.subscriber = subscriber;
+    if (heartbeatInterval != null && !heartbeatInterval.isZero()) {
+      long intervalMillis = heartbeatInterval.toMillis();
+      heartbeat =
+          executor.scheduleAtFixedRate(
+              this::heartbeat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    subscriber.onSubscribe(new EmitterSubscription(this));
+  }
+
+  /** The subscription of the streamer for the response. Called on the event loop. */
+  private static class EmitterSubscription implements Flow.Subscription {
+    private final SseEmitter emitter;
+
+    EmitterSubscription(SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    @Override
+    public void request(long n) {
+      if (emitter == null || emitter.terminated) {
+        return;
+      }
+      if (n <= 0) {
+        Flow.Subscriber<? super ByteBuf> failed = emitter.subscriber;
+        emitter.terminate();
+        failed.onError(new IllegalArgumentException("request must be positive, was " + n));
+        return;
+      }
+      emitter.demand = LongMath.saturatedAdd(emitter.demand, n);
+      emitter.drain();
+    }
+
+    @Override
+    public void cancel() {
+      if (emitter != null) {
+        emitter.terminate();
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.time.Duration;
+import lombok.Builder;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A server-sent event. Every field is optional; see the <a
+ * href="https://html.spec.whatwg.org/multipage/server-sent-events.html">event stream format</a>.
+ */
+@Value
+@Accessors(fluent = true)
+@Builder(builderClassName = "Builder")
+public class SseEvent {
+  /** The event ID, sent back by reconnecting clients as the Last-Event-ID header. */
+  String id;
+
+  /** The event type; clients treat events without a type as "message" events. */
+  String event;
+
+  /**
+   * The event data. Strings are sent as they are; other objects are encoded with the route's {@link
+   * com.nordstrom.xrpc.encoding.Encoder}.
+   */
+  Object data;
+
+  /** How long clients should wait before reconnecting after the stream is closed. */
+  Duration retry;
+
+  // This can be generated automatically by lombok, but we declare it here to fix a javadoc warning.
+  // TODO(jkinkead): Remove once we have delombok integrated (issue #160).
+  public static class Builder {}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.IOException;
+
+/**
+ * A handler for a Server-Sent Events route. The handler is invoked once per client, on the
+ * connection's event loop, and must not block; it keeps the emitter and sends events to it, from
+ * any thread, for as long as the client stays connected.
+ */
+@FunctionalInterface
+public interface SseHandler extends Handler {
+  /**
+   * Starts the event stream for a client. Events may be sent to the emitter from here, or later.
+   *
+   * @param xrpcRequest the request which opened the stream
+   * @param emitter the emitter for the client's events
+   */
+  void handle(XrpcRequest xrpcRequest, SseEmitter emitter) throws IOException;
+
+  /** Returns a response which streams the events sent to a new emitter. */
+  @Override
+  default HttpResponse handle(XrpcRequest xrpcRequest) throws IOException {
+    SseEmitter emitter = new SseEmitter(xrpcRequest);
+    try {
+      handle(xrpcRequest, emitter);
+    } catch (IOException | RuntimeException e) {
+      emitter.discard();
+      throw e;
+    }
+    return emitter.response();
+  }
+}
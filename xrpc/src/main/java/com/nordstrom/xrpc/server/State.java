@@ -29,6 +29,12 @@ import lombok.experimental.Accessors;
 public class State {
   private final XConfig config;
 
+  /**
+   * Whether this is the state of the admin listener, whose connections skip the connection and rate
+   * limiters and are never PROXY protocol connections. Its limiters are null.
+   */
+  private final boolean admin;
+
   private final ConnectionLimiter globalConnectionLimiter;
 
   private final ServiceRateLimiter rateLimiter;
@@ -37,8 +43,12 @@ public class State {
 
   private final BlackListFilter blackListFilter;
 
+  /** Filters the requests forwarded by trusted proxies, or null if no proxies are trusted. */
+  private final ClientFilter clientFilter;
+
   private final Firewall firewall;
 
+  /** The TLS context, or null if connections are cleartext. */
   private final SslContext sslContext;
 
   private final Http2OrHttpHandler h1h2;
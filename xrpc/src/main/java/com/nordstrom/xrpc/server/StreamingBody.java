@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.math.LongMath;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+
+/**
+ * A request body which is passed to its subscriber as it is read, rather than aggregated in memory.
+ * Chunks are only delivered as the subscriber requests them; while the subscriber has no
+ * outstanding demand, reading is paused through the body's {@link FlowControl}. Subscribers own the
+ * chunks they receive, and must release them.
+ *
+ * <p>All state is confined to the channel's event loop. The producer methods must be called on the
+ * event loop; subscribe, request and cancel may be called from any thread.
+ */
+class StreamingBody implements Flow.Publisher<ByteBuf> {
+  /** Flow control for the connection or stream the body is read from. Called on the event loop. */
+  interface FlowControl {
+    /** Called once a chunk of the given size has been delivered to the subscriber, or discarded. */
+    void consumed(int bytes);
+
+    /** Called when reading should pause (there is no outstanding demand), or resume. */
+    void paused(boolean paused);
+  }
+
+  private final EventExecutor executor;
+  private final FlowControl flowControl;
+  /** The maximum body size the connection accepts. */
+  private final long maxBytes;
+
+  private final Queue<ByteBuf> chunks = new ArrayDeque<>();
+
+  private Flow.Subscriber<? super ByteBuf> subscriber;
+  private long demand;
+  private long bytesReceived;
+  /** True once the last chunk has been received, or the body has failed. */
+  private boolean complete;
+  /** The error to signal to the subscriber, if the body failed or was discarded. */
+  private Throwable error;
+  /** True once chunks are no longer delivered, but released as they're received. */
+  private boolean discarding;
+  /** True once the subscriber has been sent a terminal signal, or has cancelled. */
+  private boolean terminated;
+
+  private boolean paused;
+  private boolean draining;
+
+  StreamingBody(EventExecutor executor, FlowControl flowControl) {
+    this(executor, flowControl, Long.MAX_VALUE);
+  }
+
+  /** Returns a body whose size is checked against maxBytes by the connection reading it. */
+  StreamingBody(EventExecutor executor, FlowControl flowControl, long maxBytes) {
+    this.executor = executor;
+    this.flowControl = flowControl;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the maximum body size the connection accepts. */
+  long maxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Adds a chunk read from the connection, taking ownership of it.
+   *
+   * @return the total number of body bytes received so far
+   */
+  long onData(ByteBuf chunk) {
+    bytesReceived += chunk.readableBytes();
+    if (discarding) {
+      int size = chunk.readableBytes();
+      chunk.release();
+      flowControl.consumed(size);
+    } else {
+      chunks.add(chunk);
+      signal();
+    }
+    return bytesReceived;
+  }
+
+  /** Marks the body as completely read. */
+  void onComplete() {
+    complete = true;
+    signal();
+  }
+
+  /** Fails the body, if it has not been completely read; for example if the connection closed. */
+  void fail(Throwable cause) {
+    if (complete) {
+      return;
+    }
+    complete = true;
+    discarding = true;
+    error = cause;
+    releaseChunks();
+    signal();
+  }
+
+  /**
+   * Releases any chunks which have not been delivered, and discards the rest of the body as it is
+   * read. This is called once the response has been written, since the body can no longer affect
+   * it. A subscriber which has not yet received the whole body is sent a {@link
+   * CancellationException}.
+   */
+  void discard() {
+    if (discarding) {
+      return;
+    }
+    discarding = true;
+    boolean lost = releaseChunks() > 0 || !complete;
+    if (lost && error == null) {
+      error = new CancellationException("the response was sent before the request body was read");
+    }
+    complete = true;
+    signal();
+  }
+
+  /** Returns true if the whole body has been received. */
+  boolean isComplete() {
+    return complete;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuf> newSubscriber) {
+    Objects.requireNonNull(newSubscriber, "subscriber");
+    execute(
+        () -> {
+          if (subscriber != null) {
+            newSubscriber.onSubscribe(new BodySubscription(null));
+            newSubscriber.onError(new IllegalStateException("request body is already subscribed"));
+            return;
+          }
+          subscriber = newSubscriber;
+          subscriber.onSubscribe(new BodySubscription(newSubscriber));
+          signal();
+        });
+  }
+
+  /**
+   * Delivers chunks and terminal signals the subscriber is ready for, then updates flow control.
+   */
+  private void signal() {
+    drain();
+    boolean shouldPause = !complete && !discarding && demand == 0;
+    if (shouldPause != paused) {
+      paused = shouldPause;
+      flowControl.paused(shouldPause);
+    }
+  }
+
+  private void drain() {
+    if (draining || subscriber == null || terminated) {
+      return;
+    }
+    // Subscribers may request more from within onNext; the loop picks up the new demand.
+    draining = true;
+    try {
+      while (demand > 0 && !chunks.isEmpty() && !terminated) {
+        ByteBuf chunk = chunks.poll();
+        demand--;
+        flowControl.consumed(chunk.readableBytes());
+        subscriber.onNext(chunk);
+      }
+      if (!terminated && chunks.isEmpty() && complete) {
+        terminated = true;
+        if (error != null) {
+          subscriber.onError(error);
+        } else {
+          subscriber.onComplete();
+        }
+      }
+    } finally {
+      draining = false;
+    }
+  }
+
+  /** Releases all undelivered chunks, returning how many there were. */
+  private int releaseChunks() {
+    int count = 0;
+    ByteBuf chunk;
+    while ((chunk = chunks.poll()) != null) {
+      int size = chunk.readableBytes();
+      chunk.release();
+      flowControl.consumed(size);
+      count++;
+    }
+    return count;
+  }
+
+  private void execute(Runnable task) {
+    if (executor.inEventLoop()) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+  }
+
+  /** The subscription of a subscriber; inert if the subscriber was rejected. */
+  private class BodySubscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super ByteBuf> owner;
+
+    BodySubscription(Flow.Subscriber<? super ByteBuf> owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    public void request(long n) {
+      execute(
+          () -> {
+            if (owner == null || terminated) {
+              return;
+            }
+            if (n <= 0) {
+              terminated = true;
+              discarding = true;
+              releaseChunks();
+              owner.onError(new IllegalArgumentException("request must be positive, but was " + n));
+            } else {
+              demand = LongMath.saturatedAdd(demand, n);
+            }
+            signal();
+          });
+    }
+
+    @Override
+    public void cancel() {
+      execute(
+          () -> {
+            if (owner == null || terminated) {
+              return;
+            }
+            terminated = true;
+            discarding = true;
+            releaseChunks();
+            signal();
+          });
+    }
+  }
+}
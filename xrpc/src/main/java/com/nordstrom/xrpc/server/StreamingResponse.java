@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+
+import com.nordstrom.xrpc.encoding.Encoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.concurrent.Flow;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * A response whose body is produced incrementally. Elements are pulled from the publisher only
+ * while the connection (or, for HTTP/2, the stream) is writable, encoded as they arrive, and sent
+ * as HTTP/1 chunks or HTTP/2 DATA frames. Create these with {@link ResponseFactory#okStream}.
+ *
+ * <p>If the publisher fails after the headers have been sent, the response is aborted: the HTTP/1
+ * connection is closed, or the HTTP/2 stream is reset. Responses which end with trailers, such as
+ * gRPC responses, report the failure in their trailers instead.
+ */
+@Accessors(fluent = true)
+public class StreamingResponse extends DefaultHttpResponse {
+  /** The elements of the body. */
+  @Getter(AccessLevel.PACKAGE)
+  private final Flow.Publisher<?> elements;
+
+  /** The encoder for the elements; null if the elements are ByteBufs to be sent as they are. */
+  @Getter(AccessLevel.PACKAGE)
+  private final Encoder encoder;
+
+  /** The Accept-Charset header of the request, passed to the encoder. */
+  @Getter(AccessLevel.PACKAGE)
+  private final CharSequence acceptCharset;
+
+  /**
+   * Creates a response whose elements are encoded with the given encoder.
+   *
+   * @param status http status
+   * @param elements the elements of the body
+   * @param encoder encoder for the elements
+   * @param acceptCharset Accept-Charset header of the request
+   */
+  public StreamingResponse(
+      HttpResponseStatus status,
+      Flow.Publisher<?> elements,
+      Encoder encoder,
+      CharSequence acceptCharset) {
+    super(HttpVersion.HTTP_1_1, status);
+    this.elements = elements;
+    this.encoder = encoder;
+    this.acceptCharset = acceptCharset;
+    headers().set(CONTENT_TYPE, encoder.mediaType());
+  }
+
+  /**
+   * Creates a response whose body is the given chunks, in order. The response takes ownership of
+   * each chunk it is passed.
+   *
+   * @param status http status
+   * @param chunks the chunks of the body
+   * @param contentType content type of the response
+   */
+  public StreamingResponse(
+      HttpResponseStatus status, Flow.Publisher<ByteBuf> chunks, CharSequence contentType) {
+    super(HttpVersion.HTTP_1_1, status);
+    this.elements = chunks;
+    this.encoder = null;
+    this.acceptCharset = null;
+    headers().set(CONTENT_TYPE, contentType);
+  }
+
+  /**
+   * Returns the trailers to end the response with, or null to send none. Called once the body has
+   * been written, or with the cause if the publisher or encoder failed; if the body failed and no
+   * trailers are returned, the response is aborted instead.
+   */
+  HttpHeaders trailers(Throwable cause) {
+    return null;
+  }
+
+  /**
+   * Cancels a response which will not be sent, so that the publisher can release its resources.
+   * Must not be called once the response has started streaming.
+   */
+  void cancel() {
+    elements.subscribe(
+        new Flow.Subscriber<Object>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.cancel();
+          }
+
+          @Override
+          public void onNext(Object item) {}
+
+          @Override
+          public void onError(Throwable throwable) {}
+
+          @Override
+          public void onComplete() {}
+        });
+  }
+}
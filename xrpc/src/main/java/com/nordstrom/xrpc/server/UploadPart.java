@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A part of a request body spooled for a route added with {@link Routes#addUploadRoute(String,
+ * Handler, io.netty.handler.codec.http.HttpMethod)}. A multipart body has a part per body part,
+ * such as each field of an HTML form; any other body is a single part. A part is held in memory
+ * while it is small, and written to a temporary file once it grows past the configured threshold.
+ *
+ * <p>Parts are valid until the handler's response has been written, so a response may be sent from
+ * a part's content or file. They are then released, and their temporary files deleted; a handler
+ * which keeps an upload must copy it, or move its file.
+ */
+@Slf4j
+@Accessors(fluent = true)
+public final class UploadPart {
+  /** The name from the part's Content-Disposition header, or null if it has none. */
+  @Getter private final String name;
+
+  /** The filename from the part's Content-Disposition header, or null if it has none. */
+  @Getter private final String filename;
+
+  /** The part's Content-Type, or null if it has none. */
+  @Getter private final String contentType;
+
+  /** The size of the part, in bytes. */
+  @Getter private long length;
+
+  private final int memoryThresholdBytes;
+  private final Path tempDir;
+
+  /** The part's content while it is held in memory; null once it is spooled to a file. */
+  private CompositeByteBuf memory;
+
+  /** The file the part is spooled to, or null while it is held in memory. */
+  private Path file;
+
+  /** The channel the part is written to its file with, until the part is complete. */
+  private FileChannel channel;
+
+  /**
+   * Returns an empty part.
+   *
+   * @param tempDir the directory to write the part's temporary file in, or null for the default
+   */
+  UploadPart(
+      String name,
+      String filename,
+      String contentType,
+      ByteBufAllocator alloc,
+      int memoryThresholdBytes,
+      Path tempDir) {
+    this.name = name;
+    this.filename = filename;
+    this.contentType = contentType;
+    this.memoryThresholdBytes = memoryThresholdBytes;
+    this.tempDir = tempDir;
+    this.memory = alloc.compositeBuffer(Integer.MAX_VALUE);
+  }
+
+  /** Adds a chunk to the end of the part, taking ownership of it. */
+  void write(ByteBuf chunk) throws IOException {
+    length += chunk.readableBytes();
+    if (memory != null && length <= memoryThresholdBytes) {
+      memory.addComponent(true, chunk);
+      return;
+    }
+    try {
+      if (memory != null) {
+        spool();
+      }
+      writeFully(chunk);
+    } finally {
+      chunk.release();
+    }
+  }
+
+  /** Moves the part's content from memory to a new temporary file. */
+  private void spool() throws IOException {
+    file =
+        tempDir == null
+            ? Files.createTempFile("xrpc-upload-", ".tmp")
+            : Files.createTempFile(tempDir, "xrpc-upload-", ".tmp");
+    channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    try {
+      writeFully(memory);
+    } finally {
+      memory.release();
+      memory = null;
+    }
+  }
+
+  private void writeFully(ByteBuf buf) throws IOException {
+    while (buf.isReadable()) {
+      buf.readBytes(channel, buf.readableBytes());
+    }
+  }
+
+  /** Marks the part as complete, closing its file if it has one. */
+  void finish() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /** Releases the part's memory, or deletes its file. */
+  void release() {
+    if (memory != null) {
+      memory.release();
+      memory = null;
+    }
+    if (file != null) {
+      try {
+        finish();
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Failed to delete spooled upload {}", file, e);
+      }
+    }
+  }
+
+  /** Returns true if the part is held in memory, rather than in a file. */
+  public boolean isInMemory() {
+    return memory != null;
+  }
+
+  /**
+   * Returns the temporary file the part is spooled to, or null if it is held in memory. The file is
+   * deleted once the response has been written, unless it has been moved.
+   */
+  public Path file() {
+    return file;
+  }
+
+  /**
+   * Returns the part's content. A part spooled to a file is mapped into memory read-only, rather
+   * than read onto the heap. Reads don't consume the part; each call returns a new view of it,
+   * which the caller owns and must release, for example by sending it as a response body. Parts of
+   * 2GiB or more can only be read with {@link #openStream()}.
+   */
+  public ByteBuf content() throws IOException {
+    if (memory != null) {
+      return memory.retainedDuplicate();
+    }
+    if (file == null) {
+      return Unpooled.EMPTY_BUFFER;
+    }
+    try (FileChannel mapped = FileChannel.open(file, StandardOpenOption.READ)) {
+      return Unpooled.wrappedBuffer(mapped.map(FileChannel.MapMode.READ_ONLY, 0, length));
+    }
+  }
+
+  /** Returns a new stream of the part's content. The caller must close it. */
+  public InputStream openStream() throws IOException {
+    if (memory != null) {
+      return new ByteBufInputStream(memory.duplicate());
+    }
+    return Files.newInputStream(file);
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nordstrom.xrpc.exceptions.BadRequestException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import io.netty.util.ByteProcessor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**
+ * Spools the body of a request to an upload route into {@link UploadPart}s as it is read, splitting
+ * a multipart body into its body parts. The body's chunks are delivered on the channel's event
+ * loop, and spooled in order on an I/O thread, since writing them to a file may block. Only a few
+ * chunks are requested ahead of those spooled, so reading the body pauses while the disk catches
+ * up.
+ */
+final class UploadSpooler implements Flow.Subscriber<ByteBuf> {
+  /** The number of chunks requested ahead of those spooled. */
+  private static final int CHUNKS_REQUESTED_AHEAD = 16;
+
+  /** The maximum size of a body part's headers. */
+  private static final int MAX_PART_HEADERS_BYTES = 8192;
+
+  /** The maximum number of parts in a multipart body. */
+  private static final int MAX_PARTS = 1024;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+  /** Where a multipart body is up to. */
+  private enum State {
+    /** Before the first delimiter. */
+    PREAMBLE,
+    /** After a delimiter, which is either the close delimiter or ends with a line break. */
+    DELIMITER,
+    /** In a body part's headers. */
+    HEADERS,
+    /** In a body part's content. */
+    BODY,
+    /** After the close delimiter. */
+    EPILOGUE
+  }
+
+  private final CompletableFuture<List<UploadPart>> result = new CompletableFuture<>();
+  /** Runs the spooling of each chunk, and of the end of the body, one at a time. */
+  private final Executor executor;
+
+  private final List<UploadPart> parts = new ArrayList<>();
+  private final ByteBufAllocator alloc;
+  private final int memoryThresholdBytes;
+  private final Path tempDir;
+
+  /**
+   * The delimiter before each body part: a line break, "--" and the boundary. null if the body
+   * isn't multipart, and is spooled as a single part.
+   */
+  private final byte[] delimiter;
+
+  /** The multipart body read but not yet spooled. */
+  private final CompositeByteBuf buffer;
+
+  private State state = State.PREAMBLE;
+
+  /** The part being spooled. */
+  private UploadPart part;
+
+  private Flow.Subscription subscription;
+
+  private UploadSpooler(
+      CharSequence contentType,
+      ByteBufAllocator alloc,
+      int memoryThresholdBytes,
+      Path tempDir,
+      Executor ioExecutor) {
+    this.executor = new SerialExecutor(ioExecutor);
+    this.alloc = alloc;
+    this.memoryThresholdBytes = memoryThresholdBytes;
+    this.tempDir = tempDir;
+
+    String type = contentType == null ? null : contentType.toString();
+    if (type != null && type.regionMatches(true, 0, "multipart/", 0, "multipart/".length())) {
+      String boundary = parameter(type, "boundary");
+      if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+        throw new BadRequestException("multipart body has no valid boundary");
+      }
+      delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+      buffer = alloc.compositeBuffer();
+      // The first delimiter needn't follow a line break, if there's no preamble.
+      buffer.addComponent(true, Unpooled.wrappedBuffer(CRLF));
+    } else {
+      delimiter = null;
+      buffer = null;
+      part = newPart(null, null, type);
+    }
+  }
+
+  /**
+   * Spools the given request's body, returning a stage which completes with its parts once the
+   * whole body has been spooled, on the request's event loop. If the body fails, or is malformed,
+   * the stage completes exceptionally and any parts spooled so far are released.
+   */
+  static CompletableFuture<List<UploadPart>> spool(XrpcRequest request) {
+    ServerContext xctx = request.connectionContext();
+    UploadSpooler spooler;
+    try {
+      spooler =
+          new UploadSpooler(
+              request.contentTypeHeader(),
+              request.alloc(),
+              xctx.uploadMemoryThresholdBytes(),
+              xctx.uploadTempDir(),
+              xctx.uploadExecutor() == null ? IoThreads.EXECUTOR : xctx.uploadExecutor());
+    } catch (BadRequestException e) {
+      CompletableFuture<List<UploadPart>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    request.bodyPublisher().subscribe(spooler);
+
+    // Handlers without an executor run on the event loop, as they do for other routes.
+    EventLoop eventLoop = request.upstreamChannel().eventLoop();
+    CompletableFuture<List<UploadPart>> spooled = new CompletableFuture<>();
+    spooler.result.whenComplete(
+        (parts, cause) -> {
+          Runnable settle =
+              () -> {
+                if (cause != null) {
+                  spooled.completeExceptionally(cause);
+                } else {
+                  spooled.complete(parts);
+                }
+              };
+          if (eventLoop.inEventLoop()) {
+            settle.run();
+          } else {
+            eventLoop.execute(settle);
+          }
+        });
+    return spooled;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    // Another chunk is requested as each one is spooled.
+    subscription.request(CHUNKS_REQUESTED_AHEAD);
+  }
+
+  @Override
+  public void onNext(ByteBuf chunk) {
+    executor.execute(() -> write(chunk));
+  }
+
+  @Override
+  public void onError(Throwable cause) {
+    executor.execute(() -> fail(cause));
+  }
+
+  @Override
+  public void onComplete() {
+    executor.execute(this::complete);
+  }
+
+  /** Spools a chunk of the body, then requests another. */
+  private void write(ByteBuf chunk) {
+    if (result.isDone()) {
+      chunk.release();
+      return;
+    }
+    try {
+      if (delimiter == null) {
+        part.write(chunk);
+      } else {
+        buffer.addComponent(true, chunk);
+        parse();
+        buffer.discardReadComponents();
+      }
+    } catch (Exception e) {
+      subscription.cancel();
+      fail(e);
+      return;
+    }
+    subscription.request(1);
+  }
+
+  private void complete() {
+    if (result.isDone()) {
+      return;
+    }
+    try {
+      if (delimiter != null) {
+        buffer.release();
+        if (state != State.EPILOGUE) {
+          throw new BadRequestException("multipart body ended before its close delimiter");
+        }
+      } else {
+        part.finish();
+      }
+      result.complete(parts);
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private void fail(Throwable cause) {
+    if (result.isDone()) {
+      return;
+    }
+    if (buffer != null && buffer.refCnt() > 0) {
+      buffer.release();
+    }
+    parts.forEach(UploadPart::release);
+    result.completeExceptionally(cause);
+  }
+
+  private UploadPart newPart(String name, String filename, String contentType) {
+    if (parts.size() == MAX_PARTS) {
+      throw new BadRequestException("multipart body has more than " + MAX_PARTS + " parts");
+    }
+    UploadPart newPart =
+        new UploadPart(name, filename, contentType, alloc, memoryThresholdBytes, tempDir);
+    parts.add(newPart);
+    return newPart;
+  }
+
+  /** Spools as much of the buffered multipart body as can be. */
+  private void parse() throws Exception {
+    while (true) {
+      int start = buffer.readerIndex();
+      switch (state) {
+        case PREAMBLE:
+          {
+            int index = indexOf(buffer, delimiter, start);
+            if (index < 0) {
+              // Keep what may be the start of a delimiter.
+              buffer.skipBytes(Math.max(0, buffer.readableBytes() - delimiter.length + 1));
+              return;
+            }
+            buffer.readerIndex(index + delimiter.length);
+            state = State.DELIMITER;
+            break;
+          }
+        case DELIMITER:
+          {
+            if (buffer.readableBytes() < 2) {
+              return;
+            }
+            if (buffer.getByte(start) == '-' && buffer.getByte(start + 1) == '-') {
+              state = State.EPILOGUE;
+              break;
+            }
+            // Anything else up to the line break is transport padding.
+            int lineEnd = indexOf(buffer, CRLF, start);
+            if (lineEnd < 0) {
+              checkHeadersSize();
+              return;
+            }
+            buffer.readerIndex(lineEnd + CRLF.length);
+            state = State.HEADERS;
+            break;
+          }
+        case HEADERS:
+          {
+            if (buffer.readableBytes() < CRLF.length) {
+              return;
+            }
+            String headers;
+            if (buffer.getByte(start) == '\r' && buffer.getByte(start + 1) == '\n') {
+              headers = "";
+              buffer.skipBytes(CRLF.length);
+            } else {
+              int end = indexOf(buffer, HEADERS_END, start);
+              if (end < 0) {
+                checkHeadersSize();
+                return;
+              }
+              headers = buffer.toString(start, end - start, StandardCharsets.UTF_8);
+              buffer.readerIndex(end + HEADERS_END.length);
+            }
+            startPart(headers);
+            state = State.BODY;
+            break;
+          }
+        case BODY:
+          {
+            int index = indexOf(buffer, delimiter, start);
+            if (index < 0) {
+              // Spool all but what may be the start of a delimiter.
+              int length = buffer.readableBytes() - delimiter.length + 1;
+              if (length > 0) {
+                part.write(buffer.readBytes(length));
+              }
+              return;
+            }
+            if (index > start) {
+              part.write(buffer.readBytes(index - start));
+            }
+            buffer.readerIndex(index + delimiter.length);
+            part.finish();
+            part = null;
+            state = State.DELIMITER;
+            break;
+          }
+        case EPILOGUE:
+          buffer.skipBytes(buffer.readableBytes());
+          return;
+        default:
+          throw new IllegalStateException("unknown state " + state);
+      }
+    }
+  }
+
+  private void checkHeadersSize() {
+    if (buffer.readableBytes() > MAX_PART_HEADERS_BYTES) {
+      throw new BadRequestException(
+          "multipart body part headers are larger than " + MAX_PART_HEADERS_BYTES + " bytes");
+    }
+  }
+
+  /** Starts a new part with the given headers, as CRLF-separated lines. */
+  private void startPart(String headers) {
+    String disposition = null;
+    String contentType = null;
+    for (String line : headers.split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      String headerName = line.substring(0, colon).trim();
+      if (headerName.equalsIgnoreCase("content-disposition")) {
+        disposition = line.substring(colon + 1).trim();
+      } else if (headerName.equalsIgnoreCase("content-type")) {
+        contentType = line.substring(colon + 1).trim();
+      }
+    }
+    part =
+        newPart(
+            disposition == null ? null : parameter(disposition, "name"),
+            disposition == null ? null : parameter(disposition, "filename"),
+            contentType);
+  }
+
+  /**
+   * Returns the value of the given parameter of a header value such as {@code form-data;
+   * name="field"}, without quotes, or null if it has no such parameter.
+   */
+  static String parameter(String value, String name) {
+    int index = value.indexOf(';');
+    while (index >= 0) {
+      int equals = value.indexOf('=', index + 1);
+      if (equals < 0) {
+        return null;
+      }
+      String parameterName = value.substring(index + 1, equals).trim();
+      int valueStart = equals + 1;
+      while (valueStart < value.length() && value.charAt(valueStart) == ' ') {
+        valueStart++;
+      }
+      String parameterValue;
+      if (valueStart < value.length() && value.charAt(valueStart) == '"') {
+        int quote = value.indexOf('"', valueStart + 1);
+        if (quote < 0) {
+          return null;
+        }
+        parameterValue = value.substring(valueStart + 1, quote);
+        index = value.indexOf(';', quote);
+      } else {
+        index = value.indexOf(';', valueStart);
+        parameterValue = value.substring(valueStart, index < 0 ? value.length() : index).trim();
+      }
+      if (parameterName.equalsIgnoreCase(name)) {
+        return parameterValue;
+      }
+    }
+    return null;
+  }
+
+  /** The threads uploads are spooled on, which are only started once there's an upload. */
+  private static final class IoThreads {
+    static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("xrpc-upload-%d").setDaemon(true).build());
+  }
+
+  /** Runs tasks one at a time, in the order they are submitted, on an underlying executor. */
+  private static final class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    /** True while a task is running, or about to. Guarded by tasks. */
+    private boolean running;
+
+    SerialExecutor(Executor executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      synchronized (tasks) {
+        tasks.add(task);
+        if (running) {
+          return;
+        }
+        running = true;
+      }
+      executor.execute(this::runTasks);
+    }
+
+    private void runTasks() {
+      while (true) {
+        Runnable task;
+        synchronized (tasks) {
+          task = tasks.poll();
+          if (task == null) {
+            running = false;
+            return;
+          }
+        }
+        task.run();
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the first occurrence of the given bytes in buf at or after from, or -1 if
+   * there is none. The bytes must start with a carriage return.
+   */
+  private static int indexOf(ByteBuf buf, byte[] bytes, int from) {
+    int last = buf.writerIndex() - bytes.length;
+    int index = from;
+    while (index <= last) {
+      int cr = buf.forEachByte(index, last - index + 1, ByteProcessor.FIND_CR);
+      if (cr < 0) {
+        return -1;
+      }
+      boolean matched = true;
+      for (int i = 1; i < bytes.length && matched; i++) {
+        matched = buf.getByte(cr + i) == bytes[i];
+      }
+      if (matched) {
+        return cr;
+      }
+      index = cr + 1;
+    }
+    return -1;
+  }
+}
@@ -20,26 +20,80 @@ import com.codahale.metrics.Meter;
 import com.nordstrom.xrpc.XrpcConstants;
 import com.nordstrom.xrpc.client.XUrl;
 import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Routes aggregated HTTP/1.x requests to their handlers. Requests to routes which stream their
+ * request body are routed as soon as their headers are read, and the body content which follows is
+ * passed to the request's {@link StreamingBody}; reading from the connection is paused while the
+ * body's subscriber has no outstanding demand.
+ *
+ * <p>Connections are persistent: responses are written in the order their requests were read, and
+ * are flushed once per read rather than once per response. Whether a connection is kept open after
+ * a response is decided by the {@link io.netty.handler.codec.http.HttpServerKeepAliveHandler}
+ * earlier in the pipeline; idle persistent connections are closed by the {@link
+ * IdleDisconnectHandler}.
+ *
+ * <p>Streaming responses (see {@link StreamingResponse}) are written with chunked transfer
+ * encoding; their bodies are only produced while the channel is writable.
+ *
+ * <p>Handlers may complete their responses asynchronously (see {@link AsyncHandler}). Responses
+ * which complete out of order are held until every earlier response on the connection has been
+ * written.
+ */
 @Slf4j
 @ChannelHandler.Sharable
 public class UrlRouter extends ChannelDuplexHandler {
+  private static final AttributeKey<PendingResponses> PENDING_RESPONSES =
+      AttributeKey.valueOf("XrpcPendingResponses");
 
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpContent && !(msg instanceof FullHttpRequest)) {
+      // Part of a streamed request body.
+      StreamingBody body = pendingResponses(ctx).body;
+      if (body == null) {
+        ctx.fireChannelRead(msg);
+      } else {
+        readBodyContent(ctx, body, (HttpContent) msg);
+      }
+      return;
+    }
+
     ServerContext xctx = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get();
     xctx.requestMeter().mark();
+    xctx.http1RequestMeter().mark();
 
     if (ctx.channel().hasAttr(XrpcConstants.XRPC_SOFT_RATE_LIMITED)) {
+      ReferenceCountUtil.release(msg);
       ctx.writeAndFlush(
               Recipes.newResponse(
                   HttpResponseStatus.TOO_MANY_REQUESTS,
@@ -50,28 +104,401 @@ public class UrlRouter extends ChannelDuplexHandler {
       return;
     }
 
-    if (msg instanceof FullHttpRequest) {
-      FullHttpRequest request = (FullHttpRequest) msg;
-      String path = XUrl.path(request.uri());
-      CompiledRoutes.Match match = xctx.routes().match(path, request.method());
+    if (!(msg instanceof HttpRequest)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+
+    HttpRequest request = (HttpRequest) msg;
+    String path = XUrl.path(request.uri());
+    CompiledRoutes.Match match = xctx.routes().match(path, request.method());
+
+    PendingResponses pending = pendingResponses(ctx);
+    StreamingBody body = null;
+    XrpcRequest xrpcRequest;
+    if (request instanceof FullHttpRequest && !match.isStreamingBody()) {
+      xrpcRequest =
+          new XrpcRequest((FullHttpRequest) request, xctx, match.getGroups(), ctx.channel());
+    } else if (request instanceof FullHttpRequest) {
+      // A request without a body may be decoded whole, even for a streaming route.
+      body = new StreamingBody(ctx.executor(), new ConnectionFlowControl(ctx));
+      ByteBuf content = ((FullHttpRequest) request).content();
+      if (content.isReadable()) {
+        body.onData(content.retain());
+      }
+      body.onComplete();
+      xrpcRequest = new XrpcRequest(request, xctx, match.getGroups(), ctx.channel(), body);
+    } else {
+      // The request aggregator only passes on unaggregated requests for streaming routes.
+      body = new StreamingBody(ctx.executor(), new ConnectionFlowControl(ctx));
+      pending.body = body;
+      if (HttpUtil.is100ContinueExpected(request)) {
+        ctx.writeAndFlush(
+            new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+      }
+      xrpcRequest = new XrpcRequest(request, xctx, match.getGroups(), ctx.channel(), body);
+    }
+
+    pending.reading = true;
+    PendingResponse pendingResponse =
+        new PendingResponse(request, xrpcRequest, body, match.isUncompressed());
+    pending.queue.add(pendingResponse);
+
+    CompletionStage<HttpResponse> response;
+    try {
+      response = ClientFilter.handleAsync(match.getHandler(), xrpcRequest);
+    } catch (IOException | RuntimeException e) {
+      pending.queue.remove(pendingResponse);
+      release(request);
+      if (body != null) {
+        body.discard();
+      }
+      throw e;
+    }
+
+    response.whenComplete(
+        (resp, cause) -> {
+          if (ctx.executor().inEventLoop()) {
+            complete(ctx, pendingResponse, resp, cause);
+          } else {
+            ctx.executor().execute(() -> complete(ctx, pendingResponse, resp, cause));
+          }
+        });
+  }
+
+  /** Passes a part of a streamed request body to the body's subscriber. */
+  private static void readBodyContent(
+      ChannelHandlerContext ctx, StreamingBody body, HttpContent content) {
+    if (content.content().isReadable()) {
+      body.onData(content.content());
+    } else {
+      content.release();
+    }
+    if (content instanceof LastHttpContent) {
+      body.onComplete();
+      pendingResponses(ctx).body = null;
+    }
+  }
 
-      XrpcRequest xrpcRequest = new XrpcRequest(request, xctx, match.getGroups(), ctx.channel());
+  /** Returns the pending responses for the given connection, creating them if needed. */
+  private static PendingResponses pendingResponses(ChannelHandlerContext ctx) {
+    PendingResponses pending = ctx.channel().attr(PENDING_RESPONSES).get();
+    if (pending == null) {
+      pending = new PendingResponses();
+      ctx.channel().attr(PENDING_RESPONSES).set(pending);
+    }
+    return pending;
+  }
 
-      HttpResponse resp = match.getHandler().handle(xrpcRequest);
+  /**
+   * Records a completed response, and writes every response at the head of the connection's queue
+   * which is ready. Must be called on the event loop.
+   */
+  private void complete(
+      ChannelHandlerContext ctx,
+      PendingResponse pendingResponse,
+      HttpResponse response,
+      Throwable cause) {
+    if (cause != null) {
+      // Route handlers convert their own failures into responses, so this is unexpected.
+      log.error("Error completing response", cause);
+      response =
+          Recipes.newResponse(
+              HttpResponseStatus.INTERNAL_SERVER_ERROR,
+              Unpooled.wrappedBuffer(XrpcConstants.INTERNAL_SERVER_ERROR_RESPONSE),
+              Recipes.ContentType.Text_Plain);
+    }
+    PendingResponses pending = pendingResponses(ctx);
+    if (!ctx.channel().isActive()) {
+      // The connection is gone; there's nowhere to write to.
+      release(response);
+      pendingResponse.xrpcRequest.releaseUploads();
+      pending.releaseAll();
+      return;
+    }
+    pendingResponse.response = response;
+    writeReadyResponses(ctx, pending);
+  }
 
-      // TODO(jkinkead): Per issue #152, this should track ALL response codes.
-      Meter meter = xctx.metersByStatusCode().get(resp.status());
-      if (meter != null) {
-        meter.mark();
+  /**
+   * Writes every response at the head of the connection's queue which is ready. Responses after a
+   * streaming response wait until it has been written in full.
+   */
+  private void writeReadyResponses(ChannelHandlerContext ctx, PendingResponses pending) {
+    boolean wrote = false;
+    PendingResponse head;
+    while (pending.streamer == null
+        && (head = pending.queue.peek()) != null
+        && head.response != null) {
+      pending.queue.poll();
+      addAltSvc(ctx, head.response);
+      if (head.uncompressed) {
+        ResponseCompressor compressor = ctx.pipeline().get(ResponseCompressor.class);
+        if (compressor != null) {
+          compressor.exemptNextResponse();
+        }
+      }
+      if (head.response instanceof FileResponse && ctx.pipeline().get(SslHandler.class) == null) {
+        writeFileRegion(ctx, head, (FileResponse) head.response);
+      } else if (head.response instanceof StreamingResponse) {
+        startStreaming(ctx, pending, head, (StreamingResponse) head.response);
+      } else {
+        writeResponse(ctx, head, head.response);
       }
+      if (head.body != null) {
+        // Any of the body which is still unread can no longer affect the response.
+        head.body.discard();
+      }
+      wrote = true;
+    }
+
+    // Responses completed during a read are flushed together in channelReadComplete.
+    if (wrote && !pending.reading) {
+      ctx.flush();
+    }
+  }
+
+  /**
+   * Marks the response status metric, and writes the response for the given request without
+   * flushing it. The request is released once the response has been written.
+   */
+  private void writeResponse(
+      ChannelHandlerContext ctx, PendingResponse pendingResponse, HttpResponse response) {
+    markResponseStatus(ctx, response);
+
+    ChannelFuture future = ctx.write(response);
+    if (!(response instanceof LastHttpContent)) {
+      // Terminate the message so that the next response on this connection can be encoded.
+      future = ctx.write(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+    future.addListener(f -> releaseRequest(pendingResponse));
+  }
+
+  /**
+   * Marks the response status metric, and writes a file response with a {@link DefaultFileRegion},
+   * so that its body is sent without being copied into user space. This is only possible when the
+   * connection isn't encrypted. The region closes the file once written, and the request is
+   * released.
+   */
+  private void writeFileRegion(
+      ChannelHandlerContext ctx, PendingResponse pendingResponse, FileResponse response) {
+    markResponseStatus(ctx, response);
+
+    ctx.write(response);
+    ctx.write(new DefaultFileRegion(response.file(), response.offset(), response.length()));
+    ctx.write(LastHttpContent.EMPTY_LAST_CONTENT).addListener(f -> releaseRequest(pendingResponse));
+  }
+
+  /**
+   * Marks the response status metric, writes the headers of a streaming response using chunked
+   * transfer encoding unless its length is known, and starts streaming its body. Later responses
+   * are written once the body is complete, and the request is released.
+   */
+  private void startStreaming(
+      ChannelHandlerContext ctx,
+      PendingResponses pending,
+      PendingResponse pendingResponse,
+      StreamingResponse response) {
+    markResponseStatus(ctx, response);
+
+    if (!HttpUtil.isContentLengthSet(response)) {
+      HttpUtil.setTransferEncodingChunked(response, true);
+    }
+    ctx.write(response);
+    ResponseStreamer streamer =
+        new ResponseStreamer(
+            response,
+            ctx.channel(),
+            new ChunkedSink(ctx),
+            () -> {
+              pending.streamer = null;
+              releaseRequest(pendingResponse);
+              if (ctx.channel().isActive()) {
+                writeReadyResponses(ctx, pending);
+              }
+            });
+    pending.streamer = streamer;
+    streamer.start();
+  }
+
+  /** Adds the configured Alt-Svc header, if any, to a response. */
+  private static void addAltSvc(ChannelHandlerContext ctx, HttpResponse response) {
+    String altSvc = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get().altSvc();
+    if (altSvc != null) {
+      response.headers().set(XrpcConstants.ALT_SVC_HEADER, altSvc);
+    }
+  }
+
+  private static void markResponseStatus(ChannelHandlerContext ctx, HttpResponse response) {
+    ServerContext xctx = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get();
+    // TODO(jkinkead): Per issue #152, this should track ALL response codes.
+    Meter meter = xctx.metersByStatusCode().get(response.status());
+    if (meter != null) {
+      meter.mark();
+    }
+  }
+
+  /**
+   * Releases the given request, and any uploads spooled from its body. Handlers which return the
+   * request content as the response body retain it.
+   */
+  private static void releaseRequest(PendingResponse pendingResponse) {
+    release(pendingResponse.request);
+    pendingResponse.xrpcRequest.releaseUploads();
+  }
 
-      ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+  /** Releases the given message if it is reference counted. Streaming responses are cancelled. */
+  static void release(Object msg) {
+    if (msg instanceof StreamingResponse) {
+      ((StreamingResponse) msg).cancel();
+    } else {
+      ReferenceCountUtil.release(msg);
     }
-    ctx.fireChannelRead(msg);
   }
 
   @Override
   public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    pendingResponses(ctx).reading = false;
+    // Flush all responses to the requests decoded in this read at once.
+    ctx.flush();
     ctx.fireChannelReadComplete();
   }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    PendingResponses pending = ctx.channel().attr(PENDING_RESPONSES).get();
+    if (pending != null && pending.streamer != null && ctx.channel().isWritable()) {
+      pending.streamer.pump();
+    }
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    PendingResponses pending = ctx.channel().attr(PENDING_RESPONSES).get();
+    if (pending != null) {
+      if (pending.body != null) {
+        pending.body.fail(new ClosedChannelException());
+      }
+      if (pending.streamer != null) {
+        pending.streamer.cancel();
+      }
+      pending.releaseAll();
+    }
+    ctx.fireChannelInactive();
+  }
+
+  /** A request on a connection, and its response once it is available. */
+  private static class PendingResponse {
+    final HttpRequest request;
+    /** The request as passed to its handler. */
+    final XrpcRequest xrpcRequest;
+    /** The request body, if it is streamed. */
+    final StreamingBody body;
+    /** True if the response is sent without a content coding, as the matched route's are. */
+    final boolean uncompressed;
+
+    HttpResponse response;
+
+    PendingResponse(
+        HttpRequest request, XrpcRequest xrpcRequest, StreamingBody body, boolean uncompressed) {
+      this.request = request;
+      this.xrpcRequest = xrpcRequest;
+      this.body = body;
+      this.uncompressed = uncompressed;
+    }
+  }
+
+  /** Pauses reading from the connection while a streamed body's subscriber has no demand. */
+  private static class ConnectionFlowControl implements StreamingBody.FlowControl {
+    private final ChannelHandlerContext ctx;
+
+    ConnectionFlowControl(ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+
+    @Override
+    public void consumed(int bytes) {
+      // Reading is paused and resumed as a whole; there is no per-byte window.
+    }
+
+    @Override
+    public void paused(boolean paused) {
+      ctx.channel().config().setAutoRead(!paused);
+      if (!paused) {
+        ctx.read();
+      }
+    }
+  }
+
+  /** Writes the body of a streaming response as HTTP/1 chunks. */
+  private static class ChunkedSink implements ResponseStreamer.Sink {
+    private final ChannelHandlerContext ctx;
+
+    ChunkedSink(ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+
+    @Override
+    public boolean isWritable() {
+      return ctx.channel().isWritable();
+    }
+
+    @Override
+    public void write(ByteBuf chunk, boolean end) {
+      ctx.write(end ? new DefaultLastHttpContent(chunk) : new DefaultHttpContent(chunk));
+    }
+
+    @Override
+    public void flush() {
+      ctx.flush();
+    }
+
+    @Override
+    public void writeTrailers(HttpHeaders trailers) {
+      LastHttpContent last = new DefaultLastHttpContent();
+      last.trailingHeaders().set(trailers);
+      ctx.write(last);
+    }
+
+    @Override
+    public void abort(Throwable cause) {
+      // The client can only tell that the response is incomplete if the chunked message is not
+      // terminated.
+      ctx.close();
+    }
+  }
+
+  /**
+   * The per-connection queue of requests awaiting responses, in the order they were read. Only
+   * accessed from the connection's event loop.
+   */
+  private static class PendingResponses {
+    final Queue<PendingResponse> queue = new ArrayDeque<>();
+    /** True between a read of a request and the following channelReadComplete. */
+    boolean reading;
+    /** The streamed body of the request currently being read, if any. */
+    StreamingBody body;
+    /** The streamer for the response body currently being written, if any. */
+    ResponseStreamer streamer;
+
+    /**
+     * Releases all requests and any completed responses which were not written. The uploads of
+     * requests still being handled are released once their responses complete.
+     */
+    void releaseAll() {
+      PendingResponse pendingResponse;
+      while ((pendingResponse = queue.poll()) != null) {
+        release(pendingResponse.response);
+        if (pendingResponse.response == null) {
+          release(pendingResponse.request);
+        } else {
+          releaseRequest(pendingResponse);
+        }
+        if (pendingResponse.body != null) {
+          pendingResponse.body.discard();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/** A compiled WebSocket route: its handler, and the metrics for its connections. */
+@Getter
+@Accessors(fluent = true)
+class WebSocketEndpoint {
+  private final WebSocketHandler handler;
+
+  /** The number of open connections. */
+  private final Counter connections;
+
+  /** The rate of messages received. */
+  private final Meter messagesIn;
+
+  /** The rate of messages sent. */
+  private final Meter messagesOut;
+
+  /** The rate of connections closed for exceeding the outbound queue limit. */
+  private final Meter overflows;
+
+  WebSocketEndpoint(WebSocketHandler handler, MetricRegistry metricRegistry, String route) {
+    this.handler = handler;
+    this.connections = metricRegistry.counter(MetricRegistry.name("webSockets", route, "open"));
+    this.messagesIn = metricRegistry.meter(MetricRegistry.name("webSockets", route, "messagesIn"));
+    this.messagesOut =
+        metricRegistry.meter(MetricRegistry.name("webSockets", route, "messagesOut"));
+    this.overflows = metricRegistry.meter(MetricRegistry.name("webSockets", route, "overflows"));
+  }
+}
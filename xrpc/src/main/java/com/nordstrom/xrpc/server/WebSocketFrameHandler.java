@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.encoding.Decoder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Passes the messages received on an upgraded WebSocket connection to the route's {@link
+ * WebSocketHandler}, and answers control frames. Messages arrive already reassembled from their
+ * fragments by a {@link io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator}.
+ */
+@Slf4j
+class WebSocketFrameHandler extends ChannelInboundHandlerAdapter {
+  private final WebSocketSession session;
+  private final WebSocketEndpoint endpoint;
+  private final Decoder decoder;
+
+  /** The status code of the client's close frame, or -1 if none has been received. */
+  private int closeStatus = -1;
+
+  private boolean opened;
+
+  WebSocketFrameHandler(WebSocketSession session, WebSocketEndpoint endpoint, Decoder decoder) {
+    this.session = session;
+    this.endpoint = endpoint;
+    this.decoder = decoder;
+  }
+
+  /** Opens the session, once the connection has been upgraded. */
+  void open() {
+    opened = true;
+    endpoint.connections().inc();
+    try {
+      endpoint.handler().onOpen(session);
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof WebSocketFrame)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+
+    WebSocketFrame frame = (WebSocketFrame) msg;
+    try {
+      if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+        endpoint.messagesIn().mark();
+        endpoint
+            .handler()
+            .onMessage(
+                session,
+                new WebSocketMessage(
+                    frame.content(), frame instanceof TextWebSocketFrame, decoder));
+      } else if (frame instanceof PingWebSocketFrame) {
+        ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+      } else if (frame instanceof CloseWebSocketFrame) {
+        closeStatus = ((CloseWebSocketFrame) frame).statusCode();
+        session.closeReceived((CloseWebSocketFrame) frame);
+      } else if (!(frame instanceof PongWebSocketFrame)) {
+        log.debug("Ignoring unexpected WebSocket frame {}", frame);
+      }
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    } finally {
+      frame.release();
+    }
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    if (cause instanceof TooLongFrameException) {
+      session.close(WebSocketSession.MESSAGE_TOO_BIG, "message too big");
+      return;
+    }
+    ctx.fireExceptionCaught(cause);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (opened) {
+      opened = false;
+      endpoint.connections().dec();
+      try {
+        endpoint.handler().onClose(session, closeStatus);
+      } catch (RuntimeException e) {
+        log.error("Error in WebSocket close handler", e);
+      }
+    }
+    ctx.fireChannelInactive();
+  }
+
+  private void fail(Exception e) {
+    log.error("Error in WebSocket handler", e);
+    session.close(WebSocketSession.INTERNAL_ERROR, "internal error");
+  }
+}
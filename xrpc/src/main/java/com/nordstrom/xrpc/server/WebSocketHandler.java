@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import java.io.IOException;
+
+/**
+ * A handler for the connections to a WebSocket route. Methods are invoked on the connection's event
+ * loop, one at a time, and must not block; messages may be sent to the session from any thread.
+ */
+@FunctionalInterface
+public interface WebSocketHandler {
+  /** Called once the connection has been upgraded, before any message is received. */
+  default void onOpen(WebSocketSession session) throws IOException {}
+
+  /**
+   * Called for each complete text or binary message received. The message content is only valid
+   * until this returns.
+   */
+  void onMessage(WebSocketSession session, WebSocketMessage message) throws IOException;
+
+  /**
+   * Called once the connection has closed.
+   *
+   * @param statusCode the close status code sent by the client, or -1 if the connection closed
+   *     without one
+   */
+  default void onClose(WebSocketSession session, int statusCode) {}
+}
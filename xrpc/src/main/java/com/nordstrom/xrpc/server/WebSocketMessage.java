@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Decoder;
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/** A complete text or binary message received on a WebSocket. */
+@Accessors(fluent = true)
+public class WebSocketMessage {
+  /** The message payload. Only valid during {@link WebSocketHandler#onMessage}. */
+  @Getter private final ByteBuf content;
+
+  /** True for a text message, false for a binary message. */
+  @Getter private final boolean text;
+
+  private final Decoder decoder;
+
+  WebSocketMessage(ByteBuf content, boolean text, Decoder decoder) {
+    this.content = content;
+    this.text = text;
+    this.decoder = decoder;
+  }
+
+  /** Returns the payload as UTF-8 text. */
+  public String asText() {
+    return content.toString(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  /**
+   * Returns the payload decoded into an Object of the designated Class, using the media type
+   * negotiated for the connection.
+   */
+  public <T> T body(Class<T> clazz) throws IOException {
+    return decoder.decode(content.duplicate(), decoder.mediaType(), clazz);
+  }
+}
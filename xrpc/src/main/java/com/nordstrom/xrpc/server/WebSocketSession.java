@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.nordstrom.xrpc.encoding.Encoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An open WebSocket connection. Messages may be sent from any thread.
+ *
+ * <p>Messages which have been sent but not yet written to the connection are limited by the {@code
+ * websocket_max_outbound_queue_bytes} setting. A client which falls so far behind that a message
+ * would exceed the limit is disconnected with status 1008 (policy violation), rather than letting
+ * its queue grow without bound.
+ */
+@Slf4j
+@Accessors(fluent = true)
+public class WebSocketSession {
+  /** Close status for a normal closure. */
+  public static final int NORMAL_CLOSURE = 1000;
+  /** Close status for a connection closed for violating the server's policy. */
+  public static final int POLICY_VIOLATION = 1008;
+  /** Close status for a message too large to process. */
+  public static final int MESSAGE_TOO_BIG = 1009;
+  /** Close status for a connection closed because of an unexpected error. */
+  public static final int INTERNAL_ERROR = 1011;
+
+  /** The request which opened the connection. Its body has been released. */
+  @Getter private final XrpcRequest request;
+
+  private final Channel channel;
+  private final WebSocketServerHandshaker handshaker;
+  private final Encoder encoder;
+  private final boolean textEncoder;
+  private final long maxOutboundQueueBytes;
+  private final WebSocketEndpoint endpoint;
+
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicBoolean closing = new AtomicBoolean();
+
+  WebSocketSession(
+      XrpcRequest request,
+      Channel channel,
+      WebSocketServerHandshaker handshaker,
+      Encoder encoder,
+      long maxOutboundQueueBytes,
+      WebSocketEndpoint endpoint) {
+    this.request = request;
+    this.channel = channel;
+    this.handshaker = handshaker;
+    this.encoder = encoder;
+    this.textEncoder = isTextMediaType(encoder.mediaType());
+    this.maxOutboundQueueBytes = maxOutboundQueueBytes;
+    this.endpoint = endpoint;
+  }
+
+  /** Returns true if messages of the given media type should be sent as text frames. */
+  static boolean isTextMediaType(CharSequence mediaType) {
+    String lower = mediaType.toString().toLowerCase(Locale.ROOT);
+    return lower.startsWith("text/") || lower.contains("json");
+  }
+
+  /**
+   * Sends the given object, encoded with the media type negotiated for the connection. JSON is sent
+   * as a text message, and other media types (such as protobuf) as binary messages.
+   *
+   * @return false if the message was dropped, because the connection is closed or the client is too
+   *     far behind
+   * @throws IOException if the message can't be encoded
+   */
+  public boolean send(Object message) throws IOException {
+    ByteBuf buf = channel.alloc().buffer();
+    try {
+      encoder.encode(buf, null, message);
+    } catch (IOException | RuntimeException e) {
+      buf.release();
+      throw e;
+    }
+    return write(textEncoder ? new TextWebSocketFrame(buf) : new BinaryWebSocketFrame(buf));
+  }
+
+  /**
+   * Sends the given text message.
+   *
+   * @return false if the message was dropped, because the connection is closed or the client is too
+   *     far behind
+   */
+  public boolean sendText(String text) {
+    return write(new TextWebSocketFrame(text));
+  }
+
+  /**
+   * Sends the given binary message, taking ownership of it.
+   *
+   * @return false if the message was dropped, because the connection is closed or the client is too
+   *     far behind
+   */
+  public boolean sendBinary(ByteBuf data) {
+    return write(new BinaryWebSocketFrame(data));
+  }
+
+  /** Returns true until the connection has closed, or started to close. */
+  public boolean isOpen() {
+    return !closing.get() && channel.isActive();
+  }
+
+  /** Closes the connection normally. */
+  public void close() {
+    close(NORMAL_CLOSURE, null);
+  }
+
+  /** Closes the connection with the given status code and reason. */
+  public void close(int statusCode, String reason) {
+    if (closing.compareAndSet(false, true)) {
+      handshaker.close(channel, new CloseWebSocketFrame(statusCode, reason));
+    }
+  }
+
+  /**
+   * Completes the closing handshake once the client's close frame has been received: echoes the
+   * frame if the client started the handshake, and closes the connection either way.
+   */
+  void closeReceived(CloseWebSocketFrame frame) {
+    if (closing.compareAndSet(false, true)) {
+      handshaker.close(channel, frame.retainedDuplicate());
+    } else {
+      channel.close();
+    }
+  }
+
+  private boolean write(WebSocketFrame frame) {
+    if (!isOpen()) {
+      frame.release();
+      return false;
+    }
+    int size = frame.content().readableBytes();
+    if (queuedBytes.addAndGet(size) > maxOutboundQueueBytes) {
+      queuedBytes.addAndGet(-size);
+      frame.release();
+      endpoint.overflows().mark();
+      log.info("Closing WebSocket for a client more than {} bytes behind", maxOutboundQueueBytes);
+      close(POLICY_VIOLATION, "outbound queue limit exceeded");
+      return false;
+    }
+    endpoint.messagesOut().mark();
+    channel.writeAndFlush(frame).addListener(f -> queuedBytes.addAndGet(-size));
+    return true;
+  }
+}
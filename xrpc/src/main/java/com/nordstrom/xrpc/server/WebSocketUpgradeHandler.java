@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.client.XUrl;
+import com.nordstrom.xrpc.encoding.Decoder;
+import com.nordstrom.xrpc.encoding.Encoder;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.cors.CorsHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.ssl.SslHandler;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Upgrades HTTP/1.1 connections to WebSockets, for requests to WebSocket routes. Once the handshake
+ * is written, the HTTP handlers after this one are replaced with a {@link WebSocketFrameHandler}
+ * for the route. All other requests are passed on to the {@link UrlRouter}.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+class WebSocketUpgradeHandler extends ChannelInboundHandlerAdapter {
+  /** The handler for requests to a WebSocket route which don't ask to upgrade. */
+  static final Handler UPGRADE_REQUIRED =
+      request ->
+          Recipes.newResponse(
+              HttpResponseStatus.UPGRADE_REQUIRED,
+              Recipes.unpooledBuffer("WebSocket upgrade required"),
+              Recipes.ContentType.Text_Plain,
+              ImmutableMap.of(
+                  HttpHeaderNames.UPGRADE.toString(), HttpHeaderValues.WEBSOCKET.toString()));
+
+  /** The maximum size of a message, and of a frame. */
+  private final int maxPayloadBytes;
+
+  WebSocketUpgradeHandler(int maxPayloadBytes) {
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof FullHttpRequest)
+        || !HttpHeaderValues.WEBSOCKET.contentEqualsIgnoreCase(
+            ((FullHttpRequest) msg).headers().get(HttpHeaderNames.UPGRADE, ""))
+        || ctx.channel().hasAttr(XrpcConstants.XRPC_SOFT_RATE_LIMITED)) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+
+    FullHttpRequest request = (FullHttpRequest) msg;
+    ServerContext xctx = ctx.channel().attr(ServerContext.ATTRIBUTE_KEY).get();
+    CompiledRoutes.Match match = xctx.routes().match(XUrl.path(request.uri()), request.method());
+    if (match.getWebSocket() == null) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+
+    xctx.requestMeter().mark();
+    xctx.http1RequestMeter().mark();
+    try {
+      upgrade(ctx, xctx, request, match);
+    } finally {
+      request.release();
+    }
+  }
+
+  private void upgrade(
+      ChannelHandlerContext ctx,
+      ServerContext xctx,
+      FullHttpRequest request,
+      CompiledRoutes.Match match) {
+    String scheme = ctx.pipeline().get(SslHandler.class) == null ? "ws://" : "wss://";
+    WebSocketServerHandshaker handshaker =
+        new WebSocketServerHandshakerFactory(
+                scheme + request.headers().get(HttpHeaderNames.HOST) + request.uri(),
+                null,
+                xctx.webSocketCompression(),
+                maxPayloadBytes)
+            .newHandshaker(request);
+    if (handshaker == null) {
+      WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+      return;
+    }
+
+    Encoder encoder =
+        xctx.encoders().acceptedEncoder(request.headers().get(HttpHeaderNames.ACCEPT));
+    Decoder decoder = xctx.decoders().decoder(encoder.mediaType());
+    WebSocketEndpoint endpoint = match.getWebSocket();
+    WebSocketSession session =
+        new WebSocketSession(
+            new XrpcRequest(request, xctx, match.getGroups(), ctx.channel()),
+            ctx.channel(),
+            handshaker,
+            encoder,
+            xctx.webSocketMaxOutboundQueueBytes(),
+            endpoint);
+
+    // The handshaker only knows how to replace HttpServerCodec (or HttpRequestDecoder) with the
+    // WebSocket codec, so the fast codec is swapped for it first.
+    ChannelPipeline pipeline = ctx.pipeline();
+    ChannelHandlerContext codec = pipeline.context(FastHttpServerCodec.class);
+    if (codec != null) {
+      pipeline.replace(codec.handler(), codec.name(), new HttpServerCodec());
+    }
+
+    handshaker
+        .handshake(ctx.channel(), request)
+        .addListener(
+            (ChannelFutureListener)
+                future -> {
+                  if (future.isSuccess()) {
+                    open(ctx, new WebSocketFrameHandler(session, endpoint, decoder));
+                  } else {
+                    future.channel().close();
+                  }
+                });
+  }
+
+  /**
+   * Replaces the HTTP handlers with the frame handler, and opens the session. The handshaker has
+   * already replaced the codec, and removed the aggregator and response compressor.
+   */
+  private void open(ChannelHandlerContext ctx, WebSocketFrameHandler frameHandler) {
+    ChannelPipeline pipeline = ctx.pipeline();
+    pipeline.addAfter(
+        ctx.name(), "webSocketAggregator", new WebSocketFrameAggregator(maxPayloadBytes));
+    pipeline.addAfter("webSocketAggregator", "webSocket", frameHandler);
+    if (pipeline.get(HttpServerKeepAliveHandler.class) != null) {
+      pipeline.remove(HttpServerKeepAliveHandler.class);
+    }
+    if (pipeline.get(HttpContentDecompressor.class) != null) {
+      pipeline.remove(HttpContentDecompressor.class);
+    }
+    if (pipeline.get(CorsHandler.class) != null) {
+      pipeline.remove(CorsHandler.class);
+    }
+    if (pipeline.get(UrlRouter.class) != null) {
+      pipeline.remove(UrlRouter.class);
+    }
+    pipeline.remove(this);
+
+    frameHandler.open();
+  }
+}
@@ -22,7 +22,6 @@ import com.nordstrom.xrpc.XrpcConstants;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import java.net.InetSocketAddress;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -31,19 +30,30 @@ class WhiteListFilter extends ChannelDuplexHandler {
 
   private final MetricRegistry metrics;
   private final ImmutableSet<String> whiteList;
+  private final ClientAddresses clientAddresses;
 
-  public WhiteListFilter(MetricRegistry metrics, ImmutableSet<String> whiteList) {
+  public WhiteListFilter(
+      MetricRegistry metrics, ImmutableSet<String> whiteList, ClientAddresses clientAddresses) {
 
     this.metrics = metrics;
     this.whiteList = whiteList;
+    this.clientAddresses = clientAddresses;
+  }
+
+  /** Returns true if the white list admits the client at the given address. */
+  boolean admits(String clientAddress) {
+    return whiteList.contains(clientAddress);
   }
 
   @Override
   public void channelActive(ChannelHandlerContext ctx) throws Exception {
-    String remoteAddress =
-        ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
+    String clientAddress = ClientAddresses.of(ctx.channel());
 
-    if (!whiteList.contains(remoteAddress)) {
+    // Requests from trusted proxies are checked by the clients they're forwarded for instead, and
+    // connections without an IP address, on a Unix domain socket, are from the local host.
+    if (clientAddress != null
+        && !clientAddresses.isTrusted(clientAddress)
+        && !admits(clientAddress)) {
       ctx.channel().attr(XrpcConstants.IP_WHITE_LIST).set(Boolean.FALSE);
     }
 
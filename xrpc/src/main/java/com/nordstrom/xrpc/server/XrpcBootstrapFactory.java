@@ -20,20 +20,14 @@ import static io.netty.channel.ChannelOption.SO_KEEPALIVE;
 import static io.netty.channel.ChannelOption.TCP_NODELAY;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nordstrom.xrpc.Transport;
+import com.nordstrom.xrpc.XConfig;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
-import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollChannelOption;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.kqueue.KQueue;
-import io.netty.channel.kqueue.KQueueEventLoopGroup;
-import io.netty.channel.kqueue.KQueueServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import java.util.concurrent.ThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
@@ -46,31 +40,65 @@ public class XrpcBootstrapFactory {
     return new ThreadFactoryBuilder().setNameFormat(nameFormat).build();
   }
 
+  /**
+   * Returns a bootstrap for a server with the given config's transport and thread counts. With the
+   * epoll transport, the config's SO_REUSEPORT, TCP_DEFER_ACCEPT and TCP_FASTOPEN options are set
+   * on its listening sockets; see {@link #listenerCount}.
+   */
+  public static ServerBootstrap buildBootstrap(XConfig config) {
+    ServerBootstrap b =
+        buildBootstrap(
+            config.transport(),
+            config.bossThreadCount(),
+            config.workerThreadCount(),
+            config.workerNameFormat());
+    if (!isEpoll(b)) {
+      if (config.reusePort() || config.tcpDeferAcceptSeconds() > 0 || config.tcpFastopen() > 0) {
+        log.warn("server.reuse_port, tcp_defer_accept and tcp_fastopen require epoll; ignoring");
+      }
+      return b;
+    }
+
+    if (config.reusePort()) {
+      b.option(EpollChannelOption.SO_REUSEPORT, true);
+    }
+    if (config.tcpDeferAcceptSeconds() > 0) {
+      b.option(EpollChannelOption.TCP_DEFER_ACCEPT, config.tcpDeferAcceptSeconds());
+    }
+    if (config.tcpFastopen() > 0) {
+      b.option(EpollChannelOption.TCP_FASTOPEN, config.tcpFastopen());
+    }
+    return b;
+  }
+
+  /**
+   * Returns the number of sockets a server built from the given config and bootstrap listens on:
+   * one per boss thread if SO_REUSEPORT is set, so that each accepts on its own boss thread and the
+   * kernel balances connections between them, or else one.
+   */
+  public static int listenerCount(XConfig config, ServerBootstrap b) {
+    return config.reusePort() && isEpoll(b) ? config.bossThreadCount() : 1;
+  }
+
+  private static boolean isEpoll(ServerBootstrap b) {
+    return Transport.of(b.config().group()) == Transport.EPOLL;
+  }
+
   public static ServerBootstrap buildBootstrap(
       int bossThreadCount, int workerThreadCount, String workerNameFormat) {
+    return buildBootstrap(
+        Transport.preferred(), bossThreadCount, workerThreadCount, workerNameFormat);
+  }
+
+  public static ServerBootstrap buildBootstrap(
+      Transport transport, int bossThreadCount, int workerThreadCount, String workerNameFormat) {
     ServerBootstrap b = new ServerBootstrap();
 
-    EventLoopGroup bossGroup;
-    EventLoopGroup workerGroup;
-    Class<? extends ServerChannel> channelClass;
-
-    if (Epoll.isAvailable()) {
-      log.info("Using Epoll");
-      bossGroup = new EpollEventLoopGroup(bossThreadCount, threadFactory(workerNameFormat));
-      workerGroup = new EpollEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-      channelClass = EpollServerSocketChannel.class;
-    } else if (KQueue.isAvailable()) {
-      log.info("Using KQueue");
-      bossGroup = new KQueueEventLoopGroup(bossThreadCount, threadFactory(workerNameFormat));
-      workerGroup = new KQueueEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-      channelClass = KQueueServerSocketChannel.class;
-      b.option(EpollChannelOption.SO_REUSEPORT, true);
-    } else {
-      log.info("Using NIO");
-      bossGroup = new NioEventLoopGroup(bossThreadCount, threadFactory(workerNameFormat));
-      workerGroup = new NioEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
-      channelClass = NioServerSocketChannel.class;
-    }
+    log.info("Using {}", transport.configName());
+    EventLoopGroup bossGroup =
+        transport.newEventLoopGroup(bossThreadCount, threadFactory(workerNameFormat));
+    EventLoopGroup workerGroup =
+        transport.newEventLoopGroup(workerThreadCount, threadFactory(workerNameFormat));
 
     b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
     b.option(ChannelOption.SO_BACKLOG, 8192);
@@ -81,6 +109,49 @@ public class XrpcBootstrapFactory {
     b.childOption(TCP_NODELAY, true);
 
     b.group(bossGroup, workerGroup);
+    b.channel(transport.serverChannelClass());
+
+    return b;
+  }
+
+  /**
+   * Returns a bootstrap for the admin listener of a server with the given config. Its one event
+   * loop group, of the config's admin thread count, both accepts and serves connections, so they're
+   * handled promptly however busy the server's own event loops are.
+   */
+  public static ServerBootstrap buildAdminBootstrap(XConfig config) {
+    Transport transport = config.transport();
+    ServerBootstrap b = new ServerBootstrap();
+
+    b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    b.option(ChannelOption.SO_REUSEADDR, true);
+
+    b.childOption(SO_KEEPALIVE, true);
+    b.childOption(TCP_NODELAY, true);
+
+    b.group(transport.newEventLoopGroup(config.adminThreadCount(), threadFactory("xrpc-admin-%d")));
+    b.channel(transport.serverChannelClass());
+
+    return b;
+  }
+
+  /**
+   * Returns a bootstrap for a server listening on a Unix domain socket, which shares the event loop
+   * groups of the given TCP server bootstrap.
+   *
+   * @throws IllegalStateException if the bootstrap uses neither the epoll nor the kqueue transport,
+   *     which are the only ones supporting Unix domain sockets
+   */
+  public static ServerBootstrap buildDomainSocketBootstrap(ServerBootstrap tcpBootstrap) {
+    EventLoopGroup workerGroup = tcpBootstrap.config().childGroup();
+    Class<? extends ServerChannel> channelClass =
+        Transport.of(workerGroup).serverDomainSocketChannelClass();
+
+    ServerBootstrap b = new ServerBootstrap();
+    b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    b.option(ChannelOption.SO_BACKLOG, 8192);
+
+    b.group(tcpBootstrap.config().group(), workerGroup);
     b.channel(channelClass);
 
     return b;
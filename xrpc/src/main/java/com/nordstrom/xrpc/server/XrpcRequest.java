@@ -25,13 +25,17 @@ import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http2.Http2Headers;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Flow;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import lombok.AccessLevel;
@@ -43,8 +47,11 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 @Accessors(fluent = true)
 public class XrpcRequest implements ResponseFactory {
-  /** The HTTP/1.x request to handle. null if this is an HTTP/2 request. */
-  private final FullHttpRequest h1Request;
+  /**
+   * The HTTP/1.x request to handle. null if this is an HTTP/2 request. This is a {@link
+   * FullHttpRequest} unless the request body is streamed.
+   */
+  private final HttpRequest h1Request;
 
   /** The HTTP/2 request headers. null if this is an HTTP/1.x request. */
   @Getter(AccessLevel.PACKAGE)
@@ -64,14 +71,39 @@ public class XrpcRequest implements ResponseFactory {
 
   private ResponseFactory responseFactory;
 
-  /** HTTP/2 request data. Null for HTTP/1.x requests. */
+  /** HTTP/2 request data. Null for HTTP/1.x requests, and for streamed request bodies. */
   private final CompositeByteBuf h2Data;
 
+  /** The request body, if it is streamed rather than aggregated. */
+  @Getter(AccessLevel.PACKAGE)
+  private final StreamingBody streamingBody;
+
+  /** The parts of the request body, once it has been spooled for an upload route. */
+  private List<UploadPart> uploads;
+
+  /** True if the response is sent without a content coding, as the matched route's are. */
+  @Getter(AccessLevel.PACKAGE)
+  private boolean uncompressedResponse;
+
+  /** True if this is one of the calls in a batch request. */
+  @Getter(AccessLevel.PACKAGE)
+  private boolean batchedCall;
+
   public XrpcRequest(
       FullHttpRequest request,
       ServerContext connectionContext,
       Map<String, String> groups,
       Channel channel) {
+    this(request, connectionContext, groups, channel, null);
+  }
+
+  /** Returns an HTTP/1.x request whose body is streamed, unless streamingBody is null. */
+  XrpcRequest(
+      HttpRequest request,
+      ServerContext connectionContext,
+      Map<String, String> groups,
+      Channel channel,
+      StreamingBody streamingBody) {
     this.h1Request = request;
     this.h2Headers = null;
     this.connectionContext = connectionContext;
@@ -80,6 +112,7 @@ public class XrpcRequest implements ResponseFactory {
     this.alloc = channel.alloc();
     this.eventLoop = channel.eventLoop();
     this.h2Data = null;
+    this.streamingBody = streamingBody;
   }
 
   public XrpcRequest(
@@ -87,6 +120,16 @@ public class XrpcRequest implements ResponseFactory {
       ServerContext connectionContext,
       Map<String, String> groups,
       Channel channel) {
+    this(headers, connectionContext, groups, channel, null);
+  }
+
+  /** Returns an HTTP/2 request whose body is streamed, unless streamingBody is null. */
+  XrpcRequest(
+      Http2Headers headers,
+      ServerContext connectionContext,
+      Map<String, String> groups,
+      Channel channel,
+      StreamingBody streamingBody) {
     this.h1Request = null;
     this.h2Headers = headers;
     this.connectionContext = connectionContext;
@@ -94,7 +137,8 @@ public class XrpcRequest implements ResponseFactory {
     this.upstreamChannel = channel;
     this.alloc = channel.alloc();
     this.eventLoop = channel.eventLoop();
-    this.h2Data = alloc.compositeBuffer();
+    this.h2Data = streamingBody == null ? alloc.compositeBuffer() : null;
+    this.streamingBody = streamingBody;
   }
 
   public HttpQuery query() {
@@ -156,17 +200,85 @@ public class XrpcRequest implements ResponseFactory {
 
   /**
    * Returns the raw request body. Note that any reads will consume the buffer, so the caller is
-   * responsible for copying or resetting the buffer as needed.
+   * responsible for copying or resetting the buffer as needed. The request is released once its
+   * response has been written, so a handler which returns the body as the response must retain it.
+   *
+   * @throws IllegalStateException if the request body is streamed
    */
   public ByteBuf body() {
+    if (uploads != null) {
+      throw new IllegalStateException("request body is spooled; read it with uploads()");
+    }
+    if (streamingBody != null) {
+      throw new IllegalStateException("request body is streamed; read it with bodyPublisher()");
+    }
     if (h1Request != null) {
       // HTTP/1.x request; return content directly.
-      return h1Request.content();
+      return ((FullHttpRequest) h1Request).content();
     }
     // HTTP/2 request; return composite of data frames.
     return h2Data;
   }
 
+  /**
+   * Returns a publisher of the request body's chunks as they are read, for routes added with {@link
+   * Routes#addStreamingRoute(String, Handler, HttpMethod)}. The body can be subscribed to once.
+   * Reading from the connection (or, for HTTP/2, granting the client flow control window) is paused
+   * while the subscriber has no outstanding demand. Each chunk is owned by the subscriber, which
+   * must release it. If the response is sent before the body has been read, the rest of the body is
+   * discarded and the subscriber fails with a {@link java.util.concurrent.CancellationException}.
+   *
+   * @throws IllegalStateException if the route does not stream its request body
+   */
+  public Flow.Publisher<ByteBuf> bodyPublisher() {
+    if (streamingBody == null) {
+      throw new IllegalStateException("request body is not streamed; read it with body()");
+    }
+    return streamingBody;
+  }
+
+  /**
+   * Returns the parts of the request body, for routes added with {@link
+   * Routes#addUploadRoute(String, Handler, HttpMethod)}: a part per body part of a multipart body,
+   * or a single part holding any other body. The parts are released once the response has been
+   * written.
+   *
+   * @throws IllegalStateException if the route does not spool its request body
+   */
+  public List<UploadPart> uploads() {
+    if (uploads == null) {
+      throw new IllegalStateException("request body is not spooled; add the route as an upload");
+    }
+    return uploads;
+  }
+
+  /** Sets the parts of the spooled request body. */
+  void uploads(List<UploadPart> uploads) {
+    this.uploads = Collections.unmodifiableList(uploads);
+  }
+
+  /** Marks this as one of the calls in a batch request. */
+  void batchedCall(boolean batchedCall) {
+    this.batchedCall = batchedCall;
+  }
+
+  /** Sets whether the response is sent without a content coding. */
+  void uncompressedResponse(boolean uncompressedResponse) {
+    this.uncompressedResponse = uncompressedResponse;
+  }
+
+  /** Returns true if the request body has been spooled into uploads. */
+  boolean hasUploads() {
+    return uploads != null;
+  }
+
+  /** Releases the parts of the spooled request body, if any, deleting their temporary files. */
+  void releaseUploads() {
+    if (uploads != null) {
+      uploads.forEach(UploadPart::release);
+    }
+  }
+
   /**
    * Returns a new string representing the request body, decoded using the appropriate charset. This
    * does NOT consume or mutate the underlying data buffer.
@@ -213,6 +325,32 @@ public class XrpcRequest implements ResponseFactory {
     throw new IllegalStateException("Neither HTTP/1 nor HTTP/2 headers set");
   }
 
+  /**
+   * Returns the IP address of the client which sent this request. This is the address of the
+   * connection's client (see {@link ClientAddresses#of}), unless that is a trusted proxy, in which
+   * case it's the client the proxy forwarded the request for. Returns null if the connection has no
+   * IP address.
+   */
+  public String clientAddress() {
+    return connectionContext
+        .clientAddresses()
+        .resolve(
+            ClientAddresses.of(upstreamChannel),
+            header(ClientAddresses.FORWARDED),
+            header(ClientAddresses.X_FORWARDED_FOR));
+  }
+
+  /** Returns the request target: the path and query, as sent. */
+  String uri() {
+    if (h1Request != null) {
+      return h1Request.uri();
+    } else if (h2Headers != null) {
+      return h2Headers.path().toString();
+    }
+
+    throw new IllegalStateException("Neither HTTP/1 nor HTTP/2 headers set");
+  }
+
   /** Returns the HTTP method. */
   public Optional<HttpMethod> method() {
     if (h1Request != null) {
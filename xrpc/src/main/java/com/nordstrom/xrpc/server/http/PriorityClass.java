@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server.http;
+
+import io.netty.handler.codec.http2.Http2CodecUtil;
+
+/**
+ * The class of a route, which determines the share of an HTTP/2 connection's outbound bandwidth its
+ * responses get while other streams on the connection are also sending data. Responses on an HTTP/1
+ * connection are sent one at a time, so priority doesn't apply to them.
+ *
+ * <p>Each class is mapped onto an HTTP/2 stream weight: while streams compete for the connection,
+ * each gets bytes in proportion to its weight. A client which sends its own priority for a stream
+ * overrides the route's class.
+ */
+public enum PriorityClass {
+  /** Small, latency-sensitive responses, which should not wait behind bulk transfers. */
+  INTERACTIVE((short) 256),
+
+  /** The default; the weight of a stream with no priority set. */
+  NORMAL(Http2CodecUtil.DEFAULT_PRIORITY_WEIGHT),
+
+  /** Large responses, such as exports and downloads, which get what bandwidth is left over. */
+  BULK((short) 1);
+
+  private final short weight;
+
+  PriorityClass(short weight) {
+    this.weight = weight;
+  }
+
+  /** Returns the HTTP/2 stream weight for this class, from 1 to 256. */
+  public short weight() {
+    return weight;
+  }
+}
@@ -31,6 +31,7 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
@@ -43,7 +44,7 @@ public final class Recipes {
     Application_Json(HttpHeaderValues.APPLICATION_JSON),
     Application_Octet_Stream(HttpHeaderValues.APPLICATION_OCTET_STREAM),
     Text_Plain(HttpHeaderValues.TEXT_PLAIN),
-    Text_Html("text/html");
+    Text_Html(AsciiString.cached("text/html"));
 
     private final CharSequence value;
 
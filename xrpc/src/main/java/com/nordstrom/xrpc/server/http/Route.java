@@ -17,7 +17,11 @@
 package com.nordstrom.xrpc.server.http;
 
 import com.nordstrom.xrpc.server.Handler;
+import com.nordstrom.xrpc.server.WebSocketHandler;
 import io.netty.handler.codec.http.HttpMethod;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Value;
 import lombok.experimental.Accessors;
 
@@ -27,8 +31,60 @@ import lombok.experimental.Accessors;
  */
 @Value
 @Accessors(fluent = true)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Builder(builderClassName = "Builder", toBuilder = true)
 public class Route {
   HttpMethod method;
   RoutePath path;
   Handler handler;
+
+  /**
+   * Name of the handler executor this route's handler runs on, or null to run the handler on the
+   * event loop which read the request.
+   */
+  String executor;
+
+  /**
+   * If true, the handler is invoked as soon as the request headers are read, and reads the request
+   * body as it arrives with {@link com.nordstrom.xrpc.server.XrpcRequest#bodyPublisher()}. If
+   * false, the handler is invoked once the whole body has been read.
+   */
+  boolean streamingBody;
+
+  /**
+   * If true, the request body is spooled as it arrives: held in memory while it is small, and
+   * written to temporary files beyond that. The handler is invoked once the whole body has been
+   * spooled, and reads it with {@link com.nordstrom.xrpc.server.XrpcRequest#uploads()}.
+   */
+  boolean spooledBody;
+
+  /**
+   * The handler for WebSocket connections to this route, or null if this is not a WebSocket route.
+   * Requests to upgrade to a WebSocket are passed to this handler instead of {@link #handler()}.
+   */
+  WebSocketHandler webSocketHandler;
+
+  /**
+   * If true, responses from this route are never compressed, whatever the client accepts. Use this
+   * for routes whose responses are already compressed, or are too small to benefit.
+   */
+  boolean uncompressed;
+
+  /**
+   * The priority class of this route's responses, which sets their share of an HTTP/2 connection's
+   * bandwidth while other responses are sent on it.
+   */
+  @lombok.Builder.Default PriorityClass priority = PriorityClass.NORMAL;
+
+  public Route(HttpMethod method, RoutePath path, Handler handler) {
+    this(method, path, handler, null);
+  }
+
+  public Route(HttpMethod method, RoutePath path, Handler handler, String executor) {
+    this(method, path, handler, executor, false, false, null, false, PriorityClass.NORMAL);
+  }
+
+  // This can be generated automatically by lombok, but we declare it here to fix a javadoc warning.
+  // TODO(jkinkead): Remove once we have delombok integrated (issue #160).
+  public static class Builder {}
 }
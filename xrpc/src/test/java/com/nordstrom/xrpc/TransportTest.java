@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.nordstrom.xrpc.client.XrpcClient;
+import com.nordstrom.xrpc.server.Server;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TransportTest {
+  @Test
+  void select_shouldFallBackFromUnavailableTransports() {
+    assertEquals(Transport.preferred(), Transport.select("auto"));
+    assertEquals(Transport.NIO, Transport.select("nio"));
+    for (Transport transport : Transport.values()) {
+      Transport expected = transport.isAvailable() ? transport : Transport.preferred();
+      assertEquals(expected, Transport.select(transport.configName()));
+    }
+  }
+
+  @Test
+  void select_shouldRejectUnknownTransports() {
+    assertThrows(IllegalArgumentException.class, () -> Transport.select("io_uring"));
+    assertThrows(IllegalArgumentException.class, () -> Transport.select("NIO"));
+  }
+
+  @Test
+  void of_shouldIdentifyEventLoopGroups() {
+    EventLoopGroup group = new NioEventLoopGroup(1);
+    try {
+      assertEquals(Transport.NIO, Transport.of(group));
+    } finally {
+      group.shutdownGracefully();
+    }
+  }
+
+  @Test
+  void nio_shouldNotSupportDomainSockets() {
+    assertThrows(IllegalStateException.class, Transport.NIO::serverDomainSocketChannelClass);
+    assertThrows(IllegalStateException.class, Transport.NIO::domainSocketChannelClass);
+  }
+
+  @Test
+  void serverAndClient_shouldServeRequestsOnEachAvailableTransport() throws Exception {
+    for (Transport transport : Transport.values()) {
+      if (!transport.isAvailable()) {
+        continue;
+      }
+      Server server =
+          new Server(
+              ConfigFactory.load("test.conf")
+                  .getConfig("xrpc")
+                  .withValue("transport", ConfigValueFactory.fromAnyRef(transport.configName())));
+      server.get("/people", request -> Recipes.newResponseOk("people"));
+      server.listenAndServe();
+      try {
+        assertEquals(transport, Transport.of(server.channel().eventLoop().parent()));
+
+        FullHttpResponse response =
+            new XrpcClient(transport)
+                .newCall(server.localEndpoint())
+                .get(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/people"))
+                .execute()
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(HttpResponseStatus.OK, response.status(), transport.configName());
+        assertEquals("people", response.content().toString(StandardCharsets.UTF_8));
+        response.release();
+      } finally {
+        server.shutdown();
+      }
+    }
+  }
+}
@@ -24,11 +24,14 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.BaseEncoding;
+import com.nordstrom.xrpc.server.HandlerExecutorConfig;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.xjeffrose.xio.tls.TlsConfig;
@@ -51,6 +54,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -123,7 +127,146 @@ class XConfigTest {
     assertTrue(config.jmxReporter());
     assertFalse(config.slf4jReporter());
     assertFalse(config.adminRoutesEnableUnsafe());
+    assertEquals(-1, config.adminPort());
+    assertEquals(1, config.adminThreadCount());
+    assertFalse(config.adminUseTls());
     assertFalse(config.consoleReporter());
+    assertEquals(ImmutableMap.of(), config.routeExecutors());
+    assertFalse(config.responseCompression());
+    assertEquals(1024, config.responseCompressionMinBytes());
+    assertEquals(6, config.responseCompressionLevel());
+    assertFalse(config.requestDecompression());
+    assertEquals(ImmutableMap.of(), config.compressionDictionaries());
+    assertEquals(1024 * 1024, config.sseMaxBufferedBytes());
+    assertEquals(Duration.ofSeconds(15), config.sseHeartbeatInterval());
+    assertEquals(1024 * 1024, config.webSocketMaxOutboundQueueBytes());
+    assertFalse(config.webSocketPermessageDeflate());
+    assertEquals(Long.valueOf(1000), config.http2Settings().maxConcurrentStreams());
+    assertEquals(Integer.valueOf(65535), config.http2Settings().initialWindowSize());
+    assertEquals(Integer.valueOf(16 * 1024), config.http2Settings().maxFrameSize());
+    assertEquals(Long.valueOf(4096), config.http2Settings().headerTableSize());
+    assertEquals(65535, config.http2ConnectionWindowSize());
+    assertFalse(config.http2BdpAutotuning());
+    assertEquals(16 * 1024 * 1024, config.http2MaxWindowSize());
+    assertNull(config.altSvc());
+    assertFalse(config.proxyProtocol());
+    assertFalse(config.clientAddresses().trustsProxies());
+    assertEquals(Transport.preferred(), config.transport());
+    assertFalse(config.reusePort());
+    assertEquals(0, config.tcpDeferAcceptSeconds());
+    assertEquals(0, config.tcpFastopen());
+  }
+
+  @Test
+  void adminListener_shouldRejectInvalidValues() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("admin_routes.port = -2")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("admin_routes.thread_count = 0")));
+  }
+
+  @Test
+  void transport_shouldBeConfigurable() {
+    assertEquals(
+        Transport.NIO, new XConfig(ConfigFactory.parseString("transport = nio")).transport());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("transport = netmap")));
+  }
+
+  @Test
+  void socketOptions_shouldBeConfigurable() {
+    XConfig config =
+        new XConfig(
+            ConfigFactory.parseString(
+                "server { reuse_port = true, tcp_defer_accept = 2s, tcp_fastopen = 256 }"));
+    assertTrue(config.reusePort());
+    assertEquals(2, config.tcpDeferAcceptSeconds());
+    assertEquals(256, config.tcpFastopen());
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("server.tcp_fastopen = -1")));
+  }
+
+  @Test
+  void altSvc_shouldBeConfigurable() {
+    // No Alt-Svc is sent unless an external HTTP/3 endpoint is configured.
+    assertNull(new XConfig().altSvc());
+
+    XConfig config = new XConfig(ConfigFactory.parseString("alt_svc = \"h3=\\\":443\\\"\""));
+    assertEquals("h3=\":443\"", config.altSvc());
+  }
+
+  @Test
+  void uploads_shouldBeConfigurable() {
+    XConfig defaults = new XConfig();
+    assertEquals(1L << 30, defaults.uploadMaxBytes());
+    assertEquals(1024 * 1024, defaults.uploadMemoryThresholdBytes());
+    assertNull(defaults.uploadTempDir());
+
+    XConfig config =
+        new XConfig(
+            ConfigFactory.parseString(
+                "uploads { max_bytes = 8Gi, memory_threshold_bytes = 64Ki, temp_dir = /spool }"));
+    assertEquals(8L << 30, config.uploadMaxBytes());
+    assertEquals(64 * 1024, config.uploadMemoryThresholdBytes());
+    assertEquals(Paths.get("/spool"), config.uploadTempDir());
+  }
+
+  @Test
+  void http2Settings_shouldRejectInvalidValues() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("http2.max_frame_size = 1Ki")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new XConfig(ConfigFactory.parseString("http2.connection_window_size = 1Ki")));
+  }
+
+  @Test
+  void defaultConfig_shouldUseCorrectHandlerExecutorValues() {
+    Map<String, HandlerExecutorConfig> executors = new XConfig().handlerExecutors();
+    assertEquals(
+        HandlerExecutorConfig.builder().type(HandlerExecutorConfig.Type.VIRTUAL).build(),
+        executors.get("virtual"));
+    assertEquals(
+        HandlerExecutorConfig.builder()
+            .type(HandlerExecutorConfig.Type.BOUNDED)
+            .threadCount(64)
+            .queueSize(1024)
+            .targetQueueDelay(Duration.ofMillis(5))
+            .queueDelayInterval(Duration.ofMillis(100))
+            .build(),
+        executors.get("blocking"));
+  }
+
+  @Test
+  void routeExecutors_shouldMapRoutePatternsToExecutors() {
+    XConfig config =
+        new XConfig(ConfigFactory.parseString("route_executors { \"/people/{id}\" = blocking }"));
+    assertEquals(ImmutableMap.of("/people/{id}", "blocking"), config.routeExecutors());
+  }
+
+  @Test
+  void compressionDictionaries_shouldLoadDictionaryFiles() throws IOException {
+    Path path = Files.createTempFile("xrpc", ".dict");
+    try {
+      Files.write(path, "{\"id\":".getBytes(StandardCharsets.UTF_8));
+      XConfig config =
+          new XConfig(
+              ConfigFactory.parseString(
+                  String.format("compression_dictionaries { orders = \"%s\" }", path)));
+      assertEquals("orders", config.compressionDictionaries().get("orders").id());
+      assertEquals(
+          "{\"id\":",
+          new String(
+              config.compressionDictionaries().get("orders").bytes(), StandardCharsets.UTF_8));
+    } finally {
+      Files.delete(path);
+    }
   }
 
   @Test
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+
+class DictionaryRequestCompressorTest {
+  private static final String BODY =
+      "{\"orderId\":\"8251\",\"status\":\"SHIPPED\",\"items\":[{\"sku\":\"42-17\",\"quantity\":1}]}";
+  private static final CompressionDictionary DICTIONARY =
+      new CompressionDictionary(
+          "orders",
+          "{\"orderId\":\"\",\"status\":\"SHIPPED\",\"items\":[{\"sku\":\"\",\"quantity\":}]}"
+              .getBytes(XrpcConstants.DEFAULT_CHARSET));
+
+  @Test
+  void bodyCompressedWithZstdAndDictionaryAdvertised() {
+    EmbeddedChannel channel = new EmbeddedChannel(new DictionaryRequestCompressor(DICTIONARY));
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(
+            HttpVersion.HTTP_1_1,
+            HttpMethod.POST,
+            "/orders",
+            Unpooled.copiedBuffer(BODY, XrpcConstants.DEFAULT_CHARSET));
+    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+
+    channel.writeOutbound(request);
+
+    FullHttpRequest sent = channel.readOutbound();
+    assertEquals("orders", sent.headers().get(CompressionDictionary.HEADER));
+    assertEquals("gzip, zstd", sent.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+    assertEquals("zstd", sent.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    EmbeddedChannel decoder = new EmbeddedChannel(DICTIONARY.newDecoder());
+    decoder.writeInbound(sent.content());
+    ByteBuf decompressed = decoder.readInbound();
+    assertEquals(BODY, decompressed.toString(XrpcConstants.DEFAULT_CHARSET));
+    decompressed.release();
+  }
+}
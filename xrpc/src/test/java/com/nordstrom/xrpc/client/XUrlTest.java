@@ -17,7 +17,9 @@
 package com.nordstrom.xrpc.client;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.net.InetSocketAddress;
 import org.junit.jupiter.api.Test;
@@ -148,4 +150,14 @@ class XUrlTest {
     assertEquals("api.nordstrom.com", result.getHostString());
     assertEquals(80, result.getPort());
   }
+
+  @Test
+  void unixSocket() {
+    assertTrue(XUrl.isUnixSocket("unix:///run/xrpc.sock"));
+    assertFalse(XUrl.isUnixSocket(url1));
+    assertEquals("/run/xrpc.sock", XUrl.unixSocket("unix:///run/xrpc.sock").path());
+    assertEquals("/run/xrpc.sock", XUrl.unixSocket("UNIX:/run/xrpc.sock").path());
+    assertEquals("xrpc.sock", XUrl.unixSocket("unix:xrpc.sock").path());
+    assertThrows(IllegalArgumentException.class, () -> XUrl.unixSocket("unix://"));
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.encoding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CompressionDictionaryTest {
+  private static final String MESSAGE =
+      "{\"orderId\":\"8251\",\"status\":\"SHIPPED\",\"items\":[{\"sku\":\"42-17\",\"quantity\":1}]}";
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  /** Returns sample order messages which differ only in their values. */
+  private static List<byte[]> samples() {
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      samples.add(
+          bytes(
+              String.format(
+                  "{\"orderId\":\"%d\",\"status\":\"%s\",\"items\":[{\"sku\":\"%d-%d\",\"quantity\":%d}]}",
+                  i * 7919 % 10000, i % 3 == 0 ? "SHIPPED" : "PENDING", i, i % 13, i % 4 + 1)));
+    }
+    return samples;
+  }
+
+  private static String decompress(ChannelHandler decoder, ByteBuf compressed) {
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    channel.writeInbound(compressed);
+    ByteBuf decompressed = Unpooled.buffer();
+    ByteBuf buf;
+    while ((buf = channel.readInbound()) != null) {
+      decompressed.writeBytes(buf);
+      buf.release();
+    }
+    channel.finish();
+    return decompressed.toString(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  @Test
+  void compressedDataDecompressesWithSameDictionary() {
+    CompressionDictionary dictionary = CompressionDictionary.train("orders", samples(), 1024);
+    ByteBuf data = Unpooled.wrappedBuffer(bytes(MESSAGE));
+
+    ByteBuf compressed = dictionary.compress(ByteBufAllocator.DEFAULT, data, 6);
+
+    // The input is left unread.
+    assertEquals(MESSAGE.length(), data.readableBytes());
+    assertEquals(MESSAGE, decompress(dictionary.newDecoder(), compressed));
+  }
+
+  @Test
+  void trainedDictionaryCompressesSmallMessagesBetter() {
+    CompressionDictionary dictionary = CompressionDictionary.train("orders", samples(), 1024);
+
+    int withoutDictionary = Zstd.compress(bytes(MESSAGE), 6).length;
+    ByteBuf compressed =
+        dictionary.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes(MESSAGE)), 6);
+
+    assertTrue(
+        compressed.readableBytes() < withoutDictionary / 2,
+        compressed.readableBytes() + " bytes with dictionary, " + withoutDictionary + " without");
+    compressed.release();
+  }
+
+  @Test
+  void trainingRequiresEnoughSamples() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            CompressionDictionary.train(
+                "d", ImmutableList.of(bytes("abcdefghijkl"), bytes("mnopqrstuvwx")), 1024));
+  }
+
+  @Test
+  void largeDataDecompressedInChunks() {
+    CompressionDictionary dictionary = new CompressionDictionary("a", bytes(MESSAGE));
+    String data = Strings.repeat(MESSAGE, 1000);
+    ByteBuf compressed =
+        dictionary.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes(data)), 6);
+
+    assertEquals(data, decompress(dictionary.newDecoder(), compressed));
+  }
+
+  @Test
+  void dataWithoutDictionaryDecompressed() {
+    ByteBuf compressed = Unpooled.wrappedBuffer(Zstd.compress(bytes(MESSAGE), 6));
+
+    assertEquals(MESSAGE, decompress(new ZstdDecoder(), compressed));
+  }
+
+  @Test
+  void truncatedDataRejected() {
+    CompressionDictionary dictionary = new CompressionDictionary("a", bytes(MESSAGE));
+    ByteBuf compressed =
+        dictionary.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes(MESSAGE)), 6);
+
+    ByteBuf truncated = compressed.readRetainedSlice(compressed.readableBytes() - 4);
+    compressed.release();
+    assertThrows(
+        DecompressionException.class, () -> decompress(dictionary.newDecoder(), truncated));
+  }
+
+  @Test
+  void mismatchedDictionaryRejected() {
+    CompressionDictionary dictionary = new CompressionDictionary("a", bytes("\"orderId\":"));
+    CompressionDictionary other = new CompressionDictionary("b", bytes("\"status\":"));
+    ByteBuf compressed =
+        dictionary.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes(MESSAGE)), 6);
+
+    assertThrows(DecoderException.class, () -> decompress(other.newDecoder(), compressed));
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.protobuf.util.JsonFormat;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import java.beans.ConstructorProperties;
 import java.io.IOException;
@@ -37,4 +38,28 @@ class JsonEncoderTest {
         Unpooled.copiedBuffer("{\"name\":\"foo\"}", Charset.forName("UTF-8")),
         jsonEncoder.encode(Unpooled.directBuffer(), "baz-bar, foo-bar", new Person("foo")));
   }
+
+  @Test
+  void testEncodeStreamAsJsonArray() throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    jsonEncoder.encodeStreamStart(buf, null);
+    jsonEncoder.encodeStreamElement(buf, null, new Person("foo"), 0);
+    jsonEncoder.encodeStreamElement(buf, null, new Person("bar"), 1);
+    jsonEncoder.encodeStreamEnd(buf, null);
+    assertEquals("[{\"name\":\"foo\"},{\"name\":\"bar\"}]", buf.toString(Charset.forName("UTF-8")));
+  }
+
+  @Test
+  void testEncodeStreamAsNdjson() throws IOException {
+    NdjsonEncoder ndjsonEncoder =
+        new NdjsonEncoder(
+            new ObjectMapper(), JsonFormat.printer().omittingInsignificantWhitespace());
+    ByteBuf buf = Unpooled.buffer();
+    ndjsonEncoder.encodeStreamStart(buf, null);
+    ndjsonEncoder.encodeStreamElement(buf, null, new Person("foo"), 0);
+    ndjsonEncoder.encodeStreamElement(buf, null, new Person("bar"), 1);
+    ndjsonEncoder.encodeStreamEnd(buf, null);
+    assertEquals(
+        "{\"name\":\"foo\"}\n{\"name\":\"bar\"}\n", buf.toString(Charset.forName("UTF-8")));
+  }
 }
@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import com.nordstrom.xrpc.encoding.dino.proto.Dino;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import org.junit.jupiter.api.Test;
 
@@ -18,6 +19,21 @@ public class ProtoEncoderTest {
     assertEquals(dino, Dino.parseFrom(bufBytes(buf)));
   }
 
+  @Test
+  void testEncodeStreamLengthDelimited() throws IOException {
+    Dino other = Dino.newBuilder().setName("other-name").build();
+    ByteBuf buf = Unpooled.buffer();
+    encoder.encodeStreamStart(buf, "");
+    encoder.encodeStreamElement(buf, "", dino, 0);
+    encoder.encodeStreamElement(buf, "", other, 1);
+    encoder.encodeStreamEnd(buf, "");
+
+    ByteArrayInputStream in = new ByteArrayInputStream(bufBytes(buf));
+    assertEquals(dino, Dino.parseDelimitedFrom(in));
+    assertEquals(other, Dino.parseDelimitedFrom(in));
+    assertEquals(-1, in.read());
+  }
+
   private byte[] bufBytes(ByteBuf buf) {
     byte[] bytes = new byte[buf.readableBytes()];
     buf.readBytes(bytes);
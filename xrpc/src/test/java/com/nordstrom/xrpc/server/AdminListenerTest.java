@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests serving admin routes on a separate listener. */
+class AdminListenerTest {
+  private Server server;
+
+  @AfterEach
+  void afterEach() {
+    server.shutdown();
+  }
+
+  private void start(String config) throws Exception {
+    Config xrpcConfig =
+        ConfigFactory.parseString(config + "\ntls { useSsl = false, logInsecureConfig = false }")
+            .withFallback(ConfigFactory.load("test.conf").getConfig("xrpc"));
+    server = new Server(xrpcConfig);
+    server.get("/people", request -> Recipes.newResponseOk("people"));
+    server.listenAndServe();
+  }
+
+  private static Socket connect(String endpoint) throws Exception {
+    URI uri = URI.create(endpoint);
+    Socket socket = new Socket(uri.getHost(), uri.getPort());
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  /** Sends a GET of the given path on the given connection, and returns everything read. */
+  private static String get(Socket socket, String path) throws Exception {
+    OutputStream out = socket.getOutputStream();
+    out.write(
+        ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    return new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.UTF_8);
+  }
+
+  private static String get(String endpoint, String path) throws Exception {
+    try (Socket socket = connect(endpoint)) {
+      return get(socket, path);
+    }
+  }
+
+  /** Asserts that a connection to the given endpoint is closed without a response. */
+  private static void assertDropped(String endpoint) throws Exception {
+    try {
+      assertEquals("", get(endpoint, "/people"));
+    } catch (SocketException e) {
+      // The connection was reset.
+    }
+  }
+
+  @Test
+  void adminRoutesAreServedOnlyOnAdminListener() throws Exception {
+    start("admin_routes.port = 0");
+
+    String adminEndpoint = server.localAdminEndpoint();
+    assertTrue(adminEndpoint.startsWith("http://"), adminEndpoint);
+    assertNotEquals(server.localEndpoint(), adminEndpoint);
+
+    String response = get(adminEndpoint, "/ping");
+    assertTrue(response.startsWith("HTTP/1.1 200"), response);
+    assertTrue(response.endsWith("\"PONG\""), response);
+    assertTrue(get(adminEndpoint, "/people").startsWith("HTTP/1.1 404"));
+
+    assertTrue(get(server.localEndpoint(), "/ping").startsWith("HTTP/1.1 404"));
+    assertTrue(get(server.localEndpoint(), "/people").startsWith("HTTP/1.1 200"));
+  }
+
+  @Test
+  void adminListenerSkipsConnectionLimit() throws Exception {
+    start("admin_routes.port = 0\nmax_connections = 1");
+
+    try (Socket held = connect(server.localEndpoint())) {
+      // The held connection is active once it's been served a request.
+      held.getOutputStream()
+          .write(
+              "GET /people HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                  .getBytes(StandardCharsets.US_ASCII));
+      assertTrue(held.getInputStream().read() > 0);
+
+      assertDropped(server.localEndpoint());
+      for (int i = 0; i < 3; i++) {
+        assertTrue(get(server.localAdminEndpoint(), "/health").startsWith("HTTP/1.1 200"));
+      }
+    }
+  }
+
+  @Test
+  void adminListenerFiltersForwardedClients() throws Exception {
+    start("admin_routes.port = 0\ntrusted_proxies = [\"127.0.0.1\"]\nenable_black_list = true");
+
+    // The black listed client is refused even though its trusted proxy is admitted.
+    try (Socket socket = connect(server.localAdminEndpoint())) {
+      OutputStream out = socket.getOutputStream();
+      out.write(
+          ("GET /ping HTTP/1.1\r\nHost: localhost\r\nX-Forwarded-For: 5.6.7.8\r\n"
+                  + "Connection: close\r\n\r\n")
+              .getBytes(StandardCharsets.US_ASCII));
+      String response =
+          new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.UTF_8);
+      assertTrue(response.startsWith("HTTP/1.1 403"), response);
+    }
+    assertTrue(get(server.localAdminEndpoint(), "/ping").startsWith("HTTP/1.1 200"));
+  }
+
+  @Test
+  void adminRoutesAreServedWithOthersByDefault() throws Exception {
+    start("");
+
+    assertNull(server.adminChannel());
+    assertNull(server.localAdminEndpoint());
+    assertTrue(get(server.localEndpoint(), "/ping").startsWith("HTTP/1.1 200"));
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Decoders;
+import com.nordstrom.xrpc.encoding.Encoders;
+import com.nordstrom.xrpc.encoding.JsonDecoder;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import com.nordstrom.xrpc.encoding.ProtoDecoder;
+import com.nordstrom.xrpc.encoding.ProtoDefaultInstances;
+import com.nordstrom.xrpc.encoding.ProtoEncoder;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.nordstrom.xrpc.server.proto.BatchCall;
+import com.nordstrom.xrpc.server.proto.BatchRequest;
+import com.nordstrom.xrpc.server.proto.BatchResponse;
+import com.nordstrom.xrpc.server.proto.BatchResult;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.InputStreamReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchHandlerTest {
+  private final MetricRegistry metricRegistry = new MetricRegistry();
+
+  private final EmbeddedChannel channel = new EmbeddedChannel();
+
+  /** The response future returned by the handler for /async. */
+  private final CompletableFuture<HttpResponse> asyncResponse = new CompletableFuture<>();
+
+  /** The body of the last request to POST /async. */
+  private ByteBuf heldBody;
+
+  private ServerContext xctx;
+
+  @BeforeEach
+  void initContext() {
+    ObjectMapper mapper = new ObjectMapper();
+    ServerContext.Builder contextBuilder =
+        ServerContext.builder()
+            .requestMeter(metricRegistry.meter("requests"))
+            .encoders(
+                Encoders.builder()
+                    .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                    .encoder(
+                        new JsonEncoder(
+                            mapper, JsonFormat.printer().omittingInsignificantWhitespace()))
+                    .encoder(new ProtoEncoder())
+                    .build())
+            .decoders(
+                Decoders.builder()
+                    .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                    .decoder(new JsonDecoder(mapper, new ProtoDefaultInstances()))
+                    .decoder(new ProtoDecoder(new ProtoDefaultInstances()))
+                    .build())
+            .exceptionHandler(ResponseFactory::exception);
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder
+        .get("/hello/{name}", request -> Recipes.newResponseOk("hello " + request.variable("name")))
+        .post(
+            "/echo",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.body().retain(),
+                    Recipes.ContentType.Application_Octet_Stream))
+        .getAsync("/async", request -> asyncResponse)
+        .postAsync(
+            "/async",
+            request -> {
+              heldBody = request.body();
+              return asyncResponse;
+            })
+        .get("/stream", request -> request.okStream(new IteratorPublisher<>(null, () -> {})))
+        .batch("/batch", 4);
+    xctx = contextBuilder.routes(routeBuilder.compile(metricRegistry)).build();
+  }
+
+  @AfterEach
+  void afterEach() {
+    channel.finishAndReleaseAll();
+  }
+
+  /** Sends a batch request with the given content type and body. */
+  private CompletionStage<HttpResponse> batch(CharSequence contentType, ByteBuf body)
+      throws Exception {
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/batch", body);
+    request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    request.headers().set(HttpHeaderNames.ACCEPT, contentType);
+    CompiledRoutes.Match match = xctx.routes().match("/batch", HttpMethod.POST);
+    return match
+        .getHandler()
+        .handleAsync(new XrpcRequest(request, xctx, match.getGroups(), channel));
+  }
+
+  private CompletionStage<HttpResponse> batch(BatchRequest batch) throws Exception {
+    return batch(XrpcConstants.PROTO_CONTENT_TYPE, Unpooled.wrappedBuffer(batch.toByteArray()));
+  }
+
+  private static BatchResponse parse(HttpResponse response) throws Exception {
+    assertEquals(HttpResponseStatus.OK, response.status());
+    ByteBuf body = ((FullHttpResponse) response).content();
+    try {
+      return BatchResponse.parseFrom(new ByteBufInputStream(body));
+    } finally {
+      body.release();
+    }
+  }
+
+  private static String body(BatchResult result) {
+    return result.getBody().toString(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  @Test
+  void callsAnsweredInOrder() throws Exception {
+    BatchRequest batch =
+        BatchRequest.newBuilder()
+            .addCalls(BatchCall.newBuilder().setPath("/hello/world"))
+            .addCalls(
+                BatchCall.newBuilder()
+                    .setMethod("POST")
+                    .setPath("/echo")
+                    .setBody(ByteString.copyFrom("echo", XrpcConstants.DEFAULT_CHARSET)))
+            .addCalls(BatchCall.newBuilder().setPath("/missing"))
+            .addCalls(BatchCall.newBuilder().setMethod("PUT").setPath("/echo"))
+            .build();
+
+    BatchResponse response = parse(batch(batch).toCompletableFuture().get());
+
+    assertEquals(4, response.getResultsCount());
+    assertEquals(200, response.getResults(0).getStatus());
+    assertEquals("hello world", body(response.getResults(0)));
+    assertEquals("text/plain", response.getResults(0).getHeadersOrThrow("content-type"));
+    assertEquals(200, response.getResults(1).getStatus());
+    assertEquals("echo", body(response.getResults(1)));
+    assertEquals(404, response.getResults(2).getStatus());
+    assertEquals(405, response.getResults(3).getStatus());
+    // Each call is metered as its route.
+    assertEquals(1, metricRegistry.meter("routes.GET./hello/{name}").getCount());
+    assertEquals(1, metricRegistry.meter("routes.POST./echo").getCount());
+    assertEquals(1, xctx.metersByStatusCode().get(HttpResponseStatus.NOT_FOUND).getCount());
+  }
+
+  @Test
+  void jsonArrayOfCalls() throws Exception {
+    String calls =
+        " [{\"path\":\"/hello/json\"}, {\"method\":\"POST\",\"path\":\"/echo\",\"body\":\"aGk=\"}]";
+
+    HttpResponse response =
+        batch(
+                HttpHeaderValues.APPLICATION_JSON,
+                Unpooled.copiedBuffer(calls, XrpcConstants.DEFAULT_CHARSET))
+            .toCompletableFuture()
+            .get();
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    BatchResponse.Builder results = BatchResponse.newBuilder();
+    ByteBuf body = ((FullHttpResponse) response).content();
+    JsonFormat.parser()
+        .merge(
+            new InputStreamReader(
+                new ByteBufInputStream(body, true), XrpcConstants.DEFAULT_CHARSET),
+            results);
+    assertEquals("hello json", body(results.getResults(0)));
+    assertEquals("hi", body(results.getResults(1)));
+  }
+
+  @Test
+  void asyncCallsCompleteBatch() throws Exception {
+    BatchRequest batch =
+        BatchRequest.newBuilder()
+            .addCalls(BatchCall.newBuilder().setPath("/async"))
+            .addCalls(BatchCall.newBuilder().setPath("/hello/sync"))
+            .build();
+
+    CompletableFuture<HttpResponse> response = batch(batch).toCompletableFuture();
+    assertFalse(response.isDone());
+    asyncResponse.complete(Recipes.newResponseOk("later"));
+
+    BatchResponse results = parse(response.get());
+    assertEquals("later", body(results.getResults(0)));
+    assertEquals("hello sync", body(results.getResults(1)));
+  }
+
+  @Test
+  void callRequestReleasedOnceAnswered() throws Exception {
+    BatchRequest batch =
+        BatchRequest.newBuilder()
+            .addCalls(
+                BatchCall.newBuilder()
+                    .setMethod("POST")
+                    .setPath("/async")
+                    .setBody(ByteString.copyFromUtf8("held")))
+            .build();
+
+    CompletableFuture<HttpResponse> response = batch(batch).toCompletableFuture();
+    assertEquals(1, heldBody.refCnt());
+    asyncResponse.complete(Recipes.newResponseOk("later"));
+
+    assertEquals("later", body(parse(response.get()).getResults(0)));
+    assertEquals(0, heldBody.refCnt());
+  }
+
+  @Test
+  void unbatchableCallsFailAlone() throws Exception {
+    BatchRequest batch =
+        BatchRequest.newBuilder()
+            .addCalls(BatchCall.newBuilder().setPath("hello/relative"))
+            .addCalls(BatchCall.newBuilder().setPath("/stream"))
+            .addCalls(BatchCall.newBuilder().setPath("/hello/ok"))
+            .build();
+
+    BatchResponse results = parse(batch(batch).toCompletableFuture().get());
+
+    assertEquals(400, results.getResults(0).getStatus());
+    assertEquals(501, results.getResults(1).getStatus());
+    assertEquals(200, results.getResults(2).getStatus());
+  }
+
+  @Test
+  void nestedBatchRejected() throws Exception {
+    BatchCall nested =
+        BatchCall.newBuilder()
+            .setMethod("POST")
+            .setPath("/batch")
+            .putHeaders(
+                HttpHeaderNames.CONTENT_TYPE.toString(),
+                XrpcConstants.PROTO_CONTENT_TYPE.toString())
+            .setBody(
+                BatchRequest.newBuilder()
+                    .addCalls(BatchCall.newBuilder().setPath("/hello/nested"))
+                    .build()
+                    .toByteString())
+            .build();
+
+    BatchResponse results =
+        parse(
+            batch(BatchRequest.newBuilder().addCalls(nested).build()).toCompletableFuture().get());
+
+    assertEquals(400, results.getResults(0).getStatus());
+    assertEquals(0, metricRegistry.meter("routes.GET./hello/{name}").getCount());
+  }
+
+  @Test
+  void tooManyCallsRejected() throws Exception {
+    BatchRequest.Builder batch = BatchRequest.newBuilder();
+    for (int i = 0; i < 5; i++) {
+      batch.addCalls(BatchCall.newBuilder().setPath("/hello/" + i));
+    }
+
+    HttpResponse response = batch(batch.build()).toCompletableFuture().get();
+
+    assertEquals(HttpResponseStatus.BAD_REQUEST, response.status());
+    assertEquals(0, metricRegistry.meter("routes.GET./hello/{name}").getCount());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2LocalFlowController;
+import io.netty.handler.codec.http2.Http2Settings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BdpFrameListenerTest {
+  private static final int WINDOW = 65535;
+  private static final int MAX_WINDOW = 1024 * 1024;
+
+  private final Http2FrameListener listener = mock(Http2FrameListener.class);
+  private final Http2ConnectionEncoder encoder = mock(Http2ConnectionEncoder.class);
+  private final Http2LocalFlowController flowController = mock(Http2LocalFlowController.class);
+  private final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+  private final Http2Connection connection = new DefaultHttp2Connection(true);
+  private final Histogram windowSizes = new Histogram(new UniformReservoir());
+  private BdpFrameListener bdp;
+
+  @BeforeEach
+  void beforeEach() {
+    when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+    when(ctx.newPromise()).thenReturn(new EmbeddedChannel().newPromise());
+    bdp =
+        new BdpFrameListener(
+            listener, connection, encoder, flowController, WINDOW, WINDOW, MAX_WINDOW, windowSizes);
+  }
+
+  private void read(int bytes) throws Http2Exception {
+    bdp.onDataRead(ctx, 3, Unpooled.wrappedBuffer(new byte[bytes]), 0, false);
+  }
+
+  private void ack() throws Http2Exception {
+    bdp.onPingAckRead(ctx, Unpooled.buffer().writeLong(BdpFrameListener.BDP_PING));
+  }
+
+  @Test
+  void windowsGrowWhenRoundTripFillsWindow() throws Http2Exception {
+    read(1000);
+    verify(encoder)
+        .writePing(
+            eq(ctx),
+            eq(false),
+            argThat((ByteBuf data) -> data.getLong(0) == BdpFrameListener.BDP_PING),
+            any(ChannelPromise.class));
+
+    read(30000);
+    read(30000);
+    ack();
+
+    verify(flowController).incrementWindowSize(connection.connectionStream(), 120000 - WINDOW);
+    verify(encoder)
+        .writeSettings(
+            eq(ctx),
+            argThat((Http2Settings settings) -> settings.initialWindowSize() == 120000),
+            any(ChannelPromise.class));
+    assertEquals(1, windowSizes.getCount());
+    assertEquals(120000, windowSizes.getSnapshot().getMax());
+    // Data is still passed on.
+    verify(listener, times(3)).onDataRead(eq(ctx), eq(3), any(ByteBuf.class), eq(0), eq(false));
+  }
+
+  @Test
+  void windowsKeptWhenRoundTripUnderWindow() throws Http2Exception {
+    read(1000);
+    read(10000);
+    ack();
+
+    verify(flowController, never()).incrementWindowSize(any(), anyInt());
+    assertEquals(0, windowSizes.getCount());
+
+    // Another estimate starts with the next read.
+    read(1000);
+    verify(encoder, times(2)).writePing(eq(ctx), eq(false), any(ByteBuf.class), any());
+  }
+
+  @Test
+  void windowsCappedAtMaximum() throws Http2Exception {
+    read(1);
+    read(MAX_WINDOW);
+    ack();
+
+    verify(flowController).incrementWindowSize(connection.connectionStream(), MAX_WINDOW - WINDOW);
+    assertEquals(MAX_WINDOW, windowSizes.getSnapshot().getMax());
+
+    // No more PINGs are sent once the windows are at the maximum.
+    read(1000);
+    verify(encoder, times(1)).writePing(eq(ctx), eq(false), any(ByteBuf.class), any());
+  }
+
+  @Test
+  void otherPingAcksPassedOn() throws Http2Exception {
+    ByteBuf data = Unpooled.buffer().writeLong(42);
+    bdp.onPingAckRead(ctx, data);
+
+    verify(listener).onPingAckRead(ctx, data);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.codahale.metrics.MetricRegistry;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BoundedHandlerExecutorTest {
+  private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private MetricRegistry metricRegistry;
+  private BoundedHandlerExecutor executor;
+
+  @BeforeEach
+  void beforeEach() {
+    metricRegistry = new MetricRegistry();
+    executor =
+        new BoundedHandlerExecutor(
+            "test",
+            HandlerExecutorConfig.builder()
+                .type(HandlerExecutorConfig.Type.BOUNDED)
+                .threadCount(1)
+                .queueSize(1)
+                .targetQueueDelay(Duration.ofNanos(TARGET))
+                .queueDelayInterval(Duration.ofNanos(INTERVAL))
+                .build(),
+            metricRegistry);
+  }
+
+  @AfterEach
+  void afterEach() {
+    executor.shutdown();
+  }
+
+  @Test
+  void execute_completesWithHandlerResponse() {
+    HttpResponse response = Recipes.newResponseOk();
+    HttpResponse result =
+        executor.execute(mock(XrpcRequest.class), request -> response).toCompletableFuture().join();
+    assertSame(response, result);
+  }
+
+  @Test
+  void execute_shedsWhenQueueIsFull() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CompletableFuture<HttpResponse> blocker = new CompletableFuture<>();
+    XrpcRequest request = mock(XrpcRequest.class);
+
+    // Occupy the only thread, then the only queue slot.
+    executor.execute(
+        request,
+        r -> {
+          started.countDown();
+          return blocker.join();
+        });
+    started.await();
+    executor.execute(request, r -> Recipes.newResponseOk());
+
+    HttpResponse shed =
+        executor.execute(request, r -> Recipes.newResponseOk()).toCompletableFuture().join();
+    assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, shed.status());
+    assertEquals(1, metricRegistry.meter("handlerExecutors.test.shed").getCount());
+
+    blocker.complete(Recipes.newResponseOk());
+  }
+
+  @Test
+  void shouldShed_onlyLongWaitsWhenNotOverloaded() {
+    long now = System.nanoTime();
+    assertFalse(executor.shouldShed(TARGET * 2, now));
+    assertFalse(executor.shouldShed(INTERVAL, now));
+    assertTrue(executor.shouldShed(INTERVAL + 1, now));
+  }
+
+  @Test
+  void shouldShed_afterDelayAboveTargetForInterval() {
+    long now = System.nanoTime() + INTERVAL;
+
+    // Every request in this interval waits longer than the target.
+    assertFalse(executor.shouldShed(TARGET * 2, now));
+    assertFalse(executor.shouldShed(TARGET * 3, now + INTERVAL / 2));
+
+    // The next interval is overloaded: requests waiting longer than the target are shed.
+    now += INTERVAL;
+    assertTrue(executor.shouldShed(TARGET * 2, now));
+    assertFalse(executor.shouldShed(TARGET / 2, now + 1));
+
+    // A request got through under the target, so the following interval is not overloaded.
+    now += INTERVAL;
+    assertFalse(executor.shouldShed(TARGET * 2, now));
+  }
+
+  @Test
+  void shouldShed_resetsAfterIdleInterval() {
+    long now = System.nanoTime() + INTERVAL;
+    assertFalse(executor.shouldShed(TARGET * 2, now));
+
+    // Nothing was dequeued for over an interval, so the queue must have drained.
+    now += INTERVAL * 3;
+    assertFalse(executor.shouldShed(TARGET * 2, now));
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpScheme;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.cors.CorsConfigBuilder;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapterBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CleartextHttp2OrHttpHandlerTest {
+  private MetricRegistry metricRegistry = new MetricRegistry();
+  private EmbeddedChannel server;
+
+  @BeforeEach
+  void initChannel() {
+    ServerContext.Builder contextBuilder =
+        ServerContext.builder().requestMeter(metricRegistry.meter("requests"));
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder.get("/hello", request -> Recipes.newResponseOk("hi"));
+    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+
+    Http2OrHttpHandler h1h2 =
+        new Http2OrHttpHandler(
+            new UrlRouter(),
+            contextBuilder.build(),
+            CorsConfigBuilder.forAnyOrigin().disable().build(),
+            1024);
+    server = new EmbeddedChannel(new CleartextHttp2OrHttpHandler(h1h2));
+  }
+
+  /** Returns everything the given channel has written, as one buffer. */
+  private static ByteBuf written(EmbeddedChannel channel) {
+    ByteBuf written = Unpooled.buffer();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      written.writeBytes(buf);
+      buf.release();
+    }
+    return written;
+  }
+
+  /** Returns an HTTP/2 client channel, which reads responses as FullHttpResponses. */
+  private static EmbeddedChannel newHttp2Client(boolean upgraded) throws Exception {
+    Http2Connection connection = new DefaultHttp2Connection(false);
+    HttpToHttp2ConnectionHandler handler =
+        new HttpToHttp2ConnectionHandlerBuilder()
+            .connection(connection)
+            .frameListener(
+                new InboundHttp2ToHttpAdapterBuilder(connection).maxContentLength(1024).build())
+            .build();
+    EmbeddedChannel client = new EmbeddedChannel(handler);
+    if (upgraded) {
+      handler.onHttpClientUpgrade();
+    }
+    return client;
+  }
+
+  /** Passes bytes between the client and server until neither has more to send. */
+  private void exchange(EmbeddedChannel client, ByteBuf fromServer) {
+    while (true) {
+      ByteBuf fromClient = written(client);
+      if (fromClient.isReadable()) {
+        server.writeInbound(fromClient);
+      } else {
+        fromClient.release();
+      }
+      fromServer.writeBytes(written(server));
+      if (!fromServer.isReadable() && !fromClient.isReadable()) {
+        fromServer.release();
+        return;
+      }
+      client.writeInbound(fromServer);
+      fromServer = Unpooled.buffer();
+    }
+  }
+
+  @Test
+  void http1ServedWhenNoPreface() {
+    server.writeInbound(
+        Unpooled.copiedBuffer(
+            "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n", XrpcConstants.DEFAULT_CHARSET));
+
+    String response = written(server).toString(XrpcConstants.DEFAULT_CHARSET);
+    assertTrue(response.startsWith("HTTP/1.1 200 OK"), response);
+    assertTrue(response.endsWith("hi"));
+    assertNull(server.pipeline().get(CleartextHttp2OrHttpHandler.class));
+  }
+
+  @Test
+  void http2ServedWithPriorKnowledge() throws Exception {
+    EmbeddedChannel client = newHttp2Client(false);
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/hello");
+    request
+        .headers()
+        .set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), HttpScheme.HTTP.name());
+    client.writeOutbound(request);
+
+    exchange(client, Unpooled.buffer());
+
+    assertNotNull(server.pipeline().get(Http2ConnectionHandler.class));
+    FullHttpResponse response = client.readInbound();
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("hi", response.content().toString(XrpcConstants.DEFAULT_CHARSET));
+    response.release();
+  }
+
+  @Test
+  void http1UpgradedToHttp2() throws Exception {
+    server.writeInbound(
+        Unpooled.copiedBuffer(
+            "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n",
+            XrpcConstants.DEFAULT_CHARSET));
+
+    ByteBuf fromServer = written(server);
+    String head = fromServer.toString(XrpcConstants.DEFAULT_CHARSET);
+    assertTrue(head.startsWith("HTTP/1.1 101 Switching Protocols"), head);
+    // Only the HTTP/2 connection handler remains after the upgrade.
+    assertNotNull(server.pipeline().get(Http2ConnectionHandler.class));
+    assertNull(server.pipeline().get(UrlRouter.class));
+
+    // The response to the upgrade request is sent on stream 1, after the 101 response.
+    fromServer.skipBytes(
+        ByteBufUtil.indexOf(
+                Unpooled.copiedBuffer("\r\n\r\n", XrpcConstants.DEFAULT_CHARSET), fromServer)
+            + 4);
+    EmbeddedChannel client = newHttp2Client(true);
+    exchange(client, fromServer);
+
+    FullHttpResponse response = client.readInbound();
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("hi", response.content().toString(XrpcConstants.DEFAULT_CHARSET));
+    response.release();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+class ClientAddressesTest {
+  private final ClientAddresses addresses =
+      new ClientAddresses(ImmutableList.of("10.0.0.0/8", "192.168.0.0/23", "2001:db8::1"));
+
+  @Test
+  void isTrusted_matchesAddressesAndRanges() {
+    assertTrue(addresses.isTrusted("10.1.2.3"));
+    assertTrue(addresses.isTrusted("192.168.1.255"));
+    assertFalse(addresses.isTrusted("192.168.2.1"));
+    assertTrue(addresses.isTrusted("2001:db8:0:0:0:0:0:1"));
+    assertFalse(addresses.isTrusted("2001:db8::2"));
+    assertFalse(addresses.isTrusted("not-an-address"));
+    assertFalse(addresses.isTrusted(null));
+  }
+
+  @Test
+  void resolve_ignoresHeadersFromUntrustedConnections() {
+    assertEquals("203.0.113.9", addresses.resolve("203.0.113.9", null, "198.51.100.1"));
+  }
+
+  @Test
+  void resolve_skipsTrustedHops() {
+    assertEquals(
+        "198.51.100.1", addresses.resolve("10.0.0.1", null, "198.51.100.1, 10.0.0.2, 10.0.0.3"));
+    assertEquals("10.0.0.1", addresses.resolve("10.0.0.1", null, null));
+  }
+
+  @Test
+  void resolve_stopsAtFirstUntrustedHop() {
+    // The leftmost address was sent by the client, and can't be trusted.
+    assertEquals(
+        "198.51.100.1", addresses.resolve("10.0.0.1", null, "192.0.2.66, 198.51.100.1:4711"));
+  }
+
+  @Test
+  void resolve_prefersForwardedHeader() {
+    assertEquals(
+        "2001:db8:0:0:0:0:0:2",
+        addresses.resolve(
+            "10.0.0.1", "for=\"[2001:db8::2]:4711\";proto=https, for=10.0.0.2", "192.0.2.66"));
+  }
+
+  @Test
+  void resolve_stopsAtObfuscatedHop() {
+    assertEquals("10.0.0.2", addresses.resolve("10.0.0.1", "for=_hidden, for=10.0.0.2", null));
+    assertEquals("10.0.0.1", addresses.resolve("10.0.0.1", null, "unknown"));
+  }
+
+  @Test
+  void constructor_rejectsInvalidRanges() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new ClientAddresses(ImmutableList.of("10.0.0/8")));
+    assertThrows(
+        IllegalArgumentException.class, () -> new ClientAddresses(ImmutableList.of("10.0.0.0/33")));
+  }
+
+  @Test
+  void trustsProxies_isFalseWithoutProxies() {
+    ClientAddresses none = new ClientAddresses(ImmutableList.of());
+    assertFalse(none.trustsProxies());
+    assertEquals("10.0.0.1", none.resolve("10.0.0.1", null, "198.51.100.1"));
+    assertNull(none.resolve(null, null, "198.51.100.1"));
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests resolving client addresses from PROXY protocol headers and forwarding headers. */
+class ClientIdentityTest {
+  private Server server;
+
+  @AfterEach
+  void afterEach() {
+    server.shutdown();
+  }
+
+  private URI start(String config) throws Exception {
+    Config xrpcConfig =
+        ConfigFactory.parseString(config + "\ntls { useSsl = false, logInsecureConfig = false }")
+            .withFallback(ConfigFactory.load("test.conf").getConfig("xrpc"));
+    server = new Server(xrpcConfig);
+    server.get("/client", request -> Recipes.newResponseOk(request.clientAddress()));
+    server.batch("/batch");
+    server.listenAndServe();
+    return URI.create(server.localEndpoint());
+  }
+
+  /** Sends the given bytes on a new connection, and returns everything read until it closes. */
+  private static String exchange(URI endpoint, String request) throws Exception {
+    try (Socket socket = new Socket(endpoint.getHost(), endpoint.getPort())) {
+      socket.setSoTimeout(5000);
+      OutputStream out = socket.getOutputStream();
+      out.write(request.getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      return new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void proxyProtocolHeaderGivesClientAddress() throws Exception {
+    URI endpoint = start("proxy_protocol = true");
+
+    String response =
+        exchange(
+            endpoint,
+            "PROXY TCP4 203.0.113.7 127.0.0.1 51234 443\r\n"
+                + "GET /client HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+    assertTrue(response.startsWith("HTTP/1.1 200"), response);
+    assertTrue(response.endsWith("203.0.113.7"), response);
+  }
+
+  @Test
+  void connectionWithoutProxyProtocolHeaderIsClosed() throws Exception {
+    URI endpoint = start("proxy_protocol = true");
+
+    assertEquals(
+        "",
+        exchange(endpoint, "GET /client HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"));
+  }
+
+  @Test
+  void trustedProxyForwardsClientAddress() throws Exception {
+    URI endpoint = start("trusted_proxies = [\"127.0.0.1\"]");
+
+    String response =
+        exchange(
+            endpoint,
+            "GET /client HTTP/1.1\r\nHost: localhost\r\nX-Forwarded-For: 198.51.100.1\r\n"
+                + "Connection: close\r\n\r\n");
+
+    assertTrue(response.endsWith("198.51.100.1"), response);
+  }
+
+  /**
+   * Sends a batch of one call to /client, which claims to be forwarded for a black listed client.
+   */
+  private static String batch(URI endpoint) throws Exception {
+    String body = "[{\"path\":\"/client\",\"headers\":{\"X-Forwarded-For\":\"5.6.7.8\"}}]";
+    return exchange(
+        endpoint,
+        "POST /batch HTTP/1.1\r\nHost: localhost\r\nX-Forwarded-For: 198.51.100.1\r\n"
+            + "Content-Type: application/json\r\nContent-Length: "
+            + body.length()
+            + "\r\nConnection: close\r\n\r\n"
+            + body);
+  }
+
+  @Test
+  void batchedCallsAreMadeByTheBatchClient() throws Exception {
+    URI endpoint = start("trusted_proxies = [\"127.0.0.1\"]\nenable_black_list = true");
+
+    String response = batch(endpoint);
+
+    assertTrue(response.startsWith("HTTP/1.1 200"), response);
+    assertTrue(response.contains("\"status\":200"), response);
+    String client =
+        Base64.getEncoder().encodeToString("198.51.100.1".getBytes(StandardCharsets.UTF_8));
+    assertTrue(response.contains(client), response);
+  }
+
+  @Test
+  void batchedCallsAreRateLimited() throws Exception {
+    URI endpoint =
+        start("trusted_proxies = [\"127.0.0.1\"]\nsoft_req_per_sec = 1.0\nhard_req_per_sec = 1.0");
+
+    // The batch request takes the client's only permit, leaving none for its call.
+    String response = batch(endpoint);
+
+    assertTrue(response.startsWith("HTTP/1.1 200"), response);
+    assertTrue(response.contains("\"status\":429"), response);
+  }
+
+  @Test
+  void blackListAppliesToEachForwardedRequest() throws Exception {
+    URI endpoint = start("trusted_proxies = [\"127.0.0.1\"]\nenable_black_list = true");
+
+    // Both requests share the proxy's connection; only the black listed client is refused.
+    String response =
+        exchange(
+            endpoint,
+            "GET /client HTTP/1.1\r\nHost: localhost\r\nX-Forwarded-For: 5.6.7.8\r\n\r\n"
+                + "GET /client HTTP/1.1\r\nHost: localhost\r\nX-Forwarded-For: 198.51.100.1\r\n"
+                + "Connection: close\r\n\r\n");
+
+    assertTrue(response.startsWith("HTTP/1.1 403"), response);
+    assertTrue(response.contains("HTTP/1.1 200"), response);
+    assertTrue(response.endsWith("198.51.100.1"), response);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.CompressionDictionary;
+import com.nordstrom.xrpc.encoding.DictionaryContentDecompressor;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DictionaryCompressionTest {
+  private static final String BODY =
+      "{\"orderId\":\"8251\",\"status\":\"SHIPPED\",\"items\":[{\"sku\":\"42-17\",\"quantity\":1}]}";
+  private static final CompressionDictionary DICTIONARY =
+      new CompressionDictionary(
+          "orders",
+          "{\"orderId\":\"\",\"status\":\"SHIPPED\",\"items\":[{\"sku\":\"\",\"quantity\":}]}"
+              .getBytes(XrpcConstants.DEFAULT_CHARSET));
+
+  private MetricRegistry metricRegistry = new MetricRegistry();
+  private EmbeddedChannel channel;
+
+  @BeforeEach
+  void initChannel() {
+    ServerContext.Builder contextBuilder =
+        ServerContext.builder()
+            .requestMeter(metricRegistry.meter("requests"))
+            .requestDecompression(true)
+            .compressionDictionaries(ImmutableMap.of(DICTIONARY.id(), DICTIONARY));
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder
+        .post(
+            "/echo",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.body().retain(),
+                    Recipes.ContentType.Application_Json))
+        .post(
+            "/uncompressed",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.body().retain(),
+                    Recipes.ContentType.Application_Json));
+    routeBuilder.uncompressed("/uncompressed");
+    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+
+    channel =
+        new EmbeddedChannel(
+            new HttpServerCodec(),
+            new HttpServerKeepAliveHandler(),
+            new DictionaryContentDecompressor(ImmutableMap.of(DICTIONARY.id(), DICTIONARY)),
+            new RequestAggregator(1024),
+            new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(contextBuilder.build());
+  }
+
+  /**
+   * Posts BODY compressed with the dictionary named dictionaryId, and returns the response as a
+   * client with the test dictionary reads it.
+   */
+  private FullHttpResponse post(String path, String dictionaryId) {
+    ByteBuf body =
+        DICTIONARY.compress(
+            ByteBufAllocator.DEFAULT,
+            Unpooled.wrappedBuffer(BODY.getBytes(XrpcConstants.DEFAULT_CHARSET)),
+            6);
+    String head =
+        String.format(
+            "POST %s HTTP/1.1\r\nHost: localhost\r\nContent-Length: %d\r\n"
+                + "Content-Encoding: zstd\r\nAccept-Encoding: zstd\r\n"
+                + "xrpc-dictionary: %s\r\n\r\n",
+            path, body.readableBytes(), dictionaryId);
+    channel.writeInbound(
+        Unpooled.wrappedBuffer(Unpooled.copiedBuffer(head, XrpcConstants.DEFAULT_CHARSET), body));
+
+    EmbeddedChannel client =
+        new EmbeddedChannel(
+            new HttpClientCodec(),
+            new DictionaryContentDecompressor(ImmutableMap.of(DICTIONARY.id(), DICTIONARY)),
+            new HttpObjectAggregator(1024));
+    // The client codec only decodes responses to requests it has sent.
+    client.writeOutbound(Recipes.newRequestGet(path));
+    client.releaseOutbound();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      client.writeInbound(buf);
+    }
+    return client.readInbound();
+  }
+
+  @Test
+  void requestAndResponseCompressedWithDictionary() {
+    FullHttpResponse response = post("/echo", "orders");
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("orders", response.headers().get(CompressionDictionary.HEADER));
+    // The client's decompressor removes the coding once it has decompressed the body.
+    assertNull(response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    assertEquals(BODY, response.content().toString(XrpcConstants.DEFAULT_CHARSET));
+    response.release();
+
+    assertEquals(1, metricRegistry.histogram("routeCompressionRatio.POST./echo").getCount());
+    assertEquals(1, metricRegistry.timer("routeCompressionTime.POST./echo").getCount());
+  }
+
+  @Test
+  void uncompressedRouteNotCompressed() {
+    FullHttpResponse response = post("/uncompressed", "orders");
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertFalse(response.headers().contains(CompressionDictionary.HEADER));
+    assertEquals(BODY, response.content().toString(XrpcConstants.DEFAULT_CHARSET));
+    response.release();
+  }
+
+  @Test
+  void unknownDictionaryRejected() {
+    FullHttpResponse response = post("/echo", "unknown");
+
+    assertEquals(HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE, response.status());
+    response.release();
+  }
+}
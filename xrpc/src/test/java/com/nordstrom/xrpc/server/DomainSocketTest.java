@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.nordstrom.xrpc.client.XrpcClient;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DomainSocketTest {
+  private Path socketPath;
+  private Server server;
+
+  @BeforeEach
+  void beforeEach() throws Exception {
+    assumeTrue(Epoll.isAvailable() || KQueue.isAvailable());
+    socketPath = Files.createTempDirectory("xrpc-socket").resolve("xrpc.sock");
+    server =
+        new Server(
+            ConfigFactory.load("test.conf")
+                .getConfig("xrpc")
+                .withValue(
+                    "server.unix_socket_path",
+                    ConfigValueFactory.fromAnyRef(socketPath.toString())));
+    server.get("/people", request -> Recipes.newResponseOk("people"));
+    server.listenAndServe();
+  }
+
+  @AfterEach
+  void afterEach() throws Exception {
+    if (server != null) {
+      server.shutdown();
+      server.domainSocketChannel().closeFuture().await(5, TimeUnit.SECONDS);
+      Files.deleteIfExists(socketPath.getParent());
+    }
+  }
+
+  @Test
+  void servesRoutesOverDomainSocket() throws Exception {
+    assertEquals("unix://" + socketPath, server.localDomainSocketEndpoint());
+
+    FullHttpResponse response =
+        new XrpcClient()
+            .newCall(server.localDomainSocketEndpoint())
+            .get(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/people"))
+            .execute()
+            .get(5, TimeUnit.SECONDS);
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("people", response.content().toString(StandardCharsets.UTF_8));
+    response.release();
+  }
+
+  @Test
+  void removesSocketFileOnShutdown() throws Exception {
+    assertTrue(Files.exists(socketPath));
+
+    server.shutdown();
+    server.domainSocketChannel().closeFuture().await(5, TimeUnit.SECONDS);
+
+    assertFalse(Files.exists(socketPath));
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class FastHttpServerCodecTest {
+  private final EmbeddedChannel channel = new EmbeddedChannel(new FastHttpServerCodec());
+
+  @AfterEach
+  void finish() {
+    channel.finishAndReleaseAll();
+  }
+
+  private void write(String raw) {
+    channel.writeInbound(Unpooled.copiedBuffer(raw.getBytes(XrpcConstants.DEFAULT_CHARSET)));
+  }
+
+  /** Writes the given response through the given codec, and returns the bytes it encoded. */
+  private static String encode(ChannelHandler codec, String request, FullHttpResponse response) {
+    EmbeddedChannel channel = new EmbeddedChannel(codec);
+    channel.writeInbound(Unpooled.copiedBuffer(request.getBytes(XrpcConstants.DEFAULT_CHARSET)));
+    Object msg;
+    while ((msg = channel.readInbound()) != null) {
+      ReferenceCountUtil.release(msg);
+    }
+    channel.writeOutbound(response);
+    StringBuilder encoded = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      encoded.append(buf.toString(XrpcConstants.DEFAULT_CHARSET));
+      buf.release();
+    }
+    channel.finishAndReleaseAll();
+    return encoded.toString();
+  }
+
+  private static FullHttpResponse okResponse() {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK,
+            Unpooled.copiedBuffer("hello".getBytes(XrpcConstants.DEFAULT_CHARSET)));
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 5);
+    return response;
+  }
+
+  @Test
+  void smallRequestDecodedWhole() {
+    write("GET /foo?bar=1 HTTP/1.1\r\nHost: localhost\r\nX-Custom:  value \r\nAccept: */*\r\n\r\n");
+
+    FullHttpRequest request = channel.readInbound();
+    assertTrue(request.decoderResult().isSuccess());
+    assertEquals(HttpMethod.GET, request.method());
+    assertEquals("/foo?bar=1", request.uri());
+    assertEquals(HttpVersion.HTTP_1_1, request.protocolVersion());
+    assertEquals("localhost", request.headers().get("host"));
+    assertEquals("value", request.headers().get("x-custom"));
+    assertEquals("*/*", request.headers().get(HttpHeaderNames.ACCEPT));
+    assertEquals(0, request.content().readableBytes());
+    request.release();
+    assertNull(channel.readInbound());
+  }
+
+  @Test
+  void requestSplitAcrossReads() {
+    write("\r\nGET / HTTP/1.1\r\nHo");
+    assertNull(channel.readInbound());
+    write("st: localhost\r\n");
+    assertNull(channel.readInbound());
+    write("\r\n");
+
+    FullHttpRequest request = channel.readInbound();
+    assertEquals("localhost", request.headers().get(HttpHeaderNames.HOST));
+    request.release();
+  }
+
+  @Test
+  void pipelinedRequestsDecodedInOrder() {
+    write("GET /a HTTP/1.1\n\nDELETE /b HTTP/1.1\r\nContent-Length: 0\r\n\r\n");
+
+    FullHttpRequest first = channel.readInbound();
+    FullHttpRequest second = channel.readInbound();
+    assertEquals("/a", first.uri());
+    assertEquals(HttpMethod.DELETE, second.method());
+    assertEquals("/b", second.uri());
+    first.release();
+    second.release();
+  }
+
+  @Test
+  void requestWithBodyDecodedByNettyThenFastPathResumes() {
+    write(
+        "POST /echo HTTP/1.1\r\nContent-Length: 4\r\n\r\nping"
+            + "GET /after HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    Object head = channel.readInbound();
+    assertTrue(head instanceof HttpRequest);
+    assertFalse(head instanceof FullHttpRequest);
+    HttpContent content = channel.readInbound();
+    assertTrue(content instanceof LastHttpContent);
+    assertEquals("ping", content.content().toString(XrpcConstants.DEFAULT_CHARSET));
+    content.release();
+
+    FullHttpRequest next = channel.readInbound();
+    assertEquals("/after", next.uri());
+    next.release();
+  }
+
+  @Test
+  void oversizedRequestFailsAsWithNetty() {
+    StringBuilder longValue = new StringBuilder();
+    for (int i = 0; i < 9000; i++) {
+      longValue.append('a');
+    }
+    write("GET / HTTP/1.1\r\nX-Long: " + longValue + "\r\n\r\n");
+
+    HttpRequest request = channel.readInbound();
+    assertTrue(request.decoderResult().isFailure());
+    ReferenceCountUtil.release(request);
+  }
+
+  @Test
+  void responseEncodedAsWithNetty() {
+    String request = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    assertEquals(
+        encode(new HttpServerCodec(), request, okResponse()),
+        encode(new FastHttpServerCodec(), request, okResponse()));
+
+    FullHttpResponse custom = okResponse();
+    custom.setStatus(new HttpResponseStatus(200, "Fine"));
+    assertTrue(encode(new FastHttpServerCodec(), request, custom).startsWith("HTTP/1.1 200 Fine"));
+  }
+
+  @Test
+  void headResponseHasNoBody() {
+    String encoded =
+        encode(
+            new FastHttpServerCodec(), "HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n", okResponse());
+
+    assertTrue(encoded.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(encoded.endsWith("\r\n\r\n"));
+    assertFalse(encoded.contains("hello"));
+  }
+}
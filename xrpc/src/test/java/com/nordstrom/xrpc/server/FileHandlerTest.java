@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.XrpcConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FileHandlerTest {
+  private Path root;
+  private FileHandler handler;
+
+  @BeforeEach
+  void beforeEach() throws IOException {
+    root = Files.createTempDirectory("xrpc-files");
+    Files.write(root.resolve("hello.txt"), "hello, world".getBytes(XrpcConstants.DEFAULT_CHARSET));
+    Files.write(root.resolve("hello.txt.gz"), new byte[] {1, 2, 3});
+    handler = new FileHandler(root.resolve("."));
+  }
+
+  @AfterEach
+  void afterEach() throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private HttpResponse get(String path, String... headers) throws IOException {
+    return handle(HttpMethod.GET, path, headers);
+  }
+
+  private HttpResponse handle(HttpMethod method, String path, String... headers)
+      throws IOException {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, "/");
+    for (int i = 0; i < headers.length; i += 2) {
+      request.headers().set(headers[i], headers[i + 1]);
+    }
+    return handler.handle(
+        new XrpcRequest(
+            request,
+            ServerContext.builder().build(),
+            ImmutableMap.of("path", path),
+            new EmbeddedChannel()));
+  }
+
+  /** Reads the whole body of the given file response. */
+  private static String body(HttpResponse response) {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    @SuppressWarnings("unchecked")
+    Flow.Publisher<ByteBuf> elements =
+        (Flow.Publisher<ByteBuf>) ((FileResponse) response).elements();
+    elements.subscribe(subscriber);
+    subscriber.request(Long.MAX_VALUE);
+    assertTrue(subscriber.completed);
+    return subscriber.received.toString(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  @Test
+  void wholeFileServedWithValidators() throws IOException {
+    HttpResponse response = get("hello.txt");
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals(12, HttpUtil.getContentLength(response));
+    assertEquals("text/plain", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    assertEquals("bytes", response.headers().get(HttpHeaderNames.ACCEPT_RANGES));
+    assertTrue(response.headers().contains(HttpHeaderNames.ETAG));
+    assertTrue(response.headers().contains(HttpHeaderNames.LAST_MODIFIED));
+    assertEquals("hello, world", body(response));
+  }
+
+  @Test
+  void singleRangeServedAsPartialContent() throws IOException {
+    HttpResponse response = get("hello.txt", "range", "bytes=7-");
+
+    assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+    assertEquals("bytes 7-11/12", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+    assertEquals(5, HttpUtil.getContentLength(response));
+    assertEquals("world", body(response));
+
+    assertEquals("ld", body(get("hello.txt", "range", "bytes=-2")));
+  }
+
+  @Test
+  void unsatisfiableRangeRejected() throws IOException {
+    HttpResponse response = get("hello.txt", "range", "bytes=12-20");
+
+    assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status());
+    assertEquals("bytes */12", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+  }
+
+  @Test
+  void rangeIgnoredWhenIfRangeIsStale() throws IOException {
+    HttpResponse response = get("hello.txt", "range", "bytes=0-4", "if-range", "\"stale\"");
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("hello, world", body(response));
+  }
+
+  @Test
+  void parseRange() {
+    assertArrayEquals(new long[] {0, 4}, FileHandler.parseRange("bytes=0-4", 10));
+    assertArrayEquals(new long[] {5, 9}, FileHandler.parseRange("bytes=5-100", 10));
+    assertArrayEquals(new long[] {0, 9}, FileHandler.parseRange("bytes=-100", 10));
+    assertSame(FileHandler.UNSATISFIABLE, FileHandler.parseRange("bytes=10-", 10));
+    assertSame(FileHandler.UNSATISFIABLE, FileHandler.parseRange("bytes=-0", 10));
+    assertNull(FileHandler.parseRange("bytes=0-1,3-4", 10));
+    assertNull(FileHandler.parseRange("bytes=4-1", 10));
+    assertNull(FileHandler.parseRange("items=0-1", 10));
+  }
+
+  @Test
+  void matchingEtagNotModified() throws IOException {
+    String etag = get("hello.txt").headers().get(HttpHeaderNames.ETAG);
+
+    HttpResponse response = get("hello.txt", "if-none-match", "\"other\", " + etag);
+    assertEquals(HttpResponseStatus.NOT_MODIFIED, response.status());
+    assertEquals(etag, response.headers().get(HttpHeaderNames.ETAG));
+  }
+
+  @Test
+  void gzipSiblingServedWhenAccepted() throws IOException {
+    HttpResponse response = get("hello.txt", "accept-encoding", "br, gzip");
+    assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    assertEquals("text/plain", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    assertEquals(3, HttpUtil.getContentLength(response));
+
+    response = get("hello.txt", "accept-encoding", "gzip;q=0");
+    assertNull(response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+  }
+
+  @Test
+  void gzipSiblingOutsideRootNotServed() throws IOException {
+    Path secret = root.resolveSibling(root.getFileName() + ".secret");
+    Files.write(secret, new byte[] {1});
+    try {
+      Files.delete(root.resolve("hello.txt.gz"));
+      Files.createSymbolicLink(root.resolve("hello.txt.gz"), secret);
+
+      HttpResponse response = get("hello.txt", "accept-encoding", "gzip");
+      assertNull(response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+      assertEquals("hello, world", body(response));
+    } finally {
+      Files.delete(secret);
+    }
+  }
+
+  @Test
+  void headAnsweredWithoutBody() throws IOException {
+    HttpResponse response = handle(HttpMethod.HEAD, "hello.txt");
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals(12, HttpUtil.getContentLength(response));
+    assertFalse(response instanceof FileResponse);
+  }
+
+  @Test
+  void pathsOutsideRootNotFound() throws IOException {
+    Files.write(root.resolveSibling(root.getFileName() + ".secret"), new byte[] {1});
+    try {
+      String escape = "../" + root.getFileName() + ".secret";
+      assertEquals(HttpResponseStatus.NOT_FOUND, get(escape).status());
+      assertEquals(
+          HttpResponseStatus.NOT_FOUND,
+          get(escape.replace("/", "%2F").replace(".", "%2E")).status());
+      assertEquals(HttpResponseStatus.NOT_FOUND, get("missing.txt").status());
+      assertEquals(HttpResponseStatus.NOT_FOUND, get(".").status());
+    } finally {
+      Files.delete(root.resolveSibling(root.getFileName() + ".secret"));
+    }
+  }
+}
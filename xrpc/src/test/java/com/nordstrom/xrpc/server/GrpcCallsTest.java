@@ -0,0 +1,418 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Decoders;
+import com.nordstrom.xrpc.encoding.Encoder;
+import com.nordstrom.xrpc.encoding.Encoders;
+import com.nordstrom.xrpc.encoding.JsonDecoder;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import com.nordstrom.xrpc.encoding.ProtoDecoder;
+import com.nordstrom.xrpc.encoding.ProtoDefaultInstances;
+import com.nordstrom.xrpc.encoding.ProtoEncoder;
+import com.nordstrom.xrpc.encoding.dino.proto.Dino;
+import com.nordstrom.xrpc.exceptions.BadRequestException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class GrpcCallsTest {
+  private final EmbeddedChannel channel = new EmbeddedChannel();
+
+  private final ServerContext xctx =
+      ServerContext.builder()
+          .encoders(
+              Encoders.builder()
+                  .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                  .encoder(
+                      new JsonEncoder(
+                          new ObjectMapper(),
+                          JsonFormat.printer().omittingInsignificantWhitespace()))
+                  .encoder(new ProtoEncoder())
+                  .build())
+          .decoders(
+              Decoders.builder()
+                  .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                  .decoder(new JsonDecoder(new ObjectMapper(), new ProtoDefaultInstances()))
+                  .decoder(new ProtoDecoder(new ProtoDefaultInstances()))
+                  .build())
+          .build();
+
+  private final Dino trex = Dino.newBuilder().setName("trex").setFavColor("green").build();
+
+  /** Answers each dino with one of the same name who prefers purple. */
+  private final GrpcUnaryHandler<Dino, Dino> recolor =
+      (request, dino) -> dino.toBuilder().setFavColor("purple").build();
+
+  @AfterEach
+  void afterEach() {
+    channel.finishAndReleaseAll();
+  }
+
+  /** Returns a gRPC request with the given content type, headers and body. */
+  private XrpcRequest request(String contentType, ByteBuf body, String... headers) {
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.POST, "/nordstrom.dino.Dinos/Recolor", body);
+    request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    for (int i = 0; i < headers.length; i += 2) {
+      request.headers().set(headers[i], headers[i + 1]);
+    }
+    return new XrpcRequest(request, xctx, ImmutableMap.of(), channel);
+  }
+
+  /** Returns the given message bytes with a gRPC message prefix. */
+  private static ByteBuf frame(byte[] message) {
+    return Unpooled.buffer().writeByte(0).writeInt(message.length).writeBytes(message);
+  }
+
+  private static HttpResponse call(Handler handler, XrpcRequest request) throws Exception {
+    return ((AsyncHandler) handler).handleAsync(request).toCompletableFuture().get();
+  }
+
+  /** Asserts that the response ends the call with the given status, without a body. */
+  private static void assertTrailersOnly(HttpResponse response, GrpcStatus status, String message) {
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals(0, ((FullHttpResponse) response).content().readableBytes());
+    assertEquals(status.code(), response.headers().getInt(GrpcCalls.GRPC_STATUS).intValue());
+    assertEquals(message, response.headers().get(GrpcCalls.GRPC_MESSAGE));
+  }
+
+  @Test
+  void unaryCall() throws Exception {
+    HttpResponse response =
+        call(
+            GrpcCalls.unary(Dino.class, recolor),
+            request("application/grpc", frame(trex.toByteArray())));
+
+    assertEquals(HttpResponseStatus.OK, response.status());
+    assertEquals("application/grpc", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    assertEquals("identity", response.headers().get(GrpcCalls.GRPC_ACCEPT_ENCODING));
+    FullHttpResponse fullResponse = (FullHttpResponse) response;
+    ByteBuf body = fullResponse.content();
+    assertEquals(0, body.readByte());
+    assertEquals(body.readableBytes() - 4, body.readInt());
+    assertEquals("purple", Dino.parseFrom(new ByteBufInputStream(body)).getFavColor());
+    assertEquals("0", fullResponse.trailingHeaders().get(GrpcCalls.GRPC_STATUS));
+    fullResponse.release();
+  }
+
+  @Test
+  void unaryCallWithJsonMessages() throws Exception {
+    byte[] json = "{\"name\":\"trex\"}".getBytes(XrpcConstants.DEFAULT_CHARSET);
+    FullHttpResponse response =
+        (FullHttpResponse)
+            call(
+                GrpcCalls.unary(Dino.class, recolor),
+                request("application/grpc+json", frame(json)));
+
+    assertEquals("application/grpc+json", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    ByteBuf body = response.content().skipBytes(5);
+    assertEquals(
+        "{\"name\":\"trex\",\"favColor\":\"purple\"}",
+        body.toString(XrpcConstants.DEFAULT_CHARSET));
+    response.release();
+  }
+
+  @Test
+  void unknownContentSubtypeIsUnsupported() throws Exception {
+    HttpResponse response =
+        call(
+            GrpcCalls.unary(Dino.class, recolor),
+            request("application/grpc+thrift", frame(new byte[0])));
+
+    assertEquals(HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE, response.status());
+    assertNull(response.headers().get(GrpcCalls.GRPC_STATUS));
+  }
+
+  @Test
+  void handlerErrorEndsCall() throws Exception {
+    GrpcUnaryHandler<Dino, Dino> handler =
+        (request, dino) -> {
+          throw new GrpcException(GrpcStatus.NOT_FOUND, "no dino 100% like " + dino.getName());
+        };
+
+    assertTrailersOnly(
+        call(
+            GrpcCalls.unary(Dino.class, handler),
+            request("application/grpc", frame(trex.toByteArray()))),
+        GrpcStatus.NOT_FOUND,
+        "no dino 100%25 like trex");
+  }
+
+  @Test
+  void httpErrorMapsToStatus() throws Exception {
+    GrpcUnaryHandler<Dino, Dino> handler =
+        (request, dino) -> {
+          throw new BadRequestException("too many teeth");
+        };
+
+    assertTrailersOnly(
+        call(
+            GrpcCalls.unary(Dino.class, handler),
+            request("application/grpc", frame(trex.toByteArray()))),
+        GrpcStatus.INVALID_ARGUMENT,
+        "too many teeth");
+  }
+
+  @Test
+  void compressedMessageIsUnimplemented() throws Exception {
+    ByteBuf body = frame(trex.toByteArray());
+    body.setByte(0, 1);
+
+    assertTrailersOnly(
+        call(GrpcCalls.unary(Dino.class, recolor), request("application/grpc", body)),
+        GrpcStatus.UNIMPLEMENTED,
+        "compressed messages are not supported");
+  }
+
+  @Test
+  void truncatedMessageIsInternalError() throws Exception {
+    ByteBuf body = frame(trex.toByteArray());
+    body.writerIndex(body.writerIndex() - 1);
+
+    assertTrailersOnly(
+        call(GrpcCalls.unary(Dino.class, recolor), request("application/grpc", body)),
+        GrpcStatus.INTERNAL,
+        "expected exactly one request message");
+  }
+
+  @Test
+  void unaryResponseAfterDeadline() throws Exception {
+    GrpcUnaryHandler<Dino, Dino> slow =
+        (request, dino) -> {
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return dino;
+        };
+
+    assertTrailersOnly(
+        call(
+            GrpcCalls.unary(Dino.class, slow),
+            request("application/grpc", frame(trex.toByteArray()), "grpc-timeout", "1m")),
+        GrpcStatus.DEADLINE_EXCEEDED,
+        "deadline exceeded");
+  }
+
+  @Test
+  void serverStreamingCall() throws Exception {
+    GrpcServerStreamingHandler<Dino, Dino> handler =
+        (request, dino) ->
+            new IteratorPublisher<>(
+                ImmutableList.of(dino, dino.toBuilder().setName("rex").build()).iterator(),
+                () -> {});
+    StreamingResponse response =
+        (StreamingResponse)
+            call(
+                GrpcCalls.serverStreaming(Dino.class, handler),
+                request("application/grpc", frame(trex.toByteArray())));
+
+    assertEquals("application/grpc", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+    Encoder encoder = response.encoder();
+    ByteBuf body = Unpooled.buffer();
+    response
+        .elements()
+        .subscribe(
+            new Flow.Subscriber<Object>() {
+              @Override
+              public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+              }
+
+              @Override
+              public void onNext(Object item) {
+                try {
+                  encoder.encode(body, response.acceptCharset(), item);
+                } catch (Exception e) {
+                  throw new AssertionError(e);
+                }
+              }
+
+              @Override
+              public void onError(Throwable throwable) {}
+
+              @Override
+              public void onComplete() {}
+            });
+
+    for (String name : ImmutableList.of("trex", "rex")) {
+      assertEquals(0, body.readByte());
+      int length = body.readInt();
+      assertEquals(name, Dino.parseFrom(new ByteBufInputStream(body, length)).getName());
+    }
+    assertEquals(0, body.readableBytes());
+    HttpHeaders trailers = response.trailers(null);
+    assertEquals("0", trailers.get(GrpcCalls.GRPC_STATUS));
+    trailers = response.trailers(new GrpcException(GrpcStatus.ABORTED, "meteor"));
+    assertEquals("10", trailers.get(GrpcCalls.GRPC_STATUS));
+    assertEquals("meteor", trailers.get(GrpcCalls.GRPC_MESSAGE));
+  }
+
+  @Test
+  void serverStreamingDeadline() throws Exception {
+    RecordingSubscription upstream = new RecordingSubscription();
+    GrpcServerStreamingHandler<Dino, Dino> handler =
+        (request, dino) -> subscriber -> subscriber.onSubscribe(upstream);
+    StreamingResponse response =
+        (StreamingResponse)
+            call(
+                GrpcCalls.serverStreaming(Dino.class, handler),
+                request("application/grpc", frame(trex.toByteArray()), "grpc-timeout", "1m"));
+    Throwable[] error = new Throwable[1];
+    response
+        .elements()
+        .subscribe(
+            new Flow.Subscriber<Object>() {
+              @Override
+              public void onSubscribe(Flow.Subscription subscription) {}
+
+              @Override
+              public void onNext(Object item) {}
+
+              @Override
+              public void onError(Throwable throwable) {
+                error[0] = throwable;
+              }
+
+              @Override
+              public void onComplete() {}
+            });
+
+    Thread.sleep(5);
+    channel.runScheduledPendingTasks();
+
+    assertTrue(upstream.cancelled);
+    assertEquals(GrpcStatus.DEADLINE_EXCEEDED, ((GrpcException) error[0]).status());
+  }
+
+  @Test
+  void serverStreamingDeadlineDeliversSignalsOnEventLoop() throws Exception {
+    GrpcServerStreamingHandler<Dino, Dino> handler =
+        (request, dino) ->
+            subscriber ->
+                new Thread(
+                        () -> {
+                          subscriber.onSubscribe(new RecordingSubscription());
+                          subscriber.onNext(dino);
+                          subscriber.onComplete();
+                        })
+                    .start();
+    DefaultEventLoopGroup group = new DefaultEventLoopGroup(1);
+    try {
+      Channel loopChannel = new LocalChannel();
+      group.register(loopChannel).sync();
+      FullHttpRequest request =
+          new DefaultFullHttpRequest(
+              HttpVersion.HTTP_1_1,
+              HttpMethod.POST,
+              "/nordstrom.dino.Dinos/Recolor",
+              frame(trex.toByteArray()));
+      request.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/grpc");
+      request.headers().set("grpc-timeout", "1S");
+      StreamingResponse response =
+          (StreamingResponse)
+              call(
+                  GrpcCalls.serverStreaming(Dino.class, handler),
+                  new XrpcRequest(request, xctx, ImmutableMap.of(), loopChannel));
+
+      List<String> signals = Collections.synchronizedList(new ArrayList<>());
+      CountDownLatch done = new CountDownLatch(1);
+      response
+          .elements()
+          .subscribe(
+              new Flow.Subscriber<Object>() {
+                private void record(String signal) {
+                  signals.add(
+                      loopChannel.eventLoop().inEventLoop() ? signal : signal + " off loop");
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                  record("subscribe");
+                }
+
+                @Override
+                public void onNext(Object item) {
+                  record("next");
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                  record("error");
+                  done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                  record("complete");
+                  done.countDown();
+                }
+              });
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(ImmutableList.of("subscribe", "next", "complete"), signals);
+    } finally {
+      group.shutdownGracefully();
+    }
+  }
+
+  private static class RecordingSubscription implements Flow.Subscription {
+    boolean cancelled;
+
+    @Override
+    public void request(long n) {}
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+}
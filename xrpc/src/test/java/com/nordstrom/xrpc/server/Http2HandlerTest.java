@@ -18,11 +18,15 @@ package com.nordstrom.xrpc.server;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyShort;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -32,25 +36,34 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.PriorityClass;
 import com.nordstrom.xrpc.server.http.Recipes;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cors.CorsConfig;
 import io.netty.handler.codec.http.cors.CorsConfigBuilder;
 import io.netty.handler.codec.http2.DefaultHttp2Headers;
 import io.netty.handler.codec.http2.Http2Connection;
 import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2LocalFlowController;
+import io.netty.handler.codec.http2.Http2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2Stream;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -71,6 +84,18 @@ class Http2HandlerTest {
       };
   /** Path prefix which has a handler with paramter. */
   private static final String PARAM_PATH_PREFIX = "/bar";
+  /** Path which has a handler with a response large enough to compress. */
+  private static final String LARGE_PATH = "/large";
+  /** Path which has a handler with a large response, whose route is sent uncompressed. */
+  private static final String UNCOMPRESSED_PATH = "/large/uncompressed";
+  /** Path which has a handler registered with the bulk priority class. */
+  private static final String BULK_PATH = "/export";
+  /** Path which has a handler whose response has trailers. */
+  private static final String TRAILERS_PATH = "/trailers";
+  /** Path which has an asynchronous handler registered. */
+  private static final String ASYNC_PATH = "/async";
+  /** Path which has a handler with a streaming request body registered. */
+  private static final String STREAMING_PATH = "/upload";
   /** Group name for the path with a group. */
   private static final String PARAM_NAME = "param";
   /** Stream ID used in most tests. */
@@ -87,31 +112,85 @@ class Http2HandlerTest {
 
   private Http2Headers headers = new DefaultHttp2Headers();
 
+  private ServerContext.Builder contextBuilder;
+
   private ServerContext xrpcContext;
 
   private Http2Handler testHandler;
 
+  /** The response future returned by the handler for ASYNC_PATH. */
+  private CompletableFuture<HttpResponse> asyncResponse = new CompletableFuture<>();
+
+  /** The response future returned by the handler for STREAMING_PATH. */
+  private CompletableFuture<HttpResponse> streamingResponse = new CompletableFuture<>();
+
+  /** The subscriber to the body of requests to STREAMING_PATH. */
+  private RecordingSubscriber bodySubscriber = new RecordingSubscriber();
+
   @Mock private ChannelHandlerContext mockContext;
 
   @Mock private Http2Connection mockConnection;
 
   @Mock private Http2ConnectionEncoder mockEncoder;
 
+  @Mock private Http2Connection.Endpoint<Http2LocalFlowController> mockLocalEndpoint;
+
+  @Mock private Http2LocalFlowController mockFlowController;
+
+  @Mock private Http2RemoteFlowController mockRemoteFlowController;
+
   @BeforeEach
   void initMocks() {
     MockitoAnnotations.initMocks(this);
     when(mockEncoder.connection()).thenReturn(mockConnection);
+    when(mockEncoder.flowController()).thenReturn(mockRemoteFlowController);
     when(mockContext.channel()).thenReturn(channel);
+    when(mockContext.executor()).thenReturn(channel.eventLoop());
   }
 
   @BeforeEach
   void initContext() {
-    ServerContext.Builder contextBuilder = ServerContext.builder().requestMeter(requestMeter);
+    contextBuilder = ServerContext.builder().requestMeter(requestMeter);
     Server.addResponseCodeMeters(contextBuilder, metricRegistry);
     RouteBuilder routeBuilder = new RouteBuilder();
     routeBuilder
         .get(OK_PATH, OK_HANDLER)
-        .get(String.format("%s/{%s}", PARAM_PATH_PREFIX, PARAM_NAME), OK_HANDLER);
+        .get(String.format("%s/{%s}", PARAM_PATH_PREFIX, PARAM_NAME), OK_HANDLER)
+        .get(
+            LARGE_PATH,
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(new byte[2048]),
+                    Recipes.ContentType.Application_Octet_Stream))
+        .get(
+            UNCOMPRESSED_PATH,
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(new byte[2048]),
+                    Recipes.ContentType.Application_Octet_Stream))
+        .get(BULK_PATH, OK_HANDLER)
+        .get(
+            TRAILERS_PATH,
+            request -> {
+              FullHttpResponse response =
+                  Recipes.newResponseOk(
+                      Unpooled.wrappedBuffer(new byte[16]),
+                      Recipes.ContentType.Application_Octet_Stream);
+              response.trailingHeaders().set("grpc-status", "0");
+              return response;
+            })
+        .getAsync(ASYNC_PATH, request -> asyncResponse)
+        .postStreaming(
+            STREAMING_PATH,
+            (AsyncHandler)
+                request -> {
+                  request.bodyPublisher().subscribe(bodySubscriber);
+                  return streamingResponse;
+                });
+    routeBuilder.priority(BULK_PATH, PriorityClass.BULK);
+    routeBuilder.uncompressed(UNCOMPRESSED_PATH);
     contextBuilder.routes(routeBuilder.compile(metricRegistry));
     xrpcContext = contextBuilder.build();
 
@@ -240,10 +319,29 @@ class Http2HandlerTest {
     testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
 
     assertEquals(1L, requestMeter.getCount());
+    assertEquals(1L, xrpcContext.http2RequestMeter().getCount());
+    assertEquals(0L, xrpcContext.http1RequestMeter().getCount());
     // Verify an OK response.
     verifyResponse(HttpResponseStatus.OK, ImmutableMap.of(), Optional.empty(), STREAM_ID);
   }
 
+  /** Test that the configured Alt-Svc header is added to responses. */
+  @Test
+  void testOnHeadersRead_altSvcAdvertised() {
+    xrpcContext = contextBuilder.altSvc("h3=\":443\"").build();
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(xrpcContext);
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(OK_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    verifyResponse(
+        HttpResponseStatus.OK,
+        ImmutableMap.of(XrpcConstants.ALT_SVC_HEADER, "h3=\":443\""),
+        Optional.empty(),
+        STREAM_ID);
+  }
+
   /** Test that headers with data expected is handled appropriately. */
   @Test
   void testOnHeadersRead_headersStreamContinuing() throws Exception {
@@ -456,4 +554,219 @@ class Http2HandlerTest {
 
     verifyResponse(HttpResponseStatus.FORBIDDEN, ImmutableMap.of(), Optional.empty(), STREAM_ID);
   }
+
+  /** Test that an asynchronous response is written once it completes. */
+  @Test
+  void testOnHeadersRead_asyncResponse() throws Http2Exception {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+    when(mockConnection.stream(STREAM_ID)).thenReturn(mock(Http2Stream.class));
+
+    headers.method("GET").path(ASYNC_PATH);
+
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+    verifyNoResponse();
+
+    asyncResponse.complete(Recipes.newResponse(HttpResponseStatus.OK));
+    channel.runPendingTasks();
+
+    verifyResponse(HttpResponseStatus.OK, ImmutableMap.of(), Optional.empty(), STREAM_ID);
+    // The DATA frames held by the flow controller are written before the flush.
+    InOrder flushOrder = inOrder(mockRemoteFlowController, mockContext);
+    flushOrder.verify(mockRemoteFlowController).writePendingBytes();
+    flushOrder.verify(mockContext).flush();
+  }
+
+  /** Test that an asynchronous response is dropped if its stream was reset before it completed. */
+  @Test
+  void testOnHeadersRead_asyncResponseAfterReset() {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(ASYNC_PATH);
+
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    // The connection no longer has the stream.
+    when(mockConnection.stream(STREAM_ID)).thenReturn(null);
+    FullHttpResponse response = Recipes.newResponseOk("dropped");
+    asyncResponse.complete(response);
+    channel.runPendingTasks();
+
+    verifyNoResponse();
+    assertEquals(0, response.refCnt());
+  }
+
+  /**
+   * Test that a streamed request body is passed to the handler as it is read, and that data is only
+   * returned to the flow control window once the subscriber consumes it.
+   */
+  @Test
+  void testOnDataRead_streamingBody() throws Exception {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+    Http2Stream stream = mock(Http2Stream.class);
+    when(mockConnection.stream(STREAM_ID)).thenReturn(stream);
+    when(mockConnection.local()).thenReturn(mockLocalEndpoint);
+    when(mockLocalEndpoint.flowController()).thenReturn(mockFlowController);
+
+    headers.method("POST").path(STREAMING_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 0, false);
+    assertNotNull(bodySubscriber.subscription, "handler should be invoked before the body is read");
+
+    // Only the padding is processed until the subscriber asks for the data.
+    assertEquals(
+        3,
+        testHandler.onDataRead(
+            mockContext, STREAM_ID, Unpooled.wrappedBuffer(new byte[] {1, 2}), 3, false));
+    assertEquals(0, bodySubscriber.chunks);
+    verify(mockFlowController, never()).consumeBytes(any(), anyInt());
+
+    bodySubscriber.request(1);
+    assertEquals(1, bodySubscriber.chunks);
+    verify(mockFlowController).consumeBytes(stream, 2);
+
+    testHandler.onDataRead(mockContext, STREAM_ID, Unpooled.wrappedBuffer(new byte[] {3}), 0, true);
+    bodySubscriber.request(1);
+    assertTrue(bodySubscriber.completed);
+    assertEquals(Unpooled.wrappedBuffer(new byte[] {1, 2, 3}), bodySubscriber.received);
+
+    streamingResponse.complete(Recipes.newResponse(HttpResponseStatus.OK));
+    channel.runPendingTasks();
+    verifyResponse(HttpResponseStatus.OK, ImmutableMap.of(), Optional.empty(), STREAM_ID);
+  }
+
+  /** Test that a large response is compressed when the client accepts it. */
+  @Test
+  void testOnHeadersRead_responseCompressed() {
+    Http2ConnectionEncoder mockCompressor = mock(Http2ConnectionEncoder.class);
+    when(mockCompressor.connection()).thenReturn(mockConnection);
+    testHandler = new Http2Handler(mockCompressor, mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(LARGE_PATH).set(HttpHeaderNames.ACCEPT_ENCODING, "br, gzip");
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    // The headers are written through the compressing encoder, which compresses the data.
+    verify(mockCompressor)
+        .writeHeaders(
+            eq(mockContext),
+            eq(STREAM_ID),
+            argThat(
+                headers ->
+                    "gzip".contentEquals(headers.get(HttpHeaderNames.CONTENT_ENCODING))
+                        && !headers.contains(HttpHeaderNames.CONTENT_LENGTH)),
+            anyInt(),
+            eq(false),
+            any());
+    verify(mockCompressor)
+        .writeData(eq(mockContext), eq(STREAM_ID), any(), anyInt(), eq(true), any());
+    verifyNoResponse();
+  }
+
+  /** Test that the headers of an uncompressed response bypass the compressing encoder. */
+  @Test
+  void testOnHeadersRead_responseNotCompressedUnlessAccepted() {
+    Http2ConnectionEncoder mockCompressor = mock(Http2ConnectionEncoder.class);
+    when(mockCompressor.connection()).thenReturn(mockConnection);
+    testHandler = new Http2Handler(mockCompressor, mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(LARGE_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    verify(mockEncoder)
+        .writeHeaders(
+            eq(mockContext),
+            eq(STREAM_ID),
+            argThat(headers -> !headers.contains(HttpHeaderNames.CONTENT_ENCODING)),
+            anyInt(),
+            eq(false),
+            any());
+    verify(mockCompressor, never())
+        .writeHeaders(any(), anyInt(), any(), anyInt(), anyBoolean(), any());
+  }
+
+  /** Test that the response of a route sent uncompressed isn't compressed, or marked. */
+  @Test
+  void testOnHeadersRead_uncompressedRoute() {
+    Http2ConnectionEncoder mockCompressor = mock(Http2ConnectionEncoder.class);
+    when(mockCompressor.connection()).thenReturn(mockConnection);
+    testHandler = new Http2Handler(mockCompressor, mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(UNCOMPRESSED_PATH).set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    verify(mockEncoder)
+        .writeHeaders(
+            eq(mockContext),
+            eq(STREAM_ID),
+            argThat(headers -> !headers.contains(HttpHeaderNames.CONTENT_ENCODING)),
+            anyInt(),
+            eq(false),
+            any());
+    verify(mockCompressor, never())
+        .writeHeaders(any(), anyInt(), any(), anyInt(), anyBoolean(), any());
+  }
+
+  /** Test that the trailers of a response are sent after its data, and end the stream. */
+  @Test
+  void testOnHeadersRead_responseTrailers() {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(TRAILERS_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    verify(mockEncoder)
+        .writeHeaders(
+            eq(mockContext),
+            eq(STREAM_ID),
+            argThat(headers -> headers.status() != null),
+            anyInt(),
+            eq(false),
+            any());
+    verify(mockEncoder)
+        .writeData(eq(mockContext), eq(STREAM_ID), any(), anyInt(), eq(false), any());
+    verify(mockEncoder)
+        .writeHeaders(
+            eq(mockContext),
+            eq(STREAM_ID),
+            argThat(headers -> headers.contains("grpc-status", "0")),
+            anyInt(),
+            eq(true),
+            any());
+  }
+
+  /** Test that a stream is weighted by the priority class of the route it requests. */
+  @Test
+  void testOnHeadersRead_routePriority() {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(BULK_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 0, (short) 16, false, 1, true);
+
+    verify(mockRemoteFlowController)
+        .updateDependencyTree(STREAM_ID, 0, PriorityClass.BULK.weight(), false);
+    verifyResponse(HttpResponseStatus.OK, ImmutableMap.of(), Optional.empty(), STREAM_ID);
+  }
+
+  /** Test that streams of routes with the normal priority class keep their default weight. */
+  @Test
+  void testOnHeadersRead_normalPriorityUnchanged() {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(OK_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 1, true);
+
+    verify(mockRemoteFlowController, never())
+        .updateDependencyTree(anyInt(), anyInt(), anyShort(), anyBoolean());
+  }
+
+  /** Test that a priority sent by the client takes precedence over the route's priority class. */
+  @Test
+  void testOnHeadersRead_clientPriorityHonored() {
+    testHandler = new Http2Handler(mockEncoder, MAX_PAYLOAD, NO_CORS);
+
+    headers.method("GET").path(BULK_PATH);
+    testHandler.onHeadersRead(mockContext, STREAM_ID, headers, 0, (short) 200, false, 1, true);
+
+    verify(mockRemoteFlowController, never())
+        .updateDependencyTree(anyInt(), anyInt(), anyShort(), anyBoolean());
+    verifyResponse(HttpResponseStatus.OK, ImmutableMap.of(), Optional.empty(), STREAM_ID);
+  }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import org.junit.jupiter.api.Test;
+
+class Http2ResponseHeadersTest {
+  /** Test that a typical response has the same headers as the general conversion produces. */
+  @Test
+  void matchesConversion() {
+    HttpResponse response =
+        Recipes.newResponse(
+            HttpResponseStatus.CREATED,
+            Unpooled.wrappedBuffer(new byte[16]),
+            Recipes.ContentType.Application_Json);
+    response.headers().set("X-Request-Id", "abc");
+    response.headers().add(HttpHeaderNames.VARY, "Accept");
+    response.headers().add(HttpHeaderNames.VARY, "Accept-Encoding");
+
+    assertEquals(
+        HttpConversionUtil.toHttp2Headers(response, true), Http2ResponseHeaders.of(response));
+  }
+
+  /** Test that header names are lower-cased, as HTTP/2 requires. */
+  @Test
+  void lowerCasesNames() {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set("Cache-Control", "no-cache");
+
+    Http2Headers headers = Http2ResponseHeaders.of(response);
+
+    assertEquals("200", headers.status().toString());
+    assertEquals("no-cache", headers.get("cache-control").toString());
+    assertEquals(2, headers.size());
+  }
+
+  /** Test that headers specific to an HTTP/1 connection are dropped. */
+  @Test
+  void dropsConnectionSpecificHeaders() {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+    response.headers().set("keep-alive", "timeout=5");
+    response.headers().set(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), "3");
+
+    Http2Headers headers = Http2ResponseHeaders.of(response);
+
+    assertEquals(1, headers.size());
+  }
+
+  /** Test that the headers named by a Connection header are dropped along with it. */
+  @Test
+  void dropsHeadersNamedByConnection() {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CONNECTION, "x-hop");
+    response.headers().set("x-hop", "1");
+    response.headers().set("x-end", "2");
+
+    Http2Headers headers = Http2ResponseHeaders.of(response);
+
+    assertFalse(headers.contains(HttpHeaderNames.CONNECTION));
+    assertFalse(headers.contains("x-hop"));
+    assertEquals("2", headers.get("x-end").toString());
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.xio.test.OkHttpUnsafe;
+import java.util.Arrays;
+import java.util.Collections;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ProxyTest {
+  private final Config config = ConfigFactory.load("test.conf").getConfig("xrpc");
+  private final MockWebServer upstream = new MockWebServer();
+  private Server server;
+  private OkHttpClient client;
+  private String endpoint;
+
+  @BeforeEach
+  void beforeEach() throws Exception {
+    upstream.start();
+    server = new Server(config);
+    server.proxy("/legacy", upstream.url("/api").toString());
+    server.listenAndServe();
+    endpoint = server.localEndpoint();
+    client = OkHttpUnsafe.getUnsafeClient().newBuilder().followRedirects(false).build();
+  }
+
+  @AfterEach
+  void afterEach() throws Exception {
+    server.shutdown();
+    upstream.shutdown();
+  }
+
+  private Response get(String path) throws Exception {
+    return client.newCall(new Request.Builder().url(endpoint + path).build()).execute();
+  }
+
+  @Test
+  void forwardsRequestUnderUpstreamPath() throws Exception {
+    upstream.enqueue(new MockResponse().setBody("hello").setHeader("Content-Type", "text/plain"));
+
+    try (Response response = get("/legacy/users%2Fall?id=1")) {
+      assertEquals(200, response.code());
+      assertEquals("hello", response.body().string());
+      assertEquals("text/plain", response.header("Content-Type"));
+    }
+
+    RecordedRequest request = upstream.takeRequest();
+    assertEquals("GET", request.getMethod());
+    // The path is forwarded as it was sent.
+    assertEquals("/api/users%2Fall?id=1", request.getPath());
+    assertEquals(upstream.getHostName() + ":" + upstream.getPort(), request.getHeader("Host"));
+    assertNotNull(request.getHeader("X-Forwarded-For"));
+    assertEquals(endpoint.replaceFirst("^\\w+://", ""), request.getHeader("X-Forwarded-Host"));
+  }
+
+  @Test
+  void streamsRequestAndResponseBodies() throws Exception {
+    byte[] body = new byte[256 * 1024];
+    Arrays.fill(body, (byte) 'x');
+    upstream.enqueue(new MockResponse().setChunkedBody(new String(body, "US-ASCII"), 4096));
+
+    try (Response response =
+        client
+            .newCall(
+                new Request.Builder()
+                    .url(endpoint + "/legacy/upload")
+                    .post(RequestBody.create(MediaType.parse("application/octet-stream"), body))
+                    .build())
+            .execute()) {
+      assertEquals(200, response.code());
+      assertEquals(body.length, response.body().bytes().length);
+    }
+
+    RecordedRequest request = upstream.takeRequest();
+    assertEquals("POST", request.getMethod());
+    assertEquals(body.length, request.getBodySize());
+  }
+
+  @Test
+  void streamsBodiesToHttp2Clients() throws Exception {
+    byte[] body = new byte[256 * 1024];
+    Arrays.fill(body, (byte) 'x');
+    upstream.enqueue(new MockResponse().setChunkedBody(new String(body, "US-ASCII"), 4096));
+    OkHttpClient h2Client = OkHttpUnsafe.getUnsafeClient(Protocol.HTTP_2, Protocol.HTTP_1_1);
+
+    try (Response response =
+        h2Client
+            .newCall(
+                new Request.Builder()
+                    .url(endpoint + "/legacy/upload")
+                    .post(RequestBody.create(MediaType.parse("application/octet-stream"), body))
+                    .build())
+            .execute()) {
+      assertEquals(Protocol.HTTP_2, response.protocol());
+      assertEquals(200, response.code());
+      assertEquals(body.length, response.body().bytes().length);
+    }
+
+    assertEquals(body.length, upstream.takeRequest().getBodySize());
+  }
+
+  @Test
+  void joinsHttp2CookieFields() throws Exception {
+    upstream.enqueue(new MockResponse());
+    OkHttpClient h2Client = OkHttpUnsafe.getUnsafeClient(Protocol.HTTP_2, Protocol.HTTP_1_1);
+
+    try (Response response =
+        h2Client
+            .newCall(
+                new Request.Builder()
+                    .url(endpoint + "/legacy/session")
+                    .addHeader("Cookie", "a=1")
+                    .addHeader("Cookie", "b=2")
+                    .build())
+            .execute()) {
+      assertEquals(Protocol.HTTP_2, response.protocol());
+      assertEquals(200, response.code());
+    }
+
+    RecordedRequest request = upstream.takeRequest();
+    assertEquals(Collections.singletonList("a=1; b=2"), request.getHeaders().values("Cookie"));
+  }
+
+  @Test
+  void reusesUpstreamConnection() throws Exception {
+    upstream.enqueue(new MockResponse().setBody("one"));
+    upstream.enqueue(new MockResponse().setBody("two"));
+
+    try (Response response = get("/legacy")) {
+      assertEquals("one", response.body().string());
+    }
+    try (Response response = get("/legacy/")) {
+      assertEquals("two", response.body().string());
+    }
+
+    assertEquals("/api", upstream.takeRequest().getPath());
+    RecordedRequest second = upstream.takeRequest();
+    assertEquals("/api/", second.getPath());
+    assertEquals(1, second.getSequenceNumber());
+  }
+
+  @Test
+  void rewritesUpstreamLocation() throws Exception {
+    upstream.enqueue(
+        new MockResponse()
+            .setResponseCode(302)
+            .setHeader("Location", upstream.url("/api/next?page=2").toString()));
+
+    try (Response response = get("/legacy/first")) {
+      assertEquals(302, response.code());
+      assertEquals("/legacy/next?page=2", response.header("Location"));
+    }
+  }
+
+  @Test
+  void unreachableUpstreamIsBadGateway() throws Exception {
+    upstream.shutdown();
+
+    try (Response response = get("/legacy/anything")) {
+      assertEquals(502, response.code());
+    }
+  }
+}
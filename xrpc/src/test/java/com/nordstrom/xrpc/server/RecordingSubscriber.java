@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.Flow;
+
+/** A subscriber to a streamed request body which records what it receives. */
+class RecordingSubscriber implements Flow.Subscriber<ByteBuf> {
+  Flow.Subscription subscription;
+  final ByteBuf received = Unpooled.buffer();
+  int chunks;
+  boolean completed;
+  Throwable error;
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+  }
+
+  @Override
+  public void onNext(ByteBuf chunk) {
+    chunks++;
+    received.writeBytes(chunk);
+    chunk.release();
+  }
+
+  @Override
+  public void onError(Throwable error) {
+    this.error = error;
+  }
+
+  @Override
+  public void onComplete() {
+    completed = true;
+  }
+
+  void request(long n) {
+    subscription.request(n);
+  }
+}
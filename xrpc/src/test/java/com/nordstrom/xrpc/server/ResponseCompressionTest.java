@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+
+class ResponseCompressionTest {
+  private static HttpResponse fullResponse(HttpResponseStatus status, int bodyBytes) {
+    return new DefaultFullHttpResponse(
+        HttpVersion.HTTP_1_1, status, Unpooled.wrappedBuffer(new byte[bodyBytes]));
+  }
+
+  @Test
+  void negotiatePrefersGzip() {
+    assertEquals(HttpHeaderValues.GZIP, ResponseCompression.negotiate("deflate, gzip"));
+    assertEquals(HttpHeaderValues.GZIP, ResponseCompression.negotiate("*"));
+    assertEquals(
+        HttpHeaderValues.DEFLATE, ResponseCompression.negotiate("gzip;q=0.5, deflate;q=0.8"));
+    assertEquals(HttpHeaderValues.DEFLATE, ResponseCompression.negotiate("gzip;q=0, *"));
+    assertNull(ResponseCompression.negotiate("br, identity"));
+    assertNull(ResponseCompression.negotiate(null));
+  }
+
+  @Test
+  void quality() {
+    assertEquals(1.0, ResponseCompression.quality("gzip", "gzip"));
+    assertEquals(0.3, ResponseCompression.quality("br, GZIP ; q=0.3", "gzip"));
+    assertEquals(0.1, ResponseCompression.quality("br, *;q=0.1", "gzip"));
+    assertEquals(0.0, ResponseCompression.quality("*;q=0.5, gzip;q=0", "gzip"));
+    assertEquals(0.0, ResponseCompression.quality("gzip;q=bad", "gzip"));
+  }
+
+  @Test
+  void isCompressible() {
+    assertTrue(ResponseCompression.isCompressible(fullResponse(HttpResponseStatus.OK, 100), 100));
+    assertFalse(ResponseCompression.isCompressible(fullResponse(HttpResponseStatus.OK, 99), 100));
+    assertFalse(
+        ResponseCompression.isCompressible(fullResponse(HttpResponseStatus.NO_CONTENT, 100), 1));
+
+    HttpResponse encoded = fullResponse(HttpResponseStatus.OK, 100);
+    encoded.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+    assertFalse(ResponseCompression.isCompressible(encoded, 1));
+
+    // Streamed responses are compressible unless their declared length is too small.
+    HttpResponse streamed = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    assertTrue(ResponseCompression.isCompressible(streamed, 100));
+    HttpUtil.setContentLength(streamed, 10);
+    assertFalse(ResponseCompression.isCompressible(streamed, 100));
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ResponseCompressorTest {
+  private static final int MIN_BYTES = 64;
+  private static final int MAX_PAYLOAD = 1024;
+  private static final String LARGE_BODY = Strings.repeat("compressible ", 20);
+
+  private MetricRegistry metricRegistry = new MetricRegistry();
+  private ServerContext context;
+  private EmbeddedChannel channel;
+
+  @BeforeEach
+  void initChannel() {
+    ServerContext.Builder contextBuilder =
+        ServerContext.builder().requestMeter(metricRegistry.meter("requests"));
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder
+        .get("/large", request -> Recipes.newResponseOk(LARGE_BODY))
+        .get("/small", request -> Recipes.newResponseOk("ok"))
+        .get("/uncompressed", request -> Recipes.newResponseOk(LARGE_BODY))
+        .get(
+            "/identity",
+            request -> {
+              HttpResponse response = Recipes.newResponseOk(LARGE_BODY);
+              response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+              return response;
+            })
+        .post(
+            "/echo",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.body().retain(),
+                    Recipes.ContentType.Application_Octet_Stream));
+    routeBuilder.uncompressed("/uncompressed");
+    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+    context = contextBuilder.build();
+
+    channel =
+        new EmbeddedChannel(
+            new HttpServerCodec(),
+            new ResponseCompressor(6, MIN_BYTES),
+            new HttpServerKeepAliveHandler(),
+            new HttpContentDecompressor(),
+            new RequestAggregator(MAX_PAYLOAD),
+            new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(context);
+  }
+
+  /** Writes the given raw request, and returns everything written back to the client. */
+  private String exchange(String head, byte[] body) {
+    channel.writeInbound(
+        Unpooled.wrappedBuffer(
+            head.getBytes(XrpcConstants.DEFAULT_CHARSET), body == null ? new byte[0] : body));
+    StringBuilder written = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      written.append(buf.toString(XrpcConstants.DEFAULT_CHARSET));
+      buf.release();
+    }
+    return written.toString().toLowerCase();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  void largeResponseCompressed() {
+    String response =
+        exchange("GET /large HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n", null);
+
+    assertTrue(response.contains("content-encoding: gzip"));
+    assertFalse(response.contains("compressible"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void responseNotCompressedUnlessAccepted() {
+    String response = exchange("GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n", null);
+
+    assertFalse(response.contains("content-encoding"));
+    assertTrue(response.contains("compressible"));
+  }
+
+  @Test
+  void smallResponseNotCompressed() {
+    String response =
+        exchange("GET /small HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n", null);
+
+    assertFalse(response.contains("content-encoding"));
+    assertTrue(response.endsWith("ok"));
+  }
+
+  @Test
+  void uncompressedRouteNotCompressed() {
+    String response =
+        exchange(
+            "GET /uncompressed HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n", null);
+
+    assertFalse(response.contains("content-encoding"));
+    assertTrue(response.contains("compressible"));
+  }
+
+  @Test
+  void uncompressedRouteHeadersUnchangedWithoutCompressor() {
+    channel =
+        new EmbeddedChannel(
+            new HttpServerCodec(),
+            new HttpServerKeepAliveHandler(),
+            new RequestAggregator(MAX_PAYLOAD),
+            new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(context);
+
+    String response =
+        exchange(
+            "GET /uncompressed HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n", null);
+
+    assertFalse(response.contains("content-encoding"));
+    assertTrue(response.contains("compressible"));
+  }
+
+  @Test
+  void handlerContentCodingKept() {
+    String response =
+        exchange(
+            "GET /identity HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n", null);
+
+    assertTrue(response.contains("content-encoding: identity"));
+    assertTrue(response.contains("compressible"));
+  }
+
+  @Test
+  void gzipRequestDecompressed() throws IOException {
+    byte[] body = gzip("hello".getBytes(XrpcConstants.DEFAULT_CHARSET));
+    String response =
+        exchange(
+            "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Encoding: gzip\r\n"
+                + "Content-Length: "
+                + body.length
+                + "\r\n\r\n",
+            body);
+
+    assertTrue(response.startsWith("http/1.1 200 "));
+    assertTrue(response.endsWith("hello"));
+  }
+
+  @Test
+  void decompressedSizeLimited() throws IOException {
+    // Compresses to far less than the payload limit, but decompresses to well over it.
+    byte[] body = gzip(new byte[MAX_PAYLOAD * 16]);
+    assertTrue(body.length < MAX_PAYLOAD);
+    String response =
+        exchange(
+            "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Encoding: gzip\r\n"
+                + "Content-Length: "
+                + body.length
+                + "\r\n\r\n",
+            body);
+
+    assertEquals("413", response.substring("http/1.1 ".length(), "http/1.1 413".length()));
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ResponseStreamerTest {
+  private final JsonEncoder encoder =
+      new JsonEncoder(new ObjectMapper(), JsonFormat.printer().omittingInsignificantWhitespace());
+
+  private final List<String> chunks = new ArrayList<>();
+  private boolean ended;
+  private int flushes;
+  private Throwable aborted;
+  private HttpHeaders trailers;
+  private boolean done;
+  private int finishes;
+  private boolean closed;
+
+  /** Run when the sink is aborted. */
+  private Runnable onAbort = () -> {};
+
+  /** If true, the sink becomes unwritable whenever a chunk is written. */
+  private boolean fillOnWrite;
+
+  private boolean writable = true;
+
+  private final ResponseStreamer.Sink sink =
+      new ResponseStreamer.Sink() {
+        @Override
+        public boolean isWritable() {
+          return writable;
+        }
+
+        @Override
+        public void write(ByteBuf chunk, boolean end) {
+          chunks.add(chunk.toString(XrpcConstants.DEFAULT_CHARSET));
+          chunk.release();
+          ended = end;
+          if (fillOnWrite) {
+            writable = false;
+          }
+        }
+
+        @Override
+        public void flush() {
+          flushes++;
+        }
+
+        @Override
+        public void writeTrailers(HttpHeaders written) {
+          trailers = written;
+          ended = true;
+        }
+
+        @Override
+        public void abort(Throwable cause) {
+          aborted = cause;
+          onAbort.run();
+        }
+      };
+
+  private ResponseStreamer streamer(Iterator<?> elements) {
+    StreamingResponse response =
+        new StreamingResponse(
+            HttpResponseStatus.OK,
+            new IteratorPublisher<>(elements, () -> closed = true),
+            encoder,
+            null);
+    return new ResponseStreamer(response, new EmbeddedChannel(), sink, () -> done = true);
+  }
+
+  /** Returns an endless iterator of strings of the given length, counting those pulled. */
+  private static class Counter implements Iterator<String> {
+    private final String element;
+    int pulled;
+
+    Counter(int length) {
+      element = Strings.repeat("x", length);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return true;
+    }
+
+    @Override
+    public String next() {
+      pulled++;
+      return element;
+    }
+  }
+
+  @Test
+  void elementsBatchedIntoOneChunk() {
+    streamer(ImmutableList.of(1, 2, 3).iterator()).start();
+
+    assertEquals(ImmutableList.of("[1,2,3]"), chunks);
+    assertTrue(ended);
+    assertEquals(1, flushes);
+    assertTrue(done);
+    assertTrue(closed);
+  }
+
+  @Test
+  void emptyStreamStillFramed() {
+    streamer(ImmutableList.of().iterator()).start();
+
+    assertEquals(ImmutableList.of("[]"), chunks);
+    assertTrue(ended);
+    assertTrue(done);
+  }
+
+  @Test
+  void pausesWhileUnwritable() {
+    fillOnWrite = true;
+    Counter counter = new Counter(ResponseStreamer.BATCH_BYTES / 2);
+    ResponseStreamer streamer = streamer(counter);
+    streamer.start();
+
+    // The second element fills the batch, which is written and makes the sink unwritable.
+    assertEquals(2, counter.pulled);
+    assertEquals(1, chunks.size());
+    assertEquals(1, flushes);
+
+    streamer.pump();
+    assertEquals(2, counter.pulled);
+
+    writable = true;
+    streamer.pump();
+    assertEquals(4, counter.pulled);
+    assertEquals(2, chunks.size());
+    assertEquals(2, flushes);
+    assertFalse(ended);
+
+    streamer.cancel();
+    assertTrue(closed);
+    assertTrue(done);
+    assertEquals(4, counter.pulled);
+  }
+
+  @Test
+  void failureAbortsResponse() {
+    Iterator<Integer> failing =
+        new Iterator<Integer>() {
+          boolean first = true;
+
+          @Override
+          public boolean hasNext() {
+            return true;
+          }
+
+          @Override
+          public Integer next() {
+            if (first) {
+              first = false;
+              return 1;
+            }
+            throw new IllegalStateException("boom");
+          }
+        };
+    streamer(failing).start();
+
+    assertTrue(aborted instanceof IllegalStateException);
+    assertFalse(ended);
+    assertTrue(done);
+    assertTrue(closed);
+  }
+
+  @Test
+  void cancelWhileAbortingFinishesOnce() {
+    StreamingResponse response =
+        new StreamingResponse(
+            HttpResponseStatus.OK,
+            new IteratorPublisher<>(
+                new Iterator<Integer>() {
+                  @Override
+                  public boolean hasNext() {
+                    return true;
+                  }
+
+                  @Override
+                  public Integer next() {
+                    throw new IllegalStateException("boom");
+                  }
+                },
+                () -> closed = true),
+            encoder,
+            null);
+    EmbeddedChannel channel = new EmbeddedChannel();
+    ResponseStreamer streamer =
+        new ResponseStreamer(
+            response,
+            channel,
+            sink,
+            () -> {
+              done = true;
+              finishes++;
+            });
+    // Aborting closes the connection, which cancels the streamer.
+    onAbort =
+        () -> {
+          streamer.cancel();
+          assertFalse(done);
+        };
+
+    streamer.start();
+
+    assertTrue(aborted instanceof IllegalStateException);
+    assertEquals(1, finishes);
+    assertEquals(0, (int) channel.attr(ResponseStreamer.ACTIVE_STREAMS).get());
+  }
+
+  /** Returns a streamer for a response which ends with a status trailer describing any failure. */
+  private ResponseStreamer streamerWithTrailers(Iterator<?> elements) {
+    StreamingResponse response =
+        new StreamingResponse(
+            HttpResponseStatus.OK,
+            new IteratorPublisher<>(elements, () -> closed = true),
+            encoder,
+            null) {
+          @Override
+          HttpHeaders trailers(Throwable cause) {
+            return new DefaultHttpHeaders()
+                .set("status", cause == null ? "ok" : cause.getMessage());
+          }
+        };
+    return new ResponseStreamer(response, new EmbeddedChannel(), sink, () -> done = true);
+  }
+
+  @Test
+  void trailersEndResponse() {
+    streamerWithTrailers(ImmutableList.of(1, 2).iterator()).start();
+
+    assertEquals(ImmutableList.of("[1,2]"), chunks);
+    assertEquals("ok", trailers.get("status"));
+    assertTrue(ended);
+    assertTrue(done);
+  }
+
+  @Test
+  void failureReportedInTrailers() {
+    streamerWithTrailers(
+            new Iterator<Integer>() {
+              @Override
+              public boolean hasNext() {
+                return true;
+              }
+
+              @Override
+              public Integer next() {
+                throw new IllegalStateException("boom");
+              }
+            })
+        .start();
+
+    assertNull(aborted);
+    assertEquals("boom", trailers.get("status"));
+    assertTrue(ended);
+    assertTrue(done);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.codahale.metrics.Meter;
+import com.google.common.io.ByteStreams;
+import com.nordstrom.xrpc.server.http.Recipes;
+import com.typesafe.config.ConfigFactory;
+import io.netty.channel.epoll.Epoll;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests accepting connections on one SO_REUSEPORT listener per boss thread. */
+class ReusePortTest {
+  private static final int CONNECTIONS = 32;
+
+  private Server server;
+
+  @BeforeEach
+  void beforeEach() throws Exception {
+    assumeTrue(Epoll.isAvailable());
+    server =
+        new Server(
+            ConfigFactory.parseString(
+                    "boss_thread_count = 2\n"
+                        + "server { reuse_port = true, tcp_defer_accept = 1s }\n"
+                        + "tls { useSsl = false, logInsecureConfig = false }")
+                .withFallback(ConfigFactory.load("test.conf").getConfig("xrpc")));
+    server.get("/people", request -> Recipes.newResponseOk("people"));
+    server.listenAndServe();
+  }
+
+  @AfterEach
+  void afterEach() {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  void listenersShareThePortAndMeterTheirAccepts() throws Exception {
+    URI endpoint = URI.create(server.localEndpoint());
+    for (int i = 0; i < CONNECTIONS; i++) {
+      try (Socket socket = new Socket(endpoint.getHost(), endpoint.getPort())) {
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        out.write(
+            "GET /people HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String response =
+            new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+      }
+    }
+
+    Meter first = server.metricRegistry().meter("accepts.listener0");
+    Meter second = server.metricRegistry().meter("accepts.listener1");
+    assertEquals(CONNECTIONS, first.getCount() + second.getCount());
+    // The kernel hashes each connection to a listener; 32 connections all landing on one
+    // listener is vanishingly unlikely.
+    assertTrue(first.getCount() > 0 && second.getCount() > 0);
+  }
+}
@@ -17,7 +17,10 @@
 package com.nordstrom.xrpc.server;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -26,8 +29,12 @@ import static org.mockito.Mockito.verify;
 
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
+import com.nordstrom.xrpc.server.http.Route;
 import io.netty.handler.codec.http.HttpMethod;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.Test;
 
 /** Tests for RouteBuilder and CompiledRoutes. */
@@ -115,4 +122,74 @@ class RoutesTest {
     Routes routes = new RouteBuilder().get("/twice", request -> null);
     assertThrows(IllegalArgumentException.class, () -> routes.get("/twice", request -> null));
   }
+
+  /** Tests that a route assigned to a handler executor runs its handler on that executor. */
+  @Test
+  public void executorRouteRunsOnExecutor() throws Exception {
+    AtomicReference<Thread> handlerThread = new AtomicReference<>();
+    RouteBuilder routes = new RouteBuilder();
+    routes
+        .get("/inline", request -> null)
+        .addRoute(
+            "/blocking",
+            request -> {
+              handlerThread.set(Thread.currentThread());
+              return null;
+            },
+            HttpMethod.GET,
+            "pool");
+
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      CompiledRoutes compiledRoutes =
+          routes.compile(
+              new MetricRegistry(), ImmutableMap.of("pool", HandlerExecutor.of(executorService)));
+      CompiledRoutes.Match match = compiledRoutes.match("/blocking", HttpMethod.GET);
+      match.getHandler().handleAsync(mock(XrpcRequest.class)).toCompletableFuture().join();
+
+      assertNotNull(handlerThread.get());
+      assertNotEquals(Thread.currentThread(), handlerThread.get());
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  /** Tests that gRPC methods can be added to run on a handler executor. */
+  @Test
+  public void grpcRoutesTakeExecutor() {
+    RouteBuilder routes = new RouteBuilder();
+    routes
+        .grpcUnary("test.Service/Unary", String.class, (request, message) -> message, "pool")
+        .grpcServerStreaming(
+            "test.Service/Streaming", String.class, (request, message) -> null, "pool")
+        .grpcUnary("test.Service/Inline", String.class, (request, message) -> message);
+
+    for (Route route : routes) {
+      assertEquals(route.path().toString().endsWith("Inline") ? null : "pool", route.executor());
+      assertTrue(route.uncompressed());
+    }
+  }
+
+  /** Tests that executors can be assigned to routes after they're added. */
+  @Test
+  public void executorReplacesRouteExecutor() {
+    RouteBuilder routes = new RouteBuilder();
+    routes
+        .get("/path", request -> null)
+        .addRoute("/path", request -> null, HttpMethod.POST, "pool");
+    routes.executor("/path", "other");
+
+    for (Route route : routes) {
+      assertEquals("other", route.executor());
+    }
+    assertThrows(IllegalArgumentException.class, () -> routes.executor("/missing", "other"));
+  }
+
+  /** Compiling a route which names an undefined executor should throw an exception. */
+  @Test
+  public void undefinedExecutorThrows() {
+    RouteBuilder routes = new RouteBuilder();
+    routes.addRoute("/path", request -> null, HttpMethod.GET, "undefined");
+    assertThrows(IllegalArgumentException.class, () -> routes.compile(new MetricRegistry()));
+  }
 }
@@ -5,12 +5,28 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.collect.ImmutableList;
+import com.nordstrom.xrpc.server.http.Recipes;
 import com.nordstrom.xrpc.server.http.Route;
 import com.nordstrom.xrpc.server.http.RoutePath;
+import com.xjeffrose.xio.test.OkHttpUnsafe;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -54,4 +70,74 @@ class ServerTest {
     assertEquals(NUMBER_OF_INFO_ADMIN_ROUTES + 1, routes.size());
     assertTrue(routes.contains(testRoute));
   }
+
+  @Test
+  void shouldCreateOnlyTheHandlerExecutorsRoutesRunOn() throws IOException {
+    server.addRoute(
+        "/people", request -> Recipes.newResponseOk("people"), HttpMethod.GET, "virtual");
+    server.listenAndServe();
+
+    // The bounded executor would register its metrics, but isn't created since no route runs on it.
+    assertTrue(
+        server
+            .metricRegistry()
+            .getNames()
+            .stream()
+            .noneMatch(name -> name.startsWith("handlerExecutors.blocking.")));
+  }
+
+  @Test
+  void shouldStreamHttp2ResponseBodiesProducedAfterTheRead() throws Exception {
+    SubmissionPublisher<ByteBuf> chunks = new SubmissionPublisher<>();
+    server.get(
+        "/stream", request -> new StreamingResponse(HttpResponseStatus.OK, chunks, "text/plain"));
+    server.listenAndServe();
+
+    OkHttpClient client =
+        OkHttpUnsafe.getUnsafeClient(Protocol.HTTP_2, Protocol.HTTP_1_1)
+            .newBuilder()
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build();
+    Request request = new Request.Builder().url(server.localEndpoint() + "/stream").build();
+    try (Response response = client.newCall(request).execute()) {
+      assertEquals(Protocol.HTTP_2, response.protocol());
+      // The headers have been read, so the body is written outside of any read.
+      chunks.submit(Unpooled.copiedBuffer("str", StandardCharsets.UTF_8));
+      chunks.submit(Unpooled.copiedBuffer("eamed", StandardCharsets.UTF_8));
+      chunks.close();
+      assertEquals("streamed", response.body().string());
+    }
+  }
+
+  @Test
+  void shouldWriteHttp2ResponsesCompletedAfterTheRead() throws Exception {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      server.getAsync(
+          "/later",
+          request -> {
+            CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+            executor.schedule(
+                () -> response.complete(Recipes.newResponseOk("later")),
+                100,
+                TimeUnit.MILLISECONDS);
+            return response;
+          });
+      server.listenAndServe();
+
+      OkHttpClient client =
+          OkHttpUnsafe.getUnsafeClient(Protocol.HTTP_2, Protocol.HTTP_1_1)
+              .newBuilder()
+              .readTimeout(5, TimeUnit.SECONDS)
+              .build();
+      Request request = new Request.Builder().url(server.localEndpoint() + "/later").build();
+      try (Response response = client.newCall(request).execute()) {
+        assertEquals(Protocol.HTTP_2, response.protocol());
+        assertEquals(200, response.code());
+        assertEquals("later", response.body().string());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
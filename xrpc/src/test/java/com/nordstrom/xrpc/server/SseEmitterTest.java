@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SseEmitterTest {
+  private RecordingSubscriber subscriber = new RecordingSubscriber();
+  private SseEmitter emitter;
+  private boolean closed;
+
+  @BeforeEach
+  void beforeEach() {
+    emitter =
+        new SseEmitter(
+            new EmbeddedChannel().eventLoop(),
+            UnpooledByteBufAllocator.DEFAULT,
+            new JsonEncoder(
+                new ObjectMapper(), JsonFormat.printer().omittingInsignificantWhitespace()),
+            64,
+            Duration.ZERO,
+            null);
+    emitter.onClose(() -> closed = true);
+  }
+
+  private String received() {
+    return subscriber.received.toString(XrpcConstants.DEFAULT_CHARSET);
+  }
+
+  @Test
+  void eventsEncodedInEventStreamFormat() throws IOException {
+    emitter.subscribe(subscriber);
+    subscriber.request(Long.MAX_VALUE);
+
+    emitter.send(
+        SseEvent.builder()
+            .id("7")
+            .event("update")
+            .data(ImmutableMap.of("a", 1))
+            .retry(Duration.ofSeconds(2))
+            .build());
+    emitter.send("two\nlines");
+
+    assertEquals(
+        "id: 7\nevent: update\nretry: 2000\ndata: {\"a\":1}\n\ndata: two\ndata: lines\n\n",
+        received());
+  }
+
+  @Test
+  void eventsBufferedUntilRequested() throws IOException {
+    emitter.send("a");
+    emitter.subscribe(subscriber);
+    emitter.send("b");
+    assertEquals(0, subscriber.chunks);
+
+    subscriber.request(1);
+    assertEquals("data: a\n\n", received());
+    subscriber.request(1);
+    assertEquals("data: a\n\ndata: b\n\n", received());
+  }
+
+  @Test
+  void closeCompletesAfterBufferedEvents() throws IOException {
+    emitter.subscribe(subscriber);
+    emitter.send("a");
+    emitter.close();
+    assertFalse(subscriber.completed);
+    assertFalse(emitter.send("b"));
+
+    subscriber.request(5);
+    assertEquals("data: a\n\n", received());
+    assertTrue(subscriber.completed);
+    assertTrue(closed);
+  }
+
+  @Test
+  void slowClientDisconnectedWhenBufferOverflows() throws IOException {
+    emitter.subscribe(subscriber);
+    assertTrue(emitter.send("01234567890123456789"));
+    assertTrue(emitter.send("01234567890123456789"));
+    // The third event would take more than the 64 bytes allowed.
+    assertFalse(emitter.send("01234567890123456789"));
+    assertTrue(emitter.isClosed());
+
+    // Buffered events are dropped, so that the client reconnects rather than reading stale events.
+    subscriber.request(5);
+    assertEquals(0, subscriber.chunks);
+    assertTrue(subscriber.completed);
+    assertTrue(closed);
+  }
+
+  @Test
+  void cancelRunsCloseListeners() throws IOException {
+    emitter.subscribe(subscriber);
+    subscriber.subscription.cancel();
+
+    assertTrue(closed);
+    assertFalse(emitter.send("a"));
+  }
+
+  @Test
+  void lineBreaksInFieldsRejected() {
+    assertThrows(
+        IllegalArgumentException.class, () -> emitter.send(SseEvent.builder().id("a\nb").build()));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class StreamingBodyTest {
+  private final List<Boolean> pauses = new ArrayList<>();
+  private int consumed;
+  private StreamingBody body;
+  private RecordingSubscriber subscriber = new RecordingSubscriber();
+
+  @BeforeEach
+  void beforeEach() {
+    body =
+        new StreamingBody(
+            new EmbeddedChannel().eventLoop(),
+            new StreamingBody.FlowControl() {
+              @Override
+              public void consumed(int bytes) {
+                consumed += bytes;
+              }
+
+              @Override
+              public void paused(boolean paused) {
+                pauses.add(paused);
+              }
+            });
+  }
+
+  private static ByteBuf chunk(int... bytes) {
+    ByteBuf chunk = Unpooled.buffer();
+    for (int b : bytes) {
+      chunk.writeByte(b);
+    }
+    return chunk;
+  }
+
+  @Test
+  void chunksDeliveredOnlyOnDemand() {
+    body.subscribe(subscriber);
+    body.onData(chunk(1, 2));
+    body.onData(chunk(3));
+
+    assertEquals(0, subscriber.chunks);
+    assertEquals(0, consumed);
+    assertEquals(ImmutableList.of(true), pauses);
+
+    subscriber.request(1);
+    assertEquals(1, subscriber.chunks);
+    assertEquals(2, consumed);
+
+    subscriber.request(5);
+    assertEquals(2, subscriber.chunks);
+    assertEquals(3, consumed);
+    assertEquals(ImmutableList.of(true, false), pauses);
+
+    body.onComplete();
+    assertTrue(subscriber.completed);
+    assertEquals(chunk(1, 2, 3), subscriber.received);
+  }
+
+  @Test
+  void chunksBufferedUntilSubscribed() {
+    ByteBuf data = chunk(1);
+    assertEquals(1L, body.onData(data));
+    body.onComplete();
+
+    body.subscribe(subscriber);
+    subscriber.request(1);
+
+    assertEquals(1, subscriber.chunks);
+    assertTrue(subscriber.completed);
+    assertEquals(0, data.refCnt());
+  }
+
+  @Test
+  void failSignalsErrorAndReleasesChunks() {
+    ByteBuf data = chunk(1);
+    body.subscribe(subscriber);
+    body.onData(data);
+
+    IOException cause = new IOException("closed");
+    body.fail(cause);
+
+    assertEquals(cause, subscriber.error);
+    assertEquals(0, data.refCnt());
+    assertEquals(1, consumed);
+  }
+
+  @Test
+  void discardBeforeCompleteCancelsSubscriber() {
+    body.subscribe(subscriber);
+    body.discard();
+    assertTrue(subscriber.error instanceof CancellationException);
+
+    // Later data is released as soon as it arrives, and doesn't pause reading.
+    ByteBuf data = chunk(1, 2);
+    body.onData(data);
+    assertEquals(0, data.refCnt());
+    assertEquals(2, consumed);
+    assertEquals(ImmutableList.of(true, false), pauses);
+  }
+
+  @Test
+  void discardAfterCompleteReleasesUndeliveredChunks() {
+    ByteBuf data = chunk(1);
+    body.onData(data);
+    body.onComplete();
+    body.discard();
+
+    assertEquals(0, data.refCnt());
+  }
+
+  @Test
+  void cancelResumesReadingAndDropsData() {
+    body.subscribe(subscriber);
+    body.onData(chunk(1));
+    subscriber.subscription.cancel();
+
+    assertEquals(ImmutableList.of(true, false), pauses);
+    ByteBuf data = chunk(2);
+    body.onData(data);
+    assertEquals(0, data.refCnt());
+    assertEquals(0, subscriber.chunks);
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  void secondSubscriberRejected() {
+    body.subscribe(subscriber);
+    RecordingSubscriber second = new RecordingSubscriber();
+    body.subscribe(second);
+
+    assertTrue(second.error instanceof IllegalStateException);
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  void nonPositiveRequestFails() {
+    body.subscribe(subscriber);
+    subscriber.request(0);
+
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.exceptions.BadRequestException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class UploadSpoolerTest {
+  private static final String BOUNDARY = "----xrpc-boundary";
+
+  private final EmbeddedChannel channel = new EmbeddedChannel();
+  private Path tempDir;
+  private StreamingBody body;
+  /** True while reading the body is paused for lack of demand. */
+  private boolean bodyPaused;
+
+  @BeforeEach
+  void beforeEach() throws IOException {
+    tempDir = Files.createTempDirectory("xrpc-uploads");
+    body =
+        new StreamingBody(
+            channel.eventLoop(),
+            new StreamingBody.FlowControl() {
+              @Override
+              public void consumed(int bytes) {}
+
+              @Override
+              public void paused(boolean paused) {
+                bodyPaused = paused;
+              }
+            });
+  }
+
+  @AfterEach
+  void afterEach() throws IOException {
+    channel.finishAndReleaseAll();
+    Files.deleteIfExists(tempDir);
+  }
+
+  /**
+   * Returns a request with the given content type, whose body is fed through body and spooled on
+   * the calling thread.
+   */
+  private XrpcRequest request(String contentType) {
+    return request(contentType, MoreExecutors.directExecutor());
+  }
+
+  /** Returns a request with the given content type, whose body is spooled on the given executor. */
+  private XrpcRequest request(String contentType, Executor uploadExecutor) {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload");
+    if (contentType != null) {
+      request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    }
+    ServerContext xctx =
+        ServerContext.builder()
+            .uploadMemoryThresholdBytes(16)
+            .uploadTempDir(tempDir)
+            .uploadExecutor(uploadExecutor)
+            .build();
+    return new XrpcRequest(request, xctx, ImmutableMap.of(), channel, body);
+  }
+
+  /** Passes the given data to the body in chunks of the given size. */
+  private void feed(String data, int chunkSize) {
+    byte[] bytes = data.getBytes(XrpcConstants.DEFAULT_CHARSET);
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      body.onData(Unpooled.copiedBuffer(bytes, i, Math.min(chunkSize, bytes.length - i)));
+    }
+  }
+
+  private static String content(UploadPart part) throws IOException {
+    ByteBuf content = part.content();
+    try {
+      return content.toString(XrpcConstants.DEFAULT_CHARSET);
+    } finally {
+      content.release();
+    }
+  }
+
+  private long spooledFiles() throws IOException {
+    try (Stream<Path> files = Files.list(tempDir)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  void smallBodyHeldInMemory() throws Exception {
+    XrpcRequest request = request("text/plain");
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request);
+    feed("hello", 2);
+    body.onComplete();
+
+    UploadPart part = parts.get().get(0);
+    assertEquals(1, parts.get().size());
+    assertNull(part.name());
+    assertEquals("text/plain", part.contentType());
+    assertTrue(part.isInMemory());
+    assertNull(part.file());
+    assertEquals(5, part.length());
+    assertEquals("hello", content(part));
+    assertEquals(0, spooledFiles());
+    part.release();
+  }
+
+  @Test
+  void largeBodySpooledToFile() throws Exception {
+    XrpcRequest request = request(null);
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request);
+    feed("0123456789abcdefghijklmnopqrstuvwxyz", 10);
+    body.onComplete();
+
+    UploadPart part = parts.get().get(0);
+    assertFalse(part.isInMemory());
+    assertEquals(tempDir, part.file().getParent());
+    assertEquals(36, part.length());
+    assertEquals("0123456789abcdefghijklmnopqrstuvwxyz", content(part));
+    try (InputStream in = part.openStream()) {
+      assertEquals('0', in.read());
+    }
+
+    request.uploads(parts.get());
+    request.releaseUploads();
+    assertEquals(0, spooledFiles());
+  }
+
+  @Test
+  void chunksRequestedAsTheyAreSpooled() throws Exception {
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request(null, tasks::add));
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      data.append("0123456789");
+    }
+    feed(data.toString(), 10);
+
+    // Nothing is written on the event loop, and reading pauses until the spooled chunks catch up.
+    assertEquals(0, spooledFiles());
+    assertTrue(bodyPaused);
+    body.onComplete();
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+
+    UploadPart part = parts.get().get(0);
+    assertEquals(400, part.length());
+    assertEquals(data.toString(), content(part));
+    part.release();
+    assertEquals(0, spooledFiles());
+  }
+
+  @Test
+  void multipartBodySplitIntoParts() throws Exception {
+    XrpcRequest request = request("multipart/form-data; boundary=\"" + BOUNDARY + "\"");
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request);
+    // Chunks of 3 bytes split every delimiter and header block across chunks.
+    feed(
+        "preamble\r\n--"
+            + BOUNDARY
+            + "\r\n"
+            + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+            + "Report\r\n--"
+            + BOUNDARY
+            + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"report.csv\"\r\n"
+            + "Content-Type: text/csv\r\n\r\n"
+            + "a,b\r\n1,2\r\n3,4\r\n5,6\r\n7,8\r\n--"
+            + BOUNDARY
+            + "--\r\nepilogue",
+        3);
+    body.onComplete();
+
+    List<UploadPart> uploads = parts.get();
+    assertEquals(2, uploads.size());
+    assertEquals("title", uploads.get(0).name());
+    assertNull(uploads.get(0).filename());
+    assertTrue(uploads.get(0).isInMemory());
+    assertEquals("Report", content(uploads.get(0)));
+    assertEquals("file", uploads.get(1).name());
+    assertEquals("report.csv", uploads.get(1).filename());
+    assertEquals("text/csv", uploads.get(1).contentType());
+    assertFalse(uploads.get(1).isInMemory());
+    assertEquals("a,b\r\n1,2\r\n3,4\r\n5,6\r\n7,8", content(uploads.get(1)));
+
+    request.uploads(uploads);
+    request.releaseUploads();
+    assertEquals(0, spooledFiles());
+  }
+
+  @Test
+  void truncatedMultipartBodyFails() throws Exception {
+    CompletableFuture<List<UploadPart>> parts =
+        UploadSpooler.spool(request("multipart/form-data; boundary=" + BOUNDARY));
+    feed(
+        "--"
+            + BOUNDARY
+            + "\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n"
+            + "more than sixteen bytes",
+        4);
+    body.onComplete();
+
+    ExecutionException e = assertThrowsExecution(parts);
+    assertTrue(e.getCause() instanceof BadRequestException);
+    assertEquals(0, spooledFiles());
+  }
+
+  @Test
+  void multipartWithoutBoundaryRejected() {
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request("multipart/form-data"));
+    assertTrue(assertThrowsExecution(parts).getCause() instanceof BadRequestException);
+  }
+
+  @Test
+  void failedBodyReleasesParts() throws Exception {
+    CompletableFuture<List<UploadPart>> parts = UploadSpooler.spool(request(null));
+    feed("0123456789abcdefghijklmnopqrstuvwxyz", 10);
+    assertEquals(1, spooledFiles());
+
+    IOException cause = new IOException("stream closed");
+    body.fail(cause);
+
+    assertEquals(cause, assertThrowsExecution(parts).getCause());
+    assertEquals(0, spooledFiles());
+  }
+
+  @Test
+  void parameterParsed() {
+    String disposition = "form-data; name=\"a; b\"; filename=plain.txt";
+    assertEquals("a; b", UploadSpooler.parameter(disposition, "name"));
+    assertEquals("plain.txt", UploadSpooler.parameter(disposition, "FILENAME"));
+    assertNull(UploadSpooler.parameter(disposition, "size"));
+  }
+
+  private static ExecutionException assertThrowsExecution(CompletableFuture<?> future) {
+    assertTrue(future.isCompletedExceptionally());
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      return e;
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+    throw new AssertionError("future did not fail");
+  }
+}
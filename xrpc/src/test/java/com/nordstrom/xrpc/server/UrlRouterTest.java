@@ -0,0 +1,429 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Encoders;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import com.nordstrom.xrpc.server.http.Recipes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class UrlRouterTest {
+  private static final Pattern STATUS_LINE = Pattern.compile("HTTP/1\\.1 (\\d+) ");
+
+  private MetricRegistry metricRegistry = new MetricRegistry();
+
+  private EmbeddedChannel channel;
+
+  /** The response future returned by the handler for /async. */
+  private CompletableFuture<HttpResponse> asyncResponse = new CompletableFuture<>();
+
+  /** The response future returned by the handler for /upload. */
+  private CompletableFuture<HttpResponse> uploadResponse = new CompletableFuture<>();
+
+  /** The subscriber to the body of requests to /upload. */
+  private RecordingSubscriber uploadSubscriber = new RecordingSubscriber();
+
+  /** The builder of the channel's server context. */
+  private ServerContext.Builder contextBuilder;
+
+  /** The root of the files served under /files. */
+  private Path fileRoot;
+
+  @BeforeEach
+  void initChannel() throws IOException {
+    fileRoot = Files.createTempDirectory("xrpc-files");
+    contextBuilder = ServerContext.builder().requestMeter(metricRegistry.meter("requests"));
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    contextBuilder.encoders(
+        Encoders.builder()
+            .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+            .encoder(
+                new JsonEncoder(
+                    new ObjectMapper(), JsonFormat.printer().omittingInsignificantWhitespace()))
+            .build());
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder
+        .get("/ok", request -> Recipes.newResponseOk("ok"))
+        .get("/empty", request -> request.ok())
+        .getAsync("/async", request -> asyncResponse)
+        .get("/stream", request -> request.okStream(Stream.of(1, 2, 3)))
+        .files("/files/", fileRoot)
+        .sse(
+            "/events",
+            (request, emitter) -> {
+              emitter.send(SseEvent.builder().id("after-" + emitter.lastEventId()).build());
+              emitter.close();
+            })
+        .postStreaming(
+            "/upload",
+            (AsyncHandler)
+                request -> {
+                  request.bodyPublisher().subscribe(uploadSubscriber);
+                  return uploadResponse;
+                })
+        .postUpload(
+            "/spool",
+            request -> {
+              StringBuilder parts = new StringBuilder();
+              for (UploadPart part : request.uploads()) {
+                parts.append(part.length()).append(part.isInMemory() ? " memory " : " file ");
+              }
+              return Recipes.newResponseOk(parts.toString());
+            })
+        .postUpload(
+            "/spool/echo",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.uploads().get(0).content(),
+                    Recipes.ContentType.Application_Octet_Stream))
+        .postUpload(
+            "/spool/stream",
+            request -> {
+              // The part is only read as the response body is written.
+              Iterator<ByteBuf> chunks =
+                  Stream.of(request.uploads().get(0)).map(UrlRouterTest::readPart).iterator();
+              return new StreamingResponse(
+                  HttpResponseStatus.OK,
+                  new IteratorPublisher<>(chunks, () -> {}),
+                  HttpHeaderValues.APPLICATION_OCTET_STREAM);
+            })
+        .post(
+            "/echo",
+            request ->
+                Recipes.newResponse(
+                    HttpResponseStatus.OK,
+                    request.body(),
+                    Recipes.ContentType.Application_Octet_Stream));
+    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+    contextBuilder
+        .uploadMemoryThresholdBytes(1024)
+        .uploadTempDir(fileRoot)
+        .uploadExecutor(MoreExecutors.directExecutor());
+
+    channel =
+        new EmbeddedChannel(
+            new HttpServerCodec(),
+            new HttpServerKeepAliveHandler(),
+            new RequestAggregator(1024),
+            new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(contextBuilder.build());
+  }
+
+  @AfterEach
+  void deleteFiles() throws IOException {
+    try (Stream<Path> paths = Files.walk(fileRoot)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static ByteBuf readPart(UploadPart part) {
+    try (InputStream in = part.openStream()) {
+      return Unpooled.wrappedBuffer(ByteStreams.toByteArray(in));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Writes the given raw request bytes, and returns everything written back to the client. */
+  private String exchange(String rawRequests) {
+    channel.writeInbound(
+        Unpooled.copiedBuffer(rawRequests.getBytes(XrpcConstants.DEFAULT_CHARSET)));
+    StringBuilder written = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      written.append(buf.toString(XrpcConstants.DEFAULT_CHARSET));
+      buf.release();
+    }
+    return written.toString();
+  }
+
+  /** Returns the status codes of the responses in the given raw response text, in order. */
+  private static List<String> statuses(String rawResponses) {
+    List<String> statuses = new ArrayList<>();
+    Matcher matcher = STATUS_LINE.matcher(rawResponses);
+    while (matcher.find()) {
+      statuses.add(matcher.group(1));
+    }
+    return statuses;
+  }
+
+  @Test
+  void testKeepAlive_connectionStaysOpen() {
+    String first = exchange("GET /ok HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    String second = exchange("GET /empty HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    assertEquals(1, statuses(first).size());
+    assertEquals(1, statuses(second).size());
+    assertFalse(first.toLowerCase().contains("connection: close"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void testAltSvc_advertisedOnEveryResponse() {
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(contextBuilder.altSvc("h3=\":443\"").build());
+
+    String responses =
+        exchange(
+            "GET /ok HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    assertEquals(2, responses.split("alt-svc: h3=\":443\"\r\n", -1).length - 1);
+  }
+
+  @Test
+  void testPipelinedRequests_answeredInOrder() {
+    String responses =
+        exchange(
+            "GET /ok HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nping"
+                + "GET /empty HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    List<String> expected = new ArrayList<>();
+    expected.add("200");
+    expected.add("404");
+    expected.add("200");
+    expected.add("200");
+    assertEquals(expected, statuses(responses));
+    assertTrue(responses.contains("ping"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void testConnectionClose_closesAfterResponse() {
+    String response = exchange("GET /ok HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+    assertEquals(1, statuses(response).size());
+    assertTrue(response.toLowerCase().contains("connection: close"));
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  void testHttp10_closesByDefault() {
+    String response = exchange("GET /ok HTTP/1.0\r\n\r\n");
+
+    assertEquals(1, statuses(response).size());
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  void testAsyncResponse_writtenWhenComplete() {
+    String beforeCompletion = exchange("GET /async HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    assertEquals("", beforeCompletion);
+
+    asyncResponse.complete(Recipes.newResponseOk("done"));
+    channel.runPendingTasks();
+
+    String response = exchange("");
+    assertEquals(1, statuses(response).size());
+    assertTrue(response.contains("done"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void testPipelinedAsyncResponse_heldUntilEarlierResponsesWritten() {
+    String beforeCompletion =
+        exchange(
+            "GET /async HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    // The 404 is ready, but must wait for the response to the first request.
+    assertEquals("", beforeCompletion);
+
+    asyncResponse.complete(Recipes.newResponseOk("done"));
+    channel.runPendingTasks();
+
+    List<String> expected = new ArrayList<>();
+    expected.add("200");
+    expected.add("404");
+    assertEquals(expected, statuses(exchange("")));
+  }
+
+  @Test
+  void testStreamingBody_readAsDemanded() {
+    String response =
+        exchange(
+            "POST /upload HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4\r\nabcd\r\n");
+
+    // The handler was invoked before the body was complete, and reading paused for demand.
+    assertEquals("", response);
+    assertEquals(0, uploadSubscriber.chunks);
+    assertFalse(channel.config().isAutoRead());
+
+    uploadSubscriber.request(Long.MAX_VALUE);
+    assertEquals(1, uploadSubscriber.chunks);
+    assertTrue(channel.config().isAutoRead());
+
+    exchange("2\r\nef\r\n0\r\n\r\n");
+    assertTrue(uploadSubscriber.completed);
+    assertEquals("abcdef", uploadSubscriber.received.toString(XrpcConstants.DEFAULT_CHARSET));
+
+    uploadResponse.complete(Recipes.newResponseOk("done"));
+    response = exchange("");
+    assertEquals(ImmutableList.of("200"), statuses(response));
+  }
+
+  @Test
+  void testStreamingBody_discardedAfterEarlyResponse() {
+    uploadResponse.complete(
+        Recipes.newResponse(
+            HttpResponseStatus.FORBIDDEN, "denied", Recipes.ContentType.Text_Plain));
+    String response =
+        exchange("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nab");
+    assertEquals(ImmutableList.of("403"), statuses(response));
+    assertTrue(uploadSubscriber.error instanceof CancellationException);
+
+    // The rest of the body is read and dropped, and the connection can be reused.
+    response = exchange("cdGET /ok HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    assertEquals(ImmutableList.of("200"), statuses(response));
+    assertTrue(channel.config().isAutoRead());
+  }
+
+  @Test
+  void testUpload_spooledBeyondPayloadLimit() throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      body.append('u');
+    }
+    String response =
+        exchange("POST /spool HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2000\r\n\r\n" + body);
+
+    assertEquals(ImmutableList.of("200"), statuses(response));
+    assertTrue(response.endsWith("2000 file "));
+    // The spooled file is deleted once the response is complete.
+    try (Stream<Path> files = Files.list(fileRoot)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  void testUpload_contentSentAsResponse() throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      body.append((char) ('a' + i % 26));
+    }
+    String small = "small";
+
+    String responses =
+        exchange(
+            "POST /spool/stream HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2000\r\n\r\n"
+                + body
+                + "POST /spool/echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\n"
+                + small);
+
+    // Both the spooled file and the part held in memory outlive the handler until written.
+    assertEquals(ImmutableList.of("200", "200"), statuses(responses));
+    assertTrue(responses.contains(body), responses);
+    assertTrue(responses.endsWith(small), responses);
+    try (Stream<Path> files = Files.list(fileRoot)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  void testUpload_wholeRequestWithoutBody() {
+    channel.pipeline().replace(HttpServerCodec.class, "codec", new FastHttpServerCodec());
+
+    String response =
+        exchange("POST /spool HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n");
+
+    assertEquals(ImmutableList.of("200"), statuses(response));
+    assertTrue(response.endsWith("0 memory "));
+  }
+
+  @Test
+  void testStreamingResponse_writtenChunked() {
+    String responses =
+        exchange(
+            "GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /ok HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    assertEquals(ImmutableList.of("200", "200"), statuses(responses));
+    assertTrue(responses.toLowerCase().contains("transfer-encoding: chunked"));
+    assertTrue(responses.contains("7\r\n[1,2,3]\r\n0\r\n\r\n"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void testSseRoute_resumesFromLastEventId() {
+    String response =
+        exchange("GET /events HTTP/1.1\r\nHost: localhost\r\nLast-Event-ID: 5\r\n\r\n");
+
+    assertEquals(ImmutableList.of("200"), statuses(response));
+    assertTrue(response.toLowerCase().contains("content-type: text/event-stream"));
+    assertTrue(response.contains("id: after-5\n\n"));
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  void testFileResponse_sentAsFileRegionInCleartext() throws IOException {
+    Files.write(fileRoot.resolve("data.bin"), new byte[100]);
+    channel.writeInbound(
+        Unpooled.copiedBuffer(
+            "GET /files/data.bin HTTP/1.1\r\nHost: localhost\r\n\r\n",
+            XrpcConstants.DEFAULT_CHARSET));
+
+    ByteBuf head = channel.readOutbound();
+    String headers = head.toString(XrpcConstants.DEFAULT_CHARSET).toLowerCase();
+    head.release();
+    assertTrue(headers.startsWith("http/1.1 200 "));
+    assertTrue(headers.contains("content-length: 100"));
+    assertFalse(headers.contains("transfer-encoding"));
+
+    FileRegion region = channel.readOutbound();
+    assertEquals(100, region.count());
+    region.release();
+    assertTrue(channel.isOpen());
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Nordstrom, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nordstrom.xrpc.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.util.JsonFormat;
+import com.nordstrom.xrpc.XrpcConstants;
+import com.nordstrom.xrpc.encoding.Decoders;
+import com.nordstrom.xrpc.encoding.Encoders;
+import com.nordstrom.xrpc.encoding.JsonDecoder;
+import com.nordstrom.xrpc.encoding.JsonEncoder;
+import com.nordstrom.xrpc.encoding.ProtoDefaultInstances;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WebSocketTest {
+  private static final String UPGRADE_REQUEST =
+      "GET /ws/%s HTTP/1.1\r\n"
+          + "Host: localhost\r\n"
+          + "Upgrade: websocket\r\n"
+          + "Connection: Upgrade\r\n"
+          + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+          + "Sec-WebSocket-Version: 13\r\n\r\n";
+
+  private MetricRegistry metricRegistry = new MetricRegistry();
+  private ServerContext xctx;
+  private EmbeddedChannel channel;
+  private final List<Integer> closeStatuses = new ArrayList<>();
+
+  /** Encodes frames as a client would send them. */
+  private final EmbeddedChannel clientEncoder =
+      new EmbeddedChannel(new WebSocket13FrameEncoder(true));
+
+  /** Decodes frames sent by the server. */
+  private final EmbeddedChannel clientDecoder =
+      new EmbeddedChannel(new WebSocket13FrameDecoder(false, false, 65536));
+
+  @BeforeEach
+  void initChannel() {
+    ObjectMapper mapper = new ObjectMapper();
+    ServerContext.Builder contextBuilder =
+        ServerContext.builder()
+            .requestMeter(metricRegistry.meter("requests"))
+            .webSocketMaxOutboundQueueBytes(32)
+            .encoders(
+                Encoders.builder()
+                    .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                    .encoder(
+                        new JsonEncoder(
+                            mapper, JsonFormat.printer().omittingInsignificantWhitespace()))
+                    .build())
+            .decoders(
+                Decoders.builder()
+                    .defaultContentType(HttpHeaderValues.APPLICATION_JSON)
+                    .decoder(new JsonDecoder(mapper, new ProtoDefaultInstances()))
+                    .build());
+    Server.addResponseCodeMeters(contextBuilder, metricRegistry);
+    RouteBuilder routeBuilder = new RouteBuilder();
+    routeBuilder.webSocket(
+        "/ws/{name}",
+        new WebSocketHandler() {
+          @Override
+          public void onOpen(WebSocketSession session) {
+            session.sendText("hello " + session.request().variable("name"));
+          }
+
+          @Override
+          public void onMessage(WebSocketSession session, WebSocketMessage message)
+              throws IOException {
+            Map<?, ?> body = message.body(Map.class);
+            session.send(body.get("echo"));
+          }
+
+          @Override
+          public void onClose(WebSocketSession session, int statusCode) {
+            closeStatuses.add(statusCode);
+          }
+        });
+    contextBuilder.routes(routeBuilder.compile(metricRegistry));
+    xctx = contextBuilder.build();
+    channel = newChannel(new HttpServerCodec());
+  }
+
+  /** Returns a connection whose HTTP/1.1 requests are decoded by the given codec. */
+  private EmbeddedChannel newChannel(ChannelHandler codec) {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(
+            codec,
+            new HttpServerKeepAliveHandler(),
+            new RequestAggregator(1024),
+            new WebSocketUpgradeHandler(1024),
+            new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(xctx);
+    return channel;
+  }
+
+  /** Returns everything written to the client since the last call. */
+  private ByteBuf written() {
+    ByteBuf written = Unpooled.buffer();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      written.writeBytes(buf);
+      buf.release();
+    }
+    return written;
+  }
+
+  /** Upgrades the connection, and returns the response headers. */
+  private String upgrade() {
+    channel.writeInbound(
+        Unpooled.copiedBuffer(
+            String.format(UPGRADE_REQUEST, "bob").getBytes(XrpcConstants.DEFAULT_CHARSET)));
+    ByteBuf written = written();
+    int headersEnd = ByteBufUtil.indexOf(Unpooled.wrappedBuffer("\r\n\r\n".getBytes()), written);
+    String headers =
+        written.readCharSequence(headersEnd + 4, XrpcConstants.DEFAULT_CHARSET).toString();
+    clientDecoder.writeInbound(written);
+    return headers;
+  }
+
+  private void sendFromClient(WebSocketFrame frame) {
+    clientEncoder.writeOutbound(frame);
+    ByteBuf buf;
+    while ((buf = clientEncoder.readOutbound()) != null) {
+      channel.writeInbound(buf);
+    }
+  }
+
+  /** Returns the next frame sent by the server. */
+  private WebSocketFrame receive() {
+    clientDecoder.writeInbound(written());
+    return clientDecoder.readInbound();
+  }
+
+  @Test
+  void upgradeOpensSession() {
+    String headers = upgrade();
+
+    assertTrue(headers.startsWith("HTTP/1.1 101 "));
+    WebSocketFrame greeting = clientDecoder.readInbound();
+    assertEquals("hello bob", ((TextWebSocketFrame) greeting).text());
+    greeting.release();
+    assertEquals(1, metricRegistry.counter("webSockets./ws/{name}.open").getCount());
+  }
+
+  @Test
+  void messagesDecodedAndEncoded() {
+    upgrade();
+    ((WebSocketFrame) clientDecoder.readInbound()).release();
+
+    sendFromClient(new TextWebSocketFrame("{\"echo\":\"hi\"}"));
+
+    TextWebSocketFrame reply = (TextWebSocketFrame) receive();
+    assertEquals("\"hi\"", reply.text());
+    reply.release();
+    assertEquals(1, metricRegistry.meter("webSockets./ws/{name}.messagesIn").getCount());
+    assertEquals(2, metricRegistry.meter("webSockets./ws/{name}.messagesOut").getCount());
+  }
+
+  @Test
+  void upgradeWorksWithFastCodec() {
+    channel.finishAndReleaseAll();
+    channel = newChannel(new FastHttpServerCodec());
+
+    String headers = upgrade();
+
+    assertTrue(headers.startsWith("HTTP/1.1 101 "));
+    ((WebSocketFrame) clientDecoder.readInbound()).release();
+    sendFromClient(new TextWebSocketFrame("{\"echo\":\"hi\"}"));
+    TextWebSocketFrame reply = (TextWebSocketFrame) receive();
+    assertEquals("\"hi\"", reply.text());
+    reply.release();
+  }
+
+  @Test
+  void failedHandshakeDoesNotOpenSession() {
+    // Without an HTTP codec in the pipeline, the handshake fails.
+    channel.finishAndReleaseAll();
+    channel = new EmbeddedChannel(new WebSocketUpgradeHandler(1024), new UrlRouter());
+    channel.attr(ServerContext.ATTRIBUTE_KEY).set(xctx);
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/ws/bob");
+    request
+        .headers()
+        .set(HttpHeaderNames.HOST, "localhost")
+        .set(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET)
+        .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE)
+        .set(HttpHeaderNames.SEC_WEBSOCKET_KEY, "dGhlIHNhbXBsZSBub25jZQ==")
+        .set(HttpHeaderNames.SEC_WEBSOCKET_VERSION, "13");
+
+    channel.writeInbound(request);
+
+    assertFalse(channel.isOpen());
+    assertEquals(0, request.refCnt());
+    assertEquals(0, metricRegistry.counter("webSockets./ws/{name}.open").getCount());
+    assertTrue(closeStatuses.isEmpty());
+  }
+
+  @Test
+  void clientCloseEchoedAndReported() {
+    upgrade();
+    ((WebSocketFrame) clientDecoder.readInbound()).release();
+
+    sendFromClient(new CloseWebSocketFrame(1000, "bye"));
+
+    CloseWebSocketFrame reply = (CloseWebSocketFrame) receive();
+    assertEquals(1000, reply.statusCode());
+    reply.release();
+    assertFalse(channel.isOpen());
+    assertEquals(1, closeStatuses.size());
+    assertEquals(1000, (int) closeStatuses.get(0));
+    assertEquals(0, metricRegistry.counter("webSockets./ws/{name}.open").getCount());
+  }
+
+  @Test
+  void slowClientClosedWhenQueueOverflows() {
+    upgrade();
+    ((WebSocketFrame) clientDecoder.readInbound()).release();
+
+    // The reply is larger than the 32 byte outbound queue limit.
+    sendFromClient(new TextWebSocketFrame("{\"echo\":\"0123456789012345678901234567890123\"}"));
+
+    CloseWebSocketFrame reply = (CloseWebSocketFrame) receive();
+    assertEquals(WebSocketSession.POLICY_VIOLATION, reply.statusCode());
+    reply.release();
+    assertEquals(1, metricRegistry.meter("webSockets./ws/{name}.overflows").getCount());
+  }
+
+  @Test
+  void requestWithoutUpgradeRejected() {
+    channel.writeInbound(
+        Unpooled.copiedBuffer(
+            "GET /ws/bob HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                .getBytes(XrpcConstants.DEFAULT_CHARSET)));
+
+    String response = written().toString(XrpcConstants.DEFAULT_CHARSET);
+    assertTrue(response.startsWith("HTTP/1.1 426 "));
+    assertTrue(response.toLowerCase().contains("upgrade: websocket"));
+  }
+}